@@ -0,0 +1,92 @@
+// License: GPL. For details, see LICENSE file.
+package org.apache.tools.bzip2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a stream of bits, most significant bit first, as bzip2 does.
+ *
+ * Used to splice bzip2 blocks, which are not byte aligned, into new streams.
+ */
+final class BitWriter {
+
+    private final OutputStream out;
+    private int buffer;
+    private int bufferBits;
+
+    BitWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the <code>n</code> lowest bits of <code>value</code>, at most 24.
+     */
+    void writeBits(int n, int value) throws IOException {
+        buffer = (buffer << n) | (value & ((1 << n) - 1));
+        bufferBits += n;
+        while (bufferBits >= 8) {
+            bufferBits -= 8;
+            out.write(buffer >>> bufferBits);
+        }
+        buffer &= (1 << bufferBits) - 1;
+    }
+
+    void writeInt(int value) throws IOException {
+        writeBits(16, value >>> 16);
+        writeBits(16, value);
+    }
+
+    /**
+     * Copies <code>count</code> bits of <code>src</code>, starting at bit <code>srcBit</code>.
+     */
+    void copyBits(byte[] src, long srcBit, long count) throws IOException {
+        if (bufferBits == 0 && (srcBit & 7) == 0 && count >= 8) {
+            // aligned, copy whole bytes at once
+            int length = (int) (count >>> 3);
+            out.write(src, (int) (srcBit >>> 3), length);
+            srcBit += length * 8L;
+            count -= length * 8L;
+        }
+        while (count >= 8) {
+            writeBits(8, getBits(src, srcBit, 8));
+            srcBit += 8;
+            count -= 8;
+        }
+        if (count > 0) {
+            writeBits((int) count, getBits(src, srcBit, (int) count));
+        }
+    }
+
+    /**
+     * Writes the remaining bits, padded with zeros to a full byte.
+     */
+    void flush() throws IOException {
+        if (bufferBits > 0) {
+            writeBits(8 - bufferBits, 0);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads <code>n</code> bits (at most 8) of <code>src</code>, starting at bit <code>pos</code>.
+     * Bits beyond the end of <code>src</code> are read as zero.
+     */
+    static int getBits(byte[] src, long pos, int n) {
+        int index = (int) (pos >>> 3);
+        int shift = (int) (pos & 7);
+        int two = (src[index] & 0xff) << 8;
+        if (index + 1 < src.length) {
+            two |= src[index + 1] & 0xff;
+        }
+        return (two >>> (16 - shift - n)) & ((1 << n) - 1);
+    }
+
+    static int getInt(byte[] src, long pos) {
+        int result = 0;
+        for (int i=0; i<4; i++) {
+            result = (result << 8) | getBits(src, pos + 8 * i, 8);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,347 @@
+// License: GPL. For details, see LICENSE file.
+package org.apache.tools.bzip2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An input stream that decompresses from the BZip2 format (without the file
+ * header chars), decoding several blocks at once.
+ *
+ * <p>The compressed stream is scanned for the 48 bit block header
+ * <tt>0x314159265359</tt>. Each block is copied into a single-block stream of
+ * its own and decoded by a {@link CBZip2InputStream} on a worker thread. The
+ * decoded blocks are returned in order, so the result is the same as with
+ * {@link CBZip2InputStream}.</p>
+ *
+ * <p>The block header may also occur by chance inside compressed data. A block
+ * which fails to decode or whose CRC doesn't match is therefore decoded again
+ * together with the following one.</p>
+ *
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class ParallelCBZip2InputStream extends InputStream {
+
+    static final long BLOCK_MAGIC = 0x314159265359L;
+    static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+
+    /**
+     * The bits of a block, starting with the block header.
+     */
+    private static class Segment {
+        final byte[] bits;
+        final long bitLength;
+        final int storedCRC;
+        Future<byte[]> result;
+
+        Segment(byte[] bits, long bitLength) {
+            this.bits = bits;
+            this.bitLength = bitLength;
+            this.storedCRC = BitWriter.getInt(bits, 48);
+        }
+    }
+
+    private final InputStream in;
+    private final int blockSize100k;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final long maxSegmentBits;
+    private final LinkedList<Segment> pending = new LinkedList<Segment>();
+
+    /* scanner state, bit positions are counted from the first bit after the stream header */
+    private byte[] scanBuf = new byte[1 << 16];
+    private int scanLen;
+    private long scanBufStart;
+    private long bitPos;
+    private long window;
+    private long segmentStart = -1;
+    private boolean endOfInput;
+
+    /* the decoded block returned by read() */
+    private byte[] current = new byte[0];
+    private int currentPos;
+    private boolean closed;
+
+    /**
+     * Constructs a new ParallelCBZip2InputStream which decompresses the bytes read from
+     * the specified stream.
+     *
+     * <p>Although BZip2 headers are marked with the magic
+     * <tt>"Bz"</tt> this constructor expects the next byte in the
+     * stream to be the first one after the magic.  Thus callers have
+     * to skip the first two bytes. Otherwise this constructor will
+     * throw an exception. </p>
+     *
+     * @param in the compressed input stream
+     * @param threads the number of blocks decoded at the same time
+     * @throws IOException
+     *  if the stream content is malformed or an I/O error occurs.
+     */
+    public ParallelCBZip2InputStream(final InputStream in, int threads) throws IOException {
+        this.in = in;
+        int magic2 = in.read();
+        if (magic2 != 'h') {
+            throw new IOException("Stream is not BZip2 formatted: expected 'h'"
+                                  + " as first byte but got '" + (char) magic2
+                                  + "'");
+        }
+        int blockSize = in.read();
+        if ((blockSize < '1') || (blockSize > '9')) {
+            throw new IOException("Stream is not BZip2 formatted: illegal "
+                                  + "blocksize " + (char) blockSize);
+        }
+        this.blockSize100k = blockSize - '0';
+        // a compressed block is never much larger than the uncompressed one
+        this.maxSegmentBits = 16L * (blockSize100k * BZip2Constants.baseBlockSize + 1024);
+        threads = Math.max(1, threads);
+        this.maxPending = 2 * threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BZip2 decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (closed)
+            throw new IOException("stream closed");
+        while (currentPos == current.length) {
+            if (!nextBlock())
+                return -1;
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] dest, final int offs, final int len) throws IOException {
+        if (offs < 0 || len < 0 || offs + len > dest.length)
+            throw new IndexOutOfBoundsException();
+        if (closed)
+            throw new IOException("stream closed");
+        if (len == 0)
+            return 0;
+        while (currentPos == current.length) {
+            if (!nextBlock())
+                return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, dest, offs, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            executor.shutdownNow();
+            current = null;
+            pending.clear();
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the next decoded block the current one.
+     * @return false at the end of the stream
+     */
+    private boolean nextBlock() throws IOException {
+        fill();
+        if (pending.isEmpty())
+            return false;
+        Segment segment = pending.removeFirst();
+        while (true) {
+            try {
+                current = get(segment.result);
+                currentPos = 0;
+                return true;
+            } catch (IOException e) {
+                // maybe the block was split at a bit pattern which looked
+                // like a block header, try again with the next segment
+                fill();
+                if (pending.isEmpty() || segment.bitLength > maxSegmentBits)
+                    throw e;
+                Segment next = pending.removeFirst();
+                next.result.cancel(true);
+                segment = merge(segment, next);
+                submit(segment);
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        while (pending.size() < maxPending) {
+            Segment segment = scan();
+            if (segment == null)
+                return;
+            submit(segment);
+            pending.add(segment);
+        }
+    }
+
+    private void submit(final Segment segment) {
+        segment.result = executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return decode(segment, blockSize100k);
+            }
+        });
+    }
+
+    private static byte[] get(Future<byte[]> result) throws IOException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            IOException ioe = new IOException("BZip2 block could not be decoded");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } catch (InterruptedException e) {
+            IOException ioe = new IOException("interrupted");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static Segment merge(Segment first, Segment second) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(first.bits.length + second.bits.length);
+        BitWriter writer = new BitWriter(bytes);
+        writer.copyBits(first.bits, 0, first.bitLength);
+        writer.copyBits(second.bits, 0, second.bitLength);
+        writer.flush();
+        return new Segment(bytes.toByteArray(), first.bitLength + second.bitLength);
+    }
+
+    /**
+     * Decodes a block by wrapping it into a stream of its own.
+     */
+    private static byte[] decode(Segment segment, int blockSize100k) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(segment.bits.length + 12);
+        stream.write('h');
+        stream.write('0' + blockSize100k);
+        BitWriter writer = new BitWriter(stream);
+        writer.copyBits(segment.bits, 0, segment.bitLength);
+        writer.writeBits(24, (int) (EOS_MAGIC >>> 24));
+        writer.writeBits(24, (int) EOS_MAGIC);
+        // the combined CRC of a stream with a single block is the block CRC
+        writer.writeInt(segment.storedCRC);
+        writer.flush();
+
+        CBZip2InputStream block = new CBZip2InputStream(new ByteArrayInputStream(stream.toByteArray()));
+        CRC crc = new CRC();
+        byte[] result = new byte[blockSize100k * BZip2Constants.baseBlockSize];
+        int length = 0;
+        int n;
+        while ((n = block.read(result, length, result.length - length)) > 0) {
+            for (int i = length; i < length + n; i++) {
+                crc.updateCRC(result[i] & 0xff);
+            }
+            length += n;
+            if (length == result.length) {
+                byte[] grown = new byte[result.length * 2];
+                System.arraycopy(result, 0, grown, 0, length);
+                result = grown;
+            }
+        }
+        if (crc.getFinalCRC() != segment.storedCRC)
+            throw new IOException("BZip2 CRC error");
+        byte[] trimmed = new byte[length];
+        System.arraycopy(result, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    /**
+     * Reads more input, compacting or growing the scan buffer first.
+     * @return false at the end of the input
+     */
+    private boolean readInput() throws IOException {
+        long keepFrom = (segmentStart >= 0 ? segmentStart : bitPos) >>> 3;
+        if (keepFrom > scanBufStart) {
+            int drop = (int) (keepFrom - scanBufStart);
+            System.arraycopy(scanBuf, drop, scanBuf, 0, scanLen - drop);
+            scanLen -= drop;
+            scanBufStart = keepFrom;
+        }
+        if (scanLen == scanBuf.length) {
+            if (scanLen * 8L > maxSegmentBits)
+                throw new IOException("bad block header");
+            byte[] grown = new byte[scanBuf.length * 2];
+            System.arraycopy(scanBuf, 0, grown, 0, scanLen);
+            scanBuf = grown;
+        }
+        int n = in.read(scanBuf, scanLen, scanBuf.length - scanLen);
+        if (n <= 0)
+            return false;
+        scanLen += n;
+        return true;
+    }
+
+    /**
+     * Scans the input for the next block header or the end of stream marker.
+     * @return the bits of the next block or null at the end of the stream
+     */
+    private Segment scan() throws IOException {
+        while (!endOfInput) {
+            long endBit = (scanBufStart + scanLen) * 8;
+            if (bitPos == endBit) {
+                if (!readInput()) {
+                    endOfInput = true;
+                    throw new IOException("Unexpected end of BZip2 stream");
+                }
+                continue;
+            }
+            while (bitPos < endBit) {
+                int b = scanBuf[(int) ((bitPos >>> 3) - scanBufStart)];
+                window = (window << 1) | ((b >>> (7 - (int) (bitPos & 7))) & 1);
+                bitPos++;
+                long magic = window & MAGIC_MASK;
+                if (magic == BLOCK_MAGIC || magic == EOS_MAGIC) {
+                    long magicStart = bitPos - 48;
+                    Segment segment = null;
+                    if (segmentStart >= 0) {
+                        segment = extract(segmentStart, magicStart);
+                    }
+                    if (magic == EOS_MAGIC) {
+                        // the combined CRC is not needed, all block CRCs have been checked
+                        endOfInput = true;
+                        segmentStart = -1;
+                    } else {
+                        segmentStart = magicStart;
+                    }
+                    if (segment != null || endOfInput)
+                        return segment;
+                } else if (segmentStart < 0 && bitPos == 48) {
+                    endOfInput = true;
+                    throw new IOException("bad block header");
+                }
+            }
+        }
+        return null;
+    }
+
+    private Segment extract(long start, long end) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) ((end - start) >>> 3) + 1);
+        BitWriter writer = new BitWriter(bytes);
+        writer.copyBits(scanBuf, start - scanBufStart * 8, end - start);
+        writer.flush();
+        return new Segment(bytes.toByteArray(), end - start);
+    }
+}
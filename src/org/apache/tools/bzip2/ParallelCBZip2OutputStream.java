@@ -0,0 +1,215 @@
+// License: GPL. For details, see LICENSE file.
+package org.apache.tools.bzip2;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An output stream that compresses into the BZip2 format (without the file
+ * header chars), compressing several blocks at once.
+ *
+ * <p>The input is cut into chunks which are compressed by a {@link CBZip2OutputStream}
+ * each on a worker thread. The chunks are small enough to always fit into a single
+ * block, even after the initial run length encoding. The blocks are then spliced into
+ * one regular bzip2 stream, which can be read by {@link CBZip2InputStream} and any
+ * other bzip2 decoder.</p>
+ *
+ * <p><b>Attention: </b>The caller is responsible to write the two BZip2 magic
+ * bytes <tt>"BZ"</tt> to the specified stream prior to calling the constructor.</p>
+ *
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class ParallelCBZip2OutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final BitWriter writer;
+    private final int blockSize100k;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private final int chunkSize;
+    private byte[] chunk;
+    private int chunkLength;
+    private int combinedCRC;
+    private boolean finished;
+
+    /**
+     * Constructs a new ParallelCBZip2OutputStream with specified blocksize.
+     *
+     * @param out the destination stream.
+     * @param blockSize the blockSize as 100k units.
+     * @param threads the number of blocks compressed at the same time
+     * @throws IOException if an I/O error occurs in the specified stream.
+     * @throws IllegalArgumentException if <code>(blockSize < 1) || (blockSize > 9)</code>.
+     */
+    public ParallelCBZip2OutputStream(final OutputStream out, final int blockSize, int threads) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize(" + blockSize
+                                               + ") < 1");
+        }
+        if (blockSize > 9) {
+            throw new IllegalArgumentException("blockSize(" + blockSize
+                                               + ") > 9");
+        }
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.writer = new BitWriter(this.out);
+        this.blockSize100k = blockSize;
+        // the run length encoding expands 4 equal bytes to 5 bytes at worst,
+        // 20 is the paranoia constant of CBZip2OutputStream
+        this.chunkSize = (blockSize * BZip2Constants.baseBlockSize - 20) / 5 * 4 - 8;
+        this.chunk = new byte[chunkSize];
+        threads = Math.max(1, threads);
+        this.maxPending = 2 * threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BZip2 encoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        writer.writeBits(8, 'h');
+        writer.writeBits(8, '0' + blockSize);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (finished)
+            throw new IOException("closed");
+        chunk[chunkLength++] = (byte) b;
+        if (chunkLength == chunkSize) {
+            submitChunk();
+        }
+    }
+
+    @Override
+    public void write(final byte[] buf, int offs, int len) throws IOException {
+        if (offs < 0 || len < 0 || offs + len > buf.length)
+            throw new IndexOutOfBoundsException();
+        if (finished)
+            throw new IOException("closed");
+        while (len > 0) {
+            int n = Math.min(len, chunkSize - chunkLength);
+            System.arraycopy(buf, offs, chunk, chunkLength, n);
+            chunkLength += n;
+            offs += n;
+            len -= n;
+            if (chunkLength == chunkSize) {
+                submitChunk();
+            }
+        }
+    }
+
+    private void submitChunk() throws IOException {
+        final byte[] data = chunk;
+        final int length = chunkLength;
+        chunk = new byte[chunkSize];
+        chunkLength = 0;
+        pending.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream(length / 4 + 64);
+                CBZip2OutputStream compressor = new CBZip2OutputStream(stream, blockSize100k);
+                compressor.write(data, 0, length);
+                compressor.close();
+                return stream.toByteArray();
+            }
+        }));
+        if (pending.size() > maxPending) {
+            writeBlock(pending.removeFirst());
+        }
+    }
+
+    /**
+     * Copies the block of a compressed chunk into the output stream.
+     */
+    private void writeBlock(Future<byte[]> result) throws IOException {
+        byte[] stream;
+        try {
+            stream = result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            IOException ioe = new IOException("BZip2 block could not be compressed");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } catch (InterruptedException e) {
+            IOException ioe = new IOException("interrupted");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        // the chunk stream ends with the end of stream marker, the combined CRC and
+        // at most 7 bits padding
+        long total = stream.length * 8L;
+        long end = -1;
+        for (long pos = total - 80; pos > total - 88 && pos >= 16; pos--) {
+            if (readMagic(stream, pos) == ParallelCBZip2InputStream.EOS_MAGIC) {
+                end = pos;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new IOException("BZip2 end of stream marker not found");
+        int blockCRC = BitWriter.getInt(stream, end + 48);
+        writer.copyBits(stream, 16, end - 16);
+        combinedCRC = (combinedCRC << 1) | (combinedCRC >>> 31);
+        combinedCRC ^= blockCRC;
+    }
+
+    private static long readMagic(byte[] src, long pos) {
+        long result = 0;
+        for (int i=0; i<6; i++) {
+            result = (result << 8) | BitWriter.getBits(src, pos + 8 * i, 8);
+        }
+        return result;
+    }
+
+    /**
+     * Compresses the remaining data and writes the end of the stream.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        try {
+            if (chunkLength > 0) {
+                submitChunk();
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(pending.removeFirst());
+            }
+            writer.writeBits(24, (int) (ParallelCBZip2InputStream.EOS_MAGIC >>> 24));
+            writer.writeBits(24, (int) ParallelCBZip2InputStream.EOS_MAGIC);
+            writer.writeInt(combinedCRC);
+            writer.flush();
+        } finally {
+            finished = true;
+            chunk = null;
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. Data of the current chunk is kept, since
+     * it would end the block early.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,224 @@
+package org.openstreetmap.gui.jmapviewer;
+
+//License: GPL.
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * {@link TileCache} implementation that can be used concurrently by the paint
+ * thread and the tile loader threads without a global lock.
+ *
+ * In contrast to {@link MemoryTileCache} the size of the cache is limited by
+ * the memory used by the decoded tile images ({@link #getMaxBytes()}) and not
+ * by the number of tiles. If the limit is exceeded, the least recently used
+ * tiles are removed until the cache is below {@link #LOW_WATER_MARK} of the
+ * limit again. Lookups never wait for an eviction, and at most one thread
+ * evicts at a time.
+ */
+public class ConcurrentTileCache implements TileCache {
+
+    /**
+     * Fraction of {@link #getMaxBytes()} the cache is reduced to by an eviction.
+     */
+    public static final double LOW_WATER_MARK = 0.9;
+
+    protected final ConcurrentHashMap<String, CacheEntry> map = new ConcurrentHashMap<String, CacheEntry>();
+
+    protected volatile long maxBytes;
+
+    protected final AtomicLong bytes = new AtomicLong();
+    protected final AtomicLong clock = new AtomicLong();
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong evictions = new AtomicLong();
+
+    protected final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes the maximum number of bytes used by the decoded tile images
+     */
+    public ConcurrentTileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public Tile getTile(TileSource source, int x, int y, int z) {
+        CacheEntry entry = map.get(Tile.getTileKey(source, x, y, z));
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // We don't care about placeholder tiles and hourglass image tiles, the
+        // important tiles are the loaded ones
+        if (entry.tile.isLoaded()) {
+            entry.lastAccess = clock.incrementAndGet();
+            // the image is usually set after the tile has been added
+            if (updateWeight(entry)) {
+                evictIfNeeded();
+            }
+        }
+        return entry.tile;
+    }
+
+    public void addTile(Tile tile) {
+        CacheEntry entry = new CacheEntry(tile);
+        entry.lastAccess = clock.incrementAndGet();
+        CacheEntry old = map.put(tile.getKey(), entry);
+        if (old != null) {
+            remove(old);
+        }
+        updateWeight(entry);
+        evictIfNeeded();
+    }
+
+    /**
+     * Recomputes the weight of the entry, as the tile image may have changed.
+     *
+     * @return <code>true</code> if the weight has increased
+     */
+    protected boolean updateWeight(CacheEntry entry) {
+        int weight = getWeight(entry.tile);
+        synchronized (entry) {
+            if (entry.removed || weight == entry.weight)
+                return false;
+            bytes.addAndGet(weight - entry.weight);
+            boolean increased = weight > entry.weight;
+            entry.weight = weight;
+            return increased;
+        }
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the decoded image of the tile.
+     * The shared loading and error images are not counted.
+     */
+    protected int getWeight(Tile tile) {
+        BufferedImage image = tile.getImage();
+        if (image == null || image == Tile.LOADING_IMAGE || image == Tile.ERROR_IMAGE)
+            return 0;
+        return image.getWidth() * image.getHeight() * 4;
+    }
+
+    protected void remove(CacheEntry entry) {
+        synchronized (entry) {
+            if (entry.removed)
+                return;
+            entry.removed = true;
+            bytes.addAndGet(-entry.weight);
+        }
+    }
+
+    protected void evictIfNeeded() {
+        if (bytes.get() <= maxBytes || !evictionLock.tryLock())
+            return;
+        try {
+            long limit = (long) (maxBytes * LOW_WATER_MARK);
+            CacheEntry[] entries = map.values().toArray(new CacheEntry[0]);
+            final long[] access = new long[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                updateWeight(entries[i]);
+            }
+            // sort on a snapshot of the access times, they change concurrently
+            Integer[] order = new Integer[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                access[i] = entries[i].lastAccess;
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    long a1 = access[o1];
+                    long a2 = access[o2];
+                    return a1 < a2 ? -1 : a1 == a2 ? 0 : 1;
+                }
+            });
+            for (int i = 0; i < order.length && bytes.get() > limit; i++) {
+                CacheEntry entry = entries[order[i]];
+                if (map.remove(entry.tile.getKey(), entry)) {
+                    remove(entry);
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Clears the cache deleting all tiles from memory
+     */
+    public void clear() {
+        for (CacheEntry entry : map.values()) {
+            if (map.remove(entry.tile.getKey(), entry)) {
+                remove(entry);
+            }
+        }
+    }
+
+    public int getTileCount() {
+        return map.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the maximum number of bytes the tile images in this cache may use.
+     *
+     * @param maxBytes the new limit
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evictIfNeeded();
+    }
+
+    /**
+     * @return the number of bytes currently used by the tile images in this cache
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the fraction of {@link #getTile(TileSource, int, int, int)} calls
+     *         that found the tile, or 0 if there was no call yet
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    protected static class CacheEntry {
+        final Tile tile;
+        volatile long lastAccess;
+        int weight;
+        boolean removed;
+
+        protected CacheEntry(Tile tile) {
+            this.tile = tile;
+        }
+    }
+}
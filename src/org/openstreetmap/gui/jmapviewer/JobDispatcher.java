@@ -2,8 +2,14 @@ package org.openstreetmap.gui.jmapviewer;
 
 //License: GPL. Copyright 2008 by Jan Peter Stotz
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -13,6 +19,11 @@ import java.util.concurrent.TimeUnit;
  * more than {@link #WORKER_THREAD_TIMEOUT} seconds (default: 30), the instance
  * ends itself.
  *
+ * Jobs with a lower priority value are processed first, jobs with the same
+ * priority in the order they have been added. At most
+ * {@link #MAX_JOBS_PER_HOST} jobs for the same host run at the same time, the
+ * other ones wait until one of them is finished.
+ *
  * @author Jan Peter Stotz
  */
 public class JobDispatcher {
@@ -30,10 +41,28 @@ public class JobDispatcher {
         addWorkerThread().firstThread = true;
     }
 
-    protected BlockingQueue<Runnable> jobQueue = new LinkedBlockingQueue<Runnable>();
+    protected BlockingQueue<Job> jobQueue = new PriorityBlockingQueue<Job>();
+
+    /**
+     * Jobs that wait for another job of the same host to finish
+     */
+    protected final Map<String, PriorityQueue<Job>> deferredJobs = new HashMap<String, PriorityQueue<Job>>();
+
+    /**
+     * Number of jobs currently processed per host
+     */
+    protected final Map<String, Integer> runningJobsPerHost = new HashMap<String, Integer>();
 
     public static int WORKER_THREAD_MAX_COUNT = 8;
 
+    /**
+     * Maximum number of jobs for the same host processed at the same time.
+     * The default is below the number of connections per host that
+     * {@link java.net.HttpURLConnection} keeps alive (5), so that the
+     * connections can be reused.
+     */
+    public static int MAX_JOBS_PER_HOST = 4;
+
     /**
      * Specifies the time span in seconds that a worker thread waits for new
      * jobs to perform. If the time span has elapsed the worker thread
@@ -57,19 +86,112 @@ public class JobDispatcher {
      */
     protected int workerThreadId = 0;
 
+    /**
+     * Sequence number of the last added job, keeps jobs of the same priority in order
+     */
+    protected long jobSequence = 0;
+
     /**
      * Removes all jobs from the queue that are currently not being processed.
      */
     public void cancelOutstandingJobs() {
-        jobQueue.clear();
+        synchronized (this) {
+            jobQueue.clear();
+            deferredJobs.clear();
+        }
+    }
+
+    /**
+     * Removes the jobs of the given owner from the queue that are currently
+     * not being processed.
+     *
+     * @param owner the owner given to {@link #addJob(Runnable, Object, String, double)}
+     * @return the removed jobs
+     */
+    public List<Runnable> cancelOutstandingJobs(Object owner) {
+        List<Runnable> cancelled = new ArrayList<Runnable>();
+        synchronized (this) {
+            for (Job job : jobQueue) {
+                if (job.owner == owner && jobQueue.remove(job)) {
+                    cancelled.add(job.runnable);
+                }
+            }
+            for (Iterator<PriorityQueue<Job>> it = deferredJobs.values().iterator(); it.hasNext();) {
+                PriorityQueue<Job> jobs = it.next();
+                for (Iterator<Job> jit = jobs.iterator(); jit.hasNext();) {
+                    Job job = jit.next();
+                    if (job.owner == owner) {
+                        jit.remove();
+                        cancelled.add(job.runnable);
+                    }
+                }
+                if (jobs.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        return cancelled;
     }
 
     public void addJob(Runnable job) {
-        try {
-            jobQueue.put(job);
-            if (workerThreadIdleCount == 0 && workerThreadCount < WORKER_THREAD_MAX_COUNT)
-                addWorkerThread();
-        } catch (InterruptedException e) {
+        addJob(job, null, null, 0);
+    }
+
+    /**
+     * Adds a job to the queue.
+     *
+     * @param job the job
+     * @param owner the owner of the job, used for {@link #cancelOutstandingJobs(Object)}, may be <code>null</code>
+     * @param host the host the job connects to, may be <code>null</code> if there is no limit
+     * @param priority the priority, jobs with lower values are processed first
+     */
+    public void addJob(Runnable job, Object owner, String host, double priority) {
+        synchronized (this) {
+            jobQueue.add(new Job(job, owner, host, priority, ++jobSequence));
+        }
+        if (workerThreadIdleCount == 0 && workerThreadCount < WORKER_THREAD_MAX_COUNT)
+            addWorkerThread();
+    }
+
+    /**
+     * Registers the job as running, unless there are already
+     * {@link #MAX_JOBS_PER_HOST} jobs for its host. In that case
+     * the job is deferred until one of them is finished.
+     *
+     * @return <code>true</code> if the job can be processed now
+     */
+    protected synchronized boolean startJob(Job job) {
+        if (job.host == null)
+            return true;
+        Integer running = runningJobsPerHost.get(job.host);
+        if (running != null && running >= MAX_JOBS_PER_HOST) {
+            PriorityQueue<Job> jobs = deferredJobs.get(job.host);
+            if (jobs == null) {
+                jobs = new PriorityQueue<Job>();
+                deferredJobs.put(job.host, jobs);
+            }
+            jobs.add(job);
+            return false;
+        }
+        runningJobsPerHost.put(job.host, running == null ? 1 : running + 1);
+        return true;
+    }
+
+    protected synchronized void finishJob(Job job) {
+        if (job.host == null)
+            return;
+        int running = runningJobsPerHost.get(job.host) - 1;
+        if (running == 0) {
+            runningJobsPerHost.remove(job.host);
+        } else {
+            runningJobsPerHost.put(job.host, running);
+        }
+        PriorityQueue<Job> jobs = deferredJobs.get(job.host);
+        if (jobs != null) {
+            jobQueue.add(jobs.poll());
+            if (jobs.isEmpty()) {
+                deferredJobs.remove(job.host);
+            }
         }
     }
 
@@ -82,9 +204,31 @@ public class JobDispatcher {
         return jobThread;
     }
 
+    protected static class Job implements Comparable<Job> {
+        final Runnable runnable;
+        final Object owner;
+        final String host;
+        final double priority;
+        final long sequence;
+
+        Job(Runnable runnable, Object owner, String host, double priority, long sequence) {
+            this.runnable = runnable;
+            this.owner = owner;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Job o) {
+            if (priority != o.priority)
+                return priority < o.priority ? -1 : 1;
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+    }
+
     public class JobThread extends Thread {
 
-        Runnable job;
+        Job job;
         boolean firstThread = false;
 
         public JobThread(int threadId) {
@@ -120,11 +264,15 @@ public class JobDispatcher {
                 }
                 if (job == null)
                     return;
+                if (!startJob(job))
+                    continue;
                 try {
-                    job.run();
-                    job = null;
+                    job.runnable.run();
                 } catch (Exception e) {
                     e.printStackTrace();
+                } finally {
+                    finishJob(job);
+                    job = null;
                 }
             }
         }
@@ -155,7 +155,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
                 tile.error = false;
                 tile.loading = true;
             }
-            tileCacheDir = getSourceCacheDir(source);
+            prepareCache();
             if (loadTileFromFile())
                 return;
             if (fileTilePainted) {
@@ -171,11 +171,19 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
             }
         }
 
+        /**
+         * Called before the tile is looked up in the cache.
+         */
+        protected void prepareCache() {
+            tileCacheDir = getSourceCacheDir(source);
+        }
+
         protected void loadOrUpdateTile() {
+            URLConnection urlConn = null;
             try {
                 // log.finest("Loading tile from OSM: " + tile);
-                URLConnection urlConn = loadTileFromOsm(tile);
-                if (tileFile != null) {
+                urlConn = loadTileFromOsm(tile);
+                if (hasCachedTile()) {
                     switch (source.getTileUpdate()) {
                     case IfModifiedSince:
                         urlConn.setIfModifiedSince(fileAge);
@@ -184,7 +192,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
                         if (!isOsmTileNewer(fileAge)) {
                             log.finest("LastModified test: local version is up to date: " + tile);
                             tile.setLoaded(true);
-                            tileFile.setLastModified(System.currentTimeMillis() - maxCacheFileAge + recheckAfter);
+                            touchCachedTile();
                             return;
                         }
                         break;
@@ -200,8 +208,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
                         case ETag:
                             if (hasOsmTileETag(fileETag)) {
                                 tile.setLoaded(true);
-                                tileFile.setLastModified(System.currentTimeMillis() - maxCacheFileAge
-                                        + recheckAfter);
+                                touchCachedTile();
                                 return;
                             }
                         }
@@ -212,8 +219,9 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
                     // If we are isModifiedSince or If-None-Match has been set
                     // and the server answers with a HTTP 304 = "Not Modified"
                     log.finest("ETag test: local version is up to date: " + tile);
+                    closeConnection(urlConn);
                     tile.setLoaded(true);
-                    tileFile.setLastModified(System.currentTimeMillis() - maxCacheFileAge + recheckAfter);
+                    touchCachedTile();
                     return;
                 }
 
@@ -222,6 +230,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
 
                 if ("no-tile".equals(tile.getValue("tile-info")))
                 {
+                    closeConnection(urlConn);
                     tile.setError("No tile at this zoom level");
                     listener.tileLoadingFinished(tile, true);
                 } else {
@@ -241,6 +250,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
                     }
                 }
             } catch (Exception e) {
+                closeErrorStream(urlConn);
                 tile.setError(e.getMessage());
                 listener.tileLoadingFinished(tile, false);
                 if (input == null) {
@@ -299,6 +309,21 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
             return false;
         }
 
+        /**
+         * Replies true, if {@link #loadTileFromFile()} has found the tile in the cache.
+         */
+        protected boolean hasCachedTile() {
+            return tileFile != null;
+        }
+
+        /**
+         * Marks the cached tile as up to date. It will be checked again after
+         * <code>recheckAfter</code> milliseconds.
+         */
+        protected void touchCachedTile() {
+            tileFile.setLastModified(System.currentTimeMillis() - maxCacheFileAge + recheckAfter);
+        }
+
         protected byte[] loadTileInBuffer(URLConnection urlConn) throws IOException {
             input = urlConn.getInputStream();
             ByteArrayOutputStream bout = new ByteArrayOutputStream(input.available());
@@ -312,6 +337,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
                     finished = true;
                 }
             } while (!finished);
+            input.close();
             if (bout.size() == 0)
                 return null;
             return bout.toByteArray();
@@ -344,6 +370,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
             // Date(urlConn.getLastModified()) + " / "
             // + new Date(fileAge));
             long lastModified = urlConn.getLastModified();
+            closeConnection(urlConn);
             if (lastModified == 0)
                 return true; // no LastModified time returned
             return (lastModified > fileAge);
@@ -360,6 +387,7 @@ public class OsmFileCacheTileLoader extends OsmTileLoader {
             // Date(urlConn.getLastModified()) + " / "
             // + new Date(fileAge));
             String osmETag = urlConn.getHeaderField("ETag");
+            closeConnection(urlConn);
             if (osmETag == null)
                 return true;
             return (osmETag.equals(eTag));
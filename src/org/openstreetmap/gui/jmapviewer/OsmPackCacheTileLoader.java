@@ -0,0 +1,171 @@
+package org.openstreetmap.gui.jmapviewer;
+
+//License: GPL.
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.openstreetmap.gui.jmapviewer.TilePackStore.ByteBufferInputStream;
+import org.openstreetmap.gui.jmapviewer.TilePackStore.StoredTile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * A {@link OsmFileCacheTileLoader} that keeps all tiles of a tile source in a
+ * {@link TilePackStore}, i.e. in two files, instead of one image file and one
+ * metadata file per tile.
+ *
+ * The loading, expiry and update logic is the same as in {@link OsmFileCacheTileLoader}.
+ *
+ * The stores are shared with other loaders using the same cache directory. They are
+ * opened when needed and given back by {@link #close()}.
+ */
+public class OsmPackCacheTileLoader extends OsmFileCacheTileLoader {
+
+    protected final Map<TileSource, TilePackStore> sourceStoreMap = new HashMap<TileSource, TilePackStore>();
+
+    public OsmPackCacheTileLoader(TileLoaderListener map, File cacheDir) throws IOException {
+        super(map, cacheDir);
+    }
+
+    @Override
+    public Runnable createTileLoaderJob(final TileSource source, final int tilex, final int tiley, final int zoom) {
+        return new PackLoadJob(source, tilex, tiley, zoom);
+    }
+
+    protected synchronized TilePackStore getStore(TileSource source) throws IOException {
+        TilePackStore store = sourceStoreMap.get(source);
+        if (store == null) {
+            File dir = new File(cacheDirBase);
+            dir.mkdirs();
+            store = TilePackStore.open(dir, source.getName().replaceAll("[\\\\/:*?\"<>|]", "_"));
+            sourceStoreMap.put(source, store);
+        }
+        return store;
+    }
+
+    /**
+     * Gives back the stores opened by this loader. They are opened again if tiles are
+     * loaded afterwards.
+     */
+    public synchronized void close() {
+        for (TilePackStore store : sourceStoreMap.values()) {
+            store.close();
+        }
+        sourceStoreMap.clear();
+    }
+
+    protected class PackLoadJob extends FileLoadJob {
+        TilePackStore store;
+        boolean cached = false;
+
+        public PackLoadJob(TileSource source, int tilex, int tiley, int zoom) {
+            super(source, tilex, tiley, zoom);
+        }
+
+        @Override
+        protected void prepareCache() {
+            try {
+                store = getStore(source);
+            } catch (IOException e) {
+                System.err.println("Failed to open tile pack: " + e.getLocalizedMessage());
+                store = null;
+            }
+        }
+
+        @Override
+        protected boolean loadTileFromFile() {
+            if (store == null)
+                return false;
+            try {
+                StoredTile stored = store.load(zoom, tilex, tiley);
+                if (stored == null)
+                    return false;
+                for (Entry<String, String> entry : stored.metadata.entrySet()) {
+                    tile.putValue(entry.getKey(), entry.getValue());
+                }
+                if ("no-tile".equals(tile.getValue("tile-info"))) {
+                    tile.setError("No tile at this zoom level");
+                } else {
+                    if (stored.data == null)
+                        throw new IOException("Tile empty");
+                    tile.loadImage(new ByteBufferInputStream(stored.data));
+                }
+                cached = true;
+                fileAge = stored.time;
+                boolean oldTile = System.currentTimeMillis() - fileAge > maxCacheFileAge;
+                if (!oldTile) {
+                    tile.setLoaded(true);
+                    listener.tileLoadingFinished(tile, true);
+                    fileTilePainted = true;
+                    return true;
+                }
+                listener.tileLoadingFinished(tile, true);
+                fileTilePainted = true;
+            } catch (Exception e) {
+                cached = false;
+                fileAge = 0;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean hasCachedTile() {
+            return cached;
+        }
+
+        @Override
+        protected void touchCachedTile() {
+            try {
+                store.touch(zoom, tilex, tiley, System.currentTimeMillis() - maxCacheFileAge + recheckAfter);
+            } catch (IOException e) {
+                System.err.println("Failed to update tile time: " + e.getLocalizedMessage());
+            }
+        }
+
+        @Override
+        protected void saveTileToFile(byte[] rawData) {
+            save(rawData);
+        }
+
+        @Override
+        protected void saveTagsToFile() {
+            // the metadata is saved together with the image, except if there is no image
+            if ("no-tile".equals(tile.getValue("tile-info"))) {
+                save(null);
+            }
+        }
+
+        private void save(byte[] rawData) {
+            if (store == null)
+                return;
+            try {
+                store.put(zoom, tilex, tiley, tile.getMetadata(), rawData, System.currentTimeMillis());
+            } catch (IOException e) {
+                System.err.println("Failed to save tile content: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    @Override
+    public void clearCache(TileSource source, TileClearController controller) {
+        try {
+            TilePackStore store = getStore(source);
+            if (controller != null) {
+                controller.initClearDir(new File(cacheDirBase));
+                controller.initClearFiles(new File[] {store.getPackFile(), store.getIndexFile()});
+            }
+            store.clear();
+            if (controller != null) {
+                controller.fileDeleted(store.getPackFile());
+                controller.fileDeleted(store.getIndexFile());
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to clear tile pack: " + e.getLocalizedMessage());
+        }
+        if (controller != null) controller.clearFinished();
+    }
+}
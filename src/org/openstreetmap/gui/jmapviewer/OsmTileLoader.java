@@ -54,12 +54,14 @@ public class OsmTileLoader implements TileLoader {
                     tile.error = false;
                     tile.loading = true;
                 }
+                URLConnection conn = null;
                 try {
                     // Thread.sleep(500);
-                    URLConnection conn = loadTileFromOsm(tile);
+                    conn = loadTileFromOsm(tile);
                     loadTileMetadata(tile, conn);
                     if ("no-tile".equals(tile.getValue("tile-info"))) {
                         tile.setError("No tile at this zoom level");
+                        closeConnection(conn);
                     } else {
                         input = conn.getInputStream();
                         tile.loadImage(input);
@@ -69,6 +71,7 @@ public class OsmTileLoader implements TileLoader {
                     tile.setLoaded(true);
                     listener.tileLoadingFinished(tile, true);
                 } catch (Exception e) {
+                    closeErrorStream(conn);
                     tile.setError(e.getMessage());
                     listener.tileLoadingFinished(tile, false);
                     if (input == null) {
@@ -94,6 +97,41 @@ public class OsmTileLoader implements TileLoader {
         return urlConn;
     }
 
+    /**
+     * Reads the rest of the response and closes it, so that the connection
+     * can be reused for the next tile (HTTP keep-alive). The connection must
+     * already be connected.
+     */
+    protected static void closeConnection(URLConnection urlConn) {
+        try {
+            drain(urlConn.getInputStream());
+        } catch (IOException e) {
+            closeErrorStream(urlConn);
+        }
+    }
+
+    /**
+     * Reads and closes the error stream of a failed request, so that the
+     * connection can be reused for the next tile (HTTP keep-alive).
+     */
+    protected static void closeErrorStream(URLConnection urlConn) {
+        if (urlConn instanceof HttpURLConnection) {
+            try {
+                drain(((HttpURLConnection) urlConn).getErrorStream());
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void drain(InputStream input) throws IOException {
+        if (input == null)
+            return;
+        byte[] buffer = new byte[2048];
+        while (input.read(buffer) >= 0) {
+        }
+        input.close();
+    }
+
     protected void loadTileMetadata(Tile tile, URLConnection urlConn) {
         String str = urlConn.getHeaderField("X-VE-TILEMETA-CaptureDatesRange");
         if (str != null) {
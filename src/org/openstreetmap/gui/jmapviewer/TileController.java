@@ -42,7 +42,7 @@ public class TileController {
             tile.loadPlaceholderFromCache(tileCache);
         }
         if (!tile.isLoaded()) {
-            jobDispatcher.addJob(tileLoader.createTileLoaderJob(tileSource, tilex, tiley, zoom));
+            jobDispatcher.addJob(tileLoader.createTileLoaderJob(tileSource, tilex, tiley, zoom), this, null, 0);
         }
         return tile;
     }
@@ -76,9 +76,9 @@ public class TileController {
     }
 
     /**
-     *
+     * Removes the not yet started jobs of this controller from the {@link JobDispatcher}.
      */
     public void cancelOutstandingJobs() {
-        jobDispatcher.cancelOutstandingJobs();
+        jobDispatcher.cancelOutstandingJobs(this);
     }
 }
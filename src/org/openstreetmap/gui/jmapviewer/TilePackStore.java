@@ -0,0 +1,525 @@
+package org.openstreetmap.gui.jmapviewer;
+
+//License: GPL.
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the tiles of one tile source in two files instead of one file per tile.
+ *
+ * The pack file (<code>name.pack</code>) is append-only. For each stored tile it holds
+ * a record with a header, the tile metadata (as UTF-8 <code>key=value</code> lines)
+ * and the image data. The index file (<code>name.idx</code>) is a log of fixed size
+ * records, that map a tile to the offset of its record in the pack file and to the
+ * time the tile has been checked. Later index records replace earlier ones for the
+ * same tile, so updating a tile or its time is an append as well.
+ *
+ * On startup, the index file is read through a memory mapping. Image data is read
+ * through a read-only mapping of the pack file without copying it to the heap.
+ * On Windows, mapped files can't be truncated, deleted or renamed until the mapping
+ * is garbage collected, so the files are read into the heap there.
+ *
+ * Records that have been replaced are dead space in the pack file. When more than
+ * half of the pack file is dead, it is compacted in a background thread.
+ *
+ * There is only one store for a pack file in the process, it is shared by all tile
+ * loaders using it. Stores are obtained by {@link #open(File, String)} and have to be
+ * given back by {@link #close()}.
+ */
+public class TilePackStore {
+
+    private static final Logger log = Logger.getLogger(TilePackStore.class.getName());
+
+    public static final String PACK_FILE_EXT = ".pack";
+    public static final String INDEX_FILE_EXT = ".idx";
+
+    private static final Charset TAGS_CHARSET = Charset.forName("UTF-8");
+
+    private static final int RECORD_MAGIC = 0x4a4d5450; // "JMTP"
+    /* magic, zoom, x, y, length of tags, length of data */
+    private static final int RECORD_HEADER_SIZE = 24;
+    /* key, offset, time, length of tags, length of data */
+    private static final int INDEX_RECORD_SIZE = 32;
+
+    /**
+     * Minimal size of the pack file for compaction
+     */
+    private static final long MIN_COMPACT_SIZE = 4 * 1024 * 1024;
+
+    private static final boolean USE_MAPPING = !System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * The open stores by their canonical pack file
+     */
+    private static final Map<File, TilePackStore> openStores = new HashMap<File, TilePackStore>();
+
+    /**
+     * A tile read from the store
+     */
+    public static class StoredTile {
+        /**
+         * The time when the tile has been stored or last checked to be up to date
+         */
+        public final long time;
+        public final Map<String, String> metadata;
+        /**
+         * The image data as a read-only view of the memory mapped pack file,
+         * null if there is no image (e.g. "no-tile")
+         */
+        public final ByteBuffer data;
+
+        StoredTile(long time, Map<String, String> metadata, ByteBuffer data) {
+            this.time = time;
+            this.metadata = metadata;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The location of a tile in the pack file
+     */
+    private static class Entry {
+        final long offset;
+        final int tagsLength;
+        final int dataLength;
+        long time;
+
+        Entry(long offset, int tagsLength, int dataLength, long time) {
+            this.offset = offset;
+            this.tagsLength = tagsLength;
+            this.dataLength = dataLength;
+            this.time = time;
+        }
+
+        long getRecordSize() {
+            return RECORD_HEADER_SIZE + tagsLength + dataLength;
+        }
+    }
+
+    private final File packFile;
+    private final File indexFile;
+    /* number of open() calls not yet followed by close(), guarded by openStores */
+    private int references;
+    private boolean closed;
+
+    private RandomAccessFile pack;
+    private RandomAccessFile index;
+    private FileChannel packChannel;
+    private FileChannel indexChannel;
+    private long packSize;
+    private long liveSize;
+    private MappedByteBuffer mapping;
+
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    private Thread compactor;
+    private int clearCount;
+
+    private TilePackStore(File packFile, File indexFile) throws IOException {
+        this.packFile = packFile;
+        this.indexFile = indexFile;
+        openFiles();
+    }
+
+    /**
+     * Opens the store, the files are created if they don't exist. If the store is
+     * already open, the same instance is returned.
+     *
+     * @param dir the cache directory
+     * @param name the base name of the files
+     * @throws IOException if the files cannot be opened
+     */
+    public static TilePackStore open(File dir, String name) throws IOException {
+        File packFile = new File(dir, name + PACK_FILE_EXT).getCanonicalFile();
+        synchronized (openStores) {
+            TilePackStore store = openStores.get(packFile);
+            if (store == null) {
+                store = new TilePackStore(packFile, new File(dir, name + INDEX_FILE_EXT).getCanonicalFile());
+                openStores.put(packFile, store);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    /**
+     * Gives back a store obtained by {@link #open(File, String)}. The files are
+     * closed when the store isn't used anymore.
+     */
+    public void close() {
+        synchronized (openStores) {
+            if (--references > 0)
+                return;
+            openStores.remove(packFile);
+            // still holding the lock on openStores, so the files aren't opened again
+            // before a running compaction is finished
+            synchronized (this) {
+                closed = true;
+                closeFiles();
+            }
+        }
+    }
+
+    public File getPackFile() {
+        return packFile;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    private static long getKey(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    private void openFiles() throws IOException {
+        pack = new RandomAccessFile(packFile, "rw");
+        index = new RandomAccessFile(indexFile, "rw");
+        packChannel = pack.getChannel();
+        indexChannel = index.getChannel();
+        packSize = packChannel.size();
+        liveSize = 0;
+        entries.clear();
+        long indexSize = indexChannel.size() / INDEX_RECORD_SIZE * INDEX_RECORD_SIZE;
+        if (indexSize > 0) {
+            ByteBuffer buf;
+            if (USE_MAPPING) {
+                buf = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+            } else {
+                buf = readFully(indexChannel, 0, (int) indexSize);
+            }
+            while (buf.remaining() >= INDEX_RECORD_SIZE) {
+                long key = buf.getLong();
+                long offset = buf.getLong();
+                long time = buf.getLong();
+                int tagsLength = buf.getInt();
+                int dataLength = buf.getInt();
+                Entry old;
+                if (offset < 0) {
+                    old = entries.remove(key);
+                } else {
+                    Entry e = new Entry(offset, tagsLength, dataLength, time);
+                    if (tagsLength < 0 || dataLength < 0 || offset + e.getRecordSize() > packSize) {
+                        // incomplete record at the end of the pack file
+                        continue;
+                    }
+                    old = entries.put(key, e);
+                    liveSize += e.getRecordSize();
+                }
+                if (old != null) {
+                    liveSize -= old.getRecordSize();
+                }
+            }
+        }
+        // drop an incomplete index record
+        indexChannel.truncate(indexSize);
+        indexChannel.position(indexSize);
+    }
+
+    private void closeFiles() {
+        mapping = null;
+        try {
+            pack.close();
+        } catch (IOException e) {
+        }
+        try {
+            index.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Reads a tile from the store.
+     *
+     * @return the tile or null, if it is not in the store
+     */
+    public synchronized StoredTile load(int zoom, int x, int y) throws IOException {
+        Entry e = entries.get(getKey(zoom, x, y));
+        if (e == null)
+            return null;
+        Map<String, String> metadata = new LinkedHashMap<String, String>();
+        if (e.tagsLength > 0) {
+            String tags = TAGS_CHARSET.decode(read(e.offset + RECORD_HEADER_SIZE, e.tagsLength)).toString();
+            for (String line : tags.split("\n")) {
+                int i = line.indexOf('=');
+                if (i > 0) {
+                    metadata.put(line.substring(0, i), line.substring(i + 1));
+                }
+            }
+        }
+        ByteBuffer data = null;
+        if (e.dataLength > 0) {
+            data = read(e.offset + RECORD_HEADER_SIZE + e.tagsLength, e.dataLength);
+        }
+        return new StoredTile(e.time, metadata, data);
+    }
+
+    /**
+     * Replies true, if the tile is in the store.
+     */
+    public synchronized boolean contains(int zoom, int x, int y) {
+        return entries.containsKey(getKey(zoom, x, y));
+    }
+
+    /**
+     * Replies the number of tiles in the store.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        long end = position + length;
+        if (!USE_MAPPING || end > Integer.MAX_VALUE)
+            return readFully(packChannel, position, length);
+        if (mapping == null || mapping.capacity() < end) {
+            mapping = packChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(packSize, Integer.MAX_VALUE));
+        }
+        ByteBuffer buf = mapping.duplicate();
+        buf.position((int) position);
+        buf.limit((int) end);
+        return buf.slice();
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of tile pack");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Stores a tile. It replaces an earlier version of the tile.
+     *
+     * @param metadata the tile metadata, can be null
+     * @param data the image data, can be null if there is no image (e.g. "no-tile")
+     * @param time the time the tile has been loaded
+     */
+    public synchronized void put(int zoom, int x, int y, Map<String, String> metadata, byte[] data, long time)
+    throws IOException {
+        byte[] tags = new byte[0];
+        if (metadata != null) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            tags = sb.toString().getBytes(TAGS_CHARSET.name());
+        }
+        int dataLength = data == null ? 0 : data.length;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + tags.length + dataLength);
+        buf.putInt(RECORD_MAGIC).putInt(zoom).putInt(x).putInt(y).putInt(tags.length).putInt(dataLength);
+        buf.put(tags);
+        if (data != null) {
+            buf.put(data);
+        }
+        buf.flip();
+        Entry e = new Entry(packSize, tags.length, dataLength, time);
+        while (buf.hasRemaining()) {
+            packChannel.write(buf, packSize + buf.position());
+        }
+        packSize += e.getRecordSize();
+        writeIndex(getKey(zoom, x, y), e);
+        Entry old = entries.put(getKey(zoom, x, y), e);
+        liveSize += e.getRecordSize();
+        if (old != null) {
+            liveSize -= old.getRecordSize();
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Sets the time of a stored tile, e.g. after the server confirmed that it is up to date.
+     */
+    public synchronized void touch(int zoom, int x, int y, long time) throws IOException {
+        Entry e = entries.get(getKey(zoom, x, y));
+        if (e != null) {
+            e.time = time;
+            writeIndex(getKey(zoom, x, y), e);
+        }
+    }
+
+    private void writeIndex(long key, Entry e) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        buf.putLong(key).putLong(e.offset).putLong(e.time).putInt(e.tagsLength).putInt(e.dataLength);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            indexChannel.write(buf);
+        }
+    }
+
+    /**
+     * Removes all tiles and deletes the files.
+     */
+    public synchronized void clear() throws IOException {
+        closeFiles();
+        packFile.delete();
+        indexFile.delete();
+        openFiles();
+        // the files may still exist, if they couldn't be deleted
+        packChannel.truncate(0);
+        indexChannel.truncate(0);
+        indexChannel.position(0);
+        packSize = 0;
+        liveSize = 0;
+        entries.clear();
+        clearCount++;
+    }
+
+    private void compactIfNeeded() {
+        if (compactor == null && packSize > MIN_COMPACT_SIZE && liveSize < packSize / 2) {
+            compactor = new Thread("Tile pack compactor " + packFile.getName()) {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        synchronized (TilePackStore.this) {
+                            if (!closed) {
+                                log.log(Level.WARNING, "Failed to compact tile pack " + packFile + ": " + e.toString());
+                            }
+                        }
+                    } finally {
+                        synchronized (TilePackStore.this) {
+                            compactor = null;
+                        }
+                    }
+                }
+            };
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    /**
+     * Writes the live records to a new pack file and replaces the old one.
+     *
+     * Most of the work is done without holding the lock, so tiles can be read and
+     * stored at the same time. Tiles stored in the meantime are copied at the end.
+     */
+    void compact() throws IOException {
+        Map<Entry, Long> snapshot;
+        int startClearCount;
+        synchronized (this) {
+            startClearCount = clearCount;
+            snapshot = new IdentityHashMap<Entry, Long>();
+            for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                snapshot.put(e.getValue(), e.getKey());
+            }
+        }
+        File newPackFile = new File(packFile.getPath() + ".tmp");
+        File newIndexFile = new File(indexFile.getPath() + ".tmp");
+        RandomAccessFile newPack = new RandomAccessFile(newPackFile, "rw");
+        RandomAccessFile newIndex = null;
+        boolean replaced = false;
+        try {
+            newPack.setLength(0);
+            FileChannel out = newPack.getChannel();
+            Map<Entry, Long> newOffsets = new IdentityHashMap<Entry, Long>();
+            for (Entry e : snapshot.keySet()) {
+                newOffsets.put(e, out.position());
+                copyRecord(e, out);
+            }
+            synchronized (this) {
+                if (clearCount != startClearCount || closed)
+                    return;
+                for (Entry e : entries.values()) {
+                    if (!newOffsets.containsKey(e)) {
+                        newOffsets.put(e, out.position());
+                        copyRecord(e, out);
+                    }
+                }
+                newIndex = new RandomAccessFile(newIndexFile, "rw");
+                newIndex.setLength(0);
+                FileChannel indexOut = newIndex.getChannel();
+                ByteBuffer buf = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+                for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+                    Entry e = entry.getValue();
+                    buf.clear();
+                    buf.putLong(entry.getKey()).putLong(newOffsets.get(e)).putLong(e.time)
+                    .putInt(e.tagsLength).putInt(e.dataLength);
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        indexOut.write(buf);
+                    }
+                }
+                newPack.close();
+                newIndex.close();
+                closeFiles();
+                packFile.delete();
+                indexFile.delete();
+                replaced = newPackFile.renameTo(packFile) && newIndexFile.renameTo(indexFile);
+                if (!replaced) {
+                    // the old files are gone or incomplete, start with an empty store
+                    log.warning("Failed to replace tile pack " + packFile);
+                    packFile.delete();
+                    indexFile.delete();
+                }
+                openFiles();
+            }
+        } finally {
+            newPack.close();
+            if (newIndex != null) {
+                newIndex.close();
+            }
+            if (!replaced) {
+                newPackFile.delete();
+                newIndexFile.delete();
+            }
+        }
+    }
+
+    private void copyRecord(Entry e, FileChannel out) throws IOException {
+        long position = e.offset;
+        long end = e.offset + e.getRecordSize();
+        while (position < end) {
+            position += packChannel.transferTo(position, end - position, out);
+        }
+    }
+
+    /**
+     * Input stream for a {@link ByteBuffer}, e.g. {@link StoredTile#data}.
+     */
+    public static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        public ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
@@ -71,8 +71,11 @@ public abstract class SaveActionBase extends DiskAccessAction {
 
         try {
             boolean exported = false;
+            boolean lossless = true;
             for (FileExporter exporter : ExtensionFileFilter.exporters) {
                 if (exporter.acceptFile(file, layer)) {
+                    lossless = exporter.isLossless(layer);
+                    if (!lossless && !confirmLossyExport(file)) return false;
                     exporter.exportData(file, layer);
                     exported = true;
                     break;
@@ -83,10 +86,12 @@ public abstract class SaveActionBase extends DiskAccessAction {
                         JOptionPane.WARNING_MESSAGE);
                 return false;
             }
-            layer.setName(file.getName());
-            layer.setAssociatedFile(file);
-            if (layer instanceof OsmDataLayer) {
-                ((OsmDataLayer) layer).onPostSaveToFile();
+            if (lossless) {
+                layer.setName(file.getName());
+                layer.setAssociatedFile(file);
+                if (layer instanceof OsmDataLayer) {
+                    ((OsmDataLayer) layer).onPostSaveToFile();
+                }
             }
             Main.parent.repaint();
         } catch (IOException e) {
@@ -96,6 +101,24 @@ public abstract class SaveActionBase extends DiskAccessAction {
         return true;
     }
 
+    /**
+     * Asks whether the layer should be exported to a file which can't keep all of its data.
+     * The layer keeps its unsaved state after such an export.
+     * @return <code>true</code>, if the layer should be exported.
+     */
+    private static boolean confirmLossyExport(File file) {
+        ExtendedDialog dialog = new ExtendedDialog(
+                Main.parent,
+                tr("Export"),
+                new String[] {tr("Export anyway"), tr("Cancel")}
+        );
+        dialog.setContent(tr("<html>The format of ''{0}'' cannot store deleted objects and which objects are modified.<br>"
+                + "The layer will still have unsaved changes after the export. Continue?</html>", file.getName()));
+        dialog.setButtonIcons(new String[] {"save.png", "cancel.png"});
+        dialog.showDialog();
+        return dialog.getValue() == 1;
+    }
+
     protected abstract File getFile(Layer layer);
 
     /**
@@ -17,6 +17,7 @@ import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.validation.OsmValidator;
 import org.openstreetmap.josm.data.validation.Test;
 import org.openstreetmap.josm.data.validation.TestError;
+import org.openstreetmap.josm.data.validation.ValidationRunner;
 import org.openstreetmap.josm.data.validation.util.AggregatePrimitivesVisitor;
 import org.openstreetmap.josm.gui.PleaseWaitRunnable;
 import org.openstreetmap.josm.gui.preferences.ValidatorPreference;
@@ -110,7 +111,8 @@ public class ValidateAction extends JosmAction {
         private Collection<Test> tests;
         private Collection<OsmPrimitive> validatedPrimitives;
         private Collection<OsmPrimitive> formerValidatedPrimitives;
-        private boolean canceled;
+        private volatile boolean canceled;
+        private volatile ValidationRunner runner;
         private List<TestError> errors;
 
         /**
@@ -129,6 +131,10 @@ public class ValidateAction extends JosmAction {
         @Override
         protected void cancel() {
             this.canceled = true;
+            ValidationRunner runner = this.runner;
+            if (runner != null) {
+                runner.cancel();
+            }
         }
 
         @Override
@@ -157,20 +163,12 @@ public class ValidateAction extends JosmAction {
         OsmTransferException {
             if (tests == null || tests.isEmpty())
                 return;
-            errors = new ArrayList<TestError>(200);
-            getProgressMonitor().setTicksCount(tests.size() * validatedPrimitives.size());
-            int testCounter = 0;
-            for (Test test : tests) {
-                if (canceled)
-                    return;
-                testCounter++;
-                getProgressMonitor().setCustomText(tr("Test {0}/{1}: Starting {2}", testCounter, tests.size(),test.getName()));
-                test.setPartialSelection(formerValidatedPrimitives != null);
-                test.startTest(getProgressMonitor().createSubTaskMonitor(validatedPrimitives.size(), false));
-                test.visit(validatedPrimitives);
-                test.endTest();
-                errors.addAll(test.getErrors());
-            }
+            runner = new ValidationRunner(tests, false, formerValidatedPrimitives != null);
+            if (canceled)
+                return;
+            errors = runner.run(validatedPrimitives, getProgressMonitor());
+            if (runner.isCanceled())
+                return;
             tests = null;
             if (Main.pref.getBoolean(ValidatorPreference.PREF_USE_IGNORE, true)) {
                 getProgressMonitor().subTask(tr("Updating ignored errors ..."));
@@ -7,7 +7,9 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 import java.awt.GridBagLayout;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -15,11 +17,13 @@ import javax.swing.JScrollPane;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.data.APIDataSet;
+import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.validation.OsmValidator;
 import org.openstreetmap.josm.data.validation.Severity;
 import org.openstreetmap.josm.data.validation.Test;
 import org.openstreetmap.josm.data.validation.TestError;
+import org.openstreetmap.josm.data.validation.ValidationRunner;
 import org.openstreetmap.josm.data.validation.util.AggregatePrimitivesVisitor;
 import org.openstreetmap.josm.gui.ExtendedDialog;
 import org.openstreetmap.josm.gui.dialogs.validator.ValidatorTreePanel;
@@ -54,22 +58,28 @@ public class ValidateUploadHook implements UploadHook
         Collection<OsmPrimitive> selection = v.visit(apiDataSet.getPrimitivesToUpdate());
 
         List<TestError> errors = new ArrayList<TestError>(30);
-        for (Test test : tests) {
-            test.setBeforeUpload(true);
-            test.setPartialSelection(true);
-            test.startTest(null);
-            test.visit(selection);
-            test.endTest();
-            if (Main.pref.getBoolean(ValidatorPreference.PREF_OTHER, false) && 
-                Main.pref.getBoolean(ValidatorPreference.PREF_OTHER_UPLOAD, false))
-            {
-                errors.addAll( test.getErrors() );
+        List<TestError> testErrors = null;
+        DataSet ds = Main.main.getCurrentDataSet();
+        if (ds != null && Main.pref.getBoolean(ValidatorPreference.PREF_INCREMENTAL, true)) {
+            // only the changes since the last upload check are validated again
+            List<TestError> all = OsmValidator.getIncrementalValidator(ds, true).tryValidate(null);
+            if (all != null) {
+                testErrors = getErrorsOf(all, selection);
             }
-            else {
-                for (TestError e : test.getErrors()) {
-                    if (e.getSeverity() != Severity.OTHER) {
-                        errors.add(e);
-                    }
+        }
+        if (testErrors == null) {
+            // don't wait on the event dispatch thread for a validation running in the background
+            testErrors = new ValidationRunner(tests, true, true).run(selection, null);
+        }
+        if (Main.pref.getBoolean(ValidatorPreference.PREF_OTHER, false) && 
+            Main.pref.getBoolean(ValidatorPreference.PREF_OTHER_UPLOAD, false))
+        {
+            errors.addAll(testErrors);
+        }
+        else {
+            for (TestError e : testErrors) {
+                if (e.getSeverity() != Severity.OTHER) {
+                    errors.add(e);
                 }
             }
         }
@@ -149,4 +159,21 @@ public class ValidateUploadHook implements UploadHook
         }
         return true;
     }
+
+    /**
+     * Returns the errors that involve one of the given primitives.
+     */
+    private static List<TestError> getErrorsOf(List<TestError> errors, Collection<OsmPrimitive> primitives) {
+        Set<OsmPrimitive> set = new HashSet<OsmPrimitive>(primitives);
+        List<TestError> result = new ArrayList<TestError>();
+        for (TestError error : errors) {
+            for (OsmPrimitive p : error.getPrimitives()) {
+                if (set.contains(p)) {
+                    result.add(error);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
 }
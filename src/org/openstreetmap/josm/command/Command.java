@@ -5,6 +5,7 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.awt.GridBagLayout;
 import java.awt.geom.Area;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -19,6 +20,7 @@ import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.MutableTreeNode;
 
 import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.UndoJournal;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.PrimitiveData;
@@ -57,6 +59,9 @@ abstract public class Command extends PseudoCommand {
     /** the map of OsmPrimitives in the original state to OsmPrimitives in cloned state */
     private Map<OsmPrimitive, PrimitiveData> cloneMap = new HashMap<OsmPrimitive, PrimitiveData>();
 
+    /** the compact form of cloneMap, see {@link #compactUndoState()} */
+    private SavedStates savedStates;
+
     /** the layer which this command is applied to */
     private OsmDataLayer layer;
 
@@ -87,6 +92,7 @@ abstract public class Command extends PseudoCommand {
             osm.visit(visitor);
         }
         cloneMap = visitor.orig;
+        savedStates = null;
         return true;
     }
 
@@ -98,6 +104,14 @@ abstract public class Command extends PseudoCommand {
      * This implementation undoes all objects stored by a former call to executeCommand.
      */
     public void undoCommand() {
+        if (savedStates != null) {
+            try {
+                savedStates.restore();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
         for (Entry<OsmPrimitive, PrimitiveData> e : cloneMap.entrySet()) {
             OsmPrimitive primitive = e.getKey();
             if (primitive.getDataSet() != null) {
@@ -106,6 +120,49 @@ abstract public class Command extends PseudoCommand {
         }
     }
 
+    /**
+     * Replaces the full copies of the primitives saved by {@link #executeCommand()}
+     * by the difference to their current state. Called right after the command
+     * has been executed, when the primitives are in the state undoCommand() starts from.
+     */
+    public void compactUndoState() {
+        if (!cloneMap.isEmpty()) {
+            savedStates = new SavedStates(cloneMap);
+            cloneMap = new HashMap<OsmPrimitive, PrimitiveData>();
+        }
+    }
+
+    /**
+     * Replies the estimated number of bytes of memory used to undo this command.
+     */
+    public long getUndoSize() {
+        if (savedStates != null)
+            return savedStates.getSize();
+        return 200L * cloneMap.size();
+    }
+
+    /**
+     * Moves the data to undo this command from memory to the journal.
+     *
+     * @param journal the journal
+     * @throws IOException if the journal cannot be written
+     */
+    public void spillUndoState(UndoJournal journal) throws IOException {
+        if (savedStates != null) {
+            savedStates.spill(journal);
+        }
+    }
+
+    /**
+     * Called when the command is dropped from the undo stack. Frees the data
+     * written to the journal by {@link #spillUndoState(UndoJournal)}.
+     */
+    public void releaseUndoState() {
+        if (savedStates != null) {
+            savedStates.release();
+        }
+    }
+
     /**
      * Called when a layer has been removed to have the command remove itself from
      * any buffer if it is not longer applicable to the dataset (e.g. it was part of
@@ -123,15 +180,19 @@ abstract public class Command extends PseudoCommand {
     /**
      * Lets other commands access the original version
      * of the object. Usually for undoing.
+     *
+     * Once the command is on the undo stack, the original version is rebuilt from
+     * the current state of the object and the fields changed by this command.
      */
     public PrimitiveData getOrig(OsmPrimitive osm) {
-        PrimitiveData o = cloneMap.get(osm);
-        if (o != null)
-            return o;
-        for (OsmPrimitive t : cloneMap.keySet()) {
-            PrimitiveData to = cloneMap.get(t);
+        if (savedStates != null) {
+            try {
+                return savedStates.getState(osm);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
-        return o;
+        return cloneMap.get(osm);
     }
 
     /**
@@ -158,6 +219,8 @@ abstract public class Command extends PseudoCommand {
      * Return the primitives that take part in this command.
      */
     @Override public Collection<? extends OsmPrimitive> getParticipatingPrimitives() {
+        if (savedStates != null)
+            return savedStates.getPrimitives();
         return cloneMap.keySet();
     }
 
@@ -56,6 +56,11 @@ public class DownloadOsmCommand extends Command {
         requiresUploadToServer = oldValue;
     }
 
+    @Override
+    public long getUndoSize() {
+        return mergeCommand.getUndoSize();
+    }
+
     @Override
     public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted, Collection<OsmPrimitive> added) {
         throw new UnsupportedOperationException("Not supported yet.");
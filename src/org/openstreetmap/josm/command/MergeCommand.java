@@ -172,6 +172,17 @@ public class MergeCommand extends Command {
         Main.map.mapView.repaint();
     }
 
+    /**
+     * Replies the estimated size of the copies of the changed objects and of the references to
+     * the added ones. They always stay in memory, a merge is never moved to the undo journal.
+     */
+    @Override
+    public long getUndoSize() {
+        if (merger == null)
+            return 0;
+        return 200L * merger.getChangedObjectsMap().size() + 16L * merger.getAddedObjects().size();
+    }
+
     @Override
     public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted, Collection<OsmPrimitive> added) {
         throw new UnsupportedOperationException("Not supported yet.");
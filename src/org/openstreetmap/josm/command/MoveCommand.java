@@ -3,11 +3,10 @@ package org.openstreetmap.josm.command;
 
 import static org.openstreetmap.josm.tools.I18n.trn;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 import javax.swing.Icon;
 
 import javax.swing.JLabel;
@@ -43,16 +42,22 @@ public class MoveCommand extends Command {
     /**
      * Small helper for holding the interesting part of the old data state of the
      * objects.
+     * @deprecated the old states are kept in {@link #oldCoors} and {@link #oldModified}
      */
+    @Deprecated
     public static class OldState {
         LatLon latlon;
         boolean modified;
     }
 
     /**
-     * List of all old states of the objects.
+     * The old lat/lon of the nodes, in the order of {@link #nodes}.
      */
-    private List<OldState> oldState = new LinkedList<OldState>();
+    private double[] oldCoors;
+    /**
+     * The old modified flags of the nodes, in the order of {@link #nodes}.
+     */
+    private BitSet oldModified;
 
     public MoveCommand(OsmPrimitive osm, double x, double y) {
         this(Collections.singleton(osm), x, y);
@@ -74,11 +79,15 @@ public class MoveCommand extends Command {
         this.x = x;
         this.y = y;
         this.nodes = AllNodesVisitor.getAllNodes(objects);
+        oldCoors = new double[2 * nodes.size()];
+        oldModified = new BitSet(nodes.size());
+        int i = 0;
         for (Node n : this.nodes) {
-            OldState os = new OldState();
-            os.latlon = new LatLon(n.getCoor());
-            os.modified = n.isModified();
-            oldState.add(os);
+            LatLon ll = n.getCoor();
+            oldCoors[2 * i] = ll.lat();
+            oldCoors[2 * i + 1] = ll.lon();
+            oldModified.set(i, n.isModified());
+            i++;
         }
     }
 
@@ -117,14 +126,18 @@ public class MoveCommand extends Command {
     }
 
     @Override public void undoCommand() {
-        Iterator<OldState> it = oldState.iterator();
+        int i = 0;
         for (Node n : nodes) {
-            OldState os = it.next();
-            n.setCoor(os.latlon);
-            n.setModified(os.modified);
+            n.setCoor(new LatLon(oldCoors[2 * i], oldCoors[2 * i + 1]));
+            n.setModified(oldModified.get(i));
+            i++;
         }
     }
 
+    @Override public long getUndoSize() {
+        return 32 + 8 * oldCoors.length + nodes.size() / 8;
+    }
+
     @Override public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted, Collection<OsmPrimitive> added) {
         for (OsmPrimitive osm : nodes) {
             modified.add(osm);
@@ -0,0 +1,432 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.openstreetmap.josm.data.UndoJournal;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.NodeData;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.PrimitiveData;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationData;
+import org.openstreetmap.josm.data.osm.RelationMemberData;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.WayData;
+
+/**
+ * The state of primitives before a command, stored as the difference to the state
+ * after the command.
+ * <p>
+ * Only the fields changed by the command are kept: the flags, the old values of
+ * the changed tags, the old coordinates of moved nodes and the old node and member
+ * lists of changed ways and relations. Primitives whose id, version, changeset, user
+ * or timestamp changed are kept as a full copy. The difference can be moved to an
+ * {@link UndoJournal} and is read back on undo.
+ * <p>
+ * The difference is only valid as long as the primitives are in the state right after
+ * the command, which the undo/redo stack guarantees.
+ */
+final class SavedStates {
+
+    private static final byte FLAG_MODIFIED = 1;
+    private static final byte FLAG_DELETED = 2;
+    private static final byte FLAG_INCOMPLETE = 4;
+
+    private final OsmPrimitive[] primitives;
+    /** full copies of the primitives the difference cannot describe, null if there are none */
+    private PrimitiveData[] fullStates;
+
+    /* the difference, null while it is in the journal */
+    private byte[] flags;
+    /** per primitive the changed tags as key/old value pairs, the value is null for added tags */
+    private String[][] tags;
+    /** per node the old lat/lon, NaN if the node has not moved */
+    private double[] coors;
+    private long[][] wayNodes;
+    private RelationMemberData[][] members;
+
+    private UndoJournal journal;
+    private UndoJournal.Entry entry;
+    private long size;
+
+    /**
+     * Computes the difference between the saved and the current states.
+     *
+     * @param saved the state of each primitive before the command
+     */
+    SavedStates(Map<OsmPrimitive, PrimitiveData> saved) {
+        int n = saved.size();
+        primitives = new OsmPrimitive[n];
+        flags = new byte[n];
+        int i = 0;
+        for (Entry<OsmPrimitive, PrimitiveData> e : saved.entrySet()) {
+            primitives[i] = e.getKey();
+            diff(i, e.getKey(), e.getValue());
+            i++;
+        }
+        size = computeSize();
+    }
+
+    private void diff(int i, OsmPrimitive p, PrimitiveData old) {
+        if (old.getUniqueId() != p.getUniqueId() || old.getVersion() != p.getVersion()
+                || old.getChangesetId() != p.getChangesetId() || old.getUser() != p.getUser()
+                || !old.getTimestamp().equals(p.getTimestamp())
+                || (p instanceof Node && (((NodeData) old).getCoor() == null) != (((Node) p).getCoor() == null))) {
+            if (fullStates == null) {
+                fullStates = new PrimitiveData[primitives.length];
+            }
+            fullStates[i] = old;
+            return;
+        }
+        flags[i] = (byte) ((old.isModified() ? FLAG_MODIFIED : 0) | (old.isDeleted() ? FLAG_DELETED : 0)
+                | (old.isIncomplete() ? FLAG_INCOMPLETE : 0));
+
+        Map<String, String> oldKeys = old.getKeys();
+        Map<String, String> newKeys = p.getKeys();
+        if (!oldKeys.equals(newKeys)) {
+            List<String> changes = new ArrayList<String>();
+            for (Entry<String, String> e : oldKeys.entrySet()) {
+                if (!e.getValue().equals(newKeys.get(e.getKey()))) {
+                    changes.add(e.getKey());
+                    changes.add(e.getValue());
+                }
+            }
+            for (String key : newKeys.keySet()) {
+                if (!oldKeys.containsKey(key)) {
+                    changes.add(key);
+                    changes.add(null);
+                }
+            }
+            if (tags == null) {
+                tags = new String[primitives.length][];
+            }
+            tags[i] = changes.toArray(new String[changes.size()]);
+        }
+
+        if (p instanceof Node) {
+            LatLon oldCoor = ((NodeData) old).getCoor();
+            if (oldCoor != null && !oldCoor.equals(((Node) p).getCoor())) {
+                if (coors == null) {
+                    coors = new double[2 * primitives.length];
+                    Arrays.fill(coors, Double.NaN);
+                }
+                coors[2 * i] = oldCoor.lat();
+                coors[2 * i + 1] = oldCoor.lon();
+            }
+        } else if (p instanceof Way) {
+            List<Long> oldNodes = ((WayData) old).getNodes();
+            List<Node> newNodes = ((Way) p).getNodes();
+            boolean changed = oldNodes.size() != newNodes.size();
+            for (int j = 0; !changed && j < oldNodes.size(); j++) {
+                changed = oldNodes.get(j) != newNodes.get(j).getUniqueId();
+            }
+            if (changed) {
+                if (wayNodes == null) {
+                    wayNodes = new long[primitives.length][];
+                }
+                long[] ids = new long[oldNodes.size()];
+                for (int j = 0; j < ids.length; j++) {
+                    ids[j] = oldNodes.get(j);
+                }
+                wayNodes[i] = ids;
+            }
+        } else if (p instanceof Relation) {
+            List<RelationMemberData> oldMembers = ((RelationData) old).getMembers();
+            List<RelationMemberData> newMembers = ((Relation) p).save().getMembers();
+            boolean changed = oldMembers.size() != newMembers.size();
+            for (int j = 0; !changed && j < oldMembers.size(); j++) {
+                RelationMemberData a = oldMembers.get(j);
+                RelationMemberData b = newMembers.get(j);
+                changed = a.getMemberId() != b.getMemberId() || a.getMemberType() != b.getMemberType()
+                        || !a.getRole().equals(b.getRole());
+            }
+            if (changed) {
+                if (members == null) {
+                    members = new RelationMemberData[primitives.length][];
+                }
+                members[i] = oldMembers.toArray(new RelationMemberData[oldMembers.size()]);
+            }
+        }
+    }
+
+    /**
+     * Returns the primitives whose state is saved.
+     */
+    List<OsmPrimitive> getPrimitives() {
+        return Arrays.asList(primitives);
+    }
+
+    /**
+     * Reconstructs the saved state of a primitive from its current state.
+     *
+     * @return the saved state, or <code>null</code> if the primitive is unknown
+     */
+    PrimitiveData getState(OsmPrimitive p) throws IOException {
+        for (int i = 0; i < primitives.length; i++) {
+            if (primitives[i] == p) {
+                load();
+                return getState(i);
+            }
+        }
+        return null;
+    }
+
+    private PrimitiveData getState(int i) {
+        if (fullStates != null && fullStates[i] != null)
+            return fullStates[i];
+        PrimitiveData data = primitives[i].save();
+        // setDeleted() changes the modified flag as well
+        data.setDeleted((flags[i] & FLAG_DELETED) != 0);
+        data.setModified((flags[i] & FLAG_MODIFIED) != 0);
+        data.setIncomplete((flags[i] & FLAG_INCOMPLETE) != 0);
+        if (tags != null && tags[i] != null) {
+            Map<String, String> keys = data.getKeys();
+            String[] changes = tags[i];
+            for (int j = 0; j < changes.length; j += 2) {
+                if (changes[j + 1] == null) {
+                    keys.remove(changes[j]);
+                } else {
+                    keys.put(changes[j], changes[j + 1]);
+                }
+            }
+            data.setKeys(keys);
+        }
+        if (coors != null && !Double.isNaN(coors[2 * i])) {
+            ((NodeData) data).setCoor(new LatLon(coors[2 * i], coors[2 * i + 1]));
+        }
+        if (wayNodes != null && wayNodes[i] != null) {
+            List<Long> nodes = ((WayData) data).getNodes();
+            nodes.clear();
+            for (long id : wayNodes[i]) {
+                nodes.add(id);
+            }
+        }
+        if (members != null && members[i] != null) {
+            ((RelationData) data).setMembers(new ArrayList<RelationMemberData>(Arrays.asList(members[i])));
+        }
+        return data;
+    }
+
+    /**
+     * Restores the saved state of all primitives still in a data set. Frees the
+     * data in the journal.
+     */
+    void restore() throws IOException {
+        load();
+        for (int i = 0; i < primitives.length; i++) {
+            if (primitives[i].getDataSet() != null) {
+                primitives[i].load(getState(i));
+            }
+        }
+        release();
+    }
+
+    /**
+     * Returns the estimated number of bytes kept in memory.
+     */
+    long getSize() {
+        return size;
+    }
+
+    private long computeSize() {
+        long result = 16 + 8 * primitives.length;
+        if (fullStates != null) {
+            result += 16 + 8 * primitives.length;
+            for (PrimitiveData data : fullStates) {
+                if (data != null) {
+                    result += 200;
+                }
+            }
+        }
+        if (flags == null)
+            return result;
+        result += 16 + flags.length;
+        if (tags != null) {
+            result += 16 + 8 * tags.length;
+            for (String[] changes : tags) {
+                if (changes != null) {
+                    result += 16 + 8 * changes.length;
+                    for (String s : changes) {
+                        if (s != null) {
+                            result += 40 + 2 * s.length();
+                        }
+                    }
+                }
+            }
+        }
+        if (coors != null) {
+            result += 16 + 8 * coors.length;
+        }
+        if (wayNodes != null) {
+            result += 16 + 8 * wayNodes.length;
+            for (long[] ids : wayNodes) {
+                if (ids != null) {
+                    result += 16 + 8 * ids.length;
+                }
+            }
+        }
+        if (members != null) {
+            result += 16 + 8 * members.length;
+            for (RelationMemberData[] m : members) {
+                if (m != null) {
+                    result += 16 + 48 * m.length;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves the difference to the journal, only the primitives and the full copies
+     * stay in memory.
+     */
+    void spill(UndoJournal journal) throws IOException {
+        if (flags == null)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(flags);
+        for (int i = 0; i < primitives.length; i++) {
+            String[] changes = tags == null ? null : tags[i];
+            out.writeInt(changes == null ? -1 : changes.length);
+            if (changes != null) {
+                for (String s : changes) {
+                    out.writeBoolean(s != null);
+                    if (s != null) {
+                        out.writeUTF(s);
+                    }
+                }
+            }
+        }
+        out.writeBoolean(coors != null);
+        if (coors != null) {
+            for (double d : coors) {
+                out.writeDouble(d);
+            }
+        }
+        out.writeBoolean(wayNodes != null);
+        if (wayNodes != null) {
+            for (long[] ids : wayNodes) {
+                out.writeInt(ids == null ? -1 : ids.length);
+                if (ids != null) {
+                    for (long id : ids) {
+                        out.writeLong(id);
+                    }
+                }
+            }
+        }
+        out.writeBoolean(members != null);
+        if (members != null) {
+            for (RelationMemberData[] m : members) {
+                out.writeInt(m == null ? -1 : m.length);
+                if (m != null) {
+                    for (RelationMemberData member : m) {
+                        out.writeUTF(member.getRole());
+                        out.writeByte(member.getMemberType().ordinal());
+                        out.writeLong(member.getMemberId());
+                    }
+                }
+            }
+        }
+        out.close();
+        // the difference may have been read back from an earlier spill
+        release();
+        entry = journal.write(bytes.toByteArray());
+        this.journal = journal;
+        flags = null;
+        tags = null;
+        coors = null;
+        wayNodes = null;
+        members = null;
+        size = computeSize();
+    }
+
+    /**
+     * Reads the difference back from the journal.
+     */
+    private void load() throws IOException {
+        if (flags != null)
+            return;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal.read(entry)));
+        int n = primitives.length;
+        byte[] flags = new byte[n];
+        in.readFully(flags);
+        String[][] tags = null;
+        for (int i = 0; i < n; i++) {
+            int length = in.readInt();
+            if (length >= 0) {
+                if (tags == null) {
+                    tags = new String[n][];
+                }
+                tags[i] = new String[length];
+                for (int j = 0; j < length; j++) {
+                    tags[i][j] = in.readBoolean() ? in.readUTF() : null;
+                }
+            }
+        }
+        double[] coors = null;
+        if (in.readBoolean()) {
+            coors = new double[2 * n];
+            for (int i = 0; i < coors.length; i++) {
+                coors[i] = in.readDouble();
+            }
+        }
+        long[][] wayNodes = null;
+        if (in.readBoolean()) {
+            wayNodes = new long[n][];
+            for (int i = 0; i < n; i++) {
+                int length = in.readInt();
+                if (length >= 0) {
+                    wayNodes[i] = new long[length];
+                    for (int j = 0; j < length; j++) {
+                        wayNodes[i][j] = in.readLong();
+                    }
+                }
+            }
+        }
+        RelationMemberData[][] members = null;
+        if (in.readBoolean()) {
+            members = new RelationMemberData[n][];
+            for (int i = 0; i < n; i++) {
+                int length = in.readInt();
+                if (length >= 0) {
+                    members[i] = new RelationMemberData[length];
+                    for (int j = 0; j < length; j++) {
+                        String role = in.readUTF();
+                        OsmPrimitiveType type = OsmPrimitiveType.values()[in.readByte()];
+                        members[i][j] = new RelationMemberData(role, type, in.readLong());
+                    }
+                }
+            }
+        }
+        this.flags = flags;
+        this.tags = tags;
+        this.coors = coors;
+        this.wayNodes = wayNodes;
+        this.members = members;
+        size = computeSize();
+    }
+
+    /**
+     * Frees the data in the journal, if any.
+     */
+    void release() {
+        if (journal != null) {
+            journal.free(entry);
+            journal = null;
+            entry = null;
+        }
+    }
+}
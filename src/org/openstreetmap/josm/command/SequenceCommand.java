@@ -3,6 +3,7 @@ package org.openstreetmap.josm.command;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
@@ -12,7 +13,9 @@ import javax.swing.Icon;
 import javax.swing.JLabel;
 
 import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.UndoJournal;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.tools.ImageProvider;
 
 /**
@@ -41,6 +44,18 @@ public class SequenceCommand extends Command {
         this.sequence = sequenz.toArray(this.sequence);
     }
 
+    /**
+     * Create the command in the context of a specific data layer.
+     * @param layer the data layer. Must not be null.
+     * @param sequenz The sequence that should be executed.
+     */
+    public SequenceCommand(OsmDataLayer layer, String name, Collection<Command> sequenz) {
+        super(layer);
+        this.name = name;
+        this.sequence = new Command[sequenz.size()];
+        this.sequence = sequenz.toArray(this.sequence);
+    }
+
     /**
      * Convenient constructor, if the commands are known at compile time.
      */
@@ -52,6 +67,8 @@ public class SequenceCommand extends Command {
         for (int i=0; i < sequence.length; i++) {
             Command c = sequence[i];
             boolean result = c.executeCommand();
+            // the difference must be taken now, later commands may change the same fields
+            c.compactUndoState();
             if (!result && !continueOnError) {
                 this.undoCommands(i-1);
                 return false;
@@ -81,6 +98,33 @@ public class SequenceCommand extends Command {
         this.undoCommands(sequence.length-1);
     }
 
+    /**
+     * Does nothing, the undo state of each command of the sequence has already been
+     * compacted right after it has been executed.
+     */
+    @Override public void compactUndoState() {
+    }
+
+    @Override public long getUndoSize() {
+        long size = 0;
+        for (Command c : sequence) {
+            size += c.getUndoSize();
+        }
+        return size;
+    }
+
+    @Override public void spillUndoState(UndoJournal journal) throws IOException {
+        for (Command c : sequence) {
+            c.spillUndoState(journal);
+        }
+    }
+
+    @Override public void releaseUndoState() {
+        for (Command c : sequence) {
+            c.releaseUndoState();
+        }
+    }
+
     @Override public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted, Collection<OsmPrimitive> added) {
         for (Command c : sequence) {
             c.fillModifiedData(modified, deleted, added);
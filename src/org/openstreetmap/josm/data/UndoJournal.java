@@ -0,0 +1,156 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An append-only temporary file holding the undo data of old commands, so that
+ * it does not have to be kept in memory.
+ * <p>
+ * Each block written to the journal is identified by an {@link Entry}. Freed
+ * blocks leave gaps in the file, which are removed by copying the remaining
+ * blocks to a new file once the gaps take up more than half of the file.
+ */
+public class UndoJournal {
+
+    private static final long MIN_COMPACT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The position of a block in the journal.
+     */
+    public static class Entry {
+        private long offset;
+        private final int length;
+
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private File file;
+    private RandomAccessFile raf;
+    private final Set<Entry> entries = new LinkedHashSet<Entry>();
+    private long liveBytes;
+
+    /**
+     * Appends a block to the journal.
+     *
+     * @param data the data to write
+     * @return the entry to read the block again
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized Entry write(byte[] data) throws IOException {
+        if (raf == null) {
+            open();
+        } else if (raf.length() > MIN_COMPACT_SIZE && raf.length() > 2 * liveBytes) {
+            compact();
+        }
+        Entry entry = new Entry(raf.length(), data.length);
+        raf.seek(entry.offset);
+        raf.write(data);
+        entries.add(entry);
+        liveBytes += data.length;
+        return entry;
+    }
+
+    /**
+     * Reads a block from the journal.
+     *
+     * @param entry the entry returned by {@link #write(byte[])}
+     * @return the data
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if the entry has been freed
+     */
+    public synchronized byte[] read(Entry entry) throws IOException {
+        if (!entries.contains(entry))
+            throw new IllegalStateException("Undo journal entry has been freed");
+        byte[] data = new byte[entry.length];
+        raf.seek(entry.offset);
+        raf.readFully(data);
+        return data;
+    }
+
+    /**
+     * Marks a block as no longer needed.
+     *
+     * @param entry the entry returned by {@link #write(byte[])}
+     */
+    public synchronized void free(Entry entry) {
+        if (entries.remove(entry)) {
+            liveBytes -= entry.length;
+        }
+    }
+
+    /**
+     * Frees all blocks and deletes the file.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        liveBytes = 0;
+        close();
+    }
+
+    private void open() throws IOException {
+        file = File.createTempFile("josm-undo", ".journal");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    private void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            raf = null;
+        }
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    /**
+     * Copies the blocks still in use to a new file.
+     */
+    private void compact() throws IOException {
+        File oldFile = file;
+        RandomAccessFile oldRaf = raf;
+        open();
+        long[] offsets = new long[entries.size()];
+        try {
+            int i = 0;
+            long offset = 0;
+            for (Entry entry : entries) {
+                byte[] data = new byte[entry.length];
+                oldRaf.seek(entry.offset);
+                oldRaf.readFully(data);
+                raf.write(data);
+                offsets[i++] = offset;
+                offset += data.length;
+            }
+        } catch (IOException e) {
+            // keep the old file
+            close();
+            file = oldFile;
+            raf = oldRaf;
+            throw e;
+        }
+        int i = 0;
+        for (Entry entry : entries) {
+            entry.offset = offsets[i++];
+        }
+        oldRaf.close();
+        oldFile.delete();
+    }
+}
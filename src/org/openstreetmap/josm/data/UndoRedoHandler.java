@@ -1,6 +1,7 @@
 //License: GPL. Copyright 2007 by Immanuel Scholz and others
 package org.openstreetmap.josm.data;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -25,6 +26,11 @@ public class UndoRedoHandler implements MapView.LayerChangeListener {
 
     private final LinkedList<CommandQueueListener> listenerCommands = new LinkedList<CommandQueueListener>();
 
+    /**
+     * The undo data of old commands exceeding the memory budget
+     */
+    private final UndoJournal journal = new UndoJournal();
+
     public UndoRedoHandler() {
         MapView.addLayerChangeListener(this);
     }
@@ -34,14 +40,37 @@ public class UndoRedoHandler implements MapView.LayerChangeListener {
      */
     public void addNoRedraw(final Command c) {
         c.executeCommand();
+        c.compactUndoState();
         commands.add(c);
         // Limit the number of commands in the undo list.
         // Currently you have to undo the commands one by one. If
         // this changes, a higher default value may be reasonable.
         if (commands.size() > Main.pref.getInteger("undo.max", 1000)) {
-            commands.removeFirst();
+            commands.removeFirst().releaseUndoState();
         }
         redoCommands.clear();
+        spillUndoStates();
+    }
+
+    /**
+     * Moves the undo data of the oldest commands to the journal once the commands
+     * need more than <code>undo.memory</code> MB.
+     */
+    private void spillUndoStates() {
+        long budget = Main.pref.getInteger("undo.memory", 32) * 1024L * 1024L;
+        long size = 0;
+        for (Iterator<Command> it = commands.descendingIterator(); it.hasNext();) {
+            Command c = it.next();
+            size += c.getUndoSize();
+            if (size > budget) {
+                try {
+                    c.spillUndoState(journal);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
     }
 
     public void afterAdd() {
@@ -111,11 +140,13 @@ public class UndoRedoHandler implements MapView.LayerChangeListener {
         for (int i=0; i<num; ++i) {
             final Command c = redoCommands.removeFirst();
             c.executeCommand();
+            c.compactUndoState();
             commands.add(c);
             if (redoCommands.isEmpty()) {
                 break;
             }
         }
+        spillUndoStates();
         fireCommandsChanged();
         Collection<? extends OsmPrimitive> newSelection = Main.main.getCurrentDataSet().getSelected();
         if (!oldSelection.equals(newSelection)) {
@@ -132,6 +163,7 @@ public class UndoRedoHandler implements MapView.LayerChangeListener {
     public void clean() {
         redoCommands.clear();
         commands.clear();
+        journal.clear();
         fireCommandsChanged();
     }
 
@@ -140,7 +172,9 @@ public class UndoRedoHandler implements MapView.LayerChangeListener {
             return;
         boolean changed = false;
         for (Iterator<Command> it = commands.iterator(); it.hasNext();) {
-            if (it.next().invalidBecauselayerRemoved(layer)) {
+            Command c = it.next();
+            if (c.invalidBecauselayerRemoved(layer)) {
+                c.releaseUndoState();
                 it.remove();
                 changed = true;
             }
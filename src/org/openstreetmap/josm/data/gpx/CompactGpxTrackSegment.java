@@ -0,0 +1,329 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.gpx;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.tools.PrimaryDateParser;
+
+/**
+ * A read-only track segment which keeps its points in parallel arrays of primitive values
+ * instead of {@link WayPoint} objects, to save memory for large tracks.
+ * <p>
+ * The time, the elevation and the hdop of a point are stored in the arrays if they can be
+ * restored exactly, all other attributes are kept in a map for the few points having them.
+ * The {@link WayPoint} objects are created anew on each call of {@link #getWayPoints()} and
+ * are not kept by the segment, so changes made to them are lost.
+ * <p>
+ * Code which only needs the coordinates, the time or the elevation of the points should
+ * use {@link #getLat(int)}, {@link #getLon(int)}, {@link #getTime(int)},
+ * {@link #getTimeMillis(int)} and {@link #getElevation(int)}, which do not create any objects.
+ */
+public class CompactGpxTrackSegment implements GpxTrackSegment {
+
+    /** Segments with less points are not worth to be stored in arrays */
+    public static final int MIN_POINTS = 1000;
+
+    private static final ThreadLocal<PrimaryDateParser> dateParser = new ThreadLocal<PrimaryDateParser>() {
+        @Override protected PrimaryDateParser initialValue() {
+            return new PrimaryDateParser();
+        }
+    };
+
+    private final double[] lat;
+    private final double[] lon;
+    /** the value of {@link WayPoint#time} */
+    private final double[] time;
+    /** the "ele" attribute, NaN if it is not stored in the array */
+    private final double[] ele;
+    /** the "hdop" attribute, NaN if it is not stored in the array */
+    private final float[] hdop;
+    /** the points whose "time" attribute is the formatted value of time */
+    private final BitSet formattedTimes = new BitSet();
+    /** the points whose "ele" attribute is formatted without fraction digits */
+    private final BitSet integralElevations = new BitSet();
+    /** the points having other attributes, ascending */
+    private final int[] extraIndexes;
+    private final Map<String, Object>[] extraAttributes;
+
+    private final Bounds bounds;
+    private final double length;
+
+    @SuppressWarnings("unchecked")
+    public CompactGpxTrackSegment(Collection<WayPoint> wayPoints) {
+        int n = wayPoints.size();
+        lat = new double[n];
+        lon = new double[n];
+        time = new double[n];
+        ele = new double[n];
+        hdop = new float[n];
+        Arrays.fill(ele, Double.NaN);
+        Arrays.fill(hdop, Float.NaN);
+        List<Integer> indexes = new ArrayList<Integer>();
+        List<Map<String, Object>> extras = new ArrayList<Map<String, Object>>();
+        GregorianCalendar calendar = createCalendar();
+        int i = 0;
+        for (WayPoint wpt : wayPoints) {
+            LatLon c = wpt.getCoor();
+            lat[i] = c.lat();
+            lon[i] = c.lon();
+            time[i] = wpt.time;
+            Map<String, Object> extra = null;
+            for (Map.Entry<String, Object> e : wpt.attr.entrySet()) {
+                if (!store(i, e.getKey(), e.getValue(), calendar)) {
+                    if (extra == null) {
+                        extra = new HashMap<String, Object>(4);
+                    }
+                    extra.put(e.getKey(), e.getValue());
+                }
+            }
+            if (extra != null) {
+                indexes.add(i);
+                extras.add(extra);
+            }
+            i++;
+        }
+        extraIndexes = new int[indexes.size()];
+        for (int k = 0; k < extraIndexes.length; k++) {
+            extraIndexes[k] = indexes.get(k);
+        }
+        extraAttributes = extras.toArray(new Map[extras.size()]);
+        bounds = calculateBounds();
+        length = calculateLength();
+    }
+
+    /**
+     * Stores an attribute of the point i in the arrays.
+     *
+     * @return true if the attribute can be restored exactly from the arrays
+     */
+    private boolean store(int i, String key, Object value, GregorianCalendar calendar) {
+        if (key.equals("time")) {
+            if (value instanceof String && value.equals(formatTime(Math.round(time[i] * 1000), calendar))) {
+                formattedTimes.set(i);
+                return true;
+            }
+        } else if (key.equals("ele")) {
+            if (value instanceof String) {
+                try {
+                    double d = Double.parseDouble((String) value);
+                    if (value.equals(Double.toString(d))) {
+                        ele[i] = d;
+                        return true;
+                    } else if (d == (long) d && value.equals(Long.toString((long) d))) {
+                        ele[i] = d;
+                        integralElevations.set(i);
+                        return true;
+                    }
+                } catch (NumberFormatException e) {
+                    // keep the attribute as it is
+                }
+            }
+        } else if (key.equals("hdop")) {
+            if (value instanceof Float && !((Float) value).isNaN()) {
+                hdop[i] = (Float) value;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static GregorianCalendar createCalendar() {
+        return new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Formats a time like "2012-05-01T10:00:00Z", with milliseconds if they are not 0.
+     */
+    private static String formatTime(long millis, GregorianCalendar calendar) {
+        calendar.setTimeInMillis(millis);
+        StringBuilder sb = new StringBuilder(24);
+        append(sb, calendar.get(Calendar.YEAR), 4).append('-');
+        append(sb, calendar.get(Calendar.MONTH) + 1, 2).append('-');
+        append(sb, calendar.get(Calendar.DAY_OF_MONTH), 2).append('T');
+        append(sb, calendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+        append(sb, calendar.get(Calendar.MINUTE), 2).append(':');
+        append(sb, calendar.get(Calendar.SECOND), 2);
+        int ms = calendar.get(Calendar.MILLISECOND);
+        if (ms != 0) {
+            append(sb.append('.'), ms, 3);
+        }
+        return sb.append('Z').toString();
+    }
+
+    private static StringBuilder append(StringBuilder sb, int value, int digits) {
+        String s = Integer.toString(value);
+        for (int i = s.length(); i < digits; i++) {
+            sb.append('0');
+        }
+        return sb.append(s);
+    }
+
+    private Bounds calculateBounds() {
+        Bounds result = null;
+        for (int i = 0; i < lat.length; i++) {
+            if (result == null) {
+                result = new Bounds(new LatLon(lat[i], lon[i]));
+            } else {
+                result.extend(new LatLon(lat[i], lon[i]));
+            }
+        }
+        return result;
+    }
+
+    private double calculateLength() {
+        double result = 0.0; // in meters
+        for (int i = 1; i < lat.length; i++) {
+            double d = new LatLon(lat[i - 1], lon[i - 1]).greatCircleDistance(new LatLon(lat[i], lon[i]));
+            if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+                result += d;
+            }
+        }
+        return result;
+    }
+
+    private Map<String, Object> getExtraAttributes(int index) {
+        int k = Arrays.binarySearch(extraIndexes, index);
+        return k < 0 ? null : extraAttributes[k];
+    }
+
+    private Object getExtraAttribute(int index, String key) {
+        Map<String, Object> extra = getExtraAttributes(index);
+        return extra == null ? null : extra.get(key);
+    }
+
+    private WayPoint createWayPoint(int i, GregorianCalendar calendar) {
+        WayPoint wpt = new WayPoint(new LatLon(lat[i], lon[i]));
+        wpt.time = time[i];
+        if (formattedTimes.get(i)) {
+            wpt.attr.put("time", formatTime(Math.round(time[i] * 1000), calendar));
+        }
+        if (!Double.isNaN(ele[i])) {
+            wpt.attr.put("ele", integralElevations.get(i) ? Long.toString((long) ele[i]) : Double.toString(ele[i]));
+        }
+        if (!Float.isNaN(hdop[i])) {
+            wpt.attr.put("hdop", hdop[i]);
+        }
+        Map<String, Object> extra = getExtraAttributes(i);
+        if (extra != null) {
+            wpt.attr.putAll(extra);
+        }
+        return wpt;
+    }
+
+    /**
+     * Replies the number of points.
+     */
+    public int size() {
+        return lat.length;
+    }
+
+    public double getLat(int index) {
+        return lat[index];
+    }
+
+    public double getLon(int index) {
+        return lon[index];
+    }
+
+    /**
+     * Replies the value of {@link WayPoint#time} of a point, in seconds.
+     */
+    public double getTime(int index) {
+        return time[index];
+    }
+
+    /**
+     * Replies the time of a point given by its "time" attribute.
+     *
+     * @return the time in milliseconds, Long.MIN_VALUE if the point has no time attribute or it cannot be parsed
+     */
+    public long getTimeMillis(int index) {
+        if (formattedTimes.get(index))
+            return Math.round(time[index] * 1000);
+        Object value = getExtraAttribute(index, "time");
+        if (value instanceof String) {
+            try {
+                return dateParser.get().parse((String) value).getTime();
+            } catch (ParseException e) {
+                // no valid time
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Replies the elevation of a point given by its "ele" attribute.
+     *
+     * @return the elevation, NaN if the point has no elevation attribute or it is no number
+     */
+    public double getElevation(int index) {
+        if (!Double.isNaN(ele[index]))
+            return ele[index];
+        Object value = getExtraAttribute(index, "ele");
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                // no valid elevation
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Replies the "hdop" attribute of a point, NaN if the point has none.
+     */
+    public float getHdop(int index) {
+        if (!Float.isNaN(hdop[index]))
+            return hdop[index];
+        Object value = getExtraAttribute(index, "hdop");
+        return value instanceof Float ? (Float) value : Float.NaN;
+    }
+
+    public Bounds getBounds() {
+        if (bounds == null)
+            return null;
+        else
+            return new Bounds(bounds);
+    }
+
+    /**
+     * Replies a point of the segment, which is created anew on each call.
+     */
+    public WayPoint getWayPoint(int index) {
+        return createWayPoint(index, createCalendar());
+    }
+
+    /**
+     * Replies the points of the segment, which are created anew on each call.
+     */
+    public Collection<WayPoint> getWayPoints() {
+        WayPoint[] points = new WayPoint[lat.length];
+        GregorianCalendar calendar = createCalendar();
+        for (int i = 0; i < points.length; i++) {
+            points[i] = createWayPoint(i, calendar);
+        }
+        return Collections.unmodifiableList(Arrays.asList(points));
+    }
+
+    public double length() {
+        return length;
+    }
+
+    public int getUpdateCount() {
+        return 0;
+    }
+}
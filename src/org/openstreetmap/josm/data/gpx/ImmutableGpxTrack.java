@@ -21,7 +21,7 @@ public class ImmutableGpxTrack implements GpxTrack {
         List<GpxTrackSegment> newSegments = new ArrayList<GpxTrackSegment>();
         for (Collection<WayPoint> trackSeg: trackSegs) {
             if (trackSeg != null && !trackSeg.isEmpty()) {
-                newSegments.add(new ImmutableGpxTrackSegment(trackSeg));
+                newSegments.add(createSegment(trackSeg));
             }
         }
         this.attributes = Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
@@ -30,6 +30,32 @@ public class ImmutableGpxTrack implements GpxTrack {
         this.bounds = calculateBounds();
     }
 
+    /**
+     * Creates a track of segments built before, see {@link #createSegment(Collection)}.
+     *
+     * @param segments the segments, which must not be empty
+     * @param attributes the attributes of the track
+     */
+    public ImmutableGpxTrack(List<GpxTrackSegment> segments, Map<String, Object> attributes) {
+        this.attributes = Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
+        this.segments = Collections.unmodifiableCollection(new ArrayList<GpxTrackSegment>(segments));
+        this.length = calculateLength();
+        this.bounds = calculateBounds();
+    }
+
+    /**
+     * Creates a read-only segment, large segments are stored in a {@link CompactGpxTrackSegment}.
+     *
+     * @param wayPoints the points of the segment
+     * @return the segment
+     */
+    public static GpxTrackSegment createSegment(Collection<WayPoint> wayPoints) {
+        if (wayPoints.size() >= CompactGpxTrackSegment.MIN_POINTS)
+            return new CompactGpxTrackSegment(wayPoints);
+        else
+            return new ImmutableGpxTrackSegment(wayPoints);
+    }
+
     private double calculateLength(){
         double result = 0.0; // in meters
 
@@ -4,7 +4,13 @@ package org.openstreetmap.josm.data.imagery;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -12,6 +18,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.ref.SoftReference;
 import java.net.URLConnection;
 import java.text.SimpleDateFormat;
@@ -24,12 +31,14 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
 
 import javax.imageio.ImageIO;
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 
 import org.openstreetmap.josm.Main;
@@ -45,7 +54,16 @@ import org.openstreetmap.josm.gui.NavigatableComponent;
 import org.openstreetmap.josm.tools.Utils;
 
 
-
+/**
+ * Disk cache for WMS tiles.
+ *
+ * The index of the cache is an append-only journal: every added or removed
+ * tile appends one record, so opening a layer only reads the index and
+ * nothing is rewritten until the journal is compacted. Records are
+ * protected by a checksum, an incomplete record at the end (e.g. after a
+ * crash) is discarded. The journal is compacted by {@link #saveIndex()} and
+ * when it contains too many outdated records.
+ */
 public class WmsCache {
     //TODO Property for maximum cache size
     //TODO Property for maximum age of tile, automatically remove old tiles
@@ -53,9 +71,18 @@ public class WmsCache {
     //TODO Do loading from partial cache and downloading at the same time, don't wait for partical cache to load
 
     private static final StringProperty PROP_CACHE_PATH = new StringProperty("imagery.wms-cache.path", "wms");
-    private static final String INDEX_FILENAME = "index.xml";
+    private static final String INDEX_FILENAME = "index.dat";
+    private static final String XML_INDEX_FILENAME = "index.xml";
     private static final String LAYERS_INDEX_FILENAME = "layers.properties";
 
+    private static final int INDEX_MAGIC = 0x574d5343; // "WMSC"
+    private static final int INDEX_VERSION = 1;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private static final byte RECORD_PROJECTION = 1;
+    private static final byte RECORD_PUT = 2;
+    private static final byte RECORD_REMOVE = 3;
+
     private static class CacheEntry {
         final double pixelPerDegree;
         final double east;
@@ -65,6 +92,10 @@ public class WmsCache {
 
         long lastUsed;
         long lastModified;
+        int fileSize;
+
+        /** Decoded image, guarded by the entry itself while it is loaded */
+        volatile SoftReference<BufferedImage> image;
 
         CacheEntry(double pixelPerDegree, double east, double north, int tileSize, String filename) {
             this.pixelPerDegree = pixelPerDegree;
@@ -75,26 +106,159 @@ public class WmsCache {
         }
     }
 
-    private static class ProjectionEntries {
+    /**
+     * The entries of one resolution, in a grid with cells of the size of one tile.
+     */
+    private static class ResolutionEntries {
+        final double cellSize;
+        final Map<Long, List<CacheEntry>> cells = new HashMap<Long, List<CacheEntry>>();
+
+        ResolutionEntries(double cellSize) {
+            this.cellSize = cellSize;
+        }
+
+        long cellKey(int x, int y) {
+            return ((long) x << 32) | (y & 0xffffffffL);
+        }
+
+        int cell(double coor) {
+            return (int) Math.floor(coor / cellSize);
+        }
+
+        List<CacheEntry> getCell(double east, double north, boolean create) {
+            Long key = cellKey(cell(east), cell(north));
+            List<CacheEntry> result = cells.get(key);
+            if (result == null && create) {
+                result = new ArrayList<CacheEntry>(1);
+                cells.put(key, result);
+            }
+            return result;
+        }
+
+        void remove(CacheEntry entry) {
+            List<CacheEntry> cell = getCell(entry.east, entry.north, false);
+            if (cell != null) {
+                cell.remove(entry);
+                if (cell.isEmpty()) {
+                    cells.remove(cellKey(cell(entry.east), cell(entry.north)));
+                }
+            }
+        }
+
+        CacheEntry find(double east, double north) {
+            List<CacheEntry> cell = getCell(east, north, false);
+            if (cell != null) {
+                for (CacheEntry entry: cell) {
+                    if (entry.east == east && entry.north == north)
+                        return entry;
+                }
+            }
+            return null;
+        }
+
+        void findIntersecting(ProjectionBounds bounds, List<CacheEntry> result) {
+            // an entry starts at most one cell before the bounds
+            int x0 = cell(bounds.minEast - cellSize);
+            int x1 = cell(bounds.maxEast);
+            int y0 = cell(bounds.minNorth - cellSize);
+            int y1 = cell(bounds.maxNorth);
+            if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > cells.size()) {
+                for (List<CacheEntry> cell: cells.values()) {
+                    addIntersecting(cell, bounds, result);
+                }
+            } else {
+                for (int x = x0; x <= x1; x++) {
+                    for (int y = y0; y <= y1; y++) {
+                        addIntersecting(cells.get(cellKey(x, y)), bounds, result);
+                    }
+                }
+            }
+        }
+
+        private static void addIntersecting(List<CacheEntry> cell, ProjectionBounds bounds, List<CacheEntry> result) {
+            if (cell != null) {
+                for (CacheEntry entry: cell) {
+                    if (entry.bounds.intersects(bounds)) {
+                        result.add(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class ProjectionEntries implements Iterable<CacheEntry> {
         final String projection;
         final String cacheDirectory;
-        final List<CacheEntry> entries = new ArrayList<WmsCache.CacheEntry>();
+        final NavigableMap<Double, ResolutionEntries> resolutions = new TreeMap<Double, ResolutionEntries>();
+        final Set<String> filenames = new HashSet<String>();
+        int size;
 
         ProjectionEntries(String projection, String cacheDirectory) {
             this.projection = projection;
             this.cacheDirectory = cacheDirectory;
         }
+
+        CacheEntry find(double pixelPerDegree, double east, double north) {
+            ResolutionEntries resolution = resolutions.get(pixelPerDegree);
+            return resolution == null ? null : resolution.find(east, north);
+        }
+
+        void add(CacheEntry entry, int tileSize) {
+            ResolutionEntries resolution = resolutions.get(entry.pixelPerDegree);
+            if (resolution == null) {
+                resolution = new ResolutionEntries(tileSize / entry.pixelPerDegree);
+                resolutions.put(entry.pixelPerDegree, resolution);
+            }
+            resolution.getCell(entry.east, entry.north, true).add(entry);
+            filenames.add(entry.filename);
+            size++;
+        }
+
+        void remove(CacheEntry entry) {
+            ResolutionEntries resolution = resolutions.get(entry.pixelPerDegree);
+            if (resolution != null) {
+                resolution.remove(entry);
+                if (resolution.cells.isEmpty()) {
+                    resolutions.remove(entry.pixelPerDegree);
+                }
+            }
+            filenames.remove(entry.filename);
+            size--;
+        }
+
+        List<CacheEntry> findIntersecting(double minPPD, double maxPPD, ProjectionBounds bounds) {
+            List<CacheEntry> result = new ArrayList<CacheEntry>();
+            for (ResolutionEntries resolution: resolutions.subMap(minPPD, true, maxPPD, true).values()) {
+                resolution.findIntersecting(bounds, result);
+            }
+            return result;
+        }
+
+        @Override
+        public Iterator<CacheEntry> iterator() {
+            List<CacheEntry> result = new ArrayList<CacheEntry>(size);
+            for (ResolutionEntries resolution: resolutions.values()) {
+                for (List<CacheEntry> cell: resolution.cells.values()) {
+                    result.addAll(cell);
+                }
+            }
+            return result.iterator();
+        }
     }
 
     private final Map<String, ProjectionEntries> entries = new HashMap<String, ProjectionEntries>();
     private final File cacheDir;
     private final int tileSize; // Should be always 500
-    private int totalFileSize;
-    private boolean totalFileSizeDirty; // Some file was missing - size needs to be recalculated
-    // No need for hashCode/equals on CacheEntry, object identity is enough. Comparing by values can lead to error - CacheEntry for wrong projection could be found
-    private Map<CacheEntry, SoftReference<BufferedImage>> memoryCache = new HashMap<WmsCache.CacheEntry, SoftReference<BufferedImage>>();
+    private long totalFileSize;
+    // Entries with an image in memory
+    private final Set<CacheEntry> memoryCache = new HashSet<CacheEntry>();
     private Set<ProjectionBounds> areaToCache;
 
+    // Projection ids used in the current journal file
+    private final Map<ProjectionEntries, Integer> journalProjectionIds = new HashMap<ProjectionEntries, Integer>();
+    private int journalRecordCount;
+    private boolean indexLoaded;
+
     protected String cacheDirPath() {
         String cPath = PROP_CACHE_PATH.get();
         if (!(new File(cPath).isAbsolute())) {
@@ -192,15 +356,157 @@ public class WmsCache {
         return result;
     }
 
+    private File getIndexFile() {
+        return new File(cacheDir, INDEX_FILENAME);
+    }
+
+    private File getTempIndexFile() {
+        return new File(cacheDir, INDEX_FILENAME + ".tmp");
+    }
+
+    /**
+     * Loads the index, unless it is already loaded.
+     */
     public synchronized void loadIndex() {
-        File indexFile = new File(cacheDir, INDEX_FILENAME);
+        if (indexLoaded)
+            return;
+        indexLoaded = true;
+        File indexFile = getIndexFile();
+        File xmlIndexFile = new File(cacheDir, XML_INDEX_FILENAME);
+        if (!indexFile.exists() && getTempIndexFile().exists()) {
+            // crashed while replacing the index by the compacted one
+            getTempIndexFile().renameTo(indexFile);
+        }
+        boolean rewrite = true;
+        try {
+            if (indexFile.exists()) {
+                if (readJournal(indexFile)) {
+                    rewrite = false;
+                } else {
+                    clearEntries();
+                }
+            } else if (xmlIndexFile.exists()) {
+                loadXmlIndex(xmlIndexFile);
+            } else {
+                System.out.println("Index for wms-cache doesn't exist, new file will be created");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Unable to load index for wms-cache, new file will be created");
+            clearEntries();
+        }
+        if (rewrite) {
+            compact();
+        }
+        xmlIndexFile.delete();
+
+        removeNonReferencedFiles();
+    }
+
+    private void clearEntries() {
+        entries.clear();
+        journalProjectionIds.clear();
+        memoryCache.clear();
+        totalFileSize = 0;
+    }
+
+    /**
+     * Reads the entries from the journal. An incomplete or damaged record at
+     * the end of the journal is cut off.
+     *
+     * @return <code>false</code> if the journal was created with a different tile size
+     */
+    private boolean readJournal(File indexFile) throws IOException {
+        Map<Integer, ProjectionEntries> projections = new HashMap<Integer, ProjectionEntries>();
+        long validLength;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+                throw new IOException("Invalid wms-cache index " + indexFile);
+            if (in.readInt() != tileSize) {
+                System.out.println("Cache created with different tileSize, cache will be discarded");
+                return false;
+            }
+            validLength = 12;
+            byte[] buffer = new byte[256];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    if (length > buffer.length) {
+                        buffer = new byte[length];
+                    }
+                    in.readFully(buffer, 0, length);
+                    crc.reset();
+                    crc.update(buffer, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                readRecord(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)), projections);
+                validLength += length + 8;
+                journalRecordCount++;
+            }
+        } finally {
+            in.close();
+        }
+        if (validLength < indexFile.length()) {
+            System.out.println("Incomplete record at the end of the wms-cache index removed");
+            RandomAccessFile f = new RandomAccessFile(indexFile, "rw");
+            try {
+                f.setLength(validLength);
+            } finally {
+                f.close();
+            }
+        }
+        for (Map.Entry<Integer, ProjectionEntries> e: projections.entrySet()) {
+            journalProjectionIds.put(e.getValue(), e.getKey());
+        }
+        return true;
+    }
+
+    private void readRecord(DataInputStream in, Map<Integer, ProjectionEntries> projections) throws IOException {
+        byte type = in.readByte();
+        if (type == RECORD_PROJECTION) {
+            int id = in.readInt();
+            projections.put(id, getProjectionEntries(in.readUTF(), in.readUTF()));
+            return;
+        }
+        ProjectionEntries projection = projections.get(in.readInt());
+        if (projection == null)
+            throw new IOException("Unknown projection in wms-cache index");
+        double pixelPerDegree = in.readDouble();
+        double east = in.readDouble();
+        double north = in.readDouble();
+        CacheEntry old = projection.find(pixelPerDegree, east, north);
+        if (old != null) {
+            removeEntry(projection, old);
+        }
+        if (type == RECORD_PUT) {
+            CacheEntry ce = new CacheEntry(pixelPerDegree, east, north, tileSize, in.readUTF());
+            ce.lastUsed = in.readLong();
+            ce.lastModified = in.readLong();
+            ce.fileSize = in.readInt();
+            addEntry(projection, ce);
+        }
+    }
+
+    /**
+     * Reads the index of older versions.
+     */
+    private void loadXmlIndex(File indexFile) {
         try {
             JAXBContext context = JAXBContext.newInstance(
                     WmsCacheType.class.getPackage().getName(),
                     WmsCacheType.class.getClassLoader());
             Unmarshaller unmarshaller = context.createUnmarshaller();
             WmsCacheType cacheEntries = (WmsCacheType)unmarshaller.unmarshal(new FileInputStream(indexFile));
-            totalFileSize = cacheEntries.getTotalFileSize();
             if (cacheEntries.getTileSize() != tileSize) {
                 System.out.println("Cache created with different tileSize, cache will be discarded");
                 return;
@@ -211,19 +517,141 @@ public class WmsCache {
                     CacheEntry ce = new CacheEntry(entry.getPixelPerDegree(), entry.getEast(), entry.getNorth(), tileSize, entry.getFilename());
                     ce.lastUsed = entry.getLastUsed().getTimeInMillis();
                     ce.lastModified = entry.getLastModified().getTimeInMillis();
-                    projection.entries.add(ce);
+                    ce.fileSize = (int) getImageFile(projection, ce).length();
+                    addEntry(projection, ce);
                 }
             }
         } catch (Exception e) {
-            if (indexFile.exists()) {
-                e.printStackTrace();
-                System.out.println("Unable to load index for wms-cache, new file will be created");
-            } else {
-                System.out.println("Index for wms-cache doesn't exist, new file will be created");
+            e.printStackTrace();
+            System.out.println("Unable to load index for wms-cache, new file will be created");
+            clearEntries();
+        }
+    }
+
+    private void addEntry(ProjectionEntries projection, CacheEntry entry) {
+        projection.add(entry, tileSize);
+        totalFileSize += entry.fileSize;
+    }
+
+    private void removeEntry(ProjectionEntries projection, CacheEntry entry) {
+        projection.remove(entry);
+        totalFileSize -= entry.fileSize;
+        memoryCache.remove(entry);
+    }
+
+    private int getEntryCount() {
+        int result = 0;
+        for (ProjectionEntries projectionEntries: entries.values()) {
+            result += projectionEntries.size;
+        }
+        return result;
+    }
+
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream record) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] data = record.toByteArray();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeProjectionRecord(DataOutputStream out, int id, ProjectionEntries projection) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream rec = new DataOutputStream(record);
+        rec.writeByte(RECORD_PROJECTION);
+        rec.writeInt(id);
+        rec.writeUTF(projection.projection);
+        rec.writeUTF(projection.cacheDirectory);
+        writeRecord(out, record);
+    }
+
+    private static void writeEntryRecord(DataOutputStream out, byte type, int projectionId, CacheEntry entry) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream rec = new DataOutputStream(record);
+        rec.writeByte(type);
+        rec.writeInt(projectionId);
+        rec.writeDouble(entry.pixelPerDegree);
+        rec.writeDouble(entry.east);
+        rec.writeDouble(entry.north);
+        if (type == RECORD_PUT) {
+            rec.writeUTF(entry.filename);
+            rec.writeLong(entry.lastUsed);
+            rec.writeLong(entry.lastModified);
+            rec.writeInt(entry.fileSize);
+        }
+        writeRecord(out, record);
+    }
+
+    /**
+     * Appends a record for the entry to the journal.
+     */
+    private void appendToJournal(byte type, ProjectionEntries projection, CacheEntry entry) {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile(), true)));
+            try {
+                Integer id = journalProjectionIds.get(projection);
+                if (id == null) {
+                    id = journalProjectionIds.size();
+                    journalProjectionIds.put(projection, id);
+                    writeProjectionRecord(out, id, projection);
+                    journalRecordCount++;
+                }
+                writeEntryRecord(out, type, id, entry);
+                journalRecordCount++;
+            } finally {
+                out.close();
             }
+        } catch (IOException e) {
+            System.err.println("Failed to update wms-cache index");
+            e.printStackTrace();
+        }
+        if (journalRecordCount > 2 * getEntryCount() + 1000) {
+            compact();
         }
+    }
 
-        removeNonReferencedFiles();
+    /**
+     * Rewrites the journal with only the current entries.
+     */
+    private void compact() {
+        File tmp = getTempIndexFile();
+        Map<ProjectionEntries, Integer> ids = new HashMap<ProjectionEntries, Integer>();
+        int recordCount = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(tileSize);
+                for (ProjectionEntries projectionEntries: entries.values()) {
+                    if (projectionEntries.size > 0) {
+                        int id = ids.size();
+                        ids.put(projectionEntries, id);
+                        writeProjectionRecord(out, id, projectionEntries);
+                        recordCount++;
+                        for (CacheEntry ce: projectionEntries) {
+                            writeEntryRecord(out, RECORD_PUT, id, ce);
+                            recordCount++;
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            File indexFile = getIndexFile();
+            if (!tmp.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tmp.renameTo(indexFile))
+                    throw new IOException("Unable to rename " + tmp + " to " + indexFile);
+            }
+            journalProjectionIds.clear();
+            journalProjectionIds.putAll(ids);
+            journalRecordCount = recordCount;
+        } catch (IOException e) {
+            System.err.println("Failed to save wms-cache file");
+            e.printStackTrace();
+        }
     }
 
     private void removeNonReferencedFiles() {
@@ -236,14 +664,8 @@ public class WmsCache {
 
             File projectionDir = new File(cacheDir, projectionEntries.cacheDirectory);
             if (projectionDir.exists()) {
-                Set<String> referencedFiles = new HashSet<String>();
-
-                for (CacheEntry ce: projectionEntries.entries) {
-                    referencedFiles.add(ce.filename);
-                }
-
                 for (File file: projectionDir.listFiles()) {
-                    if (!referencedFiles.contains(file.getName())) {
+                    if (!projectionEntries.filenames.contains(file.getName())) {
                         file.delete();
                     }
                 }
@@ -257,64 +679,13 @@ public class WmsCache {
         }
     }
 
-    private int calculateTotalFileSize() {
-        int result = 0;
-        for (ProjectionEntries projectionEntries: entries.values()) {
-            Iterator<CacheEntry> it = projectionEntries.entries.iterator();
-            while (it.hasNext()) {
-                CacheEntry entry = it.next();
-                File imageFile = getImageFile(projectionEntries, entry);
-                if (!imageFile.exists()) {
-                    it.remove();
-                } else {
-                    result += imageFile.length();
-                }
-            }
-        }
-        return result;
-    }
-
+    /**
+     * Compacts the index. All changes are already saved when they are made,
+     * only the last usage times of the entries are updated.
+     */
     public synchronized void saveIndex() {
-        WmsCacheType index = new WmsCacheType();
-
-        if (totalFileSizeDirty) {
-            totalFileSize = calculateTotalFileSize();
-        }
-
-        index.setTileSize(tileSize);
-        index.setTotalFileSize(totalFileSize);
-        for (ProjectionEntries projectionEntries: entries.values()) {
-            if (projectionEntries.entries.size() > 0) {
-                ProjectionType projectionType = new ProjectionType();
-                projectionType.setName(projectionEntries.projection);
-                projectionType.setCacheDirectory(projectionEntries.cacheDirectory);
-                index.getProjection().add(projectionType);
-                for (CacheEntry ce: projectionEntries.entries) {
-                    EntryType entry = new EntryType();
-                    entry.setPixelPerDegree(ce.pixelPerDegree);
-                    entry.setEast(ce.east);
-                    entry.setNorth(ce.north);
-                    Calendar c = Calendar.getInstance();
-                    c.setTimeInMillis(ce.lastUsed);
-                    entry.setLastUsed(c);
-                    c = Calendar.getInstance();
-                    c.setTimeInMillis(ce.lastModified);
-                    entry.setLastModified(c);
-                    entry.setFilename(ce.filename);
-                    projectionType.getEntry().add(entry);
-                }
-            }
-        }
-        try {
-            JAXBContext context = JAXBContext.newInstance(
-                    WmsCacheType.class.getPackage().getName(),
-                    WmsCacheType.class.getClassLoader());
-            Marshaller marshaller = context.createMarshaller();
-            marshaller.marshal(index, new FileOutputStream(new File(cacheDir, INDEX_FILENAME)));
-        } catch (Exception e) {
-            System.err.println("Failed to save wms-cache file");
-            e.printStackTrace();
-        }
+        loadIndex();
+        compact();
     }
 
     private File getImageFile(ProjectionEntries projection, CacheEntry entry) {
@@ -323,48 +694,43 @@ public class WmsCache {
 
 
     private BufferedImage loadImage(ProjectionEntries projectionEntries, CacheEntry entry) throws IOException {
-
-        synchronized (this) {
+        BufferedImage result;
+        IOException error = null;
+        // Reading can't be in the cache wide synchronized section, it's too slow
+        synchronized (entry) {
             entry.lastUsed = System.currentTimeMillis();
 
-            SoftReference<BufferedImage> memCache = memoryCache.get(entry);
+            SoftReference<BufferedImage> memCache = entry.image;
             if (memCache != null) {
-                BufferedImage result = memCache.get();
+                result = memCache.get();
                 if (result != null)
                     return result;
             }
+
+            try {
+                result = ImageIO.read(getImageFile(projectionEntries, entry));
+            } catch (IOException e) {
+                result = null;
+                error = e;
+            }
         }
 
-        try {
-            // Reading can't be in synchronized section, it's too slow
-            BufferedImage result = ImageIO.read(getImageFile(projectionEntries, entry));
+        if (result == null) {
             synchronized (this) {
-                if (result == null) {
-                    projectionEntries.entries.remove(entry);
-                    totalFileSizeDirty = true;
+                if (projectionEntries.find(entry.pixelPerDegree, entry.east, entry.north) == entry) {
+                    removeEntry(projectionEntries, entry);
+                    appendToJournal(RECORD_REMOVE, projectionEntries, entry);
                 }
-                return result;
-            }
-        } catch (IOException e) {
-            synchronized (this) {
-                projectionEntries.entries.remove(entry);
-                totalFileSizeDirty = true;
-                throw e;
             }
+            if (error != null)
+                throw error;
         }
-    }
-
-    private CacheEntry findEntry(ProjectionEntries projectionEntries, double pixelPerDegree, double east, double north) {
-        for (CacheEntry entry: projectionEntries.entries) {
-            if (entry.pixelPerDegree == pixelPerDegree && entry.east == east && entry.north == north)
-                return entry;
-        }
-        return null;
+        return result;
     }
 
     public synchronized boolean hasExactMatch(Projection projection, double pixelPerDegree, double east, double north) {
         ProjectionEntries projectionEntries = getProjectionEntries(projection);
-        CacheEntry entry = findEntry(projectionEntries, pixelPerDegree, east, north);
+        CacheEntry entry = projectionEntries.find(pixelPerDegree, east, north);
         return (entry != null);
     }
 
@@ -373,7 +739,7 @@ public class WmsCache {
         ProjectionEntries projectionEntries = null;
         synchronized (this) {
             projectionEntries = getProjectionEntries(projection);
-            entry = findEntry(projectionEntries, pixelPerDegree, east, north);
+            entry = projectionEntries.find(pixelPerDegree, east, north);
         }
         if (entry != null) {
             try {
@@ -391,8 +757,6 @@ public class WmsCache {
         ProjectionEntries projectionEntries;
         List<CacheEntry> matches;
         synchronized (this) {
-            matches = new ArrayList<WmsCache.CacheEntry>();
-
             double minPPD = pixelPerDegree / 5;
             double maxPPD = pixelPerDegree * 5;
             projectionEntries = getProjectionEntries(projection);
@@ -403,11 +767,9 @@ public class WmsCache {
                     east + size2 - border, north + size2 - border);
 
             //TODO Do not load tile if it is completely overlapped by other tile with better ppd
-            for (CacheEntry entry: projectionEntries.entries) {
-                if (entry.pixelPerDegree >= minPPD && entry.pixelPerDegree <= maxPPD && entry.bounds.intersects(bounds)) {
-                    entry.lastUsed = System.currentTimeMillis();
-                    matches.add(entry);
-                }
+            matches = projectionEntries.findIntersecting(minPPD, maxPPD, bounds);
+            for (CacheEntry entry: matches) {
+                entry.lastUsed = System.currentTimeMillis();
             }
 
             if (matches.isEmpty())
@@ -428,12 +790,16 @@ public class WmsCache {
 
 
         boolean drawAtLeastOnce = false;
-        Map<CacheEntry, SoftReference<BufferedImage>> localCache = new HashMap<WmsCache.CacheEntry, SoftReference<BufferedImage>>();
+        List<CacheEntry> loaded = new ArrayList<CacheEntry>();
         for (CacheEntry ce: matches) {
             BufferedImage img;
             try {
                 img = loadImage(projectionEntries, ce);
-                localCache.put(ce, new SoftReference<BufferedImage>(img));
+                if (img == null) {
+                    continue;
+                }
+                ce.image = new SoftReference<BufferedImage>(img);
+                loaded.add(ce);
             } catch (IOException e) {
                 continue;
             }
@@ -452,7 +818,7 @@ public class WmsCache {
 
         if (drawAtLeastOnce) {
             synchronized (this) {
-                memoryCache.putAll(localCache);
+                memoryCache.addAll(loaded);
             }
             return result;
         } else
@@ -482,17 +848,12 @@ public class WmsCache {
         }
 
         int counter = 0;
-        FILENAME_LOOP:
-            while (true) {
-                String result = String.format("%s_%." + precisionLat + "f_%." + precisionLon +"f%s.%s", zoom, ll1.lat(), ll1.lon(), counter==0?"":"_" + counter, extension);
-                for (CacheEntry entry: projectionEntries.entries) {
-                    if (entry.filename.equals(result)) {
-                        counter++;
-                        continue FILENAME_LOOP;
-                    }
-                }
+        while (true) {
+            String result = String.format("%s_%." + precisionLat + "f_%." + precisionLon +"f%s.%s", zoom, ll1.lat(), ll1.lon(), counter==0?"":"_" + counter, extension);
+            if (!projectionEntries.filenames.contains(result))
                 return result;
-            }
+            counter++;
+        }
     }
 
     /**
@@ -506,8 +867,9 @@ public class WmsCache {
      * @throws IOException
      */
     public synchronized void saveToCache(BufferedImage img, InputStream imageData, Projection projection, double pixelPerDegree, double east, double north) throws IOException {
+        loadIndex();
         ProjectionEntries projectionEntries = getProjectionEntries(projection);
-        CacheEntry entry = findEntry(projectionEntries, pixelPerDegree, east, north);
+        CacheEntry entry = projectionEntries.find(pixelPerDegree, east, north);
         File imageFile;
         if (entry == null) {
 
@@ -520,43 +882,42 @@ public class WmsCache {
             entry = new CacheEntry(pixelPerDegree, east, north, tileSize,generateFileName(projectionEntries, pixelPerDegree, projection, east, north, mimeType));
             entry.lastUsed = System.currentTimeMillis();
             entry.lastModified = entry.lastUsed;
-            projectionEntries.entries.add(entry);
+            addEntry(projectionEntries, entry);
             imageFile = getImageFile(projectionEntries, entry);
         } else {
             imageFile = getImageFile(projectionEntries, entry);
-            totalFileSize -= imageFile.length();
+            entry.image = null;
         }
 
         imageFile.getParentFile().mkdirs();
 
+        int fileSize;
         if (img != null) {
             BufferedImage copy = new BufferedImage(tileSize, tileSize, img.getType());
             copy.createGraphics().drawImage(img, 0, 0, tileSize, tileSize, 0, img.getHeight() - tileSize, tileSize, img.getHeight(), null);
             ImageIO.write(copy, "png", imageFile);
-            totalFileSize += imageFile.length();
+            fileSize = (int) imageFile.length();
         } else {
             OutputStream os = new BufferedOutputStream(new FileOutputStream(imageFile));
             try {
-                totalFileSize += Utils.copyStream(imageData, os);
+                fileSize = Utils.copyStream(imageData, os);
             } finally {
                 os.close();
             }
         }
+        totalFileSize += fileSize - entry.fileSize;
+        entry.fileSize = fileSize;
+        appendToJournal(RECORD_PUT, projectionEntries, entry);
     }
 
     public synchronized void cleanSmallFiles(int size) {
+        loadIndex();
         for (ProjectionEntries projectionEntries: entries.values()) {
-            Iterator<CacheEntry> it = projectionEntries.entries.iterator();
-            while (it.hasNext()) {
-                File file = getImageFile(projectionEntries, it.next());
-                long length = file.length();
-                if (length <= size) {
-                    if (length == 0) {
-                        totalFileSizeDirty = true; // File probably doesn't exist
-                    }
-                    totalFileSize -= size;
-                    file.delete();
-                    it.remove();
+            for (CacheEntry entry: projectionEntries) {
+                if (entry.fileSize <= size) {
+                    getImageFile(projectionEntries, entry).delete();
+                    removeEntry(projectionEntries, entry);
+                    appendToJournal(RECORD_REMOVE, projectionEntries, entry);
                 }
             }
         }
@@ -576,9 +937,11 @@ public class WmsCache {
 
     public synchronized void setAreaToCache(Set<ProjectionBounds> areaToCache) {
         this.areaToCache = areaToCache;
-        Iterator<CacheEntry> it = memoryCache.keySet().iterator();
+        Iterator<CacheEntry> it = memoryCache.iterator();
         while (it.hasNext()) {
-            if (!isInsideAreaToCache(it.next())) {
+            CacheEntry entry = it.next();
+            if (!isInsideAreaToCache(entry)) {
+                entry.image = null;
                 it.remove();
             }
         }
@@ -439,6 +439,9 @@ public abstract class AbstractPrimitive implements IPrimitive {
     // Note that all methods that read keys first make local copy of keys array reference. This is to ensure thread safety - reading
     // doesn't have to be locked so it's possible that keys array will be modified. But all write methods make copy of keys array so
     // the array itself will be never modified - only reference will be changed
+    //
+    // Keys arrays are shared between primitives with the same tags (see TagArrayPool), which is another reason why
+    // they must never be modified
 
     /**
      * The key/value list for this primitive.
@@ -485,7 +488,7 @@ public abstract class AbstractPrimitive implements IPrimitive {
             newKeys[index++] = entry.getKey();
             newKeys[index++] = entry.getValue();
         }
-        this.keys = newKeys;
+        this.keys = TagArrayPool.intern(newKeys);
         keysChangedImpl(originalKeys);
     }
 
@@ -506,12 +509,14 @@ public abstract class AbstractPrimitive implements IPrimitive {
         else if (value == null) {
             remove(key);
         } else if (keys == null){
-            keys = new String[] {key, value};
+            keys = TagArrayPool.intern(new String[] {key, value});
             keysChangedImpl(originalKeys);
         } else {
             for (int i=0; i<keys.length;i+=2) {
                 if (keys[i].equals(key)) {
-                    keys[i+1] = value;  // This modifies the keys array but it doesn't make it invalidate for any time so its ok (see note no top)
+                    String[] newKeys = keys.clone(); // the array might be shared, see note on top
+                    newKeys[i+1] = value;
+                    keys = TagArrayPool.intern(newKeys);
                     keysChangedImpl(originalKeys);
                     return;
                 }
@@ -523,7 +528,7 @@ public abstract class AbstractPrimitive implements IPrimitive {
             }
             newKeys[keys.length] = key;
             newKeys[keys.length + 1] = value;
-            keys = newKeys;
+            keys = TagArrayPool.intern(newKeys);
             keysChangedImpl(originalKeys);
         }
     }
@@ -552,7 +557,7 @@ public abstract class AbstractPrimitive implements IPrimitive {
                 newKeys[j++] = keys[i+1];
             }
         }
-        keys = newKeys;
+        keys = TagArrayPool.intern(newKeys);
         keysChangedImpl(originalKeys);
     }
 
@@ -612,6 +617,21 @@ public abstract class AbstractPrimitive implements IPrimitive {
         return result;
     }
 
+    /**
+     * Calls the visitor for every key/value pair of this primitive. Unlike {@link #getKeys()},
+     * no map is created.
+     *
+     * @param visitor the visitor
+     */
+    public void visitKeys(KeyValueVisitor visitor) {
+        String[] keys = this.keys;
+        if (keys != null) {
+            for (int i=0; i<keys.length; i+=2) {
+                visitor.visitKeyValue(this, keys[i], keys[i + 1]);
+            }
+        }
+    }
+
     /**
      * Replies true, if the map of key/value pairs of this primitive is not empty.
      *
@@ -649,7 +669,9 @@ public abstract class AbstractPrimitive implements IPrimitive {
         // We cannot directly use Arrays.equals(keys, other.keys) as keys is not ordered by key
         // but we can at least check if both arrays are null or of the same size before creating 
         // and comparing the key maps (costly operation, see #7159)
-        return (keys == null && other.keys == null) 
+        // Pooled arrays (see TagArrayPool) allow to detect the common case of identical tags by identity
+        return keys == other.keys
+            || (keys == null && other.keys == null) 
             || (keys != null && other.keys != null && keys.length == other.keys.length && (keys.length == 0 || getKeys().equals(other.getKeys())));
     }
 
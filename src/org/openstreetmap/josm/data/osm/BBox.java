@@ -135,6 +135,13 @@ public class BBox {
         return false;
     }
 
+    /**
+     * Tests, weather the point (x, y) lies within the bbox.
+     */
+    public boolean bounds(double x, double y) {
+        return xmin <= x && xmax >= x && ymin <= y && ymax >= y;
+    }
+
     /**
      * Tests, weather two BBoxes intersect as an area.
      * I.e. whether there exists a point that lies in both of them.
@@ -38,6 +38,7 @@ import org.openstreetmap.josm.data.projection.Projection;
 import org.openstreetmap.josm.data.projection.ProjectionChangeListener;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.gui.tagging.ac.AutoCompletionManager;
+import org.openstreetmap.josm.tools.Consumer;
 import org.openstreetmap.josm.tools.FilteredCollection;
 import org.openstreetmap.josm.tools.Predicate;
 import org.openstreetmap.josm.tools.SubclassFilteredCollection;
@@ -114,6 +115,8 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
     private Storage<OsmPrimitive> allPrimitives = new Storage<OsmPrimitive>(new IdHash(), true);
     private Map<PrimitiveId, OsmPrimitive> primitivesMap = allPrimitives.foreignKey(new IdHash());
     private CopyOnWriteArrayList<DataSetListener> listeners = new CopyOnWriteArrayList<DataSetListener>();
+    /** whether {@link NodeMovedEvent}s carry the area covered before the move */
+    private volatile boolean oldBBoxesNeeded;
 
     // provide means to highlight map elements that are not osm primitives
     private Collection<WaySegment> highlightedVirtualNodes = new LinkedList<WaySegment>();
@@ -125,6 +128,8 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
     private final List<AbstractDatasetChangedEvent> cachedEvents = new ArrayList<AbstractDatasetChangedEvent>();
 
     private int highlightUpdateCount;
+    // The primitives whose highlighting changed last, indexed by highlightUpdateCount modulo the length
+    private final OsmPrimitive[] highlightChanges = new OsmPrimitive[256];
     
     private boolean uploadDiscouraged = false;
 
@@ -152,6 +157,36 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
         return highlightUpdateCount;
     }
 
+    /**
+     * Replies the primitives whose highlight state changed since {@link #getHighlightUpdateCount()}
+     * returned <code>since</code>. Changes of highlighted virtual nodes and way segments are reported
+     * as changes of their ways.
+     *
+     * @param since an earlier value of {@link #getHighlightUpdateCount()}
+     * @return the changed primitives, null if there were too many changes to remember them
+     */
+    public Collection<OsmPrimitive> getHighlightChanges(int since) {
+        int count = highlightUpdateCount - since;
+        if (count < 0 || count > highlightChanges.length)
+            return null;
+        List<OsmPrimitive> result = new ArrayList<OsmPrimitive>(count);
+        for (int i = since; i != highlightUpdateCount; i++) {
+            result.add(highlightChanges[i & (highlightChanges.length - 1)]);
+        }
+        return result;
+    }
+
+    private void highlightChanged(OsmPrimitive primitive) {
+        highlightChanges[highlightUpdateCount & (highlightChanges.length - 1)] = primitive;
+        highlightUpdateCount++;
+    }
+
+    private void highlightChanged(Collection<WaySegment> waySegments) {
+        for (WaySegment ws : waySegments) {
+            highlightChanged(ws.way);
+        }
+    }
+
     /**
      * History of selections - shared by plugins and SelectionListDialog
      */
@@ -258,6 +293,19 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
         }
     }
 
+    /**
+     * Passes all nodes intersecting <code>bbox</code> to <code>consumer</code> without collecting
+     * them in a list first. The read lock is held while the consumer is called.
+     */
+    public void searchNodes(BBox bbox, Consumer<? super Node> consumer) {
+        lock.readLock().lock();
+        try {
+            nodes.search(bbox, consumer);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     /**
      * All ways (Streets etc.) in the DataSet.
      *
@@ -283,6 +331,19 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
         }
     }
 
+    /**
+     * Passes all ways intersecting <code>bbox</code> to <code>consumer</code> without collecting
+     * them in a list first. The read lock is held while the consumer is called.
+     */
+    public void searchWays(BBox bbox, Consumer<? super Way> consumer) {
+        lock.readLock().lock();
+        try {
+            ways.search(bbox, consumer);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     /**
      * All relations/relationships
      */
@@ -563,9 +624,10 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
         if(highlightedVirtualNodes.isEmpty() && waySegments.isEmpty())
             return;
 
-        highlightedVirtualNodes = waySegments;
         // can't use fireHighlightingChanged because it requires an OsmPrimitive
-        highlightUpdateCount++;
+        highlightChanged(highlightedVirtualNodes);
+        highlightChanged(waySegments);
+        highlightedVirtualNodes = waySegments;
     }
 
     /**
@@ -576,9 +638,10 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
         if(highlightedWaySegments.isEmpty() && waySegments.isEmpty())
             return;
 
-        highlightedWaySegments = waySegments;
         // can't use fireHighlightingChanged because it requires an OsmPrimitive
-        highlightUpdateCount++;
+        highlightChanged(highlightedWaySegments);
+        highlightChanged(waySegments);
+        highlightedWaySegments = waySegments;
     }
 
     /**
@@ -949,6 +1012,17 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
         listeners.remove(dsl);
     }
 
+    /**
+     * Sets whether {@link NodeMovedEvent#getOldBBox()} is computed. This visits all ways of
+     * the node on each move, so it is only done while a listener needs it, like the paint
+     * cache of a layer.
+     *
+     * @param needed true if the area covered before a node move is needed
+     */
+    public void setOldBBoxesNeeded(boolean needed) {
+        oldBBoxesNeeded = needed;
+    }
+
     /**
      * Can be called before bigger changes on dataset. Events are disabled until {@link #endUpdate()}.
      * {@link DataSetListener#dataChanged()} event is triggered after end of changes
@@ -1003,6 +1077,38 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
             throw new AssertionError("endUpdate called without beginUpdate");
     }
 
+    /**
+     * Switches the spatial index of nodes and ways to bulk load mode. Primitives added
+     * afterwards are indexed in a single pass when {@link #endBulkLoad()} is called, which is
+     * a lot faster than indexing them one by one when a large file is loaded.
+     *
+     * Must only be called between {@link #beginUpdate()} and {@link #endUpdate()}, sample usage:
+     * <pre>
+     * ds.beginUpdate();
+     * try {
+     *   ds.beginBulkLoad();
+     *   // .. add primitives
+     * } finally {
+     *   ds.endBulkLoad();
+     *   ds.endUpdate();
+     * }
+     * </pre>
+     */
+    public void beginBulkLoad() {
+        nodes.beginBulkLoad();
+        ways.beginBulkLoad();
+    }
+
+    /**
+     * Indexes all primitives added since {@link #beginBulkLoad()} and switches the spatial
+     * index back to incremental updates.
+     * @see DataSet#beginBulkLoad()
+     */
+    public void endBulkLoad() {
+        nodes.endBulkLoad();
+        ways.endBulkLoad();
+    }
+
     private void fireEventToListeners(AbstractDatasetChangedEvent event) {
         for (DataSetListener listener: listeners) {
             event.fire(listener);
@@ -1035,13 +1141,24 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
     }
 
     void fireNodeMoved(Node node, LatLon newCoor, EastNorth eastNorth) {
+        BBox before = null;
+        // the event is dropped when too many events are pending
+        if (oldBBoxesNeeded && cachedEvents.size() < MAX_EVENTS && node.getCoor() != null) {
+            before = node.getBBox();
+            for (OsmPrimitive primitive: node.getReferrers()) {
+                if (primitive instanceof Way) {
+                    before.add(primitive.getBBox());
+                }
+            }
+        }
         reindexNode(node, newCoor, eastNorth);
-        fireEvent(new NodeMovedEvent(this, node));
+        fireEvent(new NodeMovedEvent(this, node, before));
     }
 
     void fireWayNodesChanged(Way way) {
+        BBox before = way.getBBox();
         reindexWay(way);
-        fireEvent(new WayNodesChangedEvent(this, way));
+        fireEvent(new WayNodesChangedEvent(this, way, before));
     }
 
     void fireChangesetIdChanged(OsmPrimitive primitive, int oldChangesetId, int newChangesetId) {
@@ -1049,7 +1166,7 @@ public class DataSet implements Cloneable, ProjectionChangeListener {
     }
 
     void fireHighlightingChanged(OsmPrimitive primitive) {
-        highlightUpdateCount++;
+        highlightChanged(primitive);
     }
 
     /**
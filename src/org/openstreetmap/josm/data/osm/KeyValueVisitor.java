@@ -0,0 +1,11 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.osm;
+
+/**
+ * Visitor for the key/value pairs of a primitive.
+ *
+ * @see AbstractPrimitive#visitKeys(KeyValueVisitor)
+ */
+public interface KeyValueVisitor {
+    void visitKeyValue(AbstractPrimitive primitive, String key, String value);
+}
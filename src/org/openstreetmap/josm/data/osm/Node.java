@@ -288,6 +288,14 @@ public final class Node extends OsmPrimitive implements INode {
         return new BBox(this);
     }
 
+    @Override
+    boolean intersects(BBox bbox) {
+        // Nodes with unknown coordinates have an empty bbox at 0,0, see BBox(Node)
+        if (!isLatLonKnown())
+            return bbox.bounds(0, 0);
+        return bbox.bounds(lon, lat);
+    }
+
     @Override
     public void updatePosition() {
     }
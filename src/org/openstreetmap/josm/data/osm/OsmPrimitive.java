@@ -1048,6 +1048,15 @@ abstract public class OsmPrimitive extends AbstractPrimitive implements Comparab
 
     public abstract BBox getBBox();
 
+    /**
+     * Tests whether the bbox of this primitive intersects <code>bbox</code>. Same as
+     * <code>getBBox().intersects(bbox)</code>, but subclasses avoid creating a new BBox
+     * where possible, as this is called for every primitive during spatial searches.
+     */
+    boolean intersects(BBox bbox) {
+        return getBBox().intersects(bbox);
+    }
+
     /**
      * Called by Dataset to update cached position information of primitive (bbox, cached EarthNorth, ...)
      */
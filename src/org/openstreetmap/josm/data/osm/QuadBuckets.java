@@ -10,6 +10,7 @@ import java.util.List;
 
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.coor.QuadTiling;
+import org.openstreetmap.josm.tools.Consumer;
 
 /**
  * Note: bbox of primitives added to QuadBuckets has to stay the same. In case of coordinate change, primitive must
@@ -95,6 +96,25 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
             }
         }
 
+        /*
+         * Returns the child at the given index without creating it,
+         * so the tree can be walked without allocating anything.
+         */
+        private QBLevel getExistingChild(int index) {
+            switch (index) {
+            case NE_INDEX:
+                return ne;
+            case NW_INDEX:
+                return nw;
+            case SE_INDEX:
+                return se;
+            case SW_INDEX:
+                return sw;
+            default:
+                return null;
+            }
+        }
+
         private QBLevel[] getChildren() {
             // This is ugly and hackish.  But, it seems to work,
             // and using an ArrayList here seems to cost us
@@ -249,11 +269,9 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
         }
         boolean matches(T o, BBox search_bbox)
         {
-            // This can be optimized when o is a node
-            //return search_bbox.bounds(coor));
-            return o.getBBox().intersects(search_bbox);
+            return o.intersects(search_bbox);
         }
-        private void search_contents(BBox search_bbox, List<T> result)
+        private void search_contents(BBox search_bbox, Consumer<? super T> result)
         {
             /*if (debug) {
                 out("searching contents (size: " + content == null?"<null>":content.size() + ") for " + search_bbox);
@@ -265,9 +283,11 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
             if (content == null)
                 return;
 
-            for (T o : content) {
+            // Plain loop, avoids allocating an iterator for every bucket
+            for (int i = 0, n = content.size(); i < n; i++) {
+                T o = content.get(i);
                 if (matches(o, search_bbox)) {
-                    result.add(o);
+                    result.accept(o);
                 }
             }
             /*if (debug) {
@@ -289,32 +309,13 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
 
         QBLevel next_sibling()
         {
-            boolean found_me = false;
             if (parent == null)
                 return null;
-            int __nr = 0;
-            for (QBLevel sibling : parent.getChildren()) {
-                __nr++;
-                int nr = __nr-1;
-                if (sibling == null) {
-                    /*if (debug) {
-                        out("[" + this.level + "] null child nr: " + nr);
-                    }*/
-                    continue;
-                }
-                // We're looking for the *next* child
-                // after us.
-                if (sibling == this) {
-                    /*if (debug) {
-                        out("[" + this.level + "] I was child nr: " + nr);
-                    }*/
-                    found_me = true;
-                    continue;
-                }
-                if (found_me)
-                    /*if (debug) {
-                        out("[" + this.level + "] next sibling was child nr: " + nr);
-                    }*/
+            // We're looking for the *next* child after us.
+            int i = parent.index_of(this) + 1;
+            for (; i < QuadTiling.TILES_PER_LEVEL; i++) {
+                QBLevel sibling = parent.getExistingChild(i);
+                if (sibling != null)
                     return sibling;
             }
             return null;
@@ -345,15 +346,12 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
         }
         QBLevel firstChild()
         {
-            QBLevel ret = null;
-            for (QBLevel child : getChildren()) {
-                if (child == null) {
-                    continue;
-                }
-                ret = child;
-                break;
+            for (int i = 0; i < QuadTiling.TILES_PER_LEVEL; i++) {
+                QBLevel child = getExistingChild(i);
+                if (child != null)
+                    return child;
             }
-            return ret;
+            return null;
         }
         QBLevel nextNode()
         {
@@ -395,43 +393,95 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
             findBucket(o.getBBox()).doAdd(o);
         }
 
-        private void search(BBox search_bbox, List<T> result)
-        {
-            /*if (debug) {
-                System.out.print("[" + level + "] qb bbox: " + this.bbox() + " ");
-            }*/
-            if (!this.bbox().intersects(search_bbox))
-                /*if (debug) {
-                    out("miss " + Long.toHexString(this.quad));
-                    //QuadTiling.tile2xy(this.quad);
-                }*/
+        /*
+         * Adds a batch of objects that all fit into this level. Instead of
+         * inserting them one by one (and splitting the same buckets over
+         * and over again), the objects are partitioned top-down by their
+         * child index, so every QBLevel is created and filled only once.
+         * The resulting tree has the same shape as if the objects were
+         * added by doAdd(), so findBucket() finds them again.
+         */
+        void bulkAdd(List<T> objects) {
+            if (isLeaf()) {
+                int total = objects.size() + (content == null ? 0 : content.size());
+                if (total <= MAX_OBJECTS_PER_LEVEL || level >= QuadTiling.NR_LEVELS) {
+                    if (content == null) {
+                        content = new ArrayList<T>(objects);
+                    } else {
+                        content.addAll(objects);
+                    }
+                    return;
+                }
+                if (content != null) {
+                    List<T> merged = new ArrayList<T>(total);
+                    merged.addAll(content);
+                    merged.addAll(objects);
+                    objects = merged;
+                    content = null;
+                }
+                isLeaf = false;
+            } else if (!hasChildren()) {
+                // findBucket() stops at a branch without children, keep the objects here
+                for (T o : objects) {
+                    __add_content(o);
+                }
                 return;
-            else if (bbox().bounds(search_bbox)) {
-                search_cache = this;
-            }
-
-            if (this.hasContent()) {
-                search_contents(search_bbox, result);
             }
 
-            /*if (debug) {
-                out("hit " + this.quads());
-                out("[" + level + "] not leaf, moving down");
-            }*/
-
-            //TODO Coincidence vector should be calculated here and only buckets that match search_bbox should be checked
-
-            if (nw != null) {
-                nw.search(search_bbox, result);
-            }
-            if (ne != null) {
-                ne.search(search_bbox, result);
+            @SuppressWarnings("unchecked")
+            List<T>[] childObjects = new List[QuadTiling.TILES_PER_LEVEL];
+            for (T o : objects) {
+                int index = get_index(o.getBBox(), level);
+                if (index == -1) {
+                    __add_content(o);
+                } else {
+                    if (childObjects[index] == null) {
+                        childObjects[index] = new ArrayList<T>();
+                    }
+                    childObjects[index].add(o);
+                }
             }
-            if (se != null) {
-                se.search(search_bbox, result);
+            for (int i = 0; i < QuadTiling.TILES_PER_LEVEL; i++) {
+                if (childObjects[i] != null) {
+                    getChild(i).bulkAdd(childObjects[i]);
+                }
             }
-            if (sw != null) {
-                sw.search(search_bbox, result);
+        }
+
+        /*
+         * Walks the subtree below this level without recursion. The parent
+         * links are used to get back up, so nothing is allocated per visited
+         * node.
+         */
+        private void search(BBox search_bbox, Consumer<? super T> result)
+        {
+            QBLevel node = this;
+            while (true) {
+                if (node.bbox().intersects(search_bbox)) {
+                    if (node.bbox().bounds(search_bbox)) {
+                        search_cache = node;
+                    }
+                    if (node.hasContent()) {
+                        node.search_contents(search_bbox, result);
+                    }
+                    QBLevel child = node.firstChild();
+                    if (child != null) {
+                        node = child;
+                        continue;
+                    }
+                }
+                // Move on to the next sibling, walking back up as far as this level
+                QBLevel next = null;
+                while (node != this) {
+                    next = node.next_sibling();
+                    if (next != null) {
+                        break;
+                    }
+                    node = node.parent;
+                }
+                if (next == null)
+                    return;
+                node = next;
             }
         }
         public String quads()
@@ -440,9 +490,8 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
         }
         int index_of(QBLevel find_this)
         {
-            QBLevel[] children = getChildren();
             for (int i = 0; i < QuadTiling.TILES_PER_LEVEL; i++) {
-                if (children[i] == find_this)
+                if (getExistingChild(i) == find_this)
                     return i;
             }
             return -1;
@@ -500,8 +549,13 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
     }
 
     private QBLevel root;
-    private QBLevel search_cache;
+    private volatile QBLevel search_cache;
     private int size;
+    /*
+     * Objects added while in bulk load mode, not yet in the tree.
+     * null when not in bulk load mode.
+     */
+    private List<T> bulkPending;
 
     public QuadBuckets()
     {
@@ -511,17 +565,55 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
         root = new QBLevel();
         search_cache = null;
         size = 0;
+        if (bulkPending != null) {
+            bulkPending.clear();
+        }
         /*if (debug) {
             out("QuadBuckets() cleared: " + this);
             out("root: " + root + " level: " + root.level + " bbox: " + root.bbox());
         }*/
     }
     public boolean add(T n) {
-        root.add(n);
+        if (bulkPending != null) {
+            bulkPending.add(n);
+        } else {
+            root.add(n);
+        }
         size++;
         return true;
     }
 
+    /**
+     * Switches to bulk load mode. Objects added from now on are only collected
+     * and inserted into the tree in one pass by {@link #endBulkLoad()}, which avoids
+     * the repeated splitting of buckets when millions of objects are loaded.
+     *
+     * Any other operation (search, remove, iteration, ...) in bulk load mode inserts
+     * the collected objects first, so the collection stays consistent at all times.
+     */
+    public void beginBulkLoad() {
+        if (bulkPending == null) {
+            bulkPending = new ArrayList<T>();
+        }
+    }
+
+    /**
+     * Inserts all objects collected since {@link #beginBulkLoad()} and switches
+     * back to incremental updates.
+     */
+    public void endBulkLoad() {
+        flushBulkLoad();
+        bulkPending = null;
+    }
+
+    private void flushBulkLoad() {
+        if (bulkPending == null || bulkPending.isEmpty())
+            return;
+        search_cache = null;
+        root.bulkAdd(bulkPending);
+        bulkPending = new ArrayList<T>();
+    }
+
     public boolean retainAll(Collection<?> objects)
     {
         for (T o : this) {
@@ -559,6 +651,7 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
     }
     public boolean remove(Object o) {
         @SuppressWarnings("unchecked") T t = (T) o;
+        flushBulkLoad();
         search_cache = null; // Search cache might point to one of removed buckets
         QBLevel bucket = root.findBucket(t.getBBox());
         if (bucket.remove_content(t)) {
@@ -569,6 +662,7 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
     }
     public boolean contains(Object o) {
         @SuppressWarnings("unchecked") T t = (T) o;
+        flushBulkLoad();
         QBLevel bucket = root.findBucket(t.getBBox());
         return bucket != null && bucket.content != null && bucket.content.contains(t);
     }
@@ -687,6 +781,7 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
     }
     public Iterator<T> iterator()
     {
+        flushBulkLoad();
         return new QuadBucketIterator(this);
     }
     public int size() {
@@ -700,59 +795,69 @@ public class QuadBuckets<T extends OsmPrimitive> implements Collection<T>
         return false;
     }
     public List<T> search(BBox search_bbox) {
+        final List<T> ret = new ArrayList<T>();
+        search(search_bbox, new Consumer<T>() {
+            public void accept(T object) {
+                ret.add(object);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Passes all objects whose bbox intersects <code>search_bbox</code> to <code>consumer</code>.
+     * Unlike {@link #search(BBox)} no result list is created, which makes this variant suitable
+     * for code that is run very often, like painting.
+     */
+    public void search(BBox search_bbox, Consumer<? super T> consumer) {
         /*if (debug) {
             out("qb root search at " + search_bbox);
             out("root bbox: " + root.bbox());
         }*/
-        List<T> ret = new ArrayList<T>();
+        flushBulkLoad();
         // Doing this cuts down search cost on a real-life data
         // set by about 25%
         boolean cache_searches = true;
-        if (cache_searches) {
-            if (search_cache == null) {
-                search_cache = root;
-            }
-            // Walk back up the tree when the last
-            // search spot can not cover the current
-            // search
-            while (search_cache != null && !search_cache.bbox().bounds(search_bbox)) {
-                /*if (debug) {
-                    out("bbox: " + search_bbox);
-                    out("search_cache: " + search_cache + " level: " + search_cache.level);
-                    out("search_cache.bbox(): " + search_cache.bbox());
-                }*/
-                search_cache = search_cache.parent;
-                /*if (debug) {
-                    out("new search_cache: " + search_cache);
-                }*/
-            }
+        // The search cache is only a hint shared by all threads searching at the same time,
+        // the start of this search is kept in a local variable
+        QBLevel start = cache_searches ? search_cache : root;
+        if (start == null) {
+            start = root;
+        }
+        // Walk back up the tree when the last
+        // search spot can not cover the current
+        // search
+        while (start != null && !start.bbox().bounds(search_bbox)) {
+            /*if (debug) {
+                out("bbox: " + search_bbox);
+                out("search_cache: " + start + " level: " + start.level);
+                out("search_cache.bbox(): " + start.bbox());
+            }*/
+            start = start.parent;
+        }
 
-            if (search_cache == null) {
-                search_cache = root;
-                out("bbox: " + search_bbox + " is out of the world");
-            }
-        } else {
-            search_cache = root;
+        if (start == null) {
+            start = root;
+            out("bbox: " + search_bbox + " is out of the world");
         }
 
-        // Save parent because search_cache might change during search call
-        QBLevel tmp = search_cache.parent;
+        QBLevel tmp = start.parent;
 
-        search_cache.search(search_bbox, ret);
+        start.search(search_bbox, consumer);
 
         // A way that spans this bucket may be stored in one
         // of the nodes which is a parent of the search cache
         while (tmp != null) {
-            tmp.search_contents(search_bbox, ret);
+            tmp.search_contents(search_bbox, consumer);
             tmp = tmp.parent;
         }
         /*if (debug) {
             out("search of QuadBuckets for " + search_bbox + " ret len: " + ret.size());
         }*/
-        return ret;
     }
 
     public void printTree() {
+        flushBulkLoad();
         printTreeRecursive(root, 0);
     }
 
@@ -0,0 +1,137 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.osm;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Global pool of the key/value arrays of {@link AbstractPrimitive}s.
+ *
+ * Many primitives carry exactly the same tags (<code>highway=residential</code>,
+ * <code>building=yes</code>, ...). Primitives with equal tag arrays share a single array
+ * instance from this pool, and keys and values are interned strings. The pool only holds
+ * weak references, so arrays no longer used by any primitive are garbage collected.
+ *
+ * Shared arrays must never be modified, primitives replace their array instead
+ * (copy-on-write).
+ *
+ * Primitives are created by several threads at once (e.g. the workers of the readers), so
+ * the pool is split into stripes by the hash of the arrays, each with its own lock.
+ */
+final class TagArrayPool {
+
+    private static final class Entry extends WeakReference<String[]> {
+        final int hash;
+
+        Entry(String[] keys, int hash, ReferenceQueue<String[]> queue) {
+            super(keys, queue);
+            this.hash = hash;
+        }
+    }
+
+    private static final Hash<Entry, Entry> ENTRY_HASH = new Hash<Entry, Entry>() {
+        public int getHashCode(Entry e) {
+            return e.hash;
+        }
+
+        public boolean equals(Entry e1, Entry e2) {
+            if (e1 == e2)
+                return true;
+            String[] k1 = e1.get();
+            String[] k2 = e2.get();
+            return k1 != null && k2 != null && Arrays.equals(k1, k2);
+        }
+    };
+
+    private static final Hash<String[], Entry> KEYS_HASH = new Hash<String[], Entry>() {
+        public int getHashCode(String[] keys) {
+            return Arrays.hashCode(keys);
+        }
+
+        public boolean equals(String[] keys, Entry e) {
+            String[] k = e.get();
+            return k != null && Arrays.equals(keys, k);
+        }
+    };
+
+    /**
+     * A part of the pool, holding the arrays of some of the hash codes.
+     */
+    private static final class Stripe {
+        private final Storage<Entry> pool = new Storage<Entry>(ENTRY_HASH);
+        private final Map<String[], Entry> poolByKeys = pool.foreignKey(KEYS_HASH);
+        private final ReferenceQueue<String[]> queue = new ReferenceQueue<String[]>();
+
+        synchronized String[] intern(String[] keys, int hash) {
+            purge();
+            Entry entry = poolByKeys.get(keys);
+            if (entry != null) {
+                String[] pooled = entry.get();
+                if (pooled != null)
+                    return pooled;
+            }
+            for (int i=0; i<keys.length; i++) {
+                keys[i] = keys[i].intern();
+            }
+            pool.put(new Entry(keys, hash, queue));
+            return keys;
+        }
+
+        synchronized int size() {
+            purge();
+            return pool.size();
+        }
+
+        /*
+         * Removes the entries whose arrays have been garbage collected
+         */
+        private void purge() {
+            Reference<? extends String[]> ref;
+            while ((ref = queue.poll()) != null) {
+                pool.remove(ref);
+            }
+        }
+    }
+
+    /** The number of stripes, a power of two */
+    private static final int STRIPES = 16;
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    static {
+        for (int i=0; i<STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private TagArrayPool() {
+        // Hide default constructor for utils classes
+    }
+
+    /**
+     * Replies the pooled array equal to <code>keys</code>. If there is none yet, the strings
+     * of <code>keys</code> are interned and <code>keys</code> itself is added to the pool, so
+     * it must not be modified afterwards.
+     *
+     * @param keys the key/value array, can be null
+     * @return the shared array equal to <code>keys</code>, null if keys is null
+     */
+    static String[] intern(String[] keys) {
+        if (keys == null)
+            return null;
+        int hash = Arrays.hashCode(keys);
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)].intern(keys, hash);
+    }
+
+    /**
+     * Replies the number of distinct tag arrays in the pool.
+     */
+    static int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+}
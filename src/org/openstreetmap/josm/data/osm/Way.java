@@ -549,6 +549,13 @@ public final class Way extends OsmPrimitive implements IWay {
         return new BBox(bbox);
     }
 
+    @Override
+    boolean intersects(BBox b) {
+        if (getDataSet() == null || bbox == null)
+            return super.intersects(b);
+        return bbox.intersects(b);
+    }
+
     @Override
     public void updatePosition() {
         bbox = new BBox(this);
@@ -0,0 +1,23 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.osm.event;
+
+/**
+ * A {@link DataSetListener} which processes several events of the same type at once.
+ * <p>
+ * Register it with {@link DatasetEventManager.FireMode#IN_EDT_BATCHED}: consecutive
+ * node moves, tag changes, way node changes, relation member changes, additions
+ * and removals are then delivered as one {@link DatasetEventBatch} each. Only
+ * {@link DataChangedEvent}s without details and {@link #otherDatasetChange(AbstractDatasetChangedEvent)}
+ * events are still delivered through the single event methods.
+ *
+ * @see DatasetEventManager
+ */
+public interface DataSetBatchListener extends DataSetListener {
+
+    /**
+     * Called for a run of consecutive events of the same type and data set.
+     *
+     * @param batch the primitives of the events
+     */
+    void datasetChanged(DatasetEventBatch batch);
+}
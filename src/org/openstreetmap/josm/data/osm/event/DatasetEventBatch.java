@@ -0,0 +1,60 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.osm.event;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent.DatasetEventType;
+
+/**
+ * Consecutive events of the same type and data set, merged by {@link DatasetEventManager}
+ * for a {@link DataSetBatchListener}. Only the distinct primitives of the events are kept,
+ * not the events themselves.
+ */
+public class DatasetEventBatch {
+
+    private final DataSet dataSet;
+    private final DatasetEventType type;
+    private final OsmPrimitive[] primitives;
+    private final int eventCount;
+
+    public DatasetEventBatch(DataSet dataSet, DatasetEventType type, OsmPrimitive[] primitives, int eventCount) {
+        this.dataSet = dataSet;
+        this.type = type;
+        this.primitives = primitives;
+        this.eventCount = eventCount;
+    }
+
+    public DataSet getDataset() {
+        return dataSet;
+    }
+
+    /**
+     * Replies the type of the merged events, never {@link DatasetEventType#DATA_CHANGED}
+     * or {@link DatasetEventType#CHANGESET_ID_CHANGED}.
+     */
+    public DatasetEventType getType() {
+        return type;
+    }
+
+    /**
+     * Replies the primitives of all merged events, each one only once, in the order of the events.
+     */
+    public List<OsmPrimitive> getPrimitives() {
+        return Arrays.asList(primitives);
+    }
+
+    /**
+     * Replies the number of events merged into this batch.
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    @Override
+    public String toString() {
+        return type + " (" + eventCount + " events, " + primitives.length + " primitives)";
+    }
+}
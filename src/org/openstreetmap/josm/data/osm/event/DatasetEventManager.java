@@ -1,16 +1,28 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.data.osm.event;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent.DatasetEventType;
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
 import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter.Listener;
 import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
@@ -23,6 +35,7 @@ import org.openstreetmap.josm.gui.layer.OsmDataLayer;
  *
  * Events in EDT are supported, see {@link #addDatasetListener(DataSetListener, FireMode}
  *
+ * The time spent in each listener is recorded, see {@link #getListenerStatistics()}.
  */
 public class DatasetEventManager implements MapView.EditLayerChangeListener, Listener {
 
@@ -35,15 +48,84 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
          * Fire in event dispatch thread. If more than one event arrived when event queue is checked, merged them to
          * one event
          */
-        IN_EDT_CONSOLIDATED}
+        IN_EDT_CONSOLIDATED,
+        /**
+         * Fire in event dispatch thread. Consecutive events of the same type are merged to one
+         * {@link DatasetEventBatch}, the listener has to implement {@link DataSetBatchListener}
+         */
+        IN_EDT_BATCHED}
+
+    /**
+     * Delays the events fired in the event dispatch thread by this number of milliseconds, so that
+     * more events are merged for consolidating and batching listeners. 0 to fire them as soon as possible.
+     */
+    public static final IntegerProperty PROP_EDT_DELAY = new IntegerProperty("dataset.events.edt-delay", 0);
+    /**
+     * Print the listeners that take longer than {@link #PROP_SLOW_LISTENER} milliseconds for an event.
+     */
+    public static final BooleanProperty PROP_DEBUG = new BooleanProperty("debug.dataset.events", false);
+    public static final IntegerProperty PROP_SLOW_LISTENER = new IntegerProperty("debug.dataset.events.slow", 50);
 
     private static class ListenerInfo {
         final DataSetListener listener;
         final boolean consolidate;
+        final boolean batch;
 
-        public ListenerInfo(DataSetListener listener, boolean consolidate) {
+        /* delivery statistics, guarded by this */
+        int calls;
+        long events;
+        long nanos;
+        long maxNanos;
+
+        public ListenerInfo(DataSetListener listener, boolean consolidate, boolean batch) {
             this.listener = listener;
             this.consolidate = consolidate;
+            this.batch = batch;
+        }
+
+        public ListenerInfo(DataSetListener listener, boolean consolidate) {
+            this(listener, consolidate, false);
+        }
+
+        void fire(AbstractDatasetChangedEvent event) {
+            long start = System.nanoTime();
+            event.fire(listener);
+            int count = 1;
+            if (event instanceof DataChangedEvent && ((DataChangedEvent) event).getEvents() != null) {
+                count = ((DataChangedEvent) event).getEvents().size();
+            }
+            record(start, count, event);
+        }
+
+        void fire(DatasetEventBatch batch) {
+            long start = System.nanoTime();
+            ((DataSetBatchListener) listener).datasetChanged(batch);
+            record(start, batch.getEventCount(), batch);
+        }
+
+        private void record(long start, int count, Object event) {
+            long time = System.nanoTime() - start;
+            synchronized (this) {
+                calls++;
+                events += count;
+                nanos += time;
+                maxNanos = Math.max(maxNanos, time);
+            }
+            if (PROP_DEBUG.get() && time > PROP_SLOW_LISTENER.get() * 1000000L) {
+                System.out.println("DataSet listener " + listener.getClass().getName() + " took "
+                        + time / 1000000 + " ms for " + event);
+            }
+        }
+
+        synchronized ListenerStatistics getStatistics() {
+            return new ListenerStatistics(listener.getClass().getName(), calls, events, nanos, maxNanos);
+        }
+
+        synchronized void resetStatistics() {
+            calls = 0;
+            events = 0;
+            nanos = 0;
+            maxNanos = 0;
         }
 
         @Override
@@ -57,6 +139,55 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
         }
     }
 
+    /**
+     * The time spent by one listener to process the events delivered to it.
+     */
+    public static class ListenerStatistics {
+        private final String listener;
+        private final int calls;
+        private final long events;
+        private final long nanos;
+        private final long maxNanos;
+
+        public ListenerStatistics(String listener, int calls, long events, long nanos, long maxNanos) {
+            this.listener = listener;
+            this.calls = calls;
+            this.events = events;
+            this.nanos = nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /** Replies the class name of the listener */
+        public String getListener() {
+            return listener;
+        }
+
+        /** Replies the number of times the listener was called */
+        public int getCalls() {
+            return calls;
+        }
+
+        /** Replies the number of events delivered, consolidated and batched events count once per merged event */
+        public long getEvents() {
+            return events;
+        }
+
+        /** Replies the total processing time in milliseconds */
+        public double getTime() {
+            return nanos / 1000000.0;
+        }
+
+        /** Replies the longest processing time of one call in milliseconds */
+        public double getMaxTime() {
+            return maxNanos / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d calls, %d events, %.1f ms (max %.1f ms)", listener, calls, events, getTime(), getMaxTime());
+        }
+    }
+
     public static DatasetEventManager getInstance() {
         return instance;
     }
@@ -65,6 +196,8 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
     private final CopyOnWriteArrayList<ListenerInfo> inEDTListeners = new CopyOnWriteArrayList<ListenerInfo>();
     private final CopyOnWriteArrayList<ListenerInfo> normalListeners = new CopyOnWriteArrayList<ListenerInfo>();
     private final DataSetListener myListener = new DataSetListenerAdapter(this);
+    /** Whether the events in eventsInEDT are already scheduled to be fired */
+    private final AtomicBoolean edtScheduled = new AtomicBoolean();
 
     public DatasetEventManager() {
         MapView.addEditLayerChangeListener(this);
@@ -75,9 +208,15 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
      * @param listener
      * @param fireInEDT If true, listener will be notified in event dispatch thread
      * instead of thread that caused the dataset change
+     * @throws IllegalArgumentException if fireMode is {@link FireMode#IN_EDT_BATCHED} and listener
+     * is no {@link DataSetBatchListener}
      */
-    public void addDatasetListener(DataSetListener listener, FireMode fireMode) {
-        if (fireMode == FireMode.IN_EDT || fireMode == FireMode.IN_EDT_CONSOLIDATED) {
+    public void addDatasetListener(DataSetListener listener, FireMode fireMode) throws IllegalArgumentException {
+        if (fireMode == FireMode.IN_EDT_BATCHED) {
+            if (!(listener instanceof DataSetBatchListener))
+                throw new IllegalArgumentException("Batched events require a DataSetBatchListener");
+            inEDTListeners.addIfAbsent(new ListenerInfo(listener, false, true));
+        } else if (fireMode == FireMode.IN_EDT || fireMode == FireMode.IN_EDT_CONSOLIDATED) {
             inEDTListeners.addIfAbsent(new ListenerInfo(listener, fireMode == FireMode.IN_EDT_CONSOLIDATED));
         } else {
             normalListeners.addIfAbsent(new ListenerInfo(listener, false));
@@ -90,6 +229,35 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
         normalListeners.remove(searchListener);
     }
 
+    /**
+     * Replies the time spent by each registered listener since it was registered or
+     * since {@link #resetListenerStatistics()}, slowest listener first.
+     */
+    public List<ListenerStatistics> getListenerStatistics() {
+        List<ListenerStatistics> result = new ArrayList<ListenerStatistics>();
+        for (ListenerInfo info : normalListeners) {
+            result.add(info.getStatistics());
+        }
+        for (ListenerInfo info : inEDTListeners) {
+            result.add(info.getStatistics());
+        }
+        Collections.sort(result, new Comparator<ListenerStatistics>() {
+            public int compare(ListenerStatistics a, ListenerStatistics b) {
+                return Double.compare(b.getTime(), a.getTime());
+            }
+        });
+        return result;
+    }
+
+    public void resetListenerStatistics() {
+        for (ListenerInfo info : normalListeners) {
+            info.resetStatistics();
+        }
+        for (ListenerInfo info : inEDTListeners) {
+            info.resetStatistics();
+        }
+    }
+
     public void editLayerChanged(OsmDataLayer oldLayer, OsmDataLayer newLayer) {
         if (oldLayer != null) {
             oldLayer.data.removeDataSetListener(myListener);
@@ -105,8 +273,8 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
 
     private void fireEvents(List<ListenerInfo> listeners, AbstractDatasetChangedEvent event) {
         for (ListenerInfo listener: listeners) {
-            if (!listener.consolidate) {
-                event.fire(listener.listener);
+            if (!listener.consolidate && !listener.batch) {
+                listener.fire(event);
             }
         }
     }
@@ -114,7 +282,23 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
     private void fireConsolidatedEvents(List<ListenerInfo> listeners, AbstractDatasetChangedEvent event) {
         for (ListenerInfo listener: listeners) {
             if (listener.consolidate) {
-                event.fire(listener.listener);
+                listener.fire(event);
+            }
+        }
+    }
+
+    private void fireBatchEvents(List<ListenerInfo> listeners, AbstractDatasetChangedEvent event) {
+        for (ListenerInfo listener: listeners) {
+            if (listener.batch) {
+                listener.fire(event);
+            }
+        }
+    }
+
+    private void fireBatch(List<ListenerInfo> listeners, DatasetEventBatch batch) {
+        for (ListenerInfo listener: listeners) {
+            if (listener.batch) {
+                listener.fire(batch);
             }
         }
     }
@@ -122,11 +306,72 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
     public void processDatasetEvent(AbstractDatasetChangedEvent event) {
         fireEvents(normalListeners, event);
         eventsInEDT.add(event);
-        SwingUtilities.invokeLater(edtRunnable);
+        if (edtScheduled.compareAndSet(false, true)) {
+            int delay = PROP_EDT_DELAY.get();
+            if (delay > 0) {
+                Timer timer = new Timer(delay, new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        edtRunnable.run();
+                    }
+                });
+                timer.setRepeats(false);
+                timer.start();
+            } else {
+                SwingUtilities.invokeLater(edtRunnable);
+            }
+        }
+    }
+
+    /**
+     * Merges consecutive events of the same type and data set for the batch listeners.
+     */
+    private class BatchBuilder {
+        private DataSet dataSet;
+        private DatasetEventType type;
+        private final Set<OsmPrimitive> primitives = new LinkedHashSet<OsmPrimitive>();
+        private int eventCount;
+
+        void add(AbstractDatasetChangedEvent event) {
+            if (event instanceof DataChangedEvent) {
+                List<AbstractDatasetChangedEvent> events = ((DataChangedEvent) event).getEvents();
+                if (events == null) {
+                    flush();
+                    fireBatchEvents(inEDTListeners, event);
+                } else {
+                    for (AbstractDatasetChangedEvent e : events) {
+                        add(e);
+                    }
+                }
+            } else if (event.getType() == DatasetEventType.CHANGESET_ID_CHANGED) {
+                flush();
+                fireBatchEvents(inEDTListeners, event);
+            } else {
+                if (event.getType() != type || event.getDataset() != dataSet) {
+                    flush();
+                    dataSet = event.getDataset();
+                    type = event.getType();
+                }
+                primitives.addAll(event.getPrimitives());
+                eventCount++;
+            }
+        }
+
+        void flush() {
+            if (eventCount > 0) {
+                fireBatch(inEDTListeners, new DatasetEventBatch(dataSet, type,
+                        primitives.toArray(new OsmPrimitive[primitives.size()]), eventCount));
+            }
+            dataSet = null;
+            type = null;
+            primitives.clear();
+            eventCount = 0;
+        }
     }
 
     private final Runnable edtRunnable = new Runnable() {
         public void run() {
+            edtScheduled.set(false);
+            BatchBuilder batchBuilder = new BatchBuilder();
             while (!eventsInEDT.isEmpty()) {
                 List<AbstractDatasetChangedEvent> events = new ArrayList<AbstractDatasetChangedEvent>();
                 events.addAll(eventsInEDT);
@@ -137,6 +382,7 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
 
                 while ((event = eventsInEDT.poll()) != null) {
                     fireEvents(inEDTListeners, event);
+                    batchBuilder.add(event);
 
                     // DataSet changed - fire consolidated event early
                     if (consolidatedEvent != null && dataSet != event.getDataset()) {
@@ -185,6 +431,7 @@ public class DatasetEventManager implements MapView.EditLayerChangeListener, Lis
 
                 // Fire consolidated event
                 fireConsolidatedEvents(inEDTListeners, consolidatedEvent);
+                batchBuilder.flush();
             }
         }
     };
@@ -4,6 +4,7 @@ package org.openstreetmap.josm.data.osm.event;
 import java.util.Collections;
 import java.util.List;
 
+import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
@@ -11,10 +12,19 @@ import org.openstreetmap.josm.data.osm.OsmPrimitive;
 public class NodeMovedEvent extends AbstractDatasetChangedEvent {
 
     private final Node node;
+    private final BBox oldBBox;
 
     public NodeMovedEvent(DataSet dataSet, Node node) {
+        this(dataSet, node, null);
+    }
+
+    /**
+     * @param oldBBox the area covered by the node and the ways using it before the move, may be null
+     */
+    public NodeMovedEvent(DataSet dataSet, Node node, BBox oldBBox) {
         super(dataSet);
         this.node = node;
+        this.oldBBox = oldBBox;
     }
 
     @Override
@@ -26,6 +36,16 @@ public class NodeMovedEvent extends AbstractDatasetChangedEvent {
         return node;
     }
 
+    /**
+     * Replies the area covered by the node and the ways using it before the node was moved.
+     * Used to repaint only the affected part of the map.
+     *
+     * @return the old bounding box, null if unknown
+     */
+    public BBox getOldBBox() {
+        return oldBBox;
+    }
+
     @Override
     public List<? extends OsmPrimitive> getPrimitives() {
         return Collections.singletonList(node);
@@ -52,8 +52,8 @@ public class SelectionEventManager implements SelectionChangedListener {
     }
 
     public void addSelectionListener(SelectionChangedListener listener, FireMode fireMode) {
-        if (fireMode == FireMode.IN_EDT)
-            throw new UnsupportedOperationException("IN_EDT mode not supported, you probably want to use IN_EDT_CONSOLIDATED.");
+        if (fireMode == FireMode.IN_EDT || fireMode == FireMode.IN_EDT_BATCHED)
+            throw new UnsupportedOperationException(fireMode + " mode not supported, you probably want to use IN_EDT_CONSOLIDATED.");
         if (fireMode == FireMode.IN_EDT || fireMode == FireMode.IN_EDT_CONSOLIDATED) {
             inEDTListeners.addIfAbsent(new ListenerInfo(listener, fireMode == FireMode.IN_EDT_CONSOLIDATED));
         } else {
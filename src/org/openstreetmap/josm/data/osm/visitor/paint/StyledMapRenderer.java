@@ -4,9 +4,16 @@ package org.openstreetmap.josm.data.osm.visitor.paint;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.data.Bounds;
@@ -24,6 +31,7 @@ import org.openstreetmap.josm.gui.mappaint.ElemStyles;
 import org.openstreetmap.josm.gui.mappaint.MapPaintStyles;
 import org.openstreetmap.josm.gui.mappaint.NodeElemStyle;
 import org.openstreetmap.josm.gui.mappaint.StyleCache.StyleList;
+import org.openstreetmap.josm.tools.Consumer;
 
 /**
  * <p>A map renderer which renders a map according to style rules in a set of style sheets.</p>
@@ -41,6 +49,35 @@ public class StyledMapRenderer extends AbstractMapRenderer{
     private static int FLAG_MEMBER_OF_SELECTED = 2;
     private static int FLAG_SELECTED = 4;
 
+    /**
+     * Minimal number of primitives per chunk, when the styles are computed in parallel.
+     */
+    private static final int MIN_CHUNK_SIZE = 500;
+
+    private static ExecutorService styleExecutor;
+    private static int styleExecutorThreads;
+
+    /**
+     * Returns the thread pool, that is used to compute the styles. It is
+     * shared by all renderers and recreated, when the number of threads changes.
+     */
+    private static synchronized ExecutorService getStyleExecutor(int threads) {
+        if (styleExecutor == null || styleExecutorThreads != threads) {
+            if (styleExecutor != null) {
+                styleExecutor.shutdown();
+            }
+            styleExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Map style worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            styleExecutorThreads = threads;
+        }
+        return styleExecutor;
+    }
+
     private static class StyleRecord implements Comparable<StyleRecord> {
         final ElemStyle style;
         final OsmPrimitive osm;
@@ -96,39 +133,122 @@ public class StyledMapRenderer extends AbstractMapRenderer{
         private final boolean drawMultipolygon;
         private final boolean drawRestriction;
 
+        private OsmPrimitive[] primitives;
+        private int[] primitiveFlags;
+        private int size;
+
         private final List<StyleRecord> styleElems;
 
         public StyleCollector(boolean drawArea, boolean drawMultipolygon, boolean drawRestriction) {
             this.drawArea = drawArea;
             this.drawMultipolygon = drawMultipolygon;
             this.drawRestriction = drawRestriction;
+            primitives = new OsmPrimitive[1024];
+            primitiveFlags = new int[1024];
             styleElems = new ArrayList<StyleRecord>();
         }
 
-        public void add(Node osm, int flags) {
+        /**
+         * Remember a primitive for drawing. The styles are computed later
+         * by {@link #computeStyles()}.
+         */
+        public void add(OsmPrimitive osm, int flags) {
+            if (size == primitives.length) {
+                primitives = Arrays.copyOf(primitives, 2 * size);
+                primitiveFlags = Arrays.copyOf(primitiveFlags, 2 * size);
+            }
+            primitives[size] = osm;
+            primitiveFlags[size] = flags;
+            size++;
+        }
+
+        /**
+         * Compute the styles of all collected primitives.
+         *
+         * For larger amounts of primitives, the work is split into chunks,
+         * which are processed by a thread pool and the calling thread. The
+         * results are merged in the original order, so the outcome does not
+         * depend on the number of threads.
+         */
+        public void computeStyles() {
+            int threads = Main.pref.getInteger("mappaint.threads", Runtime.getRuntime().availableProcessors());
+            int chunks = Math.min(4 * threads, size / MIN_CHUNK_SIZE);
+            if (threads <= 1 || chunks <= 1) {
+                computeStyles(0, size, styleElems);
+                return;
+            }
+            ExecutorService executor = getStyleExecutor(threads - 1);
+            List<Future<List<StyleRecord>>> results = new ArrayList<Future<List<StyleRecord>>>(chunks - 1);
+            for (int i = 1; i < chunks; i++) {
+                final int from = (int) ((long) size * i / chunks);
+                final int to = (int) ((long) size * (i + 1) / chunks);
+                results.add(executor.submit(new Callable<List<StyleRecord>>() {
+                    public List<StyleRecord> call() {
+                        List<StyleRecord> result = new ArrayList<StyleRecord>();
+                        computeStyles(from, to, result);
+                        return result;
+                    }
+                }));
+            }
+            computeStyles(0, size / chunks, styleElems);
+            try {
+                for (Future<List<StyleRecord>> result : results) {
+                    styleElems.addAll(result.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            } finally {
+                for (Future<List<StyleRecord>> result : results) {
+                    result.cancel(false);
+                }
+            }
+        }
+
+        private void computeStyles(int from, int to, List<StyleRecord> result) {
+            for (int i = from; i < to; i++) {
+                OsmPrimitive osm = primitives[i];
+                if (osm instanceof Node) {
+                    add((Node) osm, primitiveFlags[i], result);
+                } else if (osm instanceof Way) {
+                    add((Way) osm, primitiveFlags[i], result);
+                } else if (osm instanceof Relation) {
+                    add((Relation) osm, primitiveFlags[i], result);
+                }
+            }
+        }
+
+        private void add(Node osm, int flags, List<StyleRecord> result) {
             StyleList sl = styles.get(osm, circum, nc);
             for (ElemStyle s : sl) {
-                styleElems.add(new StyleRecord(s, osm, flags));
+                result.add(new StyleRecord(s, osm, flags));
             }
         }
 
-        public void add(Way osm, int flags) {
+        private void add(Way osm, int flags, List<StyleRecord> result) {
             StyleList sl = styles.get(osm, circum, nc);
             for (ElemStyle s : sl) {
                 if (!(drawArea && (flags & FLAG_DISABLED) == 0) && s instanceof AreaElemStyle) {
                     continue;
                 }
-                styleElems.add(new StyleRecord(s, osm, flags));
+                result.add(new StyleRecord(s, osm, flags));
             }
         }
 
-        public void add(Relation osm, int flags) {
+        private void add(Relation osm, int flags, List<StyleRecord> result) {
             StyleList sl = styles.get(osm, circum, nc);
             for (ElemStyle s : sl) {
                 if (drawMultipolygon && drawArea && s instanceof AreaElemStyle && (flags & FLAG_DISABLED) == 0) {
-                    styleElems.add(new StyleRecord(s, osm, flags));
+                    result.add(new StyleRecord(s, osm, flags));
                 } else if (drawRestriction && s instanceof NodeElemStyle) {
-                    styleElems.add(new StyleRecord(s, osm, flags));
+                    result.add(new StyleRecord(s, osm, flags));
                 }
             }
         }
@@ -154,36 +274,40 @@ public class StyledMapRenderer extends AbstractMapRenderer{
         super(g, nc, isInactiveMode);
     }
 
-    private void collectNodeStyles(DataSet data, StyleCollector sc, BBox bbox) {
-        for (final Node n: data.searchNodes(bbox)) {
-            if (n.isDrawable()) {
-                if (n.isDisabled()) {
-                    sc.add(n, FLAG_DISABLED);
-                } else if (data.isSelected(n)) {
-                    sc.add(n, FLAG_SELECTED);
-                } else if (n.isMemberOfSelected()) {
-                    sc.add(n, FLAG_MEMBER_OF_SELECTED);
-                } else {
-                    sc.add(n, FLAG_NORMAL);
+    private void collectNodeStyles(final DataSet data, final StyleCollector sc, BBox bbox) {
+        data.searchNodes(bbox, new Consumer<Node>() {
+            public void accept(Node n) {
+                if (n.isDrawable()) {
+                    if (n.isDisabled()) {
+                        sc.add(n, FLAG_DISABLED);
+                    } else if (data.isSelected(n)) {
+                        sc.add(n, FLAG_SELECTED);
+                    } else if (n.isMemberOfSelected()) {
+                        sc.add(n, FLAG_MEMBER_OF_SELECTED);
+                    } else {
+                        sc.add(n, FLAG_NORMAL);
+                    }
                 }
             }
-        }
+        });
     }
 
-    private void collectWayStyles(DataSet data, StyleCollector sc, BBox bbox) {
-        for (final Way w : data.searchWays(bbox)) {
-            if (w.isDrawable()) {
-                if (w.isDisabled()) {
-                    sc.add(w, FLAG_DISABLED);
-                } else if (data.isSelected(w)) {
-                    sc.add(w, FLAG_SELECTED);
-                } else if (w.isMemberOfSelected()) {
-                    sc.add(w, FLAG_MEMBER_OF_SELECTED);
-                } else {
-                    sc.add(w, FLAG_NORMAL);
+    private void collectWayStyles(final DataSet data, final StyleCollector sc, BBox bbox) {
+        data.searchWays(bbox, new Consumer<Way>() {
+            public void accept(Way w) {
+                if (w.isDrawable()) {
+                    if (w.isDisabled()) {
+                        sc.add(w, FLAG_DISABLED);
+                    } else if (data.isSelected(w)) {
+                        sc.add(w, FLAG_SELECTED);
+                    } else if (w.isMemberOfSelected()) {
+                        sc.add(w, FLAG_MEMBER_OF_SELECTED);
+                    } else {
+                        sc.add(w, FLAG_NORMAL);
+                    }
                 }
             }
-        }
+        });
     }
 
     private void collectRelationStyles(DataSet data, StyleCollector sc, BBox bbox) {
@@ -228,6 +352,7 @@ public class StyledMapRenderer extends AbstractMapRenderer{
         collectNodeStyles(data, sc, bbox);
         collectWayStyles(data, sc, bbox);
         collectRelationStyles(data, sc, bbox);
+        sc.computeStyles();
         //long phase1 = System.currentTimeMillis();
         sc.drawAll();
         sc = null;
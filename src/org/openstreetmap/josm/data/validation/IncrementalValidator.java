@@ -0,0 +1,365 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.data.validation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Keeps the validation errors of the edited primitives of a data set up to date.
+ * <p>
+ * The validator listens to the changes of the data set. On {@link #validate(ProgressMonitor)}
+ * the tests are only run again on the primitives changed since the last call and on their
+ * surroundings, instead of on the whole data set. The tests that check each primitive on its
+ * own (see {@link Test#isPartitionable()}) only visit the changed primitives, all other tests
+ * also visit the primitives found near them in the spatial index of the data set.
+ * <p>
+ * The errors of a test which compares primitives far apart from each other (e.g. nodes with
+ * the same name) are only found among the surroundings, just as when validating the modified
+ * primitives before an upload.
+ */
+public class IncrementalValidator implements DataSetListener {
+
+    /** Distance in degrees around changed primitives in which primitives are visited too */
+    public static final String PREF_MARGIN = "validator.incremental.margin";
+
+    private final DataSet ds;
+    private final Collection<Test> tests;
+    private final boolean beforeUpload;
+
+    /** The primitives changed since the last validation */
+    private Set<OsmPrimitive> changed = new HashSet<OsmPrimitive>();
+    /** The former bounding boxes of changed ways, to find nodes left without way */
+    private List<BBox> changedAreas = new ArrayList<BBox>();
+    /** The errors of all primitives changed since the validator was created */
+    private final List<TestError> errors = new ArrayList<TestError>();
+    /** Serializes the validations, the changes are recorded meanwhile under the lock of <code>this</code> */
+    private final ReentrantLock validationLock = new ReentrantLock();
+
+    /**
+     * Constructs a new validator. All primitives modified so far are checked on the first
+     * call of {@link #validate(ProgressMonitor)}.
+     *
+     * @param ds the data set to validate
+     * @param tests the tests to run
+     * @param beforeUpload whether the tests run just before an upload
+     */
+    public IncrementalValidator(DataSet ds, Collection<Test> tests, boolean beforeUpload) {
+        this.ds = ds;
+        this.tests = tests;
+        this.beforeUpload = beforeUpload;
+        ds.addDataSetListener(this);
+        synchronized (this) {
+            changed.addAll(ds.allModifiedPrimitives());
+        }
+    }
+
+    /**
+     * Stops listening to the changes of the data set.
+     */
+    public void dispose() {
+        ds.removeDataSetListener(this);
+    }
+
+    public DataSet getDataSet() {
+        return ds;
+    }
+
+    public Collection<Test> getTests() {
+        return tests;
+    }
+
+    /**
+     * Runs the tests on the primitives changed since the last call.
+     *
+     * @param progressMonitor the progress monitor, may be <code>null</code>
+     * @return the errors of all primitives changed since the validator was created
+     */
+    public List<TestError> validate(ProgressMonitor progressMonitor) {
+        validationLock.lock();
+        try {
+            return doValidate(progressMonitor);
+        } finally {
+            validationLock.unlock();
+        }
+    }
+
+    /**
+     * Runs the tests on the primitives changed since the last call, unless another
+     * validation is running. Used on the event dispatch thread, which must not wait.
+     *
+     * @param progressMonitor the progress monitor, may be <code>null</code>
+     * @return the errors of all primitives changed since the validator was created, or
+     * <code>null</code> if another validation is running
+     */
+    public List<TestError> tryValidate(ProgressMonitor progressMonitor) {
+        if (!validationLock.tryLock())
+            return null;
+        try {
+            return doValidate(progressMonitor);
+        } finally {
+            validationLock.unlock();
+        }
+    }
+
+    private List<TestError> doValidate(ProgressMonitor progressMonitor) {
+        Set<OsmPrimitive> changed;
+        List<BBox> changedAreas;
+        synchronized (this) {
+            changed = this.changed;
+            changedAreas = this.changedAreas;
+            this.changed = new HashSet<OsmPrimitive>();
+            this.changedAreas = new ArrayList<BBox>();
+            if (changed.isEmpty() && changedAreas.isEmpty())
+                return new ArrayList<TestError>(errors);
+        }
+
+        double margin = Main.pref.getDouble(PREF_MARGIN, 0.001);
+        List<OsmPrimitive> affected;
+        List<TestError> newErrors = new ArrayList<TestError>();
+        boolean completed = false;
+        // the tests read way nodes, referrers and the spatial index, which must not change meanwhile
+        ds.getReadLock().lock();
+        try {
+            Set<OsmPrimitive> affectedSet = getAffectedPrimitives(changed, changedAreas);
+            affected = sort(affectedSet);
+            Set<OsmPrimitive> surroundingSet = new HashSet<OsmPrimitive>(affectedSet);
+            for (OsmPrimitive p : affectedSet) {
+                if (p instanceof Relation || p.isIncomplete())
+                    continue;
+                if (p instanceof Node && (((Node) p).getCoor() == null || containedInAffectedWay((Node) p, affectedSet)))
+                    continue;
+                BBox box = new BBox(p.getBBox());
+                box.addPrimitive(p, margin);
+                surroundingSet.addAll(ds.searchNodes(box));
+                surroundingSet.addAll(ds.searchWays(box));
+            }
+            List<OsmPrimitive> surroundings = sort(surroundingSet);
+
+            List<Test> partitionable = new ArrayList<Test>();
+            List<Test> others = new ArrayList<Test>();
+            for (Test test : tests) {
+                (test.isPartitionable() ? partitionable : others).add(test);
+            }
+            if (!partitionable.isEmpty()) {
+                newErrors.addAll(createRunner(partitionable).run(affected, progressMonitor));
+            }
+            if (!others.isEmpty()) {
+                newErrors.addAll(createRunner(others).run(surroundings, progressMonitor));
+            }
+            completed = progressMonitor == null || !progressMonitor.isCanceled();
+        } finally {
+            ds.getReadLock().unlock();
+            if (!completed) {
+                // the errors of these changes are still to be found
+                synchronized (this) {
+                    this.changed.addAll(changed);
+                    this.changedAreas.addAll(changedAreas);
+                }
+            }
+        }
+        if (!completed) {
+            synchronized (this) {
+                return new ArrayList<TestError>(errors);
+            }
+        }
+
+        Set<OsmPrimitive> affectedSet = new HashSet<OsmPrimitive>(affected);
+        synchronized (this) {
+            for (Iterator<TestError> it = errors.iterator(); it.hasNext();) {
+                TestError error = it.next();
+                if (involves(error, affectedSet) || !isValid(error)) {
+                    it.remove();
+                }
+            }
+            for (TestError error : newErrors) {
+                if (involves(error, affectedSet)) {
+                    errors.add(error);
+                }
+            }
+            return new ArrayList<TestError>(errors);
+        }
+    }
+
+    /**
+     * Creates a runner for the tests, which runs them on the current thread holding the read lock.
+     */
+    private ValidationRunner createRunner(List<Test> tests) {
+        ValidationRunner runner = new ValidationRunner(tests, beforeUpload, true);
+        runner.setThreads(1);
+        return runner;
+    }
+
+    /**
+     * Returns the changed primitives and the primitives whose errors may depend on them.
+     */
+    private Set<OsmPrimitive> getAffectedPrimitives(Set<OsmPrimitive> changed, List<BBox> changedAreas) {
+        Set<OsmPrimitive> result = new HashSet<OsmPrimitive>();
+        for (OsmPrimitive p : changed) {
+            result.add(p);
+            if (p.getDataSet() != ds)
+                continue;
+            if (p instanceof Way) {
+                result.addAll(((Way) p).getNodes());
+            } else if (p instanceof Relation) {
+                result.addAll(((Relation) p).getMemberPrimitives());
+            }
+            for (OsmPrimitive referrer : p.getReferrers()) {
+                result.add(referrer);
+                if (referrer instanceof Way) {
+                    // e.g. multipolygons of a moved node
+                    result.addAll(referrer.getReferrers());
+                }
+            }
+        }
+        for (BBox box : changedAreas) {
+            for (Node n : ds.searchNodes(box)) {
+                if (n.getReferrers().isEmpty()) {
+                    result.add(n);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean containedInAffectedWay(Node n, Set<OsmPrimitive> affected) {
+        for (OsmPrimitive referrer : n.getReferrers()) {
+            if (referrer instanceof Way && affected.contains(referrer))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Orders the primitives as the tests expect them: nodes first, then ways and relations.
+     */
+    private static List<OsmPrimitive> sort(Collection<OsmPrimitive> primitives) {
+        List<OsmPrimitive> nodes = new ArrayList<OsmPrimitive>();
+        List<OsmPrimitive> ways = new ArrayList<OsmPrimitive>();
+        List<OsmPrimitive> relations = new ArrayList<OsmPrimitive>();
+        for (OsmPrimitive p : primitives) {
+            if (p instanceof Node) {
+                nodes.add(p);
+            } else if (p instanceof Way) {
+                ways.add(p);
+            } else {
+                relations.add(p);
+            }
+        }
+        nodes.addAll(ways);
+        nodes.addAll(relations);
+        return nodes;
+    }
+
+    private static boolean involves(TestError error, Set<OsmPrimitive> primitives) {
+        for (OsmPrimitive p : error.getPrimitives()) {
+            if (primitives.contains(p))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isValid(TestError error) {
+        for (OsmPrimitive p : error.getPrimitives()) {
+            if (p.getDataSet() != ds || p.isDeleted())
+                return false;
+        }
+        return true;
+    }
+
+    private synchronized void primitivesChanged(Collection<? extends OsmPrimitive> primitives) {
+        changed.addAll(primitives);
+    }
+
+    /* -------------------------------------------------------------------------- */
+    /* interface DataSetListener                                                  */
+    /* -------------------------------------------------------------------------- */
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        primitivesChanged(event.getPrimitives());
+    }
+
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        primitivesChanged(event.getPrimitives());
+        synchronized (this) {
+            for (OsmPrimitive p : event.getPrimitives()) {
+                if (p instanceof Way) {
+                    changed.addAll(((Way) p).getNodes());
+                } else if (p instanceof Relation) {
+                    changed.addAll(((Relation) p).getMemberPrimitives());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        primitivesChanged(event.getPrimitives());
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        primitivesChanged(event.getPrimitives());
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        primitivesChanged(event.getPrimitives());
+        BBox oldBBox = event.getOldBBox();
+        if (oldBBox != null) {
+            synchronized (this) {
+                changedAreas.add(oldBBox);
+            }
+        }
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+        primitivesChanged(event.getPrimitives());
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+    }
+
+    @Override
+    public void dataChanged(DataChangedEvent event) {
+        if (event.getEvents() != null) {
+            for (AbstractDatasetChangedEvent e : event.getEvents()) {
+                e.fire(this);
+            }
+        } else {
+            // the single changes are unknown, check everything that may have been edited
+            List<OsmPrimitive> primitives = new ArrayList<OsmPrimitive>(ds.allModifiedPrimitives());
+            synchronized (this) {
+                for (TestError error : errors) {
+                    primitives.addAll(error.getPrimitives());
+                }
+            }
+            primitivesChanged(primitives);
+        }
+    }
+}
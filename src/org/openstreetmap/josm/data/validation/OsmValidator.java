@@ -13,15 +13,22 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.actions.ValidateAction;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
 import org.openstreetmap.josm.data.projection.Epsg4326;
 import org.openstreetmap.josm.data.projection.Lambert;
 import org.openstreetmap.josm.data.projection.Mercator;
@@ -62,7 +69,7 @@ import org.openstreetmap.josm.gui.preferences.ValidatorPreference;
  *
  * @author Francisco R. Santos <frsantos@gmail.com>
  */
-public class OsmValidator implements LayerChangeListener {
+public class OsmValidator implements LayerChangeListener, DataSetListenerAdapter.Listener {
 
     public static ValidatorLayer errorLayer = null;
 
@@ -74,6 +81,15 @@ public class OsmValidator implements LayerChangeListener {
 
     public static final Collection<String> ignoredErrors = new TreeSet<String>();
 
+    /** The incremental validators running the tests enabled for the upload check, by data set */
+    private static final Map<DataSet, IncrementalValidator> uploadValidators = new HashMap<DataSet, IncrementalValidator>();
+
+    /** The incremental validators running the tests enabled on demand, by data set */
+    private static final Map<DataSet, IncrementalValidator> liveValidators = new HashMap<DataSet, IncrementalValidator>();
+
+    private final DataSetListenerAdapter liveValidationAdapter = new DataSetListenerAdapter(this);
+    private volatile boolean liveValidationScheduled;
+
     /**
      * All available tests
      * TODO: is there any way to find out automatically all available tests?
@@ -112,6 +128,7 @@ public class OsmValidator implements LayerChangeListener {
         initializeGridDetail();
         initializeTests(getTests());
         loadIgnoredErrors(); //FIXME: load only when needed
+        DatasetEventManager.getInstance().addDatasetListener(liveValidationAdapter, FireMode.IN_EDT_CONSOLIDATED);
     }
 
     /**
@@ -235,6 +252,65 @@ public class OsmValidator implements LayerChangeListener {
         return enabledTests;
     }
 
+    /**
+     * Returns the incremental validator of a data set, which is created on first use.
+     *
+     * @param ds the data set
+     * @param beforeUpload if true, the validator runs the tests enabled for the upload check,
+     * otherwise the tests enabled on demand
+     * @return the incremental validator
+     */
+    public static synchronized IncrementalValidator getIncrementalValidator(DataSet ds, boolean beforeUpload) {
+        Map<DataSet, IncrementalValidator> validators = beforeUpload ? uploadValidators : liveValidators;
+        IncrementalValidator validator = validators.get(ds);
+        if (validator == null) {
+            validator = new IncrementalValidator(ds, getEnabledTests(beforeUpload), beforeUpload);
+            validators.put(ds, validator);
+        }
+        return validator;
+    }
+
+    /**
+     * Drops all incremental validators, e.g. because the enabled tests have changed.
+     */
+    public static synchronized void resetIncrementalValidators() {
+        for (IncrementalValidator validator : uploadValidators.values()) {
+            validator.dispose();
+        }
+        for (IncrementalValidator validator : liveValidators.values()) {
+            validator.dispose();
+        }
+        uploadValidators.clear();
+        liveValidators.clear();
+    }
+
+    private static synchronized void removeIncrementalValidators(DataSet ds) {
+        IncrementalValidator validator = uploadValidators.remove(ds);
+        if (validator != null) {
+            validator.dispose();
+        }
+        validator = liveValidators.remove(ds);
+        if (validator != null) {
+            validator.dispose();
+        }
+    }
+
+    /**
+     * Marks the errors that are in the ignore list as ignored.
+     * @param errors the errors
+     */
+    public static void updateIgnoredState(Collection<TestError> errors) {
+        if (!Main.pref.getBoolean(ValidatorPreference.PREF_USE_IGNORE, true))
+            return;
+        for (TestError error : errors) {
+            for (String state : new String[] {error.getIgnoreState(), error.getIgnoreGroup(), error.getIgnoreSubGroup()}) {
+                if (state != null && hasIgnoredError(state)) {
+                    error.setIgnored(true);
+                }
+            }
+        }
+    }
+
     /**
      * Gets the list of all available test classes
      *
@@ -293,6 +369,9 @@ public class OsmValidator implements LayerChangeListener {
 
     @Override
     public void layerRemoved(Layer oldLayer) {
+        if (oldLayer instanceof OsmDataLayer) {
+            removeIncrementalValidators(((OsmDataLayer) oldLayer).data);
+        }
         if (oldLayer instanceof OsmDataLayer && Main.map.mapView.getActiveLayer() == oldLayer) {
             Main.map.validatorDialog.tree.setErrorList(new ArrayList<TestError>());
         }
@@ -306,4 +385,36 @@ public class OsmValidator implements LayerChangeListener {
             }
         }
     }
+
+    /* -------------------------------------------------------------------------- */
+    /* interface DataSetListenerAdapter.Listener                                  */
+    /* -------------------------------------------------------------------------- */
+    @Override
+    public void processDatasetEvent(AbstractDatasetChangedEvent event) {
+        if (!Main.pref.getBoolean(ValidatorPreference.PREF_LIVE, false) || liveValidationScheduled)
+            return;
+        final DataSet ds = event.getDataset();
+        if (ds == null)
+            return;
+        liveValidationScheduled = true;
+        Main.worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                // changes made from now on schedule another validation
+                liveValidationScheduled = false;
+                final List<TestError> errors = getIncrementalValidator(ds, false).validate(null);
+                updateIgnoredState(errors);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (Main.map == null || Main.main.getCurrentDataSet() != ds)
+                            return;
+                        initializeErrorLayer();
+                        Main.map.validatorDialog.tree.setErrors(errors);
+                        Main.map.mapView.repaint();
+                    }
+                });
+            }
+        });
+    }
 }
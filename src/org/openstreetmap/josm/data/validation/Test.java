@@ -219,6 +219,18 @@ public class Test extends AbstractVisitor
         return name;
     }
 
+    /**
+     * Returns true if this test checks each primitive on its own, without
+     * collecting data across primitives. The primitives of such a test may be
+     * split among several instances of the test class that run concurrently,
+     * see {@link ValidationRunner}.
+     *
+     * @return true if the test may be run on parts of the data
+     */
+    public boolean isPartitionable() {
+        return false;
+    }
+
     public boolean isCanceled() {
         return progressMonitor.isCanceled();
     }
@@ -0,0 +1,255 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.data.validation;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Runs a set of tests on a collection of primitives.
+ * <p>
+ * The tests run concurrently on <code>validator.threads</code> threads (by
+ * default one per processor). The primitives of tests that check each
+ * primitive on its own (see {@link Test#isPartitionable()}) are split in
+ * chunks, each checked by its own instance of the test. All other tests run
+ * on one instance, as they collect data across primitives. The errors are
+ * returned in the same order as if the tests were run one after another.
+ */
+public class ValidationRunner {
+
+    private static final int MIN_CHUNK_SIZE = 1000;
+
+    private final Collection<Test> tests;
+    private final boolean beforeUpload;
+    private final boolean partialSelection;
+    private volatile boolean canceled;
+    private volatile ProgressMonitor progressMonitor;
+    /** the number of threads, 0 for the <code>validator.threads</code> preference */
+    private int threads;
+
+    /**
+     * Constructor
+     * @param tests the tests to run
+     * @param beforeUpload whether the tests run just before an upload
+     * @param partialSelection whether the tests run on a partial data selection
+     */
+    public ValidationRunner(Collection<Test> tests, boolean beforeUpload, boolean partialSelection) {
+        this.tests = tests;
+        this.beforeUpload = beforeUpload;
+        this.partialSelection = partialSelection;
+    }
+
+    /**
+     * Stops the run, tests that have not been started yet are skipped.
+     * Running tests are notified through their progress monitor.
+     */
+    public void cancel() {
+        canceled = true;
+        ProgressMonitor progressMonitor = this.progressMonitor;
+        if (progressMonitor != null) {
+            progressMonitor.cancel();
+        }
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Sets the number of threads the tests run on. Callers holding the read lock of the data set
+     * must run the tests on their own thread (1), as other threads asking for the read lock
+     * would wait behind a thread waiting for the write lock.
+     *
+     * @param threads the number of threads, 0 for the <code>validator.threads</code> preference
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Runs the tests.
+     *
+     * @param selection the primitives to test
+     * @param progressMonitor the progress monitor, may be <code>null</code>
+     * @return the errors found by all tests
+     */
+    public List<TestError> run(Collection<OsmPrimitive> selection, ProgressMonitor progressMonitor) {
+        if (progressMonitor == null) {
+            progressMonitor = new CancelProgressMonitor(NullProgressMonitor.INSTANCE);
+        }
+        this.progressMonitor = progressMonitor;
+        if (canceled) {
+            progressMonitor.cancel();
+        }
+        progressMonitor.setTicksCount(tests.size() * selection.size());
+        for (Test test : tests) {
+            test.setBeforeUpload(beforeUpload);
+            test.setPartialSelection(partialSelection);
+        }
+        int threads = this.threads > 0 ? this.threads
+                : Main.pref.getInteger("validator.threads", Runtime.getRuntime().availableProcessors());
+        if (threads <= 1)
+            return runSerial(selection, progressMonitor);
+        return runParallel(new ArrayList<OsmPrimitive>(selection), progressMonitor, threads);
+    }
+
+    private List<TestError> runSerial(Collection<OsmPrimitive> selection, ProgressMonitor progressMonitor) {
+        List<TestError> errors = new ArrayList<TestError>(200);
+        int testCounter = 0;
+        for (Test test : tests) {
+            if (canceled || progressMonitor.isCanceled())
+                break;
+            testCounter++;
+            progressMonitor.setCustomText(tr("Test {0}/{1}: Starting {2}", testCounter, tests.size(), test.getName()));
+            test.startTest(progressMonitor.createSubTaskMonitor(selection.size(), false));
+            test.visit(selection);
+            test.endTest();
+            errors.addAll(test.getErrors());
+        }
+        return errors;
+    }
+
+    /**
+     * A progress monitor without display, which reports the cancellation of the run
+     * or of the parent monitor. It is given to the tests running in worker threads,
+     * as their progress is counted per part by the runner.
+     */
+    private class CancelProgressMonitor extends NullProgressMonitor {
+        private final ProgressMonitor parent;
+
+        CancelProgressMonitor(ProgressMonitor parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            parent.cancel();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled || parent.isCanceled();
+        }
+
+        @Override
+        public ProgressMonitor createSubTaskMonitor(int ticks, boolean internal) {
+            return this;
+        }
+    }
+
+    /**
+     * One test instance checking a part of the primitives.
+     */
+    private class TestPart implements Callable<List<TestError>> {
+        final Test test;
+        final List<OsmPrimitive> primitives;
+        final ProgressMonitor progressMonitor;
+        Future<List<TestError>> result;
+
+        TestPart(Test test, List<OsmPrimitive> primitives, ProgressMonitor progressMonitor) {
+            this.test = test;
+            this.primitives = primitives;
+            this.progressMonitor = progressMonitor;
+        }
+
+        @Override
+        public List<TestError> call() {
+            if (canceled || progressMonitor.isCanceled())
+                return new ArrayList<TestError>();
+            test.startTest(new CancelProgressMonitor(progressMonitor));
+            test.visit(primitives);
+            test.endTest();
+            synchronized (progressMonitor) {
+                progressMonitor.worked(primitives.size());
+            }
+            return test.getErrors();
+        }
+    }
+
+    private Test createPartTest(Test test) {
+        try {
+            Test result = test.getClass().newInstance();
+            result.enabled = test.enabled;
+            result.testBeforeUpload = test.testBeforeUpload;
+            result.setBeforeUpload(beforeUpload);
+            result.setPartialSelection(partialSelection);
+            return result;
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<TestError> runParallel(List<OsmPrimitive> selection, ProgressMonitor progressMonitor, int threads) {
+        int chunks = Math.max(1, Math.min(4 * threads, selection.size() / MIN_CHUNK_SIZE));
+        // the parts of each test in test order, the whole tests are submitted first as they take longest
+        List<List<TestPart>> parts = new ArrayList<List<TestPart>>(tests.size());
+        List<TestPart> wholeTests = new ArrayList<TestPart>();
+        List<TestPart> splitTests = new ArrayList<TestPart>();
+        for (Test test : tests) {
+            List<TestPart> testParts = new ArrayList<TestPart>();
+            if (test.isPartitionable() && chunks > 1) {
+                for (int i = 0; i < chunks; i++) {
+                    List<OsmPrimitive> chunk = selection.subList(i * selection.size() / chunks, (i + 1) * selection.size() / chunks);
+                    testParts.add(new TestPart(i == 0 ? test : createPartTest(test), chunk, progressMonitor));
+                }
+                splitTests.addAll(testParts);
+            } else {
+                testParts.add(new TestPart(test, selection, progressMonitor));
+                wholeTests.addAll(testParts);
+            }
+            parts.add(testParts);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Validator worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<TestPart> order = new ArrayList<TestPart>(wholeTests);
+            order.addAll(splitTests);
+            for (TestPart part : order) {
+                part.result = executor.submit(part);
+            }
+            List<TestError> errors = new ArrayList<TestError>(200);
+            for (List<TestPart> testParts : parts) {
+                for (TestPart part : testParts) {
+                    errors.addAll(part.result.get());
+                }
+            }
+            return errors;
+        } catch (InterruptedException e) {
+            canceled = true;
+            Thread.currentThread().interrupt();
+            return new ArrayList<TestError>();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
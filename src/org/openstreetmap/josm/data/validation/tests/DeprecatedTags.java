@@ -201,4 +201,9 @@ public class DeprecatedTags extends Test {
             return check.fixPrimitive(p);
         }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
@@ -68,4 +68,9 @@ public class DuplicatedWayNodes extends Test {
     @Override public boolean isFixable(TestError testError) {
         return testError.getTester() instanceof DuplicatedWayNodes;
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
@@ -108,4 +108,9 @@ public class NameMismatch extends Test {
                 check(p);
             }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
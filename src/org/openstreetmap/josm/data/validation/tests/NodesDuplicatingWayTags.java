@@ -55,4 +55,9 @@ public class NodesDuplicatingWayTags extends Test {
                     NODE_DUPING_PARENT_WAY_TAGS, dupedWayTags));
         }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
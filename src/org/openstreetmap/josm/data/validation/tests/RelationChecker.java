@@ -196,4 +196,9 @@ public class RelationChecker extends Test {
             }
         }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
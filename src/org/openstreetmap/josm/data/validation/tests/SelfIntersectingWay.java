@@ -40,4 +40,9 @@ public class SelfIntersectingWay extends Test {
             }
         }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
@@ -17,9 +17,11 @@ import java.io.UnsupportedEncodingException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -84,6 +86,23 @@ public class TagChecker extends Test
     protected static final List<IgnoreKeyPair> ignoreDataKeyPair = new ArrayList<IgnoreKeyPair>();
     protected static final List<IgnoreTwoKeyPair> ignoreDataTwoKeyPair = new ArrayList<IgnoreTwoKeyPair>();
 
+    /*
+     * The rules and ignore lists above indexed by key and value, so that each tag of a
+     * primitive is looked up once instead of being compared to every entry.
+     * See indexData().
+     */
+    /** The TagChecker rules by a key=value tag that each of them requires */
+    private static final Map<String, Map<String, List<CheckerData>>> checkerDataByTag = new HashMap<String, Map<String, List<CheckerData>>>();
+    /** The TagChecker rules by a key that each of them requires */
+    private static final Map<String, List<CheckerData>> checkerDataByKey = new HashMap<String, List<CheckerData>>();
+    /** The TagChecker rules that don't require a particular key */
+    private static final List<CheckerData> checkerDataAnyKey = new ArrayList<CheckerData>();
+    private static final Set<String> ignoreDataEqualsSet = new HashSet<String>();
+    private static final MultiMap<String, String> ignoreDataKeyPairMap = new MultiMap<String, String>();
+    /** The first pair of {@link #ignoreDataTwoKeyPair}, the only one whose first tag is checked */
+    private static IgnoreTwoKeyPair ignoreDataTwoKeyFirst;
+    private static final MultiMap<String, String> ignoreDataTwoKeySecond = new MultiMap<String, String>();
+
     /** The preferences prefix */
     protected static final String PREFIX = ValidatorPreference.PREFIX + "." + TagChecker.class.getSimpleName();
 
@@ -201,8 +220,10 @@ public class TagChecker extends Test
         }
 
         String errorSources = "";
-        if (sources.length() == 0)
+        if (sources.length() == 0) {
+            indexData();
             return;
+        }
         for (String source : sources.split(";")) {
             try {
                 MirroredInputStream s = new MirroredInputStream(source);
@@ -284,11 +305,102 @@ public class TagChecker extends Test
                 errorSources += source + "\n";
             }
         }
+        indexData();
 
         if (errorSources.length() > 0)
             throw new IOException( tr("Could not access data file(s):\n{0}", errorSources) );
     }
 
+    /**
+     * Builds the lookup tables of the rules and ignore lists read by {@link #initializeData()}.
+     */
+    private static void indexData() {
+        checkerDataByTag.clear();
+        checkerDataByKey.clear();
+        checkerDataAnyKey.clear();
+        for (int i = 0; i < checkerData.size(); i++) {
+            CheckerData d = checkerData.get(i);
+            d.index = i;
+            CheckerData.CheckerElement e = d.getIndexElement();
+            if (e == null) {
+                checkerDataAnyKey.add(d);
+            } else if (e.requiresTag()) {
+                Map<String, List<CheckerData>> byValue = checkerDataByTag.get(e.tag);
+                if (byValue == null) {
+                    byValue = new HashMap<String, List<CheckerData>>();
+                    checkerDataByTag.put((String) e.tag, byValue);
+                }
+                addToIndex(byValue, (String) e.value, d);
+            } else {
+                addToIndex(checkerDataByKey, (String) e.tag, d);
+            }
+        }
+
+        ignoreDataEqualsSet.clear();
+        ignoreDataEqualsSet.addAll(ignoreDataEquals);
+        ignoreDataKeyPairMap.clear();
+        for (IgnoreKeyPair a : ignoreDataKeyPair) {
+            ignoreDataKeyPairMap.put(a.key, a.value);
+        }
+        ignoreDataTwoKeyFirst = ignoreDataTwoKeyPair.isEmpty() ? null : ignoreDataTwoKeyPair.get(0);
+        ignoreDataTwoKeySecond.clear();
+        for (IgnoreTwoKeyPair a : ignoreDataTwoKeyPair) {
+            ignoreDataTwoKeySecond.put(a.key2, a.value2);
+        }
+    }
+
+    private static void addToIndex(Map<String, List<CheckerData>> index, String key, CheckerData d) {
+        List<CheckerData> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<CheckerData>(1);
+            index.put(key, list);
+        }
+        list.add(d);
+    }
+
+    /**
+     * Returns the TagChecker rules which may match a primitive with the given tags,
+     * in the order of {@link #checkerData}.
+     */
+    private static List<CheckerData> getCandidateRules(Map<String, String> keys) {
+        BitSet candidates = new BitSet(checkerData.size());
+        addCandidates(candidates, checkerDataAnyKey);
+        for (Entry<String, String> prop : keys.entrySet()) {
+            addCandidates(candidates, checkerDataByKey.get(prop.getKey()));
+            Map<String, List<CheckerData>> byValue = checkerDataByTag.get(prop.getKey());
+            if (byValue != null) {
+                addCandidates(candidates, byValue.get(prop.getValue()));
+            }
+        }
+        List<CheckerData> result = new ArrayList<CheckerData>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            result.add(checkerData.get(i));
+        }
+        return result;
+    }
+
+    private static void addCandidates(BitSet candidates, List<CheckerData> rules) {
+        if (rules != null) {
+            for (CheckerData d : rules) {
+                candidates.set(d.index);
+            }
+        }
+    }
+
+    private static boolean isIgnoredKey(String key) {
+        if (ignoreDataEqualsSet.contains(key))
+            return true;
+        for (String a : ignoreDataStartsWith) {
+            if (key.startsWith(a))
+                return true;
+        }
+        for (String a : ignoreDataEndsWith) {
+            if (key.endsWith(a))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Reads the presets data.
      *
@@ -360,45 +472,28 @@ public class TagChecker extends Test
         // Just a collection to know if a primitive has been already marked with error
         MultiMap<OsmPrimitive, String> withErrors = new MultiMap<OsmPrimitive, String>();
 
+        Map<String, String> props = p.getKeys();
+
         if (checkComplex) {
-            Map<String, String> props = (p.getKeys() == null) ? Collections.<String, String>emptyMap() : p.getKeys();
-            for (Entry<String, String> prop : props.entrySet()) {
-                boolean ignore = true;
-                String key1 = prop.getKey();
-                String value1 = prop.getValue();
-
-                for (IgnoreTwoKeyPair a : ignoreDataTwoKeyPair) {
-                    if (key1.equals(a.key1) && value1.equals(a.value1)) {
-                        ignore = false;
-                        for (Entry<String, String> prop2 : props.entrySet()) {
-                            String key2 = prop2.getKey();
-                            String value2 = prop2.getValue();
-                            for (IgnoreTwoKeyPair b : ignoreDataTwoKeyPair) {
-                                if (key2.equals(b.key2) && value2.equals(b.value2)) {
-                                    ignore = true;
-                                    break;
-                                }
-                            }
-                            if (ignore) {
-                                break;
-                            }
-                        }
-                    }
-                    if (ignore) {
+            // the first tag of the first pair is suspicious, unless the second tag of any pair is present
+            IgnoreTwoKeyPair first = ignoreDataTwoKeyFirst;
+            if (first != null && first.value1.equals(props.get(first.key1))) {
+                boolean hasSecond = false;
+                for (Entry<String, String> prop : props.entrySet()) {
+                    if (ignoreDataTwoKeySecond.contains(prop.getKey(), prop.getValue())) {
+                        hasSecond = true;
                         break;
                     }
                 }
-
-                if (!ignore) {
+                if (!hasSecond) {
                     errors.add( new TestError(this, Severity.OTHER, tr("Suspicious tag/value combinations"),
                             tr("Suspicious tag/value combinations"), tr("Suspicious tag/value combinations"), 1272, p) );
                     withErrors.put(p, "TC");
                 }
             }
 
-            Map<String, String> keys = p.getKeys();
-            for (CheckerData d : checkerData) {
-                if (d.match(p, keys)) {
+            for (CheckerData d : getCandidateRules(props)) {
+                if (d.match(p, props)) {
                     errors.add( new TestError(this, d.getSeverity(), tr("Suspicious tag/value combinations"),
                             d.getDescription(), d.getDescriptionOrig(), d.getCode(), p) );
                     withErrors.put(p, "TC");
@@ -406,7 +501,6 @@ public class TagChecker extends Test
             }
         }
 
-        Map<String, String> props = (p.getKeys() == null) ? Collections.<String, String>emptyMap() : p.getKeys();
         for (Entry<String, String> prop : props.entrySet()) {
             String s = marktr("Key ''{0}'' invalid.");
             String key = prop.getKey();
@@ -451,7 +545,7 @@ public class TagChecker extends Test
                         tr(s, key), MessageFormat.format(s, key), INVALID_SPACE, p) );
                 withErrors.put(p, "SPACE");
             }
-            if (checkValues && value != null && !value.equals(entities.unescape(value)) && !withErrors.contains(p, "HTML")) {
+            if (checkValues && value != null && value.indexOf('&') >= 0 && !value.equals(entities.unescape(value)) && !withErrors.contains(p, "HTML")) {
                 errors.add( new TestError(this, Severity.OTHER, tr("Property values contain HTML entity"),
                         tr(s, key), MessageFormat.format(s, key), INVALID_HTML, p) );
                 withErrors.put(p, "HTML");
@@ -459,43 +553,14 @@ public class TagChecker extends Test
             if (checkValues && value != null && value.length() > 0 && presetsValueData != null) {
                 Set<String> values = presetsValueData.get(key);
                 if (values == null) {
-                    boolean ignore = false;
-                    for (String a : ignoreDataStartsWith) {
-                        if (key.startsWith(a)) {
-                            ignore = true;
-                        }
-                    }
-                    for (String a : ignoreDataEquals) {
-                        if(key.equals(a)) {
-                            ignore = true;
-                        }
-                    }
-                    for (String a : ignoreDataEndsWith) {
-                        if(key.endsWith(a)) {
-                            ignore = true;
-                        }
-                    }
-                    if (!ignore) {
+                    if (!isIgnoredKey(key)) {
                         String i = marktr("Key ''{0}'' not in presets.");
                         errors.add( new TestError(this, Severity.OTHER, tr("Presets do not contain property key"),
                                 tr(i, key), MessageFormat.format(i, key), INVALID_VALUE, p) );
                         withErrors.put(p, "UPK");
                     }
                 } else if (values.size() > 0 && !values.contains(prop.getValue())) {
-                    boolean ignore = false;
-                    for (IgnoreKeyPair a : ignoreDataKeyPair) {
-                        if (key.equals(a.key) && value.equals(a.value)) {
-                            ignore = true;
-                        }
-                    }
-
-                    for (IgnoreTwoKeyPair a : ignoreDataTwoKeyPair) {
-                        if (key.equals(a.key2) && value.equals(a.value2)) {
-                            ignore = true;
-                        }
-                    }
-
-                    if (!ignore) {
+                    if (!ignoreDataKeyPairMap.contains(key, value) && !ignoreDataTwoKeySecond.contains(key, value)) {
                         String i = marktr("Value ''{0}'' for key ''{1}'' not in presets.");
                         errors.add( new TestError(this, Severity.OTHER, tr("Presets do not contain property value"),
                                 tr(i, prop.getValue(), key), MessageFormat.format(i, prop.getValue(), key), INVALID_VALUE, p) );
@@ -814,6 +879,8 @@ public class TagChecker extends Test
         private List<CheckerElement> data = new ArrayList<CheckerElement>();
         private OsmPrimitiveType type;
         private int code;
+        /** The position in {@link TagChecker#checkerData} */
+        private int index;
         protected Severity severity;
         protected static final int TAG_CHECK_ERROR  = 1250;
         protected static final int TAG_CHECK_WARN   = 1260;
@@ -861,6 +928,20 @@ public class TagChecker extends Test
                 }
             }
 
+            /**
+             * Returns true if only primitives with the key {@link #tag} match.
+             */
+            public boolean requiresKey() {
+                return !tagAll && !noMatch && tag instanceof String;
+            }
+
+            /**
+             * Returns true if only primitives with the tag {@link #tag}={@link #value} match.
+             */
+            public boolean requiresTag() {
+                return requiresKey() && !valueAll && !valueBool && value instanceof String;
+            }
+
             public boolean match(OsmPrimitive osm, Map<String, String> keys) {
                 for (Entry<String, String> prop: keys.entrySet()) {
                     String key = prop.getKey();
@@ -922,6 +1003,22 @@ public class TagChecker extends Test
             return null;
         }
 
+        /**
+         * Returns the element by which the rule is looked up: one requiring a tag if there is
+         * any, otherwise one requiring a key. Null if the rule may match without any particular key.
+         */
+        private CheckerElement getIndexElement() {
+            CheckerElement result = null;
+            for (CheckerElement ce : data) {
+                if (ce.requiresTag())
+                    return ce;
+                if (result == null && ce.requiresKey()) {
+                    result = ce;
+                }
+            }
+            return result;
+        }
+
         public boolean match(OsmPrimitive osm, Map<String, String> keys) {
             if (type != null && OsmPrimitiveType.from(osm) != type)
                 return false;
@@ -952,4 +1049,9 @@ public class TagChecker extends Test
             return code + type.ordinal() + 1;
         }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
@@ -189,4 +189,9 @@ public class TurnrestrictionTest extends Test {
             errors.add(new TestError(this, Severity.ERROR, msg, code, Arrays.asList(previous, current)));
         }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
@@ -120,4 +120,9 @@ public class UnclosedWays extends Test {
                     Arrays.asList(w.firstNode(), w.lastNode())));
         }
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
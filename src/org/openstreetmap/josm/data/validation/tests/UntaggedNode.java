@@ -126,4 +126,9 @@ public class UntaggedNode extends Test {
         }
         return false;
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
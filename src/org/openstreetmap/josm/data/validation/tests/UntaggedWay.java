@@ -143,4 +143,9 @@ public class UntaggedWay extends Test
     public Command fixError(TestError testError) {
         return DeleteCommand.delete(Main.map.mapView.getEditLayer(), testError.getPrimitives());
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
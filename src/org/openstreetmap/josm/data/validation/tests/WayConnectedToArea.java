@@ -80,4 +80,9 @@ public class WayConnectedToArea extends Test {
                 Arrays.asList(w, p),
                 Arrays.asList(wayNode)));
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
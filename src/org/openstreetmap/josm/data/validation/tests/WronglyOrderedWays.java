@@ -53,4 +53,9 @@ public class WronglyOrderedWays extends Test {
     private void reportError(Way w, String msg, int type) {
         errors.add(new TestError(this, Severity.WARNING, msg, type, Collections.singletonList(w)));
     }
+
+    @Override
+    public boolean isPartitionable() {
+        return true;
+    }
 }
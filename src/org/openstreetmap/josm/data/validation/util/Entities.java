@@ -334,7 +334,7 @@ public class Entities {
         {"euro", "8364"}, // -- euro sign, U+20AC NEW -->
     };
 
-    private static Map<String, String> mapNameToValue = null;
+    private static volatile Map<String, String> mapNameToValue = null;
 
     public String unescape(String str) {
         int firstAmp = str.indexOf('&');
@@ -384,13 +384,16 @@ public class Entities {
                             }
                         }
                     } else { // escaped value content is an entity name
-                        if(mapNameToValue == null)
+                        Map<String, String> map = mapNameToValue;
+                        if(map == null)
                         {
-                            mapNameToValue = new HashMap<String, String>();
+                            // filled before it is published, tests may run on several threads
+                            map = new HashMap<String, String>();
                             for (int in = 0; in < ARRAY.length; ++in)
-                                mapNameToValue.put(ARRAY[in][0], ARRAY[in][1]);
+                                map.put(ARRAY[in][0], ARRAY[in][1]);
+                            mapNameToValue = map;
                         }
-                        String value = mapNameToValue.get(entityContent);
+                        String value = map.get(entityContent);
                         entityValue = (value == null ? -1 : Integer.parseInt(value));
                     }
                 }
@@ -190,6 +190,7 @@ public class MapView extends NavigatableComponent implements PropertyChangeListe
     private Layer changedLayer;
     private int lastViewID;
     private boolean paintPreferencesChanged = true;
+    private int paintPreferencesVersion;
     private Rectangle lastClipBounds = new Rectangle();
 
     public MapView(final JPanel contentPane) {
@@ -834,6 +835,18 @@ public class MapView extends NavigatableComponent implements PropertyChangeListe
 
     public synchronized void preferenceChanged(PreferenceChangeEvent e) {
         paintPreferencesChanged = true;
+        paintPreferencesVersion++;
+    }
+
+    /**
+     * Replies a number which changes whenever the preferences or styles used for painting
+     * might have changed. Layers which cache their rendering use it to find out when
+     * the cache has to be discarded.
+     *
+     * @return the current version of the paint preferences
+     */
+    public synchronized int getPaintPreferencesVersion() {
+        return paintPreferencesVersion;
     }
 
     private SelectionChangedListener repaintSelectionChangedListener = new SelectionChangedListener(){
@@ -26,8 +26,8 @@ import org.openstreetmap.gui.jmapviewer.Coordinate;
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
 import org.openstreetmap.gui.jmapviewer.MapMarkerDot;
 import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
-import org.openstreetmap.gui.jmapviewer.OsmFileCacheTileLoader;
 import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.OsmPackCacheTileLoader;
 import org.openstreetmap.gui.jmapviewer.OsmTileLoader;
 import org.openstreetmap.gui.jmapviewer.interfaces.MapMarker;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
@@ -187,7 +187,7 @@ public class SlippyMapBBoxChooser extends JMapViewer implements BBoxChooser{
         String cachePath = TMSLayer.PROP_TILECACHE_DIR.get();
         if (cachePath != null && !cachePath.isEmpty()) {
             try {
-                cachedLoader = new OsmFileCacheTileLoader(this, new File(cachePath));
+                cachedLoader = TMSLayer.createCacheTileLoader(this, new File(cachePath));
             } catch (IOException e) {
             }
         }
@@ -274,6 +274,15 @@ public class SlippyMapBBoxChooser extends JMapViewer implements BBoxChooser{
         }
     }
 
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        // the tile packs are opened again when the chooser is shown next time
+        if (cachedLoader instanceof OsmPackCacheTileLoader) {
+            ((OsmPackCacheTileLoader) cachedLoader).close();
+        }
+    }
+
     public void setFileCacheEnabled(boolean enabled) {
         if (enabled) {
             setTileLoader(cachedLoader);
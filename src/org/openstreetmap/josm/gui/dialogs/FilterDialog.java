@@ -90,6 +90,7 @@ public class FilterDialog extends ToggleDialog implements DataSetListener {
     public void hideNotify() {
         DatasetEventManager.getInstance().removeDatasetListener(this);
         filterModel.clearFilterFlags();
+        Main.map.mapView.preferenceChanged(null); // filter flags don't fire dataset events, discard cached rendering
         Main.map.mapView.repaint();
     }
 
@@ -44,7 +44,8 @@ import org.openstreetmap.josm.data.osm.Relation;
 import org.openstreetmap.josm.data.osm.RelationMember;
 import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
 import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
-import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.DataSetBatchListener;
+import org.openstreetmap.josm.data.osm.event.DatasetEventBatch;
 import org.openstreetmap.josm.data.osm.event.DatasetEventManager;
 import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
 import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
@@ -76,7 +77,7 @@ import org.openstreetmap.josm.tools.Shortcut;
  * We don't have such dialogs for nodes, segments, and ways, because those
  * objects are visible on the map and can be selected there. Relations are not.
  */
-public class RelationListDialog extends ToggleDialog implements DataSetListener {
+public class RelationListDialog extends ToggleDialog implements DataSetBatchListener {
     /** The display list. */
     private JList displaylist;
     /** the list model used */
@@ -169,7 +170,7 @@ public class RelationListDialog extends ToggleDialog implements DataSetListener
     @Override public void showNotify() {
         MapView.addLayerChangeListener(newAction);
         newAction.updateEnabledState();
-        DatasetEventManager.getInstance().addDatasetListener(this, FireMode.IN_EDT);
+        DatasetEventManager.getInstance().addDatasetListener(this, FireMode.IN_EDT_BATCHED);
         DataSet.addSelectionListener(addToRelation);
         dataChanged(null);
     }
@@ -933,4 +934,38 @@ public class RelationListDialog extends ToggleDialog implements DataSetListener
     }
 
     public void otherDatasetChange(AbstractDatasetChangedEvent event) {/* ignore */}
+
+    public void datasetChanged(DatasetEventBatch batch) {
+        switch (batch.getType()) {
+        case PRIMITIVES_ADDED:
+            model.addRelations(batch.getPrimitives());
+            model.updateTitle();
+            break;
+        case PRIMITIVES_REMOVED:
+            model.removeRelations(batch.getPrimitives());
+            model.updateTitle();
+            break;
+        case TAGS_CHANGED:
+            // the display name of a relation may have changed
+            for (OsmPrimitive p : batch.getPrimitives()) {
+                if (p instanceof Relation) {
+                    resort();
+                    break;
+                }
+            }
+            break;
+        case RELATION_MEMBERS_CHANGED:
+            resort();
+            break;
+        default:
+            /* irrelevant in this context */
+        }
+    }
+
+    private void resort() {
+        List<Relation> sel = model.getSelectedRelations();
+        model.sort();
+        model.setSelectedRelations(sel);
+        displaylist.repaint();
+    }
 }
@@ -49,7 +49,8 @@ import org.openstreetmap.josm.data.osm.RelationMember;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
 import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
-import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.DataSetBatchListener;
+import org.openstreetmap.josm.data.osm.event.DatasetEventBatch;
 import org.openstreetmap.josm.data.osm.event.DatasetEventManager;
 import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
 import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
@@ -155,7 +156,7 @@ public class SelectionListDialog extends ToggleDialog  {
     public void showNotify() {
         MapView.addEditLayerChangeListener(model);
         SelectionEventManager.getInstance().addSelectionListener(model, FireMode.IN_EDT_CONSOLIDATED);
-        DatasetEventManager.getInstance().addDatasetListener(model, FireMode.IN_EDT);
+        DatasetEventManager.getInstance().addDatasetListener(model, FireMode.IN_EDT_BATCHED);
         MapView.addEditLayerChangeListener(actSearch);
         // editLayerChanged also gets the selection history of the level
         model.editLayerChanged(null, Main.map.mapView.getEditLayer());
@@ -443,7 +444,7 @@ public class SelectionListDialog extends ToggleDialog  {
      * JOSM selection.
      *
      */
-    static private class SelectionListModel extends AbstractListModel implements EditLayerChangeListener, SelectionChangedListener, DataSetListener{
+    static private class SelectionListModel extends AbstractListModel implements EditLayerChangeListener, SelectionChangedListener, DataSetBatchListener{
 
         private static final int SELECTION_HISTORY_SIZE = 10;
 
@@ -607,9 +608,10 @@ public class SelectionListDialog extends ToggleDialog  {
             if (toUpdate == null) return;
             if (toUpdate.isEmpty()) return;
             Collection<OsmPrimitive> sel = getSelected();
-            for (OsmPrimitive p: toUpdate){
-                int i = selection.indexOf(p);
-                if (i >= 0) {
+            Set<? extends OsmPrimitive> updated = toUpdate instanceof Set
+                    ? (Set<? extends OsmPrimitive>) toUpdate : new HashSet<OsmPrimitive>(toUpdate);
+            for (int i = 0; i < selection.size(); i++) {
+                if (updated.contains(selection.get(i))) {
                     super.fireContentsChanged(this, i,i);
                 }
             }
@@ -709,6 +711,18 @@ public class SelectionListDialog extends ToggleDialog  {
 
         public void primitivesAdded(PrimitivesAddedEvent event) {/* ignored - handled by SelectionChangeListener */}
         public void primitivesRemoved(PrimitivesRemovedEvent event) {/* ignored - handled by SelectionChangeListener*/}
+
+        public void datasetChanged(DatasetEventBatch batch) {
+            switch (batch.getType()) {
+            case PRIMITIVES_ADDED:
+            case PRIMITIVES_REMOVED:
+                // ignored - handled by SelectionChangeListener
+                break;
+            default:
+                // may influence the display name of primitives, update the data
+                update(batch.getPrimitives());
+            }
+        }
     }
 
     /**
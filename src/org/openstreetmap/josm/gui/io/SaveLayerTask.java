@@ -4,6 +4,7 @@ package org.openstreetmap.josm.gui.io;
 import static org.openstreetmap.josm.tools.I18n.tr;
 
 import org.openstreetmap.josm.actions.SaveAction;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.tools.CheckParameterUtil;
@@ -51,8 +52,12 @@ class SaveLayerTask extends AbstractIOTask {
                 setFailed(true);
                 return;
             }
-            if (!isCanceled()) {
-                layerInfo.getLayer().onPostSaveToFile();
+            // SaveAction.doSave() associates the layer with the file and marks it as saved,
+            // unless the file format can't keep all of its data. A new layer has no
+            // associated file, so requiresSaveToFile() alone doesn't tell a lossy export.
+            OsmDataLayer layer = layerInfo.getLayer();
+            if (!layerInfo.getFile().equals(layer.getAssociatedFile()) || layer.requiresSaveToFile()) {
+                setFailed(true);
             }
         } catch(Exception e) {
             e.printStackTrace();
@@ -33,10 +33,16 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -67,6 +73,7 @@ import org.openstreetmap.josm.actions.downloadtasks.DownloadOsmTaskList;
 import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.gpx.CompactGpxTrackSegment;
 import org.openstreetmap.josm.data.gpx.GpxData;
 import org.openstreetmap.josm.data.gpx.GpxRoute;
 import org.openstreetmap.josm.data.gpx.GpxTrack;
@@ -128,6 +135,21 @@ public class GpxLayer extends Layer {
     private final List<GpxTrack> lastTracks = new ArrayList<GpxTrack>(); // List of tracks at last paint
     private int lastUpdateCount;
 
+    /** Builds the simplified versions of large track segments for all GPX layers */
+    private static final ExecutorService pyramidBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "GPX level of detail");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    /** The simplified versions of the large track segments, replaced as a whole when rebuilt */
+    private volatile Map<GpxTrackSegment, GpxSegmentPyramid> pyramids = new HashMap<GpxTrackSegment, GpxSegmentPyramid>();
+    private volatile boolean pyramidsBuilding;
+    /** The points of all track segments with the state computed for painting them */
+    private Map<GpxTrackSegment, GpxSegmentPoints> segmentPoints = new HashMap<GpxTrackSegment, GpxSegmentPoints>();
+
     private static class Markers {
         public boolean timedMarkersOmitted = false;
         public boolean untimedMarkersOmitted = false;
@@ -155,17 +177,23 @@ public class GpxLayer extends Layer {
      * returns a human readable string that shows the timespan of the given track
      */
     private static String getTimespanForTrack(GpxTrack trk) {
-        WayPoint earliest = null, latest = null;
+        double earliest = 0, latest = 0;
+        boolean hasPoints = false;
 
         for (GpxTrackSegment seg : trk.getSegments()) {
-            for (WayPoint pnt : seg.getWayPoints()) {
-                if (latest == null) {
-                    latest = earliest = pnt;
+            // the times of a compact segment are read from its arrays, without creating its points
+            CompactGpxTrackSegment compact = seg instanceof CompactGpxTrackSegment ? (CompactGpxTrackSegment) seg : null;
+            Iterator<WayPoint> points = compact == null ? seg.getWayPoints().iterator() : null;
+            for (int i = 0; compact != null ? i < compact.size() : points.hasNext(); i++) {
+                double time = compact != null ? compact.getTime(i) : points.next().time;
+                if (!hasPoints) {
+                    latest = earliest = time;
+                    hasPoints = true;
                 } else {
-                    if (pnt.compareTo(earliest) < 0) {
-                        earliest = pnt;
+                    if (Double.compare(time, earliest) < 0) {
+                        earliest = time;
                     } else {
-                        latest = pnt;
+                        latest = time;
                     }
                 }
             }
@@ -173,21 +201,23 @@ public class GpxLayer extends Layer {
 
         String ts = "";
 
-        if (earliest != null && latest != null) {
+        if (hasPoints) {
+            Date earliestTime = new Date((long) (earliest * 1000));
+            Date latestTime = new Date((long) (latest * 1000));
             DateFormat df = DateFormat.getDateInstance(DateFormat.SHORT);
-            String earliestDate = df.format(earliest.getTime());
-            String latestDate = df.format(latest.getTime());
+            String earliestDate = df.format(earliestTime);
+            String latestDate = df.format(latestTime);
 
             if (earliestDate.equals(latestDate)) {
                 DateFormat tf = DateFormat.getTimeInstance(DateFormat.SHORT);
                 ts += earliestDate + " ";
-                ts += tf.format(earliest.getTime()) + " - " + tf.format(latest.getTime());
+                ts += tf.format(earliestTime) + " - " + tf.format(latestTime);
             } else {
                 DateFormat dtf = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
-                ts += dtf.format(earliest.getTime()) + " - " + dtf.format(latest.getTime());
+                ts += dtf.format(earliestTime) + " - " + dtf.format(latestTime);
             }
 
-            int diff = (int) (latest.time - earliest.time);
+            int diff = (int) (latest - earliest);
             ts += String.format(" (%d:%02d)", diff / 3600, (diff % 3600) / 60);
         }
         return ts;
@@ -421,7 +451,12 @@ public class GpxLayer extends Layer {
 
     @Override
     public void paint(Graphics2D g, MapView mv, Bounds box) {
-        lastUpdateCount = sumUpdateCount();
+        int updateCount = sumUpdateCount();
+        if (updateCount != lastUpdateCount || !data.tracks.equals(lastTracks)) {
+            // tracks have been added while the file is read, or the points of a track have changed
+            computeCacheInSync = false;
+        }
+        lastUpdateCount = updateCount;
         lastTracks.clear();
         lastTracks.addAll(data.tracks);
 
@@ -492,148 +527,162 @@ public class GpxLayer extends Layer {
          ********** STEP 2b - RE-COMPUTE CACHE DATA *********************
          ****************************************************************/
         if (!computeCacheInSync) { // don't compute if the cache is good
+            List<GpxSegmentPoints> allPoints = new ArrayList<GpxSegmentPoints>();
+            Map<GpxTrackSegment, GpxSegmentPoints> newSegmentPoints = new HashMap<GpxTrackSegment, GpxSegmentPoints>();
+            for (GpxTrack trk : data.tracks) {
+                for (GpxTrackSegment segment : trk.getSegments()) {
+                    GpxSegmentPoints points = new GpxSegmentPoints(segment);
+                    allPoints.add(points);
+                    newSegmentPoints.put(segment, points);
+                }
+            }
+            segmentPoints = newSegmentPoints;
+
             double minval = +1e10;
             double maxval = -1e10;
-            WayPoint oldWp = null;
+            // the coordinates and the time of the previous point
+            LatLon oldCoor = null;
+            double oldTime = 0;
             if (colorModeDynamic) {
                 if (colored == colorModes.velocity) {
-                    for (GpxTrack trk : data.tracks) {
-                        for (GpxTrackSegment segment : trk.getSegments()) {
-                            if(!forceLines) {
-                                oldWp = null;
+                    for (GpxSegmentPoints points : allPoints) {
+                        if(!forceLines) {
+                            oldCoor = null;
+                        }
+                        for (int k = 0; k < points.size(); k++) {
+                            LatLon c = points.getCoor(k);
+                            if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
+                                continue;
                             }
-                            for (WayPoint trkPnt : segment.getWayPoints()) {
-                                LatLon c = trkPnt.getCoor();
-                                if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
-                                    continue;
+                            double time = points.getTime(k);
+                            if (oldCoor != null && time > oldTime) {
+                                double vel = c.greatCircleDistance(oldCoor)
+                                        / (time - oldTime);
+                                if(vel > maxval) {
+                                    maxval = vel;
                                 }
-                                if (oldWp != null && trkPnt.time > oldWp.time) {
-                                    double vel = c.greatCircleDistance(oldWp.getCoor())
-                                            / (trkPnt.time - oldWp.time);
-                                    if(vel > maxval) {
-                                        maxval = vel;
-                                    }
-                                    if(vel < minval) {
-                                        minval = vel;
-                                    }
+                                if(vel < minval) {
+                                    minval = vel;
                                 }
-                                oldWp = trkPnt;
                             }
+                            oldCoor = c;
+                            oldTime = time;
                         }
                     }
                 } else if (colored == colorModes.dilution) {
-                    for (GpxTrack trk : data.tracks) {
-                        for (GpxTrackSegment segment : trk.getSegments()) {
-                            for (WayPoint trkPnt : segment.getWayPoints()) {
-                                Object val = trkPnt.attr.get("hdop");
-                                if (val != null) {
-                                    double hdop = ((Float) val).doubleValue();
-                                    if(hdop > maxval) {
-                                        maxval = hdop;
-                                    }
-                                    if(hdop < minval) {
-                                        minval = hdop;
-                                    }
+                    for (GpxSegmentPoints points : allPoints) {
+                        for (int k = 0; k < points.size(); k++) {
+                            float hdop = points.getHdop(k);
+                            if (!Float.isNaN(hdop)) {
+                                if(hdop > maxval) {
+                                    maxval = hdop;
+                                }
+                                if(hdop < minval) {
+                                    minval = hdop;
                                 }
                             }
                         }
                     }
                 }
-                oldWp = null;
+                oldCoor = null;
             }
             if (colored == colorModes.time) {
-                for (GpxTrack trk : data.tracks) {
-                    for (GpxTrackSegment segment : trk.getSegments()) {
-                        for (WayPoint trkPnt : segment.getWayPoints()) {
-                            double t=trkPnt.time;
-                            if (t==0) {
-                                continue; // skip non-dated trackpoints
-                            }
-                            if(t > maxval) {
-                                maxval = t;
-                            }
-                            if(t < minval) {
-                                minval = t;
-                            }
+                for (GpxSegmentPoints points : allPoints) {
+                    for (int k = 0; k < points.size(); k++) {
+                        double t=points.getTime(k);
+                        if (t==0) {
+                            continue; // skip non-dated trackpoints
+                        }
+                        if(t > maxval) {
+                            maxval = t;
+                        }
+                        if(t < minval) {
+                            minval = t;
                         }
                     }
                 }
             }
 
-            for (GpxTrack trk : data.tracks) {
-                for (GpxTrackSegment segment : trk.getSegments()) {
-                    if (!forceLines) { // don't draw lines between segments, unless forced to
-                        oldWp = null;
+            for (GpxSegmentPoints points : allPoints) {
+                if (!forceLines) { // don't draw lines between segments, unless forced to
+                    oldCoor = null;
+                }
+                for (int k = 0; k < points.size(); k++) {
+                    LatLon c = points.getCoor(k);
+                    if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
+                        continue;
                     }
-                    for (WayPoint trkPnt : segment.getWayPoints()) {
-                        LatLon c = trkPnt.getCoor();
-                        if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
-                            continue;
-                        }
-                        trkPnt.customColoring = neutralColor;
-                        if(colored == colorModes.dilution && trkPnt.attr.get("hdop") != null) {
-                            float hdop = ((Float) trkPnt.attr.get("hdop")).floatValue();
-                            int hdoplvl =(int) Math.round(colorModeDynamic ? ((hdop-minval)*255/(maxval-minval))
-                                    : (hdop <= 0 ? 0 : hdop * hdopfactor));
-                            // High hdop is bad, but high values in colors are green.
-                            // Therefore inverse the logic
-                            int hdopcolor = 255 - (hdoplvl > 255 ? 255 : hdoplvl);
-                            trkPnt.customColoring = colors[hdopcolor];
-                        }
-                        if (oldWp != null) {
-                            double dist = c.greatCircleDistance(oldWp.getCoor());
-                            boolean noDraw=false;
-                            switch (colored) {
-                            case velocity:
-                                double dtime = trkPnt.time - oldWp.time;
-                                if(dtime > 0) {
-                                    float vel = (float) (dist / dtime);
-                                    int velColor =(int) Math.round(colorModeDynamic ? ((vel-minval)*255/(maxval-minval))
-                                            : (vel <= 0 ? 0 : vel / colorTracksTune * 255));
-                                    trkPnt.customColoring = colors[Math.max(0, Math.min(velColor, 255))];
-                                } else {
-                                    trkPnt.customColoring = colors[255];
-                                }
-                                break;
-                            case direction:
-                                double dirColor = oldWp.getCoor().heading(trkPnt.getCoor()) / (2.0 * Math.PI) * 256;
-                                // Bad case first
-                                if (dirColor != dirColor || dirColor < 0.0 || dirColor >= 256.0) {
-                                    trkPnt.customColoring = colors_cyclic[0];
-                                } else {
-                                    trkPnt.customColoring = colors_cyclic[(int) (dirColor)];
-                                }
-                                break;
-                            case time:
-                                if (trkPnt.time>0){
-                                    int tColor = (int) Math.round((trkPnt.time-minval)*255/(maxval-minval));
-                                    trkPnt.customColoring = colors[tColor];
-                                } else {
-                                    trkPnt.customColoring = neutralColor;
-                                }
-                                break;
+                    double time = points.getTime(k);
+                    float hdop = points.getHdop(k);
+                    points.colors[k] = neutralColor;
+                    if(colored == colorModes.dilution && !Float.isNaN(hdop)) {
+                        int hdoplvl =(int) Math.round(colorModeDynamic ? ((hdop-minval)*255/(maxval-minval))
+                                : (hdop <= 0 ? 0 : hdop * hdopfactor));
+                        // High hdop is bad, but high values in colors are green.
+                        // Therefore inverse the logic
+                        int hdopcolor = 255 - (hdoplvl > 255 ? 255 : hdoplvl);
+                        points.colors[k] = colors[hdopcolor];
+                    }
+                    if (oldCoor != null) {
+                        double dist = c.greatCircleDistance(oldCoor);
+                        boolean noDraw=false;
+                        switch (colored) {
+                        case velocity:
+                            double dtime = time - oldTime;
+                            if(dtime > 0) {
+                                float vel = (float) (dist / dtime);
+                                int velColor =(int) Math.round(colorModeDynamic ? ((vel-minval)*255/(maxval-minval))
+                                        : (vel <= 0 ? 0 : vel / colorTracksTune * 255));
+                                points.colors[k] = colors[Math.max(0, Math.min(velColor, 255))];
+                            } else {
+                                points.colors[k] = colors[255];
                             }
-
-                            if (!noDraw && (maxLineLength == -1 || dist <= maxLineLength)) {
-                                trkPnt.drawLine = true;
-                                trkPnt.dir = (int) oldWp.getCoor().heading(trkPnt.getCoor());
+                            break;
+                        case direction:
+                            double dirColor = oldCoor.heading(c) / (2.0 * Math.PI) * 256;
+                            // Bad case first
+                            if (dirColor != dirColor || dirColor < 0.0 || dirColor >= 256.0) {
+                                points.colors[k] = colors_cyclic[0];
                             } else {
-                                trkPnt.drawLine = false;
+                                points.colors[k] = colors_cyclic[(int) (dirColor)];
                             }
-                        } else { // make sure we reset outdated data
-                            trkPnt.drawLine = false;
+                            break;
+                        case time:
+                            if (time>0){
+                                int tColor = (int) Math.round((time-minval)*255/(maxval-minval));
+                                points.colors[k] = colors[tColor];
+                            } else {
+                                points.colors[k] = neutralColor;
+                            }
+                            break;
                         }
-                        oldWp = trkPnt;
+
+                        if (!noDraw && (maxLineLength == -1 || dist <= maxLineLength)) {
+                            points.drawLine[k] = true;
+                            points.dir[k] = (byte) oldCoor.heading(c);
+                        } else {
+                            points.drawLine[k] = false;
+                        }
+                    } else { // make sure we reset outdated data
+                        points.drawLine[k] = false;
                     }
+                    oldCoor = c;
+                    oldTime = time;
                 }
             }
             computeCacheInSync = true;
         }
 
-        LinkedList<WayPoint> visibleSegments = new LinkedList<WayPoint>();
-        WayPoint last = null;
+        LinkedList<VisiblePoint> visibleSegments = new LinkedList<VisiblePoint>();
+        // the previous point, in the same or in an earlier segment
+        GpxSegmentPoints lastPoints = null;
+        int last = -1;
         int i = 0;
         ensureTrackVisibilityLength();
+        // the size of a pixel, to choose the level of detail of large segments
+        double scale = mv.getEastNorth(1, 0).east() - mv.getEastNorth(0, 0).east();
+        Map<GpxTrackSegment, GpxSegmentPyramid> pyramids = this.pyramids;
+        boolean pyramidsValid = true;
         for (GpxTrack trk: data.tracks) {
             // hide tracks that were de-selected in ChooseTrackVisibilityAction
             if(!trackVisibility[i++]) {
@@ -641,31 +690,45 @@ public class GpxLayer extends Layer {
             }
 
             for (GpxTrackSegment trkSeg: trk.getSegments()) {
-                for(WayPoint pt : trkSeg.getWayPoints())
-                {
-                    Bounds b = new Bounds(pt.getCoor());
-                    // last should never be null when this is true!
-                    if(pt.drawLine) {
-                        b.extend(last.getCoor());
+                GpxSegmentPoints points = segmentPoints.get(trkSeg);
+                if (points == null) {
+                    // added while the file is read, after the colors were computed
+                    continue;
+                }
+                int[] indexes = null;
+                GpxSegmentPyramid pyramid = pyramids.get(trkSeg);
+                if (pyramid != null && pyramid.isValid(trkSeg, maxLineLength)) {
+                    if (!forceLines && !box.crosses180thMeridian() && !pyramid.getBounds().intersects(box)) {
+                        // no line from the previous segment, nothing of this segment is visible
+                        lastPoints = points;
+                        last = points.size() - 1;
+                        continue;
                     }
-                    if(b.intersects(box))
+                    indexes = pyramid.getIndexes(scale);
+                } else if (points.size() >= GpxSegmentPyramid.MIN_POINTS) {
+                    pyramidsValid = false;
+                }
+                int count = indexes == null ? points.size() : indexes.length;
+                for (int j = 0; j < count; j++) {
+                    int k = indexes == null ? j : indexes[j];
+                    boolean drawLine = points.drawLine[k];
+                    LatLon lastCoor = drawLine && lastPoints != null ? lastPoints.getCoor(last) : null;
+                    if(isVisible(points.getCoor(k), lastCoor, box))
                     {
-                        if(last != null && (visibleSegments.isEmpty()
-                                || visibleSegments.getLast() != last)) {
-                            if(last.drawLine) {
-                                WayPoint l = new WayPoint(last);
-                                l.drawLine = false;
-                                visibleSegments.add(l);
-                            } else {
-                                visibleSegments.add(last);
-                            }
+                        if(lastPoints != null && (visibleSegments.isEmpty()
+                                || !visibleSegments.getLast().isPoint(lastPoints, last))) {
+                            visibleSegments.add(new VisiblePoint(lastPoints, last, false));
                         }
-                        visibleSegments.add(pt);
+                        visibleSegments.add(new VisiblePoint(points, k, drawLine));
                     }
-                    last = pt;
+                    lastPoints = points;
+                    last = k;
                 }
             }
         }
+        if (!pyramidsValid) {
+            buildPyramids(maxLineLength);
+        }
         if(visibleSegments.isEmpty())
             return;
 
@@ -674,16 +737,16 @@ public class GpxLayer extends Layer {
          ****************************************************************/
         if (lines) {
             Point old = null;
-            for (WayPoint trkPnt : visibleSegments) {
-                LatLon c = trkPnt.getCoor();
+            for (VisiblePoint trkPnt : visibleSegments) {
+                LatLon c = trkPnt.coor;
                 if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
                     continue;
                 }
-                Point screen = mv.getPoint(trkPnt.getEastNorth());
+                Point screen = mv.getPoint(trkPnt.eastNorth);
                 if (trkPnt.drawLine) {
                     // skip points that are on the same screenposition
                     if (old != null && ((old.x != screen.x) || (old.y != screen.y))) {
-                        g.setColor(trkPnt.customColoring);
+                        g.setColor(trkPnt.color);
                         g.drawLine(old.x, old.y, screen.x, screen.y);
                     }
                 }
@@ -697,18 +760,18 @@ public class GpxLayer extends Layer {
         if (lines && direction && !alternatedirection) {
             Point old = null;
             Point oldA = null; // last arrow painted
-            for (WayPoint trkPnt : visibleSegments) {
-                LatLon c = trkPnt.getCoor();
+            for (VisiblePoint trkPnt : visibleSegments) {
+                LatLon c = trkPnt.coor;
                 if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
                     continue;
                 }
                 if (trkPnt.drawLine) {
-                    Point screen = mv.getPoint(trkPnt.getEastNorth());
+                    Point screen = mv.getPoint(trkPnt.eastNorth);
                     // skip points that are on the same screenposition
                     if (old != null
                             && (oldA == null || screen.x < oldA.x - delta || screen.x > oldA.x + delta
                             || screen.y < oldA.y - delta || screen.y > oldA.y + delta)) {
-                        g.setColor(trkPnt.customColoring);
+                        g.setColor(trkPnt.color);
                         double t = Math.atan2(screen.y - old.y, screen.x - old.x) + Math.PI;
                         g.drawLine(screen.x, screen.y, (int) (screen.x + 10 * Math.cos(t - PHI)),
                                 (int) (screen.y + 10 * Math.sin(t - PHI)));
@@ -727,18 +790,18 @@ public class GpxLayer extends Layer {
         if (lines && direction && alternatedirection) {
             Point old = null;
             Point oldA = null; // last arrow painted
-            for (WayPoint trkPnt : visibleSegments) {
-                LatLon c = trkPnt.getCoor();
+            for (VisiblePoint trkPnt : visibleSegments) {
+                LatLon c = trkPnt.coor;
                 if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
                     continue;
                 }
                 if (trkPnt.drawLine) {
-                    Point screen = mv.getPoint(trkPnt.getEastNorth());
+                    Point screen = mv.getPoint(trkPnt.eastNorth);
                     // skip points that are on the same screenposition
                     if (old != null
                             && (oldA == null || screen.x < oldA.x - delta || screen.x > oldA.x + delta
                             || screen.y < oldA.y - delta || screen.y > oldA.y + delta)) {
-                        g.setColor(trkPnt.customColoring);
+                        g.setColor(trkPnt.color);
                         g.drawLine(screen.x, screen.y, screen.x + dir[trkPnt.dir][0], screen.y
                                 + dir[trkPnt.dir][1]);
                         g.drawLine(screen.x, screen.y, screen.x + dir[trkPnt.dir][2], screen.y
@@ -755,21 +818,21 @@ public class GpxLayer extends Layer {
          ****************************************************************/
         if (large || hdopcircle) {
             g.setColor(neutralColor);
-            for (WayPoint trkPnt : visibleSegments) {
-                LatLon c = trkPnt.getCoor();
+            for (VisiblePoint trkPnt : visibleSegments) {
+                LatLon c = trkPnt.coor;
                 if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
                     continue;
                 }
-                Point screen = mv.getPoint(trkPnt.getEastNorth());
-                g.setColor(trkPnt.customColoring);
-                if (hdopcircle && trkPnt.attr.get("hdop") != null) {
+                Point screen = mv.getPoint(trkPnt.eastNorth);
+                g.setColor(trkPnt.color);
+                if (hdopcircle && !Float.isNaN(trkPnt.hdop)) {
                     // hdop value
-                    float hdop = ((Float)trkPnt.attr.get("hdop")).floatValue();
+                    float hdop = trkPnt.hdop;
                     if (hdop < 0) {
                         hdop = 0;
                     }
                     // hdop pixels
-                    int hdopp = mv.getPoint(new LatLon(trkPnt.getCoor().lat(), trkPnt.getCoor().lon() + 2*6*hdop*360/40000000)).x - screen.x;
+                    int hdopp = mv.getPoint(new LatLon(c.lat(), c.lon() + 2*6*hdop*360/40000000)).x - screen.x;
                     g.drawArc(screen.x-hdopp/2, screen.y-hdopp/2, hdopp, hdopp, 0, 360);
                 }
                 if (large) {
@@ -783,13 +846,13 @@ public class GpxLayer extends Layer {
          ****************************************************************/
         if (!large && lines) {
             g.setColor(neutralColor);
-            for (WayPoint trkPnt : visibleSegments) {
-                LatLon c = trkPnt.getCoor();
+            for (VisiblePoint trkPnt : visibleSegments) {
+                LatLon c = trkPnt.coor;
                 if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
                     continue;
                 }
                 if (!trkPnt.drawLine) {
-                    Point screen = mv.getPoint(trkPnt.getEastNorth());
+                    Point screen = mv.getPoint(trkPnt.eastNorth);
                     g.drawRect(screen.x, screen.y, 0, 0);
                 }
             } // end for trkpnt
@@ -800,13 +863,13 @@ public class GpxLayer extends Layer {
          ****************************************************************/
         if (!large && !lines) {
             g.setColor(neutralColor);
-            for (WayPoint trkPnt : visibleSegments) {
-                LatLon c = trkPnt.getCoor();
+            for (VisiblePoint trkPnt : visibleSegments) {
+                LatLon c = trkPnt.coor;
                 if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
                     continue;
                 }
-                Point screen = mv.getPoint(trkPnt.getEastNorth());
-                g.setColor(trkPnt.customColoring);
+                Point screen = mv.getPoint(trkPnt.eastNorth);
+                g.setColor(trkPnt.color);
                 g.drawRect(screen.x, screen.y, 0, 0);
             } // end for trkpnt
         } // end if large
@@ -819,6 +882,101 @@ public class GpxLayer extends Layer {
         // System.out.println(duration);
     } // end paint
 
+    /**
+     * A track point to paint, with the state computed for it.
+     */
+    private static final class VisiblePoint {
+        private final GpxSegmentPoints points;
+        private final int index;
+        final LatLon coor;
+        /** null for a point without valid coordinates */
+        final EastNorth eastNorth;
+        final Color color;
+        final boolean drawLine;
+        final int dir;
+        final float hdop;
+
+        VisiblePoint(GpxSegmentPoints points, int index, boolean drawLine) {
+            this.points = points;
+            this.index = index;
+            this.coor = points.getCoor(index);
+            this.eastNorth = Double.isNaN(coor.lat()) || Double.isNaN(coor.lon()) ? null : points.getEastNorth(index);
+            this.color = points.colors[index];
+            this.drawLine = drawLine;
+            this.dir = points.dir[index];
+            this.hdop = points.getHdop(index);
+        }
+
+        boolean isPoint(GpxSegmentPoints points, int index) {
+            return this.points == points && this.index == index;
+        }
+    }
+
+    /**
+     * Replies whether a track point or the line leading to it is visible.
+     *
+     * @param c the coordinates of the track point
+     * @param l the coordinates of the previous track point if the line leading to c is drawn, null otherwise
+     * @param box the visible area
+     */
+    private static boolean isVisible(LatLon c, LatLon l, Bounds box) {
+        if (box.crosses180thMeridian()) {
+            Bounds b = new Bounds(c);
+            if (l != null) {
+                b.extend(l);
+            }
+            return b.intersects(box);
+        }
+        double minLat = c.lat(), maxLat = c.lat(), minLon = c.lon(), maxLon = c.lon();
+        if (l != null) {
+            minLat = Math.min(minLat, l.lat());
+            maxLat = Math.max(maxLat, l.lat());
+            minLon = Math.min(minLon, l.lon());
+            maxLon = Math.max(maxLon, l.lon());
+        }
+        return maxLat >= box.getMin().lat() && minLat <= box.getMax().lat()
+                && maxLon >= box.getMin().lon() && minLon <= box.getMax().lon();
+    }
+
+    /**
+     * Builds the simplified versions of all large track segments in the background, the layer
+     * is painted with all points until they are ready. Called on the first paint of the layer
+     * and whenever segments were added or changed.
+     *
+     * @param maxLineLength the maximum length of lines drawn in meters, -1 for no limit
+     */
+    private void buildPyramids(final int maxLineLength) {
+        if (pyramidsBuilding)
+            return;
+        pyramidsBuilding = true;
+        final List<GpxSegmentPoints> segments = new ArrayList<GpxSegmentPoints>(segmentPoints.values());
+        final Map<GpxTrackSegment, GpxSegmentPyramid> oldPyramids = pyramids;
+        pyramidBuilder.execute(new Runnable() {
+            public void run() {
+                Map<GpxTrackSegment, GpxSegmentPyramid> newPyramids = new HashMap<GpxTrackSegment, GpxSegmentPyramid>();
+                try {
+                    for (GpxSegmentPoints points : segments) {
+                        if (points.size() < GpxSegmentPyramid.MIN_POINTS) {
+                            continue;
+                        }
+                        GpxTrackSegment segment = points.getSegment();
+                        GpxSegmentPyramid pyramid = oldPyramids.get(segment);
+                        if (pyramid == null || !pyramid.isValid(segment, maxLineLength)) {
+                            pyramid = new GpxSegmentPyramid(points, maxLineLength);
+                        }
+                        newPyramids.put(segment, pyramid);
+                    }
+                    pyramids = newPyramids;
+                } finally {
+                    pyramidsBuilding = false;
+                }
+                if (Main.map != null) {
+                    Main.map.repaint();
+                }
+            }
+        });
+    }
+
     @Override
     public void visitBoundingBox(BoundingXYVisitor v) {
         v.visit(data.recalculateBounds());
@@ -2044,6 +2202,10 @@ public class GpxLayer extends Layer {
         if (data.tracks != null){
             for (GpxTrack track: data.tracks) {
                 for (GpxTrackSegment segment: track.getSegments()) {
+                    if (segment instanceof CompactGpxTrackSegment) {
+                        // no projected coordinates are kept for its points
+                        continue;
+                    }
                     for (WayPoint wp: segment.getWayPoints()) {
                         wp.invalidateEastNorthCache();
                     }
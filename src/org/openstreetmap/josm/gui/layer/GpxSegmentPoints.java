@@ -0,0 +1,109 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.gui.layer;
+
+import java.awt.Color;
+import java.util.Collection;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.gpx.CompactGpxTrackSegment;
+import org.openstreetmap.josm.data.gpx.GpxTrackSegment;
+import org.openstreetmap.josm.data.gpx.WayPoint;
+import org.openstreetmap.josm.data.projection.Projections;
+
+/**
+ * The points of a track segment as painted by the {@link GpxLayer}, together with the color,
+ * the line flag and the direction computed for each point.
+ *
+ * The coordinates and times of a {@link CompactGpxTrackSegment} are read from its arrays,
+ * so that painting does not create its way points. The state computed for painting is kept
+ * here, in the layer, and not in the points of the segment.
+ */
+final class GpxSegmentPoints {
+
+    private final GpxTrackSegment segment;
+    /** the segment if it is compact, null otherwise */
+    private final CompactGpxTrackSegment compact;
+    /** the points of a segment which is not compact, null otherwise */
+    private final WayPoint[] wayPoints;
+
+    /** the color of each point and of the line leading to it */
+    final Color[] colors;
+    /** whether the line from the previous point is drawn */
+    final boolean[] drawLine;
+    /** the direction of the line leading to the point, an index of the arrow lookup table */
+    final byte[] dir;
+
+    GpxSegmentPoints(GpxTrackSegment segment) {
+        this.segment = segment;
+        if (segment instanceof CompactGpxTrackSegment) {
+            compact = (CompactGpxTrackSegment) segment;
+            wayPoints = null;
+        } else {
+            compact = null;
+            Collection<WayPoint> points = segment.getWayPoints();
+            wayPoints = points.toArray(new WayPoint[points.size()]);
+        }
+        int n = size();
+        colors = new Color[n];
+        drawLine = new boolean[n];
+        dir = new byte[n];
+    }
+
+    GpxTrackSegment getSegment() {
+        return segment;
+    }
+
+    int size() {
+        return compact != null ? compact.size() : wayPoints.length;
+    }
+
+    double getLat(int i) {
+        return compact != null ? compact.getLat(i) : wayPoints[i].getCoor().lat();
+    }
+
+    double getLon(int i) {
+        return compact != null ? compact.getLon(i) : wayPoints[i].getCoor().lon();
+    }
+
+    LatLon getCoor(int i) {
+        return compact != null ? new LatLon(compact.getLat(i), compact.getLon(i)) : wayPoints[i].getCoor();
+    }
+
+    /**
+     * Replies whether the point has valid coordinates.
+     */
+    boolean isValid(int i) {
+        LatLon c = compact != null ? null : wayPoints[i].getCoor();
+        double lat = c != null ? c.lat() : compact.getLat(i);
+        double lon = c != null ? c.lon() : compact.getLon(i);
+        return !Double.isNaN(lat) && !Double.isNaN(lon);
+    }
+
+    /**
+     * Replies the projected coordinates of a point. They are cached by the points of a segment
+     * which is not compact, and computed on each call otherwise.
+     */
+    EastNorth getEastNorth(int i) {
+        if (compact != null)
+            return Projections.project(getCoor(i));
+        return wayPoints[i].getEastNorth();
+    }
+
+    /**
+     * Replies the value of {@link WayPoint#time} of a point, in seconds.
+     */
+    double getTime(int i) {
+        return compact != null ? compact.getTime(i) : wayPoints[i].time;
+    }
+
+    /**
+     * Replies the "hdop" attribute of a point, NaN if the point has none.
+     */
+    float getHdop(int i) {
+        if (compact != null)
+            return compact.getHdop(i);
+        Object value = wayPoints[i].attr.get("hdop");
+        return value == null ? Float.NaN : (Float) value;
+    }
+}
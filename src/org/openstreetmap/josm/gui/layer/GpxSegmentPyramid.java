@@ -0,0 +1,148 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.gui.layer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.gpx.GpxTrackSegment;
+import org.openstreetmap.josm.data.projection.Projection;
+
+/**
+ * Simplified versions of a GPX track segment for painting at smaller scales.
+ *
+ * Each level is built by decimation: a point is only kept if it lies at least one cell size
+ * away (in east or north direction) from the point kept before it. The cell size doubles from
+ * level to level, only levels which keep at most half of the points of the previous level are
+ * stored.
+ * The first and the last point and both ends of each gap in the track (lines longer than the
+ * maximum line length) are always kept, so the lines of a level are drawn or left out just as
+ * the lines of the full segment. A level drawn at a scale of at least one cell per pixel looks
+ * nearly the same as the full segment.
+ */
+final class GpxSegmentPyramid {
+
+    /** Segments with less points are always painted in full */
+    static final int MIN_POINTS = 500;
+    private static final int MAX_LEVELS = 24;
+
+    private final GpxTrackSegment segment;
+    private final Projection projection;
+    private final int maxLineLength;
+
+    private final Bounds bounds;
+    /** the cell size of each level, in east/north units, ascending */
+    private final double[] cellSizes;
+    /** the indexes of the points kept in each level */
+    private final int[][] levels;
+
+    /**
+     * Builds the levels of a segment. Only the indexes of the points are kept.
+     *
+     * @param points the points of the segment
+     * @param maxLineLength the maximum length of lines drawn in meters, -1 for no limit
+     */
+    GpxSegmentPyramid(GpxSegmentPoints points, int maxLineLength) {
+        this.segment = points.getSegment();
+        this.projection = Main.getProjection();
+        this.maxLineLength = maxLineLength;
+        this.bounds = segment.getBounds();
+        int size = points.size();
+
+        // the level 0 of the decimation: all points with valid coordinates
+        int n = 0;
+        int[] indexes = new int[size];
+        boolean[] gaps = new boolean[size];
+        double[] east = new double[size];
+        double[] north = new double[size];
+        double minEast = Double.POSITIVE_INFINITY, maxEast = Double.NEGATIVE_INFINITY;
+        double minNorth = Double.POSITIVE_INFINITY, maxNorth = Double.NEGATIVE_INFINITY;
+        LatLon last = null;
+        for (int i = 0; i < size; i++) {
+            LatLon c = points.getCoor(i);
+            if (Double.isNaN(c.lat()) || Double.isNaN(c.lon())) {
+                continue;
+            }
+            EastNorth en = points.getEastNorth(i);
+            east[i] = en.east();
+            north[i] = en.north();
+            minEast = Math.min(minEast, east[i]);
+            maxEast = Math.max(maxEast, east[i]);
+            minNorth = Math.min(minNorth, north[i]);
+            maxNorth = Math.max(maxNorth, north[i]);
+            gaps[n] = last == null || (maxLineLength != -1 && c.greatCircleDistance(last) > maxLineLength);
+            indexes[n++] = i;
+            last = c;
+        }
+
+        List<Double> sizes = new ArrayList<Double>();
+        List<int[]> kept = new ArrayList<int[]>();
+        double extent = Math.max(maxEast - minEast, maxNorth - minNorth);
+        if (n >= MIN_POINTS && extent > 0) {
+            int stored = n;
+            double cellSize = extent / (1 << 20);
+            for (int level = 0; level < MAX_LEVELS && n > 2; level++, cellSize *= 2) {
+                int m = 0;
+                double lastEast = 0, lastNorth = 0;
+                for (int k = 0; k < n; k++) {
+                    int i = indexes[k];
+                    if (k == 0 || k == n - 1 || gaps[k] || gaps[k + 1]
+                            || Math.abs(east[i] - lastEast) >= cellSize || Math.abs(north[i] - lastNorth) >= cellSize) {
+                        // all dropped points are no gap ends, so the line to a kept point is drawn if its own line is
+                        indexes[m] = i;
+                        gaps[m++] = gaps[k];
+                        lastEast = east[i];
+                        lastNorth = north[i];
+                    }
+                }
+                n = m;
+                if (n <= stored / 2) {
+                    sizes.add(cellSize);
+                    kept.add(Arrays.copyOf(indexes, n));
+                    stored = n;
+                }
+            }
+        }
+        cellSizes = new double[sizes.size()];
+        for (int i = 0; i < cellSizes.length; i++) {
+            cellSizes[i] = sizes.get(i);
+        }
+        levels = kept.toArray(new int[kept.size()][]);
+    }
+
+    /**
+     * Replies whether the levels can still be used to paint the segment.
+     */
+    boolean isValid(GpxTrackSegment segment, int maxLineLength) {
+        return segment == this.segment && maxLineLength == this.maxLineLength && Main.getProjection() == projection;
+    }
+
+    Bounds getBounds() {
+        return bounds;
+    }
+
+    int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Replies the points to paint at the given scale.
+     *
+     * @param scale the size of a pixel in east/north units
+     * @return the ascending indexes of the points of the coarsest level whose cells are not
+     * larger than a pixel, null for all points
+     */
+    int[] getIndexes(double scale) {
+        int level = -1;
+        while (level + 1 < cellSizes.length && cellSizes[level + 1] <= scale) {
+            level++;
+        }
+        if (level < 0)
+            return null;
+        return levels[level];
+    }
+}
@@ -23,10 +23,12 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -61,8 +63,12 @@ import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.Relation;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent.DatasetEventType;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
 import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
 import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter.Listener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
 import org.openstreetmap.josm.data.osm.visitor.AbstractVisitor;
 import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
 import org.openstreetmap.josm.data.osm.visitor.paint.MapRendererFactory;
@@ -97,6 +103,17 @@ public class OsmDataLayer extends Layer implements Listener, SelectionChangedLis
     private boolean isChanged = true;
     private int highlightUpdateCount;
 
+    /* cached rendering of the layer and the state it was rendered with */
+    private final TiledPaintCache paintCache = new TiledPaintCache(256, Main.pref.getInteger("mappaint.tiled.margin", 100));
+    private boolean paintCacheActive;
+    private boolean paintCacheInactive;
+    private boolean paintCacheVirtual;
+    private int paintCachePreferencesVersion;
+    private Collection<OsmPrimitive> paintCacheSelection = Collections.emptyList();
+
+    /* above this number of changed primitives the whole cached rendering is discarded */
+    private static final int MAX_PAINT_CACHE_CHANGES = 1000;
+
     public List<TestError> validationErrors = new ArrayList<TestError>();
 
     public void setRequiresSaveToFile(boolean newValue) {
@@ -243,12 +260,13 @@ public class OsmDataLayer extends Layer implements Listener, SelectionChangedLis
      * Draw nodes last to overlap the ways they belong to.
      */
     @Override public void paint(final Graphics2D g, final MapView mv, Bounds box) {
+        int lastHighlightUpdateCount = highlightUpdateCount;
         isChanged = false;
         highlightUpdateCount = data.getHighlightUpdateCount();
 
         boolean active = mv.getActiveLayer() == this;
-        boolean inactive = !active && Main.pref.getBoolean("draw.data.inactive_color", true);
-        boolean virtual = !inactive && mv.isVirtualNodesEnabled();
+        final boolean inactive = !active && Main.pref.getBoolean("draw.data.inactive_color", true);
+        final boolean virtual = !inactive && mv.isVirtualNodesEnabled();
 
         // draw the hatched area for non-downloaded region. only draw if we're the active
         // and bounds are defined; don't draw for inactive layers or loaded GPX files etc
@@ -276,11 +294,140 @@ public class OsmDataLayer extends Layer implements Listener, SelectionChangedLis
             g.fill(a);
         }
 
-        Rendering painter = MapRendererFactory.getInstance().createActiveRenderer(g, mv, inactive);
-        painter.render(data, virtual, box);
+        if (Main.pref.getBoolean("mappaint.tiled", true) && g.getTransform().isIdentity()) {
+            data.setOldBBoxesNeeded(true);
+            updatePaintCache(mv, active, inactive, virtual, lastHighlightUpdateCount);
+            paintCache.paint(g, mv, new TiledPaintCache.Painter() {
+                public void paint(Graphics2D tileGraphics, Bounds tileBox) {
+                    Rendering painter = MapRendererFactory.getInstance().createActiveRenderer(tileGraphics, mv, inactive);
+                    painter.render(data, virtual, tileBox);
+                }
+            });
+        } else {
+            data.setOldBBoxesNeeded(false);
+            paintCache.invalidateAll();
+            Rendering painter = MapRendererFactory.getInstance().createActiveRenderer(g, mv, inactive);
+            painter.render(data, virtual, box);
+        }
         Main.map.conflictDialog.paintConflicts(g, mv);
     }
 
+    /**
+     * Discards the parts of the cached rendering which are affected by changes that are not
+     * reported as dataset events: selection, highlighting and the paint settings.
+     */
+    private void updatePaintCache(MapView mv, boolean active, boolean inactive, boolean virtual, int lastHighlightUpdateCount) {
+        int preferencesVersion = mv.getPaintPreferencesVersion();
+        if (active != paintCacheActive || inactive != paintCacheInactive || virtual != paintCacheVirtual
+                || preferencesVersion != paintCachePreferencesVersion) {
+            paintCacheActive = active;
+            paintCacheInactive = inactive;
+            paintCacheVirtual = virtual;
+            paintCachePreferencesVersion = preferencesVersion;
+            paintCache.invalidateAll();
+        }
+
+        if (lastHighlightUpdateCount != highlightUpdateCount) {
+            Collection<OsmPrimitive> changed = data.getHighlightChanges(lastHighlightUpdateCount);
+            if (changed == null) {
+                paintCache.invalidateAll();
+            } else {
+                for (OsmPrimitive osm : changed) {
+                    paintCache.invalidate(osm.getBBox());
+                }
+            }
+        }
+
+        // the snapshot of the selection is replaced whenever the selection changes
+        Collection<OsmPrimitive> selection = data.getSelected();
+        if (selection != paintCacheSelection) {
+            if (selection.size() + paintCacheSelection.size() > MAX_PAINT_CACHE_CHANGES) {
+                paintCache.invalidateAll();
+            } else {
+                Set<OsmPrimitive> deselected = new HashSet<OsmPrimitive>(paintCacheSelection);
+                for (OsmPrimitive osm : selection) {
+                    if (!deselected.remove(osm)) {
+                        paintCache.invalidate(osm.getBBox());
+                    }
+                }
+                for (OsmPrimitive osm : deselected) {
+                    paintCache.invalidate(osm.getBBox());
+                }
+            }
+            paintCacheSelection = selection;
+        }
+    }
+
+    /**
+     * Discards the parts of the cached rendering which are affected by a dataset change.
+     */
+    private void invalidatePaintCache(AbstractDatasetChangedEvent event) {
+        switch (event.getType()) {
+        case NODE_MOVED:
+            NodeMovedEvent nodeMoved = (NodeMovedEvent) event;
+            paintCache.invalidate(nodeMoved.getOldBBox());
+            // multipolygons change only within the bounding boxes of their ways
+            paintCache.invalidate(nodeMoved.getNode().getBBox());
+            for (OsmPrimitive referrer : nodeMoved.getNode().getReferrers()) {
+                if (referrer instanceof Way) {
+                    paintCache.invalidate(referrer.getBBox());
+                }
+            }
+            break;
+        case WAY_NODES_CHANGED:
+            WayNodesChangedEvent wayNodesChanged = (WayNodesChangedEvent) event;
+            if (wayNodesChanged.getOldBBox() == null) {
+                paintCache.invalidateAll();
+            } else {
+                paintCache.invalidate(wayNodesChanged.getOldBBox());
+                invalidatePaintCache(wayNodesChanged.getChangedWay());
+            }
+            break;
+        case DATA_CHANGED:
+            List<AbstractDatasetChangedEvent> events = ((DataChangedEvent) event).getEvents();
+            if (events == null) {
+                paintCache.invalidateAll();
+            } else {
+                for (AbstractDatasetChangedEvent e : events) {
+                    invalidatePaintCache(e);
+                }
+            }
+            break;
+        case RELATION_MEMBERS_CHANGED:
+            // the former members are not known any more
+            paintCache.invalidateAll();
+            break;
+        case CHANGESET_ID_CHANGED:
+            break;
+        default:
+            Collection<? extends OsmPrimitive> primitives = event.getPrimitives();
+            if (primitives.size() > MAX_PAINT_CACHE_CHANGES) {
+                paintCache.invalidateAll();
+            } else {
+                for (OsmPrimitive osm : primitives) {
+                    if (osm instanceof Relation && event.getType() == DatasetEventType.PRIMITIVES_REMOVED) {
+                        // the members of a removed relation may not be known any more
+                        paintCache.invalidateAll();
+                        break;
+                    }
+                    invalidatePaintCache(osm);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the cached rendering of a primitive and of the primitives whose style may depend on it.
+     */
+    private void invalidatePaintCache(OsmPrimitive osm) {
+        paintCache.invalidate(osm.getBBox());
+        for (OsmPrimitive referrer : osm.getReferrers()) {
+            if (referrer instanceof Way || ((Relation) referrer).isMultipolygon()) {
+                paintCache.invalidate(referrer.getBBox());
+            }
+        }
+    }
+
     @Override public String getToolTipText() {
         int nodes = new FilteredCollection<Node>(data.getNodes(), OsmPrimitive.nonDeletedPredicate).size();
         int ways = new FilteredCollection<Way>(data.getWays(), OsmPrimitive.nonDeletedPredicate).size();
@@ -718,6 +865,7 @@ public class OsmDataLayer extends Layer implements Listener, SelectionChangedLis
 
     public void processDatasetEvent(AbstractDatasetChangedEvent event) {
         isChanged = true;
+        invalidatePaintCache(event);
         setRequiresSaveToFile(true);
         setRequiresUploadToServer(true);
     }
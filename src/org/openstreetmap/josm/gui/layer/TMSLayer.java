@@ -42,9 +42,10 @@ import javax.swing.SwingUtilities;
 import org.openstreetmap.gui.jmapviewer.AttributionSupport;
 import org.openstreetmap.gui.jmapviewer.Coordinate;
 import org.openstreetmap.gui.jmapviewer.JobDispatcher;
-import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
+import org.openstreetmap.gui.jmapviewer.ConcurrentTileCache;
 import org.openstreetmap.gui.jmapviewer.OsmFileCacheTileLoader;
 import org.openstreetmap.gui.jmapviewer.OsmFileCacheTileLoader.TileClearController;
+import org.openstreetmap.gui.jmapviewer.OsmPackCacheTileLoader;
 import org.openstreetmap.gui.jmapviewer.OsmTileLoader;
 import org.openstreetmap.gui.jmapviewer.Tile;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
@@ -105,6 +106,12 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
     //public static final BooleanProperty PROP_DRAW_DEBUG = new BooleanProperty(PREFERENCE_PREFIX + ".draw_debug", false);
     public static final BooleanProperty PROP_ADD_TO_SLIPPYMAP_CHOOSER = new BooleanProperty(PREFERENCE_PREFIX + ".add_to_slippymap_chooser", true);
     public static final StringProperty PROP_TILECACHE_DIR;
+    /**
+     * Keep the cached tiles of each tile source in a single pack file instead of one file per tile.
+     */
+    public static final BooleanProperty PROP_TILECACHE_PACKED = new BooleanProperty(PREFERENCE_PREFIX + ".tilecache_packed", false);
+    /** Memory used by the decoded tile images of one layer, in megabytes */
+    public static final IntegerProperty PROP_MEMORY_CACHE_MB = new IntegerProperty(PREFERENCE_PREFIX + ".memory_cache_mb", 64);
 
     static {
         String defPath = null;
@@ -117,7 +124,7 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
 
     /*boolean debug = true;*/
 
-    protected MemoryTileCache tileCache;
+    protected ConcurrentTileCache tileCache;
     protected TileSource tileSource;
     protected OsmTileLoader tileLoader;
     JobDispatcher jobDispatcher = JobDispatcher.getInstance();
@@ -195,7 +202,7 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
      * method.
      * 
      * @param monitor 
-     * @see MemoryTileCache#clear()
+     * @see ConcurrentTileCache#clear()
      * @see OsmFileCacheTileLoader#clearCache(org.openstreetmap.gui.jmapviewer.interfaces.TileSource, org.openstreetmap.gui.jmapviewer.OsmFileCacheTileLoader.TileClearController) 
      */
     void clearTileCache(ProgressMonitor monitor) {
@@ -212,6 +219,8 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
     public int currentZoomLevel;
 
     private Tile clickedTile;
+    /** The tiles requested by the last paint */
+    private TileSet lastTileSet;
     private boolean needRedraw;
     private JPopupMenu tileOptionMenu;
     JCheckBoxMenuItem autoZoomPopup;
@@ -372,19 +381,28 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
         }
     }
 
+    /**
+     * Creates the tile loader for the tile cache directory, according to {@link #PROP_TILECACHE_PACKED}.
+     */
+    public static OsmFileCacheTileLoader createCacheTileLoader(TileLoaderListener listener, File cacheDir) throws IOException {
+        if (PROP_TILECACHE_PACKED.get())
+            return new OsmPackCacheTileLoader(listener, cacheDir);
+        return new OsmFileCacheTileLoader(listener, cacheDir);
+    }
+
     private void initTileSource(TileSource tileSource) {
         this.tileSource = tileSource;
         attribution.initialize(tileSource);
 
         currentZoomLevel = getBestZoom();
 
-        tileCache = new MemoryTileCache();
+        tileCache = new ConcurrentTileCache(PROP_MEMORY_CACHE_MB.get() * 1024L * 1024L);
 
         String cachePath = TMSLayer.PROP_TILECACHE_DIR.get();
         tileLoader = null;
         if (cachePath != null && !cachePath.isEmpty()) {
             try {
-                tileLoader = new OsmFileCacheTileLoader(this, new File(cachePath));
+                tileLoader = createCacheTileLoader(this, new File(cachePath));
             } catch (IOException e) {
             }
         }
@@ -406,6 +424,14 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
         needRedraw = true;
     }
 
+    @Override
+    public void destroy() {
+        super.destroy();
+        if (tileLoader instanceof OsmPackCacheTileLoader) {
+            ((OsmPackCacheTileLoader) tileLoader).close();
+        }
+    }
+
     /**
      * Returns average number of screen pixels per tile pixel for current mapview
      */
@@ -649,8 +675,17 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
             Main.debug("zoomChanged(): " + currentZoomLevel);
         }*/
         needRedraw = true;
-        jobDispatcher.cancelOutstandingJobs();
-        tileRequestsOutstanding.clear();
+        cancelOutstandingRequests();
+    }
+
+    /**
+     * Removes the tile requests of this layer from the job queue that are not
+     * processed yet, e.g. because the tiles are no longer visible.
+     */
+    synchronized void cancelOutstandingRequests() {
+        for (Runnable job : jobDispatcher.cancelOutstandingJobs(this)) {
+            tileRequestsOutstanding.remove(((TileLoadJob) job).tile);
+        }
     }
 
     int getMaxZoomLvl() {
@@ -763,6 +798,15 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
     }
 
     synchronized boolean loadTile(Tile tile, boolean force) {
+        return loadTile(tile, force, 0);
+    }
+
+    /**
+     * Queues the tile for loading.
+     *
+     * @param priority tiles with a lower value are loaded first
+     */
+    synchronized boolean loadTile(Tile tile, boolean force, double priority) {
         if (tile == null)
             return false;
         if (!force && (tile.hasError() || tile.isLoaded()))
@@ -772,11 +816,32 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
         if (tileRequestsOutstanding.contains(tile))
             return false;
         tileRequestsOutstanding.add(tile);
-        jobDispatcher.addJob(tileLoader.createTileLoaderJob(tileSource,
-                tile.getXtile(), tile.getYtile(), tile.getZoom()));
+        String host;
+        try {
+            host = new URL(tile.getUrl()).getHost();
+        } catch (IOException e) {
+            host = null;
+        }
+        jobDispatcher.addJob(new TileLoadJob(tile, tileLoader.createTileLoaderJob(tileSource,
+                tile.getXtile(), tile.getYtile(), tile.getZoom())), this, host, priority);
         return true;
     }
 
+    private static class TileLoadJob implements Runnable {
+        final Tile tile;
+        final Runnable job;
+
+        TileLoadJob(Tile tile, Runnable job) {
+            this.tile = tile;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            job.run();
+        }
+    }
+
     void loadAllTiles(boolean force) {
         MapView mv = Main.map.mapView;
         EastNorth topLeft = mv.getEastNorth(0, 0);
@@ -1173,10 +1238,23 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
             if (!autoLoad && !force)
                 return;
             for (Tile t : this.allTilesCreate()) {
-                loadTile(t, false);
+                loadTile(t, false, distanceFromCenter(t));
             }
         }
 
+        /**
+         * Distance of the tile from the center of this set, in tiles.
+         */
+        double distanceFromCenter(Tile t) {
+            double dx = t.getXtile() + 0.5 - (x0 + x1 + 1) / 2.0;
+            double dy = t.getYtile() + 0.5 - (y0 + y1 + 1) / 2.0;
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+
+        boolean hasSameTiles(TileSet ts) {
+            return ts != null && zoom == ts.zoom && x0 == ts.x0 && x1 == ts.x1 && y0 == ts.y0 && y1 == ts.y1;
+        }
+
         void loadAllErrorTiles(boolean force) {
             if (!autoLoad && !force)
                 return;
@@ -1315,6 +1393,12 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
             setZoomLevel(zoom);
         }
 
+        // Requests for tiles that are no longer visible would delay the visible ones
+        if (!ts.hasSameTiles(lastTileSet)) {
+            cancelOutstandingRequests();
+            lastTileSet = ts;
+        }
+
         // Too many tiles... refuse to download
         if (!ts.tooLarge()) {
             //Main.debug("size: " + ts.size() + " spanned: " + ts.tilesSpanned());
@@ -1457,6 +1541,15 @@ public class TMSLayer extends ImageryLayer implements ImageObserver, TileLoaderL
         return null;
     }
 
+    @Override
+    public Object getInfoComponent() {
+        String cacheInfo = tr("{0} tiles in memory ({1} MB), {2}% hit ratio, {3} tiles evicted",
+                tileCache.getTileCount(), tileCache.getBytes() / (1024 * 1024),
+                Math.round(tileCache.getHitRatio() * 100), tileCache.getEvictions());
+        Object info = super.getInfoComponent();
+        return info == null ? cacheInfo : info + "\n" + cacheInfo;
+    }
+
     @Override
     public void visitBoundingBox(BoundingXYVisitor v) {
     }
@@ -0,0 +1,351 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.gui.layer;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.gui.NavigatableComponent;
+
+/**
+ * Caches the rendering of a layer in square tiles of the screen.
+ *
+ * The tiles are aligned to the projected coordinates, so they stay valid while the map is
+ * moved, and only have to be rendered again when the scale changes or when the part of the map
+ * they show was {@link #invalidate(BBox) invalidated}. All invalid tiles which are visible are
+ * rendered in one pass when the layer is painted.
+ *
+ * Content is rendered with a margin around the invalid tiles, so icons and labels of primitives
+ * just outside a tile are not cut off. Invalidated areas are grown by the same margin.
+ */
+public class TiledPaintCache {
+
+    /**
+     * Renders a part of the layer.
+     */
+    public interface Painter {
+        /**
+         * Renders the content of <code>box</code>. The graphics is set up to draw in screen
+         * coordinates of the map view, clipped to the area which is cached.
+         */
+        void paint(Graphics2D g, Bounds box);
+    }
+
+    private static class Tile {
+        final BufferedImage image;
+        /* the part of the tile which was inside the map view when it was rendered, in tile coordinates */
+        Rectangle valid;
+
+        Tile(int size) {
+            image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        }
+    }
+
+    /* above this number of pending areas everything is rendered again */
+    private static final int MAX_INVALID_AREAS = 1000;
+
+    private final int tileSize;
+    private final int margin;
+    private final Map<Long, Tile> tiles = new HashMap<Long, Tile>();
+    private BufferedImage scratch;
+
+    private final List<BBox> invalidAreas = new ArrayList<BBox>();
+    private boolean allInvalid = true;
+
+    /* the view the tiles were rendered for */
+    private Projection projection;
+    private double scale;
+    private double originX;
+    private double originY;
+    /* offset of the current view from the one the tiles were rendered for, in pixels */
+    private int shiftX;
+    private int shiftY;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param tileSize the width and height of a tile in pixels
+     * @param margin the distance in pixels up to which primitives outside of a tile may affect it
+     */
+    public TiledPaintCache(int tileSize, int margin) {
+        this.tileSize = tileSize;
+        this.margin = margin;
+    }
+
+    /**
+     * Marks the part of the map covered by <code>bbox</code> to be rendered again.
+     */
+    public void invalidate(BBox bbox) {
+        if (bbox == null || !(bbox.width() >= 0) || !(bbox.height() >= 0))
+            return;
+        synchronized (invalidAreas) {
+            if (allInvalid)
+                return;
+            if (invalidAreas.size() >= MAX_INVALID_AREAS) {
+                allInvalid = true;
+                invalidAreas.clear();
+            } else {
+                invalidAreas.add(bbox);
+            }
+        }
+    }
+
+    /**
+     * Marks the whole map to be rendered again.
+     */
+    public void invalidateAll() {
+        synchronized (invalidAreas) {
+            allInvalid = true;
+            invalidAreas.clear();
+        }
+    }
+
+    /**
+     * Paints the layer from the cached tiles, rendering those which are missing first.
+     *
+     * @param g the graphics of the map view
+     * @param nc the map view
+     * @param painter renders the parts of the layer which are not cached
+     */
+    public void paint(Graphics2D g, NavigatableComponent nc, Painter painter) {
+        Rectangle viewport = new Rectangle(0, 0, nc.getWidth(), nc.getHeight());
+        Rectangle clip = g.getClipBounds();
+        clip = (clip == null ? viewport : clip.intersection(viewport));
+        if (clip.isEmpty())
+            return;
+
+        updateView(nc);
+        processInvalidAreas(nc);
+
+        Rectangle visible = new Rectangle(viewport.x + shiftX, viewport.y + shiftY, viewport.width, viewport.height);
+        int tx0 = floorDiv(clip.x + shiftX);
+        int ty0 = floorDiv(clip.y + shiftY);
+        int tx1 = floorDiv(clip.x + clip.width - 1 + shiftX);
+        int ty1 = floorDiv(clip.y + clip.height - 1 + shiftY);
+
+        // collect the tiles which have to be rendered
+        Rectangle dirty = null;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                Tile tile = tiles.get(key(tx, ty));
+                Rectangle needed = new Rectangle(tx * tileSize, ty * tileSize, tileSize, tileSize).intersection(visible);
+                needed.translate(-tx * tileSize, -ty * tileSize);
+                if (tile == null || !tile.valid.contains(needed)) {
+                    Rectangle r = new Rectangle(tx * tileSize, ty * tileSize, tileSize, tileSize);
+                    dirty = (dirty == null ? r : dirty.union(r));
+                }
+            }
+        }
+
+        if (dirty != null) {
+            render(nc, painter, dirty.intersection(visible), visible);
+        }
+
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                Tile tile = tiles.get(key(tx, ty));
+                if (tile != null) {
+                    g.drawImage(tile.image, tx * tileSize - shiftX, ty * tileSize - shiftY, null);
+                }
+            }
+        }
+
+        // forget tiles which are far away from the view
+        Rectangle keep = new Rectangle(visible);
+        keep.grow(tileSize, tileSize);
+        for (Iterator<Map.Entry<Long, Tile>> it = tiles.entrySet().iterator(); it.hasNext();) {
+            long k = it.next().getKey();
+            int tx = (int) (k >> 32);
+            int ty = (int) k;
+            if (!keep.intersects(tx * tileSize, ty * tileSize, tileSize, tileSize)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Renders the area <code>r</code> (in tile space) in one pass and copies the result into the tiles.
+     */
+    private void render(NavigatableComponent nc, Painter painter, Rectangle r, Rectangle visible) {
+        if (scratch == null || scratch.getWidth() < r.width || scratch.getHeight() < r.height) {
+            scratch = new BufferedImage(Math.max(r.width, nc.getWidth()), Math.max(r.height, nc.getHeight()),
+                    BufferedImage.TYPE_INT_ARGB);
+        }
+        Graphics2D sg = scratch.createGraphics();
+        try {
+            sg.setComposite(AlphaComposite.Clear);
+            sg.fillRect(0, 0, r.width, r.height);
+            sg.setPaintMode();
+            // draw in screen coordinates
+            Rectangle screen = new Rectangle(r.x - shiftX, r.y - shiftY, r.width, r.height);
+            sg.translate(-screen.x, -screen.y);
+            sg.setClip(screen);
+            Rectangle area = new Rectangle(screen);
+            area.grow(margin, margin);
+            painter.paint(sg, nc.getLatLonBounds(area));
+        } finally {
+            sg.dispose();
+        }
+
+        int tx0 = floorDiv(r.x);
+        int ty0 = floorDiv(r.y);
+        int tx1 = floorDiv(r.x + r.width - 1);
+        int ty1 = floorDiv(r.y + r.height - 1);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                Rectangle tileRect = new Rectangle(tx * tileSize, ty * tileSize, tileSize, tileSize);
+                Rectangle part = tileRect.intersection(r);
+                Rectangle valid = tileRect.intersection(visible);
+                if (!part.contains(valid)) {
+                    // only partially rendered, the rest was not requested
+                    continue;
+                }
+                Long k = key(tx, ty);
+                Tile tile = tiles.get(k);
+                if (tile == null) {
+                    tile = new Tile(tileSize);
+                    tiles.put(k, tile);
+                }
+                Graphics2D tg = tile.image.createGraphics();
+                try {
+                    tg.setComposite(AlphaComposite.Src);
+                    tg.drawImage(scratch,
+                            part.x - tileRect.x, part.y - tileRect.y,
+                            part.x - tileRect.x + part.width, part.y - tileRect.y + part.height,
+                            part.x - r.x, part.y - r.y,
+                            part.x - r.x + part.width, part.y - r.y + part.height, null);
+                } finally {
+                    tg.dispose();
+                }
+                valid.translate(-tileRect.x, -tileRect.y);
+                tile.valid = valid;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the tiles still fit to the scale and position of the map view.
+     */
+    private void updateView(NavigatableComponent nc) {
+        Projection currentProjection = Main.getProjection();
+        double currentScale = 1.0 / nc.getAffineTransform().getScaleX();
+        // the screen position of the projection origin, as computed by the renderers
+        Point2D origin = nc.getPoint2D(new EastNorth(0, 0));
+        double dx = origin.getX() - originX;
+        double dy = origin.getY() - originY;
+        boolean sameView = currentProjection == projection && currentScale == scale
+                && Math.abs(dx - Math.rint(dx)) < 1e-3 && Math.abs(dy - Math.rint(dy)) < 1e-3
+                && Math.abs(dx) < Integer.MAX_VALUE / 2 && Math.abs(dy) < Integer.MAX_VALUE / 2;
+        if (sameView) {
+            shiftX = -(int) Math.rint(dx);
+            shiftY = -(int) Math.rint(dy);
+        } else {
+            projection = currentProjection;
+            scale = currentScale;
+            originX = origin.getX();
+            originY = origin.getY();
+            shiftX = 0;
+            shiftY = 0;
+            invalidateAll();
+        }
+    }
+
+    private void processInvalidAreas(NavigatableComponent nc) {
+        List<BBox> areas;
+        synchronized (invalidAreas) {
+            if (allInvalid) {
+                tiles.clear();
+                allInvalid = false;
+                invalidAreas.clear();
+                return;
+            }
+            if (invalidAreas.isEmpty())
+                return;
+            areas = new ArrayList<BBox>(invalidAreas);
+            invalidAreas.clear();
+        }
+        for (BBox bbox : areas) {
+            Rectangle r = toTileSpace(nc, bbox);
+            if (r == null) {
+                continue;
+            }
+            int tx0 = floorDiv(r.x);
+            int ty0 = floorDiv(r.y);
+            int tx1 = floorDiv(r.x + r.width);
+            int ty1 = floorDiv(r.y + r.height);
+            if ((long) (tx1 - tx0 + 1) * (ty1 - ty0 + 1) > tiles.size()) {
+                for (Iterator<Long> it = tiles.keySet().iterator(); it.hasNext();) {
+                    long k = it.next();
+                    int tx = (int) (k >> 32);
+                    int ty = (int) k;
+                    if (tx >= tx0 && tx <= tx1 && ty >= ty0 && ty <= ty1) {
+                        it.remove();
+                    }
+                }
+            } else {
+                for (int ty = ty0; ty <= ty1; ty++) {
+                    for (int tx = tx0; tx <= tx1; tx++) {
+                        tiles.remove(key(tx, ty));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a bounding box into a rectangle in tile space, grown by the margin.
+     * @return the rectangle, null if the bounding box is not in the area of the tiles
+     */
+    private Rectangle toTileSpace(NavigatableComponent nc, BBox bbox) {
+        LatLon tl = bbox.getTopLeft();
+        LatLon br = bbox.getBottomRight();
+        LatLon[] corners = {tl, br, new LatLon(tl.lat(), br.lon()), new LatLon(br.lat(), tl.lon())};
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (LatLon ll : corners) {
+            Point2D p = nc.getPoint2D(ll);
+            minX = Math.min(minX, p.getX());
+            minY = Math.min(minY, p.getY());
+            maxX = Math.max(maxX, p.getX());
+            maxY = Math.max(maxY, p.getY());
+        }
+        if (Double.isNaN(minX) || Double.isNaN(minY) || Double.isNaN(maxX) || Double.isNaN(maxY))
+            return null;
+        // limit to the area around the view, tiles are kept only there
+        double limit = 4 * (nc.getWidth() + nc.getHeight() + tileSize + margin);
+        minX = Math.max(minX, -limit);
+        minY = Math.max(minY, -limit);
+        maxX = Math.min(maxX, limit);
+        maxY = Math.min(maxY, limit);
+        if (minX > maxX || minY > maxY)
+            return null;
+        int x0 = (int) Math.floor(minX) - margin + shiftX;
+        int y0 = (int) Math.floor(minY) - margin + shiftY;
+        int x1 = (int) Math.ceil(maxX) + margin + shiftX;
+        int y1 = (int) Math.ceil(maxY) + margin + shiftY;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private int floorDiv(int v) {
+        return (int) Math.floor((double) v / tileSize);
+    }
+
+    private static Long key(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xffffffffL);
+    }
+}
@@ -846,6 +846,7 @@ public class WMSLayer extends ImageryLayer implements ImageObserver, PreferenceC
                 if(info.getUrl() != null)
                 {
                     cache = new WmsCache(info.getUrl(), imageSize);
+                    cache.loadIndex();
                     startGrabberThreads();
                 }
             }
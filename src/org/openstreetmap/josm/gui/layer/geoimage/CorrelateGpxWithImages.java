@@ -65,6 +65,8 @@ import javax.swing.event.ListSelectionListener;
 import javax.swing.filechooser.FileFilter;
 
 import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.gpx.CompactGpxTrackSegment;
 import org.openstreetmap.josm.data.gpx.GpxData;
 import org.openstreetmap.josm.data.gpx.GpxTrack;
 import org.openstreetmap.josm.data.gpx.GpxTrackSegment;
@@ -711,6 +713,12 @@ public class CorrelateGpxWithImages extends AbstractAction {
             @Override
             public void windowDeactivated(WindowEvent e) {
                 int result = checkAndSave();
+                if (result != NOTHING) {
+                    // the dialog is closed, don't keep the times of the track
+                    segmentTimesData = null;
+                    segmentTimes = null;
+                    segmentTimesTracks.clear();
+                }
                 switch (result) {
                 case NOTHING:
                     break;
@@ -992,7 +1000,6 @@ public class CorrelateGpxWithImages extends AbstractAction {
             GpxData gpx = gpxW.data;
 
             ArrayList<ImageEntry> imgs = getSortedImgList();
-            PrimaryDateParser dateParser = new PrimaryDateParser();
 
             // no images found, exit
             if(imgs.size() <= 0) {
@@ -1007,18 +1014,11 @@ public class CorrelateGpxWithImages extends AbstractAction {
 
             long firstGPXDate = -1;
             // Finds first GPX point
-            outer: for (GpxTrack trk : gpx.tracks) {
-                for (GpxTrackSegment segment : trk.getSegments()) {
-                    for (WayPoint curWp : segment.getWayPoints()) {
-                        String curDateWpStr = (String) curWp.attr.get("time");
-                        if (curDateWpStr == null) {
-                            continue;
-                        }
-
-                        try {
-                            firstGPXDate = dateParser.parse(curDateWpStr).getTime()/1000;
-                            break outer;
-                        } catch(Exception e) {}
+            outer: for (SegmentTimes segment : getSegmentTimes(gpx)) {
+                for (long time : segment.times) {
+                    if (time != SegmentTimes.NO_TIME) {
+                        firstGPXDate = time/1000;
+                        break outer;
                     }
                 }
             }
@@ -1130,6 +1130,96 @@ public class CorrelateGpxWithImages extends AbstractAction {
         return (GpxDataWrapper) item;
     }
 
+    /**
+     * The times, coordinates and elevations of the points of a track segment. They are kept in
+     * arrays, so that the photos can be matched quickly again and again with other offsets.
+     */
+    private static class SegmentTimes {
+        static final long NO_TIME = Long.MIN_VALUE;
+
+        /** the time in milliseconds, NO_TIME for points without (valid) time */
+        final long[] times;
+        final double[] lat;
+        final double[] lon;
+        /** NaN for points without (valid) elevation */
+        final double[] ele;
+
+        SegmentTimes(GpxTrackSegment segment, PrimaryDateParser dateParser) {
+            if (segment instanceof CompactGpxTrackSegment) {
+                // read the arrays without creating the way points
+                CompactGpxTrackSegment compact = (CompactGpxTrackSegment) segment;
+                int n = compact.size();
+                times = new long[n];
+                lat = new double[n];
+                lon = new double[n];
+                ele = new double[n];
+                for (int i = 0; i < n; i++) {
+                    times[i] = compact.getTimeMillis(i);
+                    lat[i] = compact.getLat(i);
+                    lon[i] = compact.getLon(i);
+                    ele[i] = compact.getElevation(i);
+                }
+                return;
+            }
+            Collection<WayPoint> wayPoints = segment.getWayPoints();
+            int n = wayPoints.size();
+            times = new long[n];
+            lat = new double[n];
+            lon = new double[n];
+            ele = new double[n];
+            int i = 0;
+            for (WayPoint wp : wayPoints) {
+                times[i] = NO_TIME;
+                String timeStr = (String) wp.attr.get("time");
+                if (timeStr != null) {
+                    try {
+                        times[i] = dateParser.parse(timeStr).getTime();
+                    } catch(ParseException e) {
+                        System.err.println("Error while parsing date \"" + timeStr + '"');
+                        e.printStackTrace();
+                    }
+                }
+                LatLon coor = wp.getCoor();
+                lat[i] = coor.lat();
+                lon[i] = coor.lon();
+                ele[i] = Double.NaN;
+                try {
+                    ele[i] = Double.parseDouble((String) wp.attr.get("ele"));
+                } catch(Exception e) {}
+                i++;
+            }
+        }
+
+        LatLon getCoor(int i) {
+            return new LatLon(lat[i], lon[i]);
+        }
+    }
+
+    /** the GPX data whose times were extracted last */
+    private GpxData segmentTimesData;
+    private final List<GpxTrack> segmentTimesTracks = new ArrayList<GpxTrack>();
+    private List<SegmentTimes> segmentTimes;
+
+    /**
+     * Replies the times of all track segments, which are only extracted again if other GPX data
+     * is selected or its tracks have changed.
+     */
+    private List<SegmentTimes> getSegmentTimes(GpxData data) {
+        if (data != segmentTimesData || segmentTimes == null || !data.tracks.equals(segmentTimesTracks)) {
+            PrimaryDateParser dateParser = new PrimaryDateParser();
+            segmentTimes = new ArrayList<SegmentTimes>();
+            for (GpxTrack trk : data.tracks) {
+                for (GpxTrackSegment segment : trk.getSegments()) {
+                    segmentTimes.add(new SegmentTimes(segment, dateParser));
+                }
+            }
+            segmentTimesData = data;
+            segmentTimesTracks.clear();
+            segmentTimesTracks.addAll(data.tracks);
+        }
+        return segmentTimes;
+    }
+
     /**
      * Match a list of photos to a gpx track with a given offset.
      * All images need a exifTime attribute and the List must be sorted according to these times.
@@ -1137,44 +1227,30 @@ public class CorrelateGpxWithImages extends AbstractAction {
     private int matchGpxTrack(ArrayList<ImageEntry> images, GpxData selectedGpx, long offset) {
         int ret = 0;
 
-        PrimaryDateParser dateParser = new PrimaryDateParser();
-
-        for (GpxTrack trk : selectedGpx.tracks) {
-            for (GpxTrackSegment segment : trk.getSegments()) {
+        for (SegmentTimes segment : getSegmentTimes(selectedGpx)) {
 
-                long prevWpTime = 0;
-                WayPoint prevWp = null;
+            long prevWpTime = 0;
+            int prevWp = -1;
 
-                for (WayPoint curWp : segment.getWayPoints()) {
+            for (int curWp = 0; curWp < segment.times.length; curWp++) {
 
-                    String curWpTimeStr = (String) curWp.attr.get("time");
-                    if (curWpTimeStr != null) {
+                if (segment.times[curWp] != SegmentTimes.NO_TIME) {
+                    long curWpTime = segment.times[curWp] + offset;
+                    ret += matchPoints(images, segment, prevWp, prevWpTime, curWp, curWpTime, offset);
 
-                        try {
-                            long curWpTime = dateParser.parse(curWpTimeStr).getTime() + offset;
-                            ret += matchPoints(images, prevWp, prevWpTime, curWp, curWpTime, offset);
-
-                            prevWp = curWp;
-                            prevWpTime = curWpTime;
-
-                        } catch(ParseException e) {
-                            System.err.println("Error while parsing date \"" + curWpTimeStr + '"');
-                            e.printStackTrace();
-                            prevWp = null;
-                            prevWpTime = 0;
-                        }
-                    } else {
-                        prevWp = null;
-                        prevWpTime = 0;
-                    }
+                    prevWp = curWp;
+                    prevWpTime = curWpTime;
+                } else {
+                    prevWp = -1;
+                    prevWpTime = 0;
                 }
             }
         }
         return ret;
     }
 
-    private int matchPoints(ArrayList<ImageEntry> images, WayPoint prevWp, long prevWpTime,
-            WayPoint curWp, long curWpTime, long offset) {
+    private int matchPoints(ArrayList<ImageEntry> images, SegmentTimes segment, int prevWp, long prevWpTime,
+            int curWp, long curWpTime, long offset) {
         // Time between the track point and the previous one, 5 sec if first point, i.e. photos take
         // 5 sec before the first track point can be assumed to be take at the starting position
         long interval = prevWpTime > 0 ? ((long)Math.abs(curWpTime - prevWpTime)) : 5*1000;
@@ -1191,20 +1267,20 @@ public class CorrelateGpxWithImages extends AbstractAction {
         Double prevElevation = null;
         Double curElevation = null;
 
-        if (prevWp != null) {
-            double distance = prevWp.getCoor().greatCircleDistance(curWp.getCoor());
+        if (prevWp >= 0) {
+            double distance = segment.getCoor(prevWp).greatCircleDistance(segment.getCoor(curWp));
             // This is in km/h, 3.6 * m/s
             if (curWpTime > prevWpTime) {
                 speed = 3600 * distance / (curWpTime - prevWpTime);
             }
-            try {
-                prevElevation = new Double((String) prevWp.attr.get("ele"));
-            } catch(Exception e) {}
+            if (!Double.isNaN(segment.ele[prevWp])) {
+                prevElevation = segment.ele[prevWp];
+            }
         }
 
-        try {
-            curElevation = new Double((String) curWp.attr.get("ele"));
-        } catch (Exception e) {}
+        if (!Double.isNaN(segment.ele[curWp])) {
+            curElevation = segment.ele[curWp];
+        }
 
         // First trackpoint, then interval is set to five seconds, i.e. photos up to five seconds
         // before the first point will be geotagged with the starting point
@@ -1219,7 +1295,7 @@ public class CorrelateGpxWithImages extends AbstractAction {
                     break;
                 }
                 if(curImg.tmp.getPos() == null) {
-                    curImg.tmp.setPos(curWp.getCoor());
+                    curImg.tmp.setPos(segment.getCoor(curWp));
                     curImg.tmp.setSpeed(speed);
                     curImg.tmp.setElevation(curElevation);
                     curImg.tmp.setGpsTime(new Date(curImg.getExifTime().getTime() - offset));
@@ -1246,7 +1322,7 @@ public class CorrelateGpxWithImages extends AbstractAction {
                 // The values of timeDiff are between 0 and 1, it is not seconds but a dimensionless
                 // variable
                 double timeDiff = (double)(imgTime - prevWpTime) / interval;
-                curImg.tmp.setPos(prevWp.getCoor().interpolate(curWp.getCoor(), timeDiff));
+                curImg.tmp.setPos(segment.getCoor(prevWp).interpolate(segment.getCoor(curWp), timeDiff));
                 curImg.tmp.setSpeed(speed);
                 if (curElevation != null && prevElevation != null) {
                     curImg.tmp.setElevation(prevElevation + (curElevation - prevElevation) * timeDiff);
@@ -20,6 +20,7 @@ import org.openstreetmap.josm.actions.mapmode.MapMode;
 import org.openstreetmap.josm.actions.mapmode.PlayHeadDragMode;
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.gpx.CompactGpxTrackSegment;
 import org.openstreetmap.josm.data.gpx.GpxTrack;
 import org.openstreetmap.josm.data.gpx.GpxTrackSegment;
 import org.openstreetmap.josm.data.gpx.WayPoint;
@@ -310,12 +311,27 @@ public class PlayHeadMarker extends Marker {
 
         for (GpxTrack track : trackLayer.data.tracks) {
             for (GpxTrackSegment trackseg : track.getSegments()) {
-                for (WayPoint w: trackseg.getWayPoints()) {
-                    if (audioTime < w.time) {
-                        w2 = w;
-                        break;
+                if (trackseg instanceof CompactGpxTrackSegment) {
+                    // create only the two points around the position, not all points of the segment
+                    CompactGpxTrackSegment compact = (CompactGpxTrackSegment) trackseg;
+                    int i = 0;
+                    while (i < compact.size() && !(audioTime < compact.getTime(i))) {
+                        i++;
+                    }
+                    if (i > 0) {
+                        w1 = compact.getWayPoint(i - 1);
+                    }
+                    if (i < compact.size()) {
+                        w2 = compact.getWayPoint(i);
+                    }
+                } else {
+                    for (WayPoint w: trackseg.getWayPoints()) {
+                        if (audioTime < w.time) {
+                            w2 = w;
+                            break;
+                        }
+                        w1 = w;
                     }
-                    w1 = w;
                 }
                 if (w2 != null) {
                     break;
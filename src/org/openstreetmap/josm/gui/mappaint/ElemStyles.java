@@ -36,6 +36,7 @@ public class ElemStyles {
 
     public void clearCached() {
         cacheIdx++;
+        StyleCache.clearInternPool();
     }
 
     public List<StyleSource> getStyleSources() {
@@ -61,13 +62,9 @@ public class ElemStyles {
      * Uses the cache, if possible, and saves the results to the cache.
      */
     public Pair<StyleList, Range> getStyleCacheWithRange(OsmPrimitive osm, double scale, NavigatableComponent nc) {
-        if (osm.mappaintStyle == null || osm.mappaintCacheIdx != cacheIdx) {
-            osm.mappaintStyle = StyleCache.EMPTY_STYLECACHE;
-        } else {
-            Pair<StyleList, Range> lst = osm.mappaintStyle.getWithRange(scale);
-            if (lst.a != null)
-                return lst;
-        }
+        Pair<StyleList, Range> lst = getCached(osm, scale);
+        if (lst != null)
+            return lst;
         Pair<StyleList, Range> p = getImpl(osm, scale, nc);
         if (osm instanceof Node && isDefaultNodes()) {
             if (p.a.isEmpty()) {
@@ -111,11 +108,37 @@ public class ElemStyles {
                 p.a = new StyleList(p.a, line);
             }
         }
-        osm.mappaintStyle = osm.mappaintStyle.put(p.a, p.b);
-        osm.mappaintCacheIdx = cacheIdx;
+        synchronized (osm) {
+            // the styles may have been computed by another thread in the meantime
+            lst = getCached(osm, scale);
+            if (lst != null)
+                return lst;
+            osm.mappaintStyle = osm.mappaintStyle.put(p.a, p.b);
+        }
         return p;
     }
 
+    /**
+     * Look up the cached styles of a primitive for the given scale.
+     *
+     * The style cache of a primitive may be accessed by several threads at
+     * a time (see {@link org.openstreetmap.josm.data.osm.visitor.paint.StyledMapRenderer}),
+     * so it is only read and written while holding the lock of the primitive.
+     *
+     * @return the cached styles or null, if there is no valid entry for this scale
+     */
+    private Pair<StyleList, Range> getCached(OsmPrimitive osm, double scale) {
+        synchronized (osm) {
+            if (osm.mappaintStyle == null || osm.mappaintCacheIdx != cacheIdx) {
+                osm.mappaintStyle = StyleCache.EMPTY_STYLECACHE;
+                osm.mappaintCacheIdx = cacheIdx;
+                return null;
+            }
+            Pair<StyleList, Range> lst = osm.mappaintStyle.getWithRange(scale);
+            return lst.a != null ? lst : null;
+        }
+    }
+
     /**
      * Create the list of styles and its valid scale range for one primitive.
      *
@@ -347,7 +370,7 @@ public class ElemStyles {
     /**
      * Draw a default node symbol for nodes that have no style?
      */
-    private boolean isDefaultNodes() {
+    private synchronized boolean isDefaultNodes() {
         if (defaultNodesIdx == cacheIdx)
             return defaultNodes;
         defaultNodes = fromCanvas("default-points", true, Boolean.class);
@@ -358,7 +381,7 @@ public class ElemStyles {
     /**
      * Draw a default line for ways that do not have an own line style?
      */
-    private boolean isDefaultLines() {
+    private synchronized boolean isDefaultLines() {
         if (defaultLinesIdx == cacheIdx)
             return defaultLines;
         defaultLines = fromCanvas("default-lines", true, Boolean.class);
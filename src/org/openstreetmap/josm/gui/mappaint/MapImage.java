@@ -32,7 +32,7 @@ public class MapImage {
     public int width = -1;
     public int height = -1;
 
-    private boolean temporary;
+    private volatile boolean temporary;
     private Image disabledImg;
 
     public MapImage(String name, StyleSource source) {
@@ -40,7 +40,7 @@ public class MapImage {
         this.source = source;
     }
 
-    public Image getDisabled() {
+    public synchronized Image getDisabled() {
         if (disabledImg != null)
             return disabledImg;
         if (img == null)
@@ -48,7 +48,11 @@ public class MapImage {
         return disabledImg = GrayFilter.createDisabledImage(img);
     }
 
-    public BufferedImage getImage() {
+    /**
+     * Replies the image, loading it in the background on the first call. Synchronized, as the
+     * styles are created on several threads.
+     */
+    public synchronized BufferedImage getImage() {
         if (img != null)
             return img;
         temporary = false;
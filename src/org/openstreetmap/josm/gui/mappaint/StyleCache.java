@@ -1,12 +1,17 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.gui.mappaint;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import org.openstreetmap.josm.data.osm.Hash;
 import org.openstreetmap.josm.data.osm.Storage;
 import org.openstreetmap.josm.tools.Pair;
 import org.openstreetmap.josm.tools.Utils;
@@ -24,7 +29,57 @@ public class StyleCache {
     /* styles for each scale range */
     ArrayList<StyleList> data;
 
-    private final static Storage<StyleCache> internPool = new Storage<StyleCache>(); // TODO: clean up the intern pool from time to time (after purge or layer removal)
+    /**
+     * Maximal number of entries in the intern pool. When it is reached, the pool
+     * is cleared.
+     */
+    private final static int MAX_INTERN_POOL_SIZE = 100000;
+
+    private static final class PoolEntry extends WeakReference<StyleCache> {
+        final int hash;
+
+        PoolEntry(StyleCache sc, ReferenceQueue<StyleCache> queue) {
+            super(sc, queue);
+            this.hash = sc.hashCode();
+        }
+    }
+
+    private static final Hash<PoolEntry, PoolEntry> ENTRY_HASH = new Hash<PoolEntry, PoolEntry>() {
+        public int getHashCode(PoolEntry e) {
+            return e.hash;
+        }
+
+        public boolean equals(PoolEntry e1, PoolEntry e2) {
+            if (e1 == e2)
+                return true;
+            StyleCache sc1 = e1.get();
+            StyleCache sc2 = e2.get();
+            return sc1 != null && sc2 != null && sc1.equals(sc2);
+        }
+    };
+
+    private static final Hash<StyleCache, PoolEntry> CACHE_HASH = new Hash<StyleCache, PoolEntry>() {
+        public int getHashCode(StyleCache sc) {
+            return sc.hashCode();
+        }
+
+        public boolean equals(StyleCache sc, PoolEntry e) {
+            StyleCache pooled = e.get();
+            return pooled != null && sc.equals(pooled);
+        }
+    };
+
+    /*
+     * The intern pool only holds weak references, so caches that are no longer used
+     * by any primitive (after a purge, a layer removal or a style change) are
+     * garbage collected.
+     */
+    private final static Storage<PoolEntry> internPool = new Storage<PoolEntry>(ENTRY_HASH);
+    private final static Map<StyleCache, PoolEntry> internPoolByCache = internPool.foreignKey(CACHE_HASH);
+    private final static ReferenceQueue<StyleCache> internQueue = new ReferenceQueue<StyleCache>();
+    private static long internHits;
+    private static long internMisses;
+    private static long internEvictions;
 
     public final static StyleCache EMPTY_STYLECACHE = (new StyleCache()).intern();
     
@@ -217,7 +272,74 @@ public class StyleCache {
      * been added to the intern pool.
      */
     public StyleCache intern() {
-        return internPool.putUnique(this);
+        synchronized (StyleCache.class) {
+            purgeInternPool();
+            PoolEntry entry = internPoolByCache.get(this);
+            if (entry != null) {
+                StyleCache pooled = entry.get();
+                if (pooled != null) {
+                    internHits++;
+                    return pooled;
+                }
+            }
+            internMisses++;
+            if (internPool.size() >= MAX_INTERN_POOL_SIZE) {
+                internEvictions += internPool.size();
+                internPool.clear();
+            }
+            internPool.put(new PoolEntry(this, internQueue));
+            return this;
+        }
+    }
+
+    /**
+     * Removes all entries from the intern pool. Called when the styles are
+     * recomputed, so the pool only contains caches of the current generation.
+     */
+    public static synchronized void clearInternPool() {
+        purgeInternPool();
+        internEvictions += internPool.size();
+        internPool.clear();
+    }
+
+    /**
+     * Replies the number of style caches in the intern pool.
+     */
+    public static synchronized int getInternPoolSize() {
+        purgeInternPool();
+        return internPool.size();
+    }
+
+    /**
+     * Replies how often {@link #intern()} found an equal style cache in the pool.
+     */
+    public static synchronized long getInternPoolHits() {
+        return internHits;
+    }
+
+    /**
+     * Replies how often {@link #intern()} added a new style cache to the pool.
+     */
+    public static synchronized long getInternPoolMisses() {
+        return internMisses;
+    }
+
+    /**
+     * Replies the number of entries dropped from the pool because it was cleared
+     * or full. Entries of garbage collected caches are not counted.
+     */
+    public static synchronized long getInternPoolEvictions() {
+        return internEvictions;
+    }
+
+    /*
+     * Removes the entries whose style caches have been garbage collected
+     */
+    private static void purgeInternPool() {
+        Reference<? extends StyleCache> ref;
+        while ((ref = internQueue.poll()) != null) {
+            internPool.remove(ref);
+        }
     }
 
     @Override
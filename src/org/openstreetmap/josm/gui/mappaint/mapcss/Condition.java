@@ -7,6 +7,7 @@ import java.text.MessageFormat;
 import java.util.EnumSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmUtils;
@@ -20,6 +21,15 @@ abstract public class Condition {
 
     abstract public boolean applies(Environment e);
 
+    /**
+     * Returns a key, that a primitive must have for this condition to apply.
+     *
+     * @return the key or null, if the condition may also apply to primitives without a certain key
+     */
+    public String getRequiredKey() {
+        return null;
+    }
+
     public static Condition create(String k, String v, Op op, Context context) {
         switch (context) {
         case PRIMITIVE:
@@ -142,6 +152,11 @@ abstract public class Condition {
         public String k;
         public String v;
         public Op op;
+        /**
+         * The compiled regular expression, if op is {@link Op#REGEX}.
+         * Invalid expressions are left to {@link Op#eval(String, String)}.
+         */
+        private Pattern pattern;
 
         /**
          * <p>Creates a key/value-condition.</p>
@@ -154,13 +169,30 @@ abstract public class Condition {
             this.k = k;
             this.v = v;
             this.op = op;
+            if (op == Op.REGEX) {
+                try {
+                    pattern = Pattern.compile(v);
+                } catch (PatternSyntaxException e) {
+                    pattern = null;
+                }
+            }
         }
 
         @Override
         public boolean applies(Environment env) {
+            if (pattern != null) {
+                String testString = env.osm.get(k);
+                return testString != null && pattern.matcher(testString).find();
+            }
             return op.eval(env.osm.get(k), v);
         }
 
+        @Override
+        public String getRequiredKey() {
+            // all operators except NEQ fail for missing tags
+            return op == Op.NEQ ? null : k;
+        }
+
         @Override
         public String toString() {
             return "[" + k + "'" + op + "'" + v + "]";
@@ -249,6 +281,11 @@ abstract public class Condition {
             }
         }
 
+        @Override
+        public String getRequiredKey() {
+            return exclamationMarkPresent ? null : label;
+        }
+
         @Override
         public String toString() {
             return "[" + (exclamationMarkPresent ? "!" : "") + label + "]";
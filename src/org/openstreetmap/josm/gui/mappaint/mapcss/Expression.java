@@ -9,7 +9,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.actions.search.SearchCompiler;
@@ -50,9 +52,67 @@ public interface Expression {
         String name;
         List<Expression> args;
 
+        /**
+         * The functions that can be called from MapCSS, by name.
+         */
+        private static final Map<String, List<Method>> FUNCTIONS = new HashMap<String, List<Method>>();
+
+        static {
+            Method[] customMethods = EvalFunctions.class.getDeclaredMethods();
+            List<Method> allMethods = new ArrayList<Method>();
+            allMethods.addAll(Arrays.asList(customMethods));
+            try {
+                allMethods.add(Math.class.getMethod("abs", float.class));
+                allMethods.add(Math.class.getMethod("acos", double.class));
+                allMethods.add(Math.class.getMethod("asin", double.class));
+                allMethods.add(Math.class.getMethod("atan", double.class));
+                allMethods.add(Math.class.getMethod("atan2", double.class, double.class));
+                allMethods.add(Math.class.getMethod("ceil", double.class));
+                allMethods.add(Math.class.getMethod("cos", double.class));
+                allMethods.add(Math.class.getMethod("cosh", double.class));
+                allMethods.add(Math.class.getMethod("exp", double.class));
+                allMethods.add(Math.class.getMethod("floor", double.class));
+                allMethods.add(Math.class.getMethod("log", double.class));
+                allMethods.add(Math.class.getMethod("max", float.class, float.class));
+                allMethods.add(Math.class.getMethod("min", float.class, float.class));
+                allMethods.add(Math.class.getMethod("random"));
+                allMethods.add(Math.class.getMethod("round", float.class));
+                allMethods.add(Math.class.getMethod("signum", double.class));
+                allMethods.add(Math.class.getMethod("sin", double.class));
+                allMethods.add(Math.class.getMethod("sinh", double.class));
+                allMethods.add(Math.class.getMethod("sqrt", double.class));
+                allMethods.add(Math.class.getMethod("tan", double.class));
+                allMethods.add(Math.class.getMethod("tanh", double.class));
+            } catch (NoSuchMethodException ex) {
+                throw new RuntimeException(ex);
+            } catch (SecurityException ex) {
+                throw  new RuntimeException(ex);
+            }
+            for (Method m : allMethods) {
+                List<Method> lst = FUNCTIONS.get(m.getName());
+                if (lst == null) {
+                    FUNCTIONS.put(m.getName(), lst = new ArrayList<Method>());
+                }
+                lst.add(m);
+            }
+        }
+
+        /**
+         * The candidate methods for this function, resolved once when the
+         * style is loaded and not for every evaluation.
+         */
+        private final Method[] methods;
+        private final Class<?>[][] parameterTypes;
+
         public FunctionExpression(String name, List<Expression> args) {
             this.name = name;
             this.args = args;
+            List<Method> lst = FUNCTIONS.get(name);
+            this.methods = lst == null ? new Method[0] : lst.toArray(new Method[lst.size()]);
+            this.parameterTypes = new Class<?>[methods.length][];
+            for (int i = 0; i < methods.length; i++) {
+                parameterTypes[i] = methods[i].getParameterTypes();
+            }
         }
 
         public static class EvalFunctions {
@@ -291,43 +351,13 @@ public interface Expression {
                 }
                 return false;
             }
+            if (methods.length == 0)
+                return null;
             EvalFunctions fn = new EvalFunctions();
             fn.env = env;
-            Method[] customMethods = EvalFunctions.class.getDeclaredMethods();
-            List<Method> allMethods = new ArrayList<Method>();
-            allMethods.addAll(Arrays.asList(customMethods));
-            try {
-                allMethods.add(Math.class.getMethod("abs", float.class));
-                allMethods.add(Math.class.getMethod("acos", double.class));
-                allMethods.add(Math.class.getMethod("asin", double.class));
-                allMethods.add(Math.class.getMethod("atan", double.class));
-                allMethods.add(Math.class.getMethod("atan2", double.class, double.class));
-                allMethods.add(Math.class.getMethod("ceil", double.class));
-                allMethods.add(Math.class.getMethod("cos", double.class));
-                allMethods.add(Math.class.getMethod("cosh", double.class));
-                allMethods.add(Math.class.getMethod("exp", double.class));
-                allMethods.add(Math.class.getMethod("floor", double.class));
-                allMethods.add(Math.class.getMethod("log", double.class));
-                allMethods.add(Math.class.getMethod("max", float.class, float.class));
-                allMethods.add(Math.class.getMethod("min", float.class, float.class));
-                allMethods.add(Math.class.getMethod("random"));
-                allMethods.add(Math.class.getMethod("round", float.class));
-                allMethods.add(Math.class.getMethod("signum", double.class));
-                allMethods.add(Math.class.getMethod("sin", double.class));
-                allMethods.add(Math.class.getMethod("sinh", double.class));
-                allMethods.add(Math.class.getMethod("sqrt", double.class));
-                allMethods.add(Math.class.getMethod("tan", double.class));
-                allMethods.add(Math.class.getMethod("tanh", double.class));
-            } catch (NoSuchMethodException ex) {
-                throw new RuntimeException(ex);
-            } catch (SecurityException ex) {
-                throw  new RuntimeException(ex);
-            }
-            for (Method m : allMethods) {
-                if (!m.getName().equals(name)) {
-                    continue;
-                }
-                Class<?>[] expectedParameterTypes = m.getParameterTypes();
+            for (int k = 0; k < methods.length; k++) {
+                Method m = methods[k];
+                Class<?>[] expectedParameterTypes = parameterTypes[k];
                 Object[] convertedArgs = new Object[expectedParameterTypes.length];
 
                 if (expectedParameterTypes.length == 1 && expectedParameterTypes[0].isArray())
@@ -8,16 +8,24 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
+import org.openstreetmap.josm.data.osm.AbstractPrimitive;
+import org.openstreetmap.josm.data.osm.KeyValueVisitor;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.gui.mappaint.Cascade;
 import org.openstreetmap.josm.gui.mappaint.Environment;
 import org.openstreetmap.josm.gui.mappaint.MultiCascade;
 import org.openstreetmap.josm.gui.mappaint.Range;
 import org.openstreetmap.josm.gui.mappaint.StyleSource;
+import org.openstreetmap.josm.gui.mappaint.mapcss.Selector.ChildOrParentSelector;
 import org.openstreetmap.josm.gui.mappaint.mapcss.Selector.GeneralSelector;
 import org.openstreetmap.josm.gui.mappaint.mapcss.parsergen.MapCSSParser;
 import org.openstreetmap.josm.gui.mappaint.mapcss.parsergen.ParseException;
@@ -32,6 +40,101 @@ public class MapCSSStyleSource extends StyleSource {
     final public List<MapCSSRule> rules;
     private Color backgroundColorOverride;
     private String css = null;
+    private volatile RuleIndex index;
+
+    /**
+     * Index of the selectors of all rules, to find the selectors that can
+     * possibly match a primitive without evaluating all of them.
+     *
+     * Selectors are numbered in cascade order. For each type of primitive,
+     * the selectors with a matching base are grouped by the first key a
+     * primitive must have to match the selector. Selectors that do not
+     * require any key are always candidates.
+     */
+    private static class RuleIndex {
+        private final List<MapCSSRule> rules = new ArrayList<MapCSSRule>();
+        private final List<Selector> selectors = new ArrayList<Selector>();
+        private final SelectorIndex nodeIndex = new SelectorIndex();
+        private final SelectorIndex wayIndex = new SelectorIndex();
+        private final SelectorIndex relationIndex = new SelectorIndex();
+
+        public RuleIndex(List<MapCSSRule> rules) {
+            for (MapCSSRule r : rules) {
+                for (Selector s : r.selectors) {
+                    add(r, s);
+                }
+            }
+        }
+
+        private void add(MapCSSRule r, Selector s) {
+            Selector right = s;
+            while (right instanceof ChildOrParentSelector) {
+                right = ((ChildOrParentSelector) right).getRight();
+            }
+            if (!(right instanceof GeneralSelector))
+                return;
+            GeneralSelector gs = (GeneralSelector) right;
+            String base = gs.getBase();
+            String key = gs.getRequiredKey();
+            int pos = selectors.size();
+            rules.add(r);
+            selectors.add(s);
+            if (base.equals("node") || base.equals("*")) {
+                nodeIndex.add(pos, key);
+            }
+            if (base.equals("way") || base.equals("area") || base.equals("*")) {
+                wayIndex.add(pos, key);
+            }
+            if (base.equals("relation") || base.equals("area") || base.equals("canvas")) {
+                relationIndex.add(pos, key);
+            }
+        }
+
+        /**
+         * Returns the positions of the selectors, that can possibly match the primitive.
+         */
+        public BitSet getCandidates(OsmPrimitive osm) {
+            if (osm instanceof Node)
+                return nodeIndex.getCandidates(osm);
+            else if (osm instanceof Way)
+                return wayIndex.getCandidates(osm);
+            else if (osm instanceof Relation)
+                return relationIndex.getCandidates(osm);
+            return new BitSet();
+        }
+    }
+
+    private static class SelectorIndex {
+        private final BitSet unkeyed = new BitSet();
+        private final Map<String, BitSet> keyed = new HashMap<String, BitSet>();
+
+        public void add(int pos, String key) {
+            if (key == null) {
+                unkeyed.set(pos);
+            } else {
+                BitSet b = keyed.get(key);
+                if (b == null) {
+                    keyed.put(key, b = new BitSet());
+                }
+                b.set(pos);
+            }
+        }
+
+        public BitSet getCandidates(OsmPrimitive osm) {
+            final BitSet result = (BitSet) unkeyed.clone();
+            if (!keyed.isEmpty()) {
+                osm.visitKeys(new KeyValueVisitor() {
+                    public void visitKeyValue(AbstractPrimitive primitive, String key, String value) {
+                        BitSet b = keyed.get(key);
+                        if (b != null) {
+                            result.or(b);
+                        }
+                    }
+                });
+            }
+            return result;
+        }
+    }
 
     public MapCSSStyleSource(String url, String name, String shortdescription) {
         super(url, name, shortdescription);
@@ -61,9 +164,11 @@ public class MapCSSStyleSource extends StyleSource {
     public void loadStyleSource() {
         init();
         rules.clear();
+        index = null;
         try {
             MapCSSParser parser = new MapCSSParser(getSourceInputStream(), "UTF-8");
             parser.sheet(this);
+            index = new RuleIndex(rules);
             loadMeta();
             loadCanvas();
         } catch(IOException e) {
@@ -148,37 +253,48 @@ public class MapCSSStyleSource extends StyleSource {
         return backgroundColorOverride;
     }
 
+    private RuleIndex getIndex() {
+        RuleIndex idx = index;
+        if (idx == null) {
+            // rules that have been added without loadStyleSource()
+            index = idx = new RuleIndex(rules);
+        }
+        return idx;
+    }
+
     @Override
     public void apply(MultiCascade mc, OsmPrimitive osm, double scale, OsmPrimitive multipolyOuterWay, boolean pretendWayIsClosed) {
         Environment env = new Environment(osm, mc, null, this);
-        for (MapCSSRule r : rules) {
-            for (Selector s : r.selectors) {
-                env.clearSelectorMatchingInformation();
-                if (s.matches(env)) { // as side effect env.parent will be set (if s is a child selector)
-                    if (s.getRange().contains(scale)) {
-                        mc.range = Range.cut(mc.range, s.getRange());
-                    } else {
-                        mc.range = mc.range.reduceAround(scale, s.getRange());
-                        continue;
-                    }
+        RuleIndex idx = getIndex();
+        BitSet candidates = idx.getCandidates(osm);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            MapCSSRule r = idx.rules.get(i);
+            Selector s = idx.selectors.get(i);
+            env.clearSelectorMatchingInformation();
+            if (s.matches(env)) { // as side effect env.parent will be set (if s is a child selector)
+                if (s.getRange().contains(scale)) {
+                    mc.range = Range.cut(mc.range, s.getRange());
+                } else {
+                    mc.range = mc.range.reduceAround(scale, s.getRange());
+                    continue;
+                }
 
-                    String sub = s.getSubpart();
-                    if (sub == null) {
-                        sub = "default";
-                    }
+                String sub = s.getSubpart();
+                if (sub == null) {
+                    sub = "default";
+                }
 
-                    if (sub.equals("*")) {
-                        for (Entry<String, Cascade> entry : mc.getLayers()) {
-                            env.layer = entry.getKey();
-                            if (Utils.equal(env.layer, "*")) {
-                                continue;
-                            }
-                            r.execute(env);
+                if (sub.equals("*")) {
+                    for (Entry<String, Cascade> entry : mc.getLayers()) {
+                        env.layer = entry.getKey();
+                        if (Utils.equal(env.layer, "*")) {
+                            continue;
                         }
+                        r.execute(env);
                     }
-                    env.layer = sub;
-                    r.execute(env);
                 }
+                env.layer = sub;
+                r.execute(env);
             }
         }
     }
@@ -180,6 +180,13 @@ public interface Selector {
             return false;
         }
 
+        /**
+         * Returns the selector for the primitive, that is styled.
+         */
+        public Selector getRight() {
+            return right;
+        }
+
         @Override
         public String getSubpart() {
             return right.getSubpart();
@@ -299,6 +306,21 @@ public interface Selector {
             return base;
         }
 
+        /**
+         * Returns a key, that a primitive must have to match this selector.
+         *
+         * @return the key of the first condition that requires one, or null
+         */
+        public String getRequiredKey() {
+            if (conds == null) return null;
+            for (Condition c : conds) {
+                String key = c.getRequiredKey();
+                if (key != null)
+                    return key;
+            }
+            return null;
+        }
+
         public static Range fromLevel(int a, int b) {
             if (a > b)
                 throw new AssertionError();
@@ -64,7 +64,14 @@ public class ValidatorPreference extends DefaultTabPreferenceSetting {
      */
     public static final String PREF_FILTER_BY_SELECTION = PREFIX + ".selectionFilter";
 
+    /** The preferences key for validating only the changes since the last upload check */
+    public static final String PREF_INCREMENTAL = PREFIX + ".incremental";
+
+    /** The preferences key for validating the edited data while editing */
+    public static final String PREF_LIVE = PREFIX + ".live";
+
     private JCheckBox prefUseIgnore;
+    private JCheckBox prefLive;
     private JCheckBox prefUseLayer;
     private JCheckBox prefOtherUpload;
     private JCheckBox prefOther;
@@ -94,6 +101,10 @@ public class ValidatorPreference extends DefaultTabPreferenceSetting {
         prefOtherUpload.setToolTipText(tr("Show the informational tests in the upload check windows."));
         testPanel.add(prefOtherUpload, GBC.eol());
 
+        prefLive = new JCheckBox(tr("Validate while editing."), Main.pref.getBoolean(PREF_LIVE, false));
+        prefLive.setToolTipText(tr("Show the errors of the edited elements after each change."));
+        testPanel.add(prefLive, GBC.eol());
+
         ActionListener otherUploadEnabled = new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 prefOtherUpload.setEnabled(prefOther.isSelected());
@@ -142,6 +153,8 @@ public class ValidatorPreference extends DefaultTabPreferenceSetting {
         Main.pref.put(PREF_OTHER, prefOther.isSelected());
         Main.pref.put(PREF_OTHER_UPLOAD, prefOtherUpload.isSelected());
         Main.pref.put(PREF_LAYER, prefUseLayer.isSelected());
+        Main.pref.put(PREF_LIVE, prefLive.isSelected());
+        OsmValidator.resetIncrementalValidators();
         return false;
     }
 }
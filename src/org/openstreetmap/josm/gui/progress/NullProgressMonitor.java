@@ -9,7 +9,7 @@ public class NullProgressMonitor implements ProgressMonitor {
 
     public static final ProgressMonitor INSTANCE = new NullProgressMonitor();
 
-    private NullProgressMonitor() {
+    protected NullProgressMonitor() {
 
     }
 
@@ -3,23 +3,38 @@ package org.openstreetmap.josm.io;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.osm.Changeset;
 import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.DataSource;
 import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.NodeData;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.PrimitiveData;
 import org.openstreetmap.josm.data.osm.PrimitiveId;
 import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationData;
 import org.openstreetmap.josm.data.osm.RelationMember;
 import org.openstreetmap.josm.data.osm.RelationMemberData;
 import org.openstreetmap.josm.data.osm.SimplePrimitiveId;
+import org.openstreetmap.josm.data.osm.Tagged;
+import org.openstreetmap.josm.data.osm.User;
 import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.WayData;
+import org.openstreetmap.josm.tools.DateUtils;
 
 /**
  * Abstract Reader, allowing other implementations than OsmReader (PbfReader in PBF plugin for example)
@@ -50,6 +65,11 @@ public abstract class AbstractReader {
      * Data structure for relation objects
      */
     protected final Map<Long, Collection<RelationMemberData>> relations = new HashMap<Long, Collection<RelationMemberData>>();
+
+    /**
+     * The parser of an OSM XML file, used by the XML readers only
+     */
+    protected XMLStreamReader parser;
     
     /**
      * Replies the parsed data set
@@ -182,6 +202,386 @@ public abstract class AbstractReader {
         }
     }
 
+    /**
+     * Parses the value of the uid attribute.
+     *
+     * @param uid the attribute value, may be null
+     * @return the user id, null if uid is null
+     * @throws IllegalDataException thrown if uid is no valid id
+     */
+    protected static Long parseUid(String uid) throws IllegalDataException {
+        if (uid == null)
+            return null;
+        try {
+            return Long.parseLong(uid);
+        } catch(NumberFormatException e) {
+            throw new IllegalDataException(MessageFormat.format("Illegal value for attribute ''uid''. Got ''{0}''.", uid));
+        }
+    }
+
+    /**
+     * Reads the common attributes of an OSM primitive, except for its id and its user,
+     * and puts them into <code>current</code>. The id of <code>current</code> has to be set.
+     *
+     * @param current the primitive data
+     * @param apiVersion the API version of the file, "0.5" or "0.6"
+     * @param timestamp the value of the timestamp attribute, may be null
+     * @param visible the value of the visible attribute, may be null
+     * @param versionString the value of the version attribute, may be null
+     * @param action the value of the action attribute, may be null
+     * @param changeset the value of the changeset attribute, may be null
+     * @throws IllegalDataException thrown if one of the attributes is not valid
+     */
+    protected static void readCommonAttributes(PrimitiveData current, String apiVersion, String timestamp, String visible,
+            String versionString, String action, String changeset) throws IllegalDataException {
+        if (timestamp != null && timestamp.length() != 0) {
+            current.setTimestamp(DateUtils.fromString(timestamp));
+        }
+
+        // visible attribute added in 0.4 API
+        if (visible != null) {
+            current.setVisible(Boolean.parseBoolean(visible));
+        }
+
+        int version = 0;
+        if (versionString != null) {
+            try {
+                version = Integer.parseInt(versionString);
+            } catch(NumberFormatException e) {
+                throw new IllegalDataException(tr("Illegal value for attribute ''version'' on OSM primitive with ID {0}. Got {1}.", Long.toString(current.getUniqueId()), versionString));
+            }
+            if ("0.6".equals(apiVersion)){
+                if (version <= 0 && current.getUniqueId() > 0)
+                    throw new IllegalDataException(tr("Illegal value for attribute ''version'' on OSM primitive with ID {0}. Got {1}.", Long.toString(current.getUniqueId()), versionString));
+                else if (version < 0 && current.getUniqueId() <= 0) {
+                    System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 0, "0.6"));
+                    version = 0;
+                }
+            } else if ("0.5".equals(apiVersion)) {
+                if (version <= 0 && current.getUniqueId() > 0) {
+                    System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 1, "0.5"));
+                    version = 1;
+                } else if (version < 0 && current.getUniqueId() <= 0) {
+                    System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 0, "0.5"));
+                    version = 0;
+                }
+            } else
+                // should not happen. API version has been checked before
+                throw new IllegalDataException(tr("Unknown or unsupported API version. Got {0}.", apiVersion));
+        } else {
+            // version expected for OSM primitives with an id assigned by the server (id > 0), since API 0.6
+            //
+            if (current.getUniqueId() > 0 && "0.6".equals(apiVersion))
+                throw new IllegalDataException(tr("Missing attribute ''version'' on OSM primitive with ID {0}.", Long.toString(current.getUniqueId())));
+            else if (current.getUniqueId() > 0 && "0.5".equals(apiVersion)) {
+                // default version in 0.5 files for existing primitives
+                System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 1, "0.5"));
+                version= 1;
+            } else if (current.getUniqueId() <= 0 && "0.5".equals(apiVersion)) {
+                // default version in 0.5 files for new primitives, no warning necessary. This is
+                // (was) legal in API 0.5
+                version= 0;
+            }
+        }
+        current.setVersion(version);
+
+        if (action == null) {
+            // do nothing
+        } else if (action.equals("delete")) {
+            current.setDeleted(true);
+            current.setModified(current.isVisible());
+        } else if (action.equals("modify")) {
+            current.setModified(true);
+        }
+
+        if (changeset == null) {
+            current.setChangesetId(0);
+        } else {
+            try {
+                current.setChangesetId(Integer.parseInt(changeset));
+            } catch(NumberFormatException e) {
+                if (current.getUniqueId() <= 0) {
+                    // for a new primitive we just log a warning
+                    System.out.println(tr("Illegal value for attribute ''changeset'' on new object {1}. Got {0}. Resetting to 0.", changeset, current.getUniqueId()));
+                    current.setChangesetId(0);
+                } else
+                    // for an existing primitive this is a problem
+                    throw new IllegalDataException(tr("Illegal value for attribute ''changeset''. Got {0}.", changeset));
+            }
+            if (current.getChangesetId() <=0) {
+                if (current.getUniqueId() <= 0) {
+                    // for a new primitive we just log a warning
+                    System.out.println(tr("Illegal value for attribute ''changeset'' on new object {1}. Got {0}. Resetting to 0.", changeset, current.getUniqueId()));
+                    current.setChangesetId(0);
+                } else
+                    // for an existing primitive this is a problem
+                    throw new IllegalDataException(tr("Illegal value for attribute ''changeset''. Got {0}.", changeset));
+            }
+        }
+    }
+
+    /**
+     * Parses the value of a long attribute.
+     *
+     * @param name the name of the attribute
+     * @param value the attribute value, may be null
+     * @return the parsed value
+     * @throws IllegalDataException thrown if value is null or no valid long
+     */
+    protected static long parseLong(String name, String value) throws IllegalDataException {
+        if (value == null)
+            throw new IllegalDataException(tr("Missing required attribute ''{0}''.",name));
+        try {
+            return Long.parseLong(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalDataException(tr("Illegal long value for attribute ''{0}''. Got ''{1}''.",name, value));
+        }
+    }
+
+    /**
+     * Parses the attributes of a relation member.
+     *
+     * @param r the relation, its id has to be set
+     * @param typeValue the value of the type attribute, may be null
+     * @param refValue the value of the ref attribute, may be null
+     * @param role the value of the role attribute, may be null
+     * @return the member
+     * @throws IllegalDataException thrown if one of the attributes is missing or not valid
+     */
+    protected static RelationMemberData parseRelationMember(PrimitiveData r, String typeValue, String refValue, String role) throws IllegalDataException {
+        if (refValue == null)
+            throw new IllegalDataException(tr("Missing attribute ''ref'' on member in relation {0}.",r.getUniqueId()));
+        long id;
+        try {
+            id = Long.parseLong(refValue);
+        } catch(NumberFormatException e) {
+            throw new IllegalDataException(tr("Illegal value for attribute ''ref'' on member in relation {0}. Got {1}", Long.toString(r.getUniqueId()),refValue));
+        }
+        if (typeValue == null)
+            throw new IllegalDataException(tr("Missing attribute ''type'' on member {0} in relation {1}.", Long.toString(id), Long.toString(r.getUniqueId())));
+        OsmPrimitiveType type;
+        try {
+            type = OsmPrimitiveType.fromApiTypeName(typeValue);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalDataException(tr("Illegal value for attribute ''type'' on member {0} in relation {1}. Got {2}.", Long.toString(id), Long.toString(r.getUniqueId()), typeValue));
+        }
+        if (id == 0)
+            throw new IllegalDataException(tr("Incomplete <member> specification with ref=0"));
+        return new RelationMemberData(role, type, id);
+    }
+
+    /**
+     * Replies the user of a primitive. The user map is not thread safe, so this has to be
+     * called by one thread only.
+     *
+     * @param uid the user id, null if it is unknown
+     * @param name the user name, may be null
+     * @return the user, null if both uid and name are null
+     */
+    protected static User createUser(Long uid, String name) {
+        if (uid != null)
+            return User.createOsmUser(uid, name);
+        else if (name != null)
+            return User.createLocalUser(name);
+        return null;
+    }
+
+    /**
+     * Creates the primitive for <code>data</code> and adds it to {@link #externalIdMap}.
+     *
+     * @param data the parsed data
+     * @return the primitive
+     */
+    protected OsmPrimitive createPrimitive(PrimitiveData data) {
+        OsmPrimitive primitive;
+        if (data instanceof NodeData) {
+            primitive = new Node(data.getId(), data.getVersion());
+        } else if (data instanceof WayData) {
+            primitive = new Way(data.getId(), data.getVersion());
+        } else {
+            primitive = new Relation(data.getId(), data.getVersion());
+        }
+        primitive.setVisible(data.isVisible());
+        primitive.load(data);
+        externalIdMap.put(data.getPrimitiveId(), primitive);
+        return primitive;
+    }
+
+    /**
+     * Creates the primitive for <code>data</code> and registers it, together with the node ids
+     * of a way or the members of a relation, for {@link #prepareDataSet()}.
+     *
+     * @param data the parsed data
+     * @param nodeIds the node ids of a way, ignored otherwise
+     * @param members the members of a relation, ignored otherwise
+     */
+    protected void register(PrimitiveData data, Collection<Long> nodeIds, Collection<RelationMemberData> members) {
+        createPrimitive(data);
+        if (data instanceof WayData) {
+            ways.put(data.getUniqueId(), nodeIds);
+        } else if (data instanceof RelationData) {
+            relations.put(data.getUniqueId(), members);
+        }
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * Elements of OSM XML files. The parser cursor points to the start of the
+     * element when a method is entered, and to its end when the method is exited.
+     * ------------------------------------------------------------------------
+     */
+
+    protected void throwException(String msg) throws XMLStreamException {
+        throw new OsmParsingException(msg, parser.getLocation());
+    }
+
+    protected void parseBounds(String generator) throws XMLStreamException {
+        String minlon = parser.getAttributeValue(null, "minlon");
+        String minlat = parser.getAttributeValue(null, "minlat");
+        String maxlon = parser.getAttributeValue(null, "maxlon");
+        String maxlat = parser.getAttributeValue(null, "maxlat");
+        String origin = parser.getAttributeValue(null, "origin");
+        if (minlon != null && maxlon != null && minlat != null && maxlat != null) {
+            if (origin == null) {
+                origin = generator;
+            }
+            Bounds bounds = new Bounds(
+                    Double.parseDouble(minlat), Double.parseDouble(minlon),
+                    Double.parseDouble(maxlat), Double.parseDouble(maxlon));
+            if (bounds.isOutOfTheWorld()) {
+                Bounds copy = new Bounds(bounds);
+                bounds.normalize();
+                System.out.println("Bbox " + copy + " is out of the world, normalized to " + bounds);
+            }
+            DataSource src = new DataSource(bounds, origin);
+            ds.dataSources.add(src);
+        } else {
+            throwException(tr(
+                    "Missing mandatory attributes on element ''bounds''. Got minlon=''{0}'',minlat=''{1}'',maxlon=''{3}'',maxlat=''{4}'', origin=''{5}''.",
+                    minlon, minlat, maxlon, maxlat, origin
+            ));
+        }
+        jumpToEnd();
+    }
+
+    protected void parseChangeset(Long uploadChangesetId) throws XMLStreamException {
+        long id = getLong("id");
+
+        if (uploadChangesetId != null && id == uploadChangesetId) {
+            uploadChangeset = new Changeset((int) id);
+            while (true) {
+                int event = parser.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (parser.getLocalName().equals("tag")) {
+                        parseTag(uploadChangeset);
+                    } else {
+                        parseUnknown();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT)
+                    return;
+            }
+        } else {
+            jumpToEnd(false);
+        }
+    }
+
+    protected void parseTag(Tagged t) throws XMLStreamException {
+        String key = parser.getAttributeValue(null, "k");
+        String value = parser.getAttributeValue(null, "v");
+        if (key == null || value == null) {
+            throwException(tr("Missing key or value attribute in tag."));
+        }
+        t.put(key.intern(), value.intern());
+        jumpToEnd();
+    }
+
+    protected void parseUnknown(boolean printWarning) throws XMLStreamException {
+        if (printWarning) {
+            System.out.println(tr("Undefined element ''{0}'' found in input stream. Skipping.", parser.getLocalName()));
+        }
+        while (true) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                parseUnknown(false); /* no more warning for inner elements */
+            } else if (event == XMLStreamConstants.END_ELEMENT)
+                return;
+        }
+    }
+
+    protected void parseUnknown() throws XMLStreamException {
+        parseUnknown(true);
+    }
+
+    /**
+     * When cursor is at the start of an element, moves it to the end tag of that element.
+     * Nested content is skipped.
+     *
+     * This is basically the same code as parseUnknown(), except for the warnings, which
+     * are displayed for inner elements and not at top level.
+     */
+    protected void jumpToEnd(boolean printWarning) throws XMLStreamException {
+        while (true) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                parseUnknown(printWarning);
+            } else if (event == XMLStreamConstants.END_ELEMENT)
+                return;
+        }
+    }
+
+    protected void jumpToEnd() throws XMLStreamException {
+        jumpToEnd(true);
+    }
+
+    protected long getLong(String name) throws XMLStreamException {
+        try {
+            return parseLong(name, parser.getAttributeValue(null, name));
+        } catch (IllegalDataException e) {
+            throwException(e.getMessage());
+        }
+        return 0; // should not happen
+    }
+
+    static class OsmParsingException extends XMLStreamException {
+        public OsmParsingException() {
+            super();
+        }
+
+        public OsmParsingException(String msg) {
+            super(msg);
+        }
+
+        public OsmParsingException(String msg, Location location) {
+            super(msg); /* cannot use super(msg, location) because it messes with the message preventing localization */
+            this.location = location;
+        }
+
+        public OsmParsingException(String msg, Location location, Throwable th) {
+            super(msg, th);
+            this.location = location;
+        }
+
+        public OsmParsingException(String msg, Throwable th) {
+            super(msg, th);
+        }
+
+        public OsmParsingException(Throwable th) {
+            super(th);
+        }
+
+        @Override
+        public String getMessage() {
+            String msg = super.getMessage();
+            if (msg == null) {
+                msg = getClass().getName();
+            }
+            if (getLocation() == null)
+                return msg;
+            msg = msg + " " + tr("(at line {0}, column {1})", getLocation().getLineNumber(), getLocation().getColumnNumber());
+            return msg;
+        }
+    }
+
     protected void processChangesetAfterParsing() {
         if (uploadChangeset != null) {
             for (Map.Entry<String, String> e : uploadChangeset.getKeys().entrySet()) {
@@ -193,11 +593,13 @@ public abstract class AbstractReader {
     protected final void prepareDataSet() throws IllegalDataException {
         try {
             ds.beginUpdate();
+            ds.beginBulkLoad();
             processNodesAfterParsing();
             processWaysAfterParsing();
             processRelationsAfterParsing();
             processChangesetAfterParsing();
         } finally {
+            ds.endBulkLoad();
             ds.endUpdate();
         }
     }
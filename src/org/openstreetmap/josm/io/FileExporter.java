@@ -20,6 +20,14 @@ public abstract class FileExporter {
         return filter.acceptName(pathname.getName());
     }
 
+    /**
+     * Replies true if the file keeps all data of the layer, false if something is lost
+     * (like deleted objects). The layer still needs to be saved after a lossy export.
+     */
+    public boolean isLossless(Layer layer) {
+        return true;
+    }
+
     public void exportData(File file, Layer layer) throws IOException {
         throw new IOException(tr("Could not export ''{0}''.", file.getName()));
     }
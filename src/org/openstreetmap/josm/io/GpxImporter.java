@@ -13,6 +13,9 @@ import javax.swing.JOptionPane;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.actions.ExtensionFileFilter;
+import org.openstreetmap.josm.data.gpx.GpxData;
+import org.openstreetmap.josm.data.gpx.GpxTrack;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
 import org.openstreetmap.josm.gui.layer.GpxLayer;
 import org.openstreetmap.josm.gui.layer.markerlayer.MarkerLayer;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
@@ -27,6 +30,65 @@ public class GpxImporter extends FileImporter {
         public Runnable postLayerTask;
     }
 
+    /**
+     * Shows the tracks of a file in a layer while the rest of the file is still read.
+     */
+    private static class ProgressiveTrackListener implements GpxReader.TrackListener {
+        private final GpxData data = new GpxData();
+        private final String layerName;
+        /** the layer, created when the first track has been read */
+        private GpxLayer layer;
+        /** true if the map was created for the layer, which zooms to the first track only */
+        private boolean mapCreated;
+
+        public ProgressiveTrackListener(File file, String layerName) {
+            this.layerName = layerName;
+            data.storageFile = file;
+        }
+
+        public void trackRead(final GpxTrack track) {
+            final boolean first = layer == null;
+            if (first) {
+                layer = new GpxLayer(data, layerName, true);
+            }
+            GuiHelper.runInEDT(new Runnable() {
+                public void run() {
+                    data.tracks.add(track);
+                    if (first) {
+                        mapCreated = Main.map == null;
+                        Main.main.addLayer(layer);
+                    } else if (Main.map != null) {
+                        Main.map.repaint();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Adds everything but the tracks to the layer, once the file has been read, and zooms
+         * to the whole layer if the map has been created for it.
+         */
+        public void complete(GpxData all) {
+            final GpxData rest = new GpxData();
+            rest.attr.putAll(all.attr);
+            rest.routes.addAll(all.routes);
+            rest.waypoints.addAll(all.waypoints);
+            GuiHelper.runInEDT(new Runnable() {
+                public void run() {
+                    data.mergeFrom(rest);
+                    if (Main.map == null)
+                        return;
+                    if (mapCreated && Main.map.mapView.hasLayer(layer)) {
+                        BoundingXYVisitor v = new BoundingXYVisitor();
+                        layer.visitBoundingBox(v);
+                        Main.map.mapView.recalculateCenterScale(v);
+                    }
+                    Main.map.repaint();
+                }
+            });
+        }
+    }
+
     public GpxImporter() {
         super(new ExtensionFileFilter("gpx,gpx.gz", "gpx", tr("GPX Files") + " (*.gpx *.gpx.gz)"));
     }
@@ -39,7 +101,8 @@ public class GpxImporter extends FileImporter {
             is = new FileInputStream(file);
         }
         String fileName = file.getName();
-        final GpxImporterData data = loadLayers(is, file, fileName, tr("Markers from {0}", fileName), progressMonitor);
+        final GpxImporterData data = loadLayers(is, file, fileName, tr("Markers from {0}", fileName), progressMonitor,
+                new ProgressiveTrackListener(file, fileName));
 
         // FIXME: remove UI stuff from the IO subsystem
         GuiHelper.runInEDT(new Runnable() {
@@ -57,16 +120,31 @@ public class GpxImporter extends FileImporter {
 
     public GpxImporterData loadLayers(InputStream is, final File associatedFile,
             final String gpxLayerName, String markerLayerName, ProgressMonitor progressMonitor) throws IOException {
+        return loadLayers(is, associatedFile, gpxLayerName, markerLayerName, progressMonitor, null);
+    }
+
+    /**
+     * Loads the layers of a file. If progressive is given, the GPX layer is added to the map
+     * as soon as the first track has been read and is not returned.
+     */
+    private GpxImporterData loadLayers(InputStream is, final File associatedFile,
+            final String gpxLayerName, String markerLayerName, ProgressMonitor progressMonitor,
+            ProgressiveTrackListener progressive) throws IOException {
         final GpxImporterData data = new GpxImporterData();
         try {
             final GpxReader r = new GpxReader(is);
+            r.setTrackListener(progressive);
             final boolean parsedProperly = r.parse(true);
             r.data.storageFile = associatedFile;
-            if (r.data.hasRoutePoints() || r.data.hasTrackPoints()) {
+            GpxLayer shownLayer = progressive == null ? null : progressive.layer;
+            if (shownLayer != null) {
+                progressive.complete(r.data);
+            } else if (r.data.hasRoutePoints() || r.data.hasTrackPoints()) {
                 data.gpxLayer = new GpxLayer(r.data, gpxLayerName, associatedFile != null);
             }
             if (Main.pref.getBoolean("marker.makeautomarkers", true) && !r.data.waypoints.isEmpty()) {
-                data.markerLayer = new MarkerLayer(r.data, markerLayerName, associatedFile, data.gpxLayer, false);
+                data.markerLayer = new MarkerLayer(r.data, markerLayerName, associatedFile,
+                        shownLayer != null ? shownLayer : data.gpxLayer, false);
                 if (data.markerLayer.data.size() == 0) {
                     data.markerLayer = null;
                 }
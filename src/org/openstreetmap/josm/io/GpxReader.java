@@ -7,6 +7,7 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -14,39 +15,115 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.gpx.GpxData;
 import org.openstreetmap.josm.data.gpx.GpxLink;
 import org.openstreetmap.josm.data.gpx.GpxRoute;
+import org.openstreetmap.josm.data.gpx.GpxTrack;
+import org.openstreetmap.josm.data.gpx.GpxTrackSegment;
 import org.openstreetmap.josm.data.gpx.ImmutableGpxTrack;
 import org.openstreetmap.josm.data.gpx.WayPoint;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
+import org.openstreetmap.josm.tools.DateUtils;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Read a gpx file. Bounds are not read, as we caluclate them. @see GpxData.recalculateBounds()
+ *
+ * The file is read with a streaming parser in the calling thread, while the track segments
+ * are built by worker threads. A {@link TrackListener} is told about each track as soon as
+ * it is complete, before the rest of the file has been read.
  * @author imi, ramack
  */
 public class GpxReader {
     // TODO: implement GPX 1.0 parsing
 
+    /**
+     * Is told about the tracks of a file while it is read.
+     */
+    public interface TrackListener {
+        /**
+         * Called in the reading thread for each track, in the order of the file.
+         *
+         * @param track the track, which has been added to the data
+         */
+        void trackRead(GpxTrack track);
+    }
+
     /**
      * The resulting gpx data
      */
     public GpxData data;
     private enum State { init, metadata, wpt, rte, trk, ext, author, link, trkseg, copyright}
-    private InputSource inputSource;
+    private final Reader reader;
+    private final int nThreads;
+    private TrackListener trackListener;
+
+    /**
+     * A track whose segments may still be built by the workers.
+     */
+    private static class PendingTrack {
+        private final List<Future<GpxTrackSegment>> segments;
+        private final Map<String, Object> attributes;
+
+        public PendingTrack(List<Future<GpxTrackSegment>> segments, Map<String, Object> attributes) {
+            this.segments = segments;
+            this.attributes = attributes;
+        }
+
+        public boolean isDone() {
+            for (Future<GpxTrackSegment> segment : segments) {
+                if (!segment.isDone())
+                    return false;
+            }
+            return true;
+        }
 
-    private class Parser extends DefaultHandler {
+        public GpxTrack get() throws SAXException {
+            List<GpxTrackSegment> result = new ArrayList<GpxTrackSegment>(segments.size());
+            for (Future<GpxTrackSegment> segment : segments) {
+                result.add(getSegment(segment));
+            }
+            return new ImmutableGpxTrack(result, attributes);
+        }
+    }
+
+    private static GpxTrackSegment getSegment(Future<GpxTrackSegment> segment) throws SAXException {
+        try {
+            return segment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SAXException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new SAXException(e);
+        }
+    }
+
+    private class Parser {
+
+        private XMLStreamReader parser;
+        private ExecutorService workers;
+        /** the segments given to the workers, to wait for them if they are too far behind */
+        private final LinkedList<Future<GpxTrackSegment>> runningSegments = new LinkedList<Future<GpxTrackSegment>>();
+        /** the tracks not yet added to the data, in the order of the file */
+        private final LinkedList<PendingTrack> pendingTracks = new LinkedList<PendingTrack>();
 
         private GpxData currentData;
-        private Collection<Collection<WayPoint>> currentTrack;
+        private List<Future<GpxTrackSegment>> currentTrack;
         private Map<String, Object> currentTrackAttr;
         private Collection<WayPoint> currentTrackSeg;
         private GpxRoute currentRoute;
@@ -58,12 +135,51 @@ public class GpxReader {
         private Stack<State> states;
         private final Stack<String> elements = new Stack<String>();
 
-        private StringBuffer accumulator = new StringBuffer();
+        private StringBuilder accumulator = new StringBuilder();
 
         private boolean nokiaSportsTrackerBug = false;
 
-        @Override public void startDocument() {
-            accumulator = new StringBuffer();
+        public void parse(XMLStreamReader parser, ExecutorService workers) throws SAXException {
+            this.parser = parser;
+            this.workers = workers;
+            try {
+                startDocument();
+                while (parser.hasNext()) {
+                    switch (parser.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(getQName());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement(getQName());
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        characters(parser.getTextCharacters(), parser.getTextStart(), parser.getTextLength());
+                        break;
+                    default:
+                    }
+                }
+                endDocument();
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        private String getQName() {
+            String prefix = parser.getPrefix();
+            if (prefix == null || prefix.length() == 0)
+                return parser.getLocalName();
+            else
+                return prefix + ":" + parser.getLocalName();
+        }
+
+        private String getAttribute(String name) {
+            return parser.getAttributeValue(null, name);
+        }
+
+        private void startDocument() {
+            accumulator = new StringBuilder();
             states = new Stack<State>();
             currentData = new GpxData();
         }
@@ -76,13 +192,13 @@ public class GpxReader {
             }
         }
 
-        private LatLon parseLatLon(Attributes atts) {
+        private LatLon parseLatLon() {
             return new LatLon(
-                    parseCoord(atts.getValue("lat")),
-                    parseCoord(atts.getValue("lon")));
+                    parseCoord(getAttribute("lat")),
+                    parseCoord(getAttribute("lon")));
         }
 
-        @Override public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
+        private void startElement(String qName) {
             elements.push(qName);
             switch(currentState) {
             case init:
@@ -92,7 +208,7 @@ public class GpxReader {
                 } else if (qName.equals("wpt")) {
                     states.push(currentState);
                     currentState = State.wpt;
-                    currentWayPoint = new WayPoint(parseLatLon(atts));
+                    currentWayPoint = new WayPoint(parseLatLon());
                 } else if (qName.equals("rte")) {
                     states.push(currentState);
                     currentState = State.rte;
@@ -100,12 +216,12 @@ public class GpxReader {
                 } else if (qName.equals("trk")) {
                     states.push(currentState);
                     currentState = State.trk;
-                    currentTrack = new ArrayList<Collection<WayPoint>>();
+                    currentTrack = new ArrayList<Future<GpxTrackSegment>>();
                     currentTrackAttr = new HashMap<String, Object>();
                 } else if (qName.equals("extensions")) {
                     states.push(currentState);
                     currentState = State.ext;
-                } else if (qName.equals("gpx") && atts.getValue("creator") != null && atts.getValue("creator").startsWith("Nokia Sports Tracker")) {
+                } else if (qName.equals("gpx") && getAttribute("creator") != null && getAttribute("creator").startsWith("Nokia Sports Tracker")) {
                     nokiaSportsTrackerBug = true;
                 }
                 break;
@@ -113,9 +229,9 @@ public class GpxReader {
                 if (qName.equals("link")) {
                     states.push(currentState);
                     currentState = State.link;
-                    currentLink = new GpxLink(atts.getValue("href"));
+                    currentLink = new GpxLink(getAttribute("href"));
                 } else if (qName.equals("email")) {
-                    currentData.attr.put(GpxData.META_AUTHOR_EMAIL, atts.getValue("id") + "@" + atts.getValue("domain"));
+                    currentData.attr.put(GpxData.META_AUTHOR_EMAIL, getAttribute("id") + "@" + getAttribute("domain"));
                 }
                 break;
             case trk:
@@ -126,7 +242,7 @@ public class GpxReader {
                 } else if (qName.equals("link")) {
                     states.push(currentState);
                     currentState = State.link;
-                    currentLink = new GpxLink(atts.getValue("href"));
+                    currentLink = new GpxLink(getAttribute("href"));
                 } else if (qName.equals("extensions")) {
                     states.push(currentState);
                     currentState = State.ext;
@@ -142,25 +258,25 @@ public class GpxReader {
                 } else if (qName.equals("copyright")) {
                     states.push(currentState);
                     currentState = State.copyright;
-                    currentData.attr.put(GpxData.META_COPYRIGHT_AUTHOR, atts.getValue("author"));
+                    currentData.attr.put(GpxData.META_COPYRIGHT_AUTHOR, getAttribute("author"));
                 } else if (qName.equals("link")) {
                     states.push(currentState);
                     currentState = State.link;
-                    currentLink = new GpxLink(atts.getValue("href"));
+                    currentLink = new GpxLink(getAttribute("href"));
                 }
                 break;
             case trkseg:
                 if (qName.equals("trkpt")) {
                     states.push(currentState);
                     currentState = State.wpt;
-                    currentWayPoint = new WayPoint(parseLatLon(atts));
+                    currentWayPoint = new WayPoint(parseLatLon());
                 }
                 break;
             case wpt:
                 if (qName.equals("link")) {
                     states.push(currentState);
                     currentState = State.link;
-                    currentLink = new GpxLink(atts.getValue("href"));
+                    currentLink = new GpxLink(getAttribute("href"));
                 } else if (qName.equals("extensions")) {
                     states.push(currentState);
                     currentState = State.ext;
@@ -170,11 +286,11 @@ public class GpxReader {
                 if (qName.equals("link")) {
                     states.push(currentState);
                     currentState = State.link;
-                    currentLink = new GpxLink(atts.getValue("href"));
+                    currentLink = new GpxLink(getAttribute("href"));
                 } else if (qName.equals("rtept")) {
                     states.push(currentState);
                     currentState = State.wpt;
-                    currentWayPoint = new WayPoint(parseLatLon(atts));
+                    currentWayPoint = new WayPoint(parseLatLon());
                 } else if (qName.equals("extensions")) {
                     states.push(currentState);
                     currentState = State.ext;
@@ -185,14 +301,14 @@ public class GpxReader {
             accumulator.setLength(0);
         }
 
-        @Override public void characters(char[] ch, int start, int length) {
+        private void characters(char[] ch, int start, int length) {
             /**
              * Remove illegal characters generated by the Nokia Sports Tracker device.
              * Don't do this crude substitution for all files, since it would destroy
              * certain unicode characters.
              */
             if (nokiaSportsTrackerBug) {
-                for (int i=0; i<ch.length; ++i) {
+                for (int i=start; i<start+length; ++i) {
                     if (ch[i] == 1) {
                         ch[i] = 32;
                     }
@@ -214,7 +330,7 @@ public class GpxReader {
         }
 
         @SuppressWarnings("unchecked")
-        @Override public void endElement(String namespaceURI, String localName, String qName) {
+        private void endElement(String qName) throws SAXException {
             elements.pop();
             switch (currentState) {
             case metadata:
@@ -286,7 +402,12 @@ public class GpxReader {
                     }
                 } else if (qName.equals("time")) {
                     currentWayPoint.attr.put(qName, accumulator.toString());
-                    currentWayPoint.setTime();
+                    long time = DateUtils.parseUtcMillis(accumulator);
+                    if (time != Long.MIN_VALUE) {
+                        currentWayPoint.time = time / 1000.; /* ms => seconds */
+                    } else {
+                        currentWayPoint.setTime();
+                    }
                 } else if (qName.equals("cmt") || qName.equals("desc")) {
                     currentWayPoint.attr.put(qName, accumulator.toString());
                     currentWayPoint.setTime();
@@ -304,13 +425,16 @@ public class GpxReader {
             case trkseg:
                 if (qName.equals("trkseg")) {
                     currentState = states.pop();
-                    currentTrack.add(currentTrackSeg);
+                    if (!currentTrackSeg.isEmpty()) {
+                        currentTrack.add(submitSegment(currentTrackSeg));
+                    }
                 }
                 break;
             case trk:
                 if (qName.equals("trk")) {
                     currentState = states.pop();
-                    currentData.tracks.add(new ImmutableGpxTrack(currentTrack, currentTrackAttr));
+                    pendingTracks.add(new PendingTrack(currentTrack, currentTrackAttr));
+                    addTracks(false);
                 } else if (qName.equals("name") || qName.equals("cmt")
                         || qName.equals("desc") || qName.equals("src")
                         || qName.equals("type") || qName.equals("number")
@@ -333,7 +457,8 @@ public class GpxReader {
             }
         }
 
-        @Override public void endDocument() throws SAXException  {
+        private void endDocument() throws SAXException  {
+            addTracks(true);
             if (!states.empty())
                 throw new SAXException(tr("Parse error: invalid document structure for GPX document."));
             data = currentData;
@@ -342,10 +467,45 @@ public class GpxReader {
         public void tryToFinish() throws SAXException {
             List<String> remainingElements = new ArrayList<String>(elements);
             for (int i=remainingElements.size() - 1; i >= 0; i--) {
-                endElement(null, remainingElements.get(i), remainingElements.get(i));
+                endElement(remainingElements.get(i));
             }
             endDocument();
         }
+
+        /**
+         * Builds a segment by a worker. Waits for the oldest segment if the workers are too far
+         * behind, so that not too many points are kept in way point objects.
+         */
+        private Future<GpxTrackSegment> submitSegment(final Collection<WayPoint> wayPoints) throws SAXException {
+            while (runningSegments.size() >= 2 * nThreads) {
+                getSegment(runningSegments.removeFirst());
+            }
+            Future<GpxTrackSegment> result = workers.submit(new Callable<GpxTrackSegment>() {
+                public GpxTrackSegment call() {
+                    return ImmutableGpxTrack.createSegment(wayPoints);
+                }
+            });
+            runningSegments.add(result);
+            return result;
+        }
+
+        /**
+         * Adds the complete tracks to the data and tells the listener about them.
+         *
+         * @param wait whether to wait for all tracks
+         */
+        private void addTracks(boolean wait) throws SAXException {
+            while (!pendingTracks.isEmpty() && (wait || pendingTracks.getFirst().isDone())) {
+                GpxTrack track = pendingTracks.removeFirst().get();
+                currentData.tracks.add(track);
+                if (trackListener != null) {
+                    trackListener.trackRead(track);
+                }
+            }
+            while (!runningSegments.isEmpty() && runningSegments.getFirst().isDone()) {
+                runningSegments.removeFirst();
+            }
+        }
     }
 
     /**
@@ -353,7 +513,15 @@ public class GpxReader {
      *
      */
     public GpxReader(InputStream source) throws IOException {
-        this.inputSource = new InputSource(UTFInputStreamReader.create(source, "UTF-8"));
+        this.reader = UTFInputStreamReader.create(source, "UTF-8");
+        this.nThreads = Math.max(1, Main.pref.getInteger("gpx.reader.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Sets the listener told about each track as soon as it has been read.
+     */
+    public void setTrackListener(TrackListener trackListener) {
+        this.trackListener = trackListener;
     }
 
     /**
@@ -364,11 +532,18 @@ public class GpxReader {
      */
     public boolean parse(boolean tryToFinish) throws SAXException, IOException {
         Parser parser = new Parser();
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GPX reader worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
         try {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
+            XMLInputFactory factory = XMLInputFactory.newInstance();
             // support files with invalid xml namespace declarations (see #7247)
-            factory.setNamespaceAware(false);
-            factory.newSAXParser().parse(inputSource, parser);
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+            parser.parse(factory.createXMLStreamReader(reader), workers);
             return true;
         } catch (SAXException e) {
             if (tryToFinish) {
@@ -378,9 +553,11 @@ public class GpxReader {
                 return false;
             } else
                 throw e;
-        } catch (ParserConfigurationException e) {
+        } catch (XMLStreamException e) {
             e.printStackTrace(); // broken SAXException chaining
             throw new SAXException(e);
+        } finally {
+            workers.shutdownNow();
         }
     }
 }
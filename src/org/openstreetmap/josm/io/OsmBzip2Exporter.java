@@ -10,6 +10,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import org.apache.tools.bzip2.CBZip2OutputStream;
+import org.apache.tools.bzip2.ParallelCBZip2OutputStream;
+import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.actions.ExtensionFileFilter;
 public class OsmBzip2Exporter extends OsmExporter {
 
@@ -23,7 +25,12 @@ public class OsmBzip2Exporter extends OsmExporter {
         OutputStream out = new FileOutputStream(file);
         out.write('B');
         out.write('Z');
-        out = new CBZip2OutputStream(out);
+        int threads = Main.pref.getInteger("bzip2.threads", Runtime.getRuntime().availableProcessors());
+        if (threads > 1) {
+            out = new ParallelCBZip2OutputStream(out, CBZip2OutputStream.MAX_BLOCKSIZE, threads);
+        } else {
+            out = new CBZip2OutputStream(out);
+        }
         return out;
     }
 }
@@ -7,8 +7,11 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.bzip2.ParallelCBZip2InputStream;
+import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.actions.ExtensionFileFilter;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 
@@ -28,7 +31,17 @@ public class OsmBzip2Importer extends OsmImporter {
         b = bis.read();
         if (b != 'Z')
             throw new IOException(tr("Invalid bz2 file."));
-        CBZip2InputStream in = new CBZip2InputStream(bis);
-        importData(in, file);
+        int threads = Main.pref.getInteger("bzip2.threads", Runtime.getRuntime().availableProcessors());
+        InputStream in;
+        if (threads > 1) {
+            in = new ParallelCBZip2InputStream(bis, threads);
+        } else {
+            in = new CBZip2InputStream(bis);
+        }
+        try {
+            importData(in, file);
+        } finally {
+            in.close();
+        }
     }
 }
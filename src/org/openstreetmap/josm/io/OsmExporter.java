@@ -12,6 +12,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.channels.Channels;
 import java.text.MessageFormat;
 
 import javax.swing.JOptionPane;
@@ -57,6 +58,7 @@ public class OsmExporter extends FileExporter {
 
     private void save(File file, OsmDataLayer layer, boolean noBackup) {
         File tmpFile = null;
+        boolean lossless = isLossless(layer);
         try {
             // use a tmp file because if something errors out in the
             // process of writing the file, we might just end up with
@@ -66,25 +68,16 @@ public class OsmExporter extends FileExporter {
                 copy(file, tmpFile);
             }
 
-            // create outputstream and wrap it with gzip or bzip, if necessary
-            OutputStream out = getOutputStream(file);
-            Writer writer = new OutputStreamWriter(out, "UTF-8");
-
-            OsmWriter w = OsmWriterFactory.createOsmWriter(new PrintWriter(writer), false, layer.data.getVersion());
-            layer.data.getReadLock().lock();
-            try {
-                w.writeLayer(layer);
-                w.close();
-            } finally {
-                layer.data.getReadLock().unlock();
-            }
+            doSave(file, layer);
             // FIXME - how to close?
             if (noBackup || !Main.pref.getBoolean("save.keepbackup", false)) {
                 if (tmpFile != null) {
                     tmpFile.delete();
                 }
             }
-            layer.onPostSaveToFile();
+            if (lossless) {
+                layer.onPostSaveToFile();
+            }
         } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(
@@ -112,6 +105,45 @@ public class OsmExporter extends FileExporter {
         }
     }
 
+    /**
+     * Writes the data of the layer to the file.
+     */
+    protected void doSave(File file, OsmDataLayer layer) throws IOException {
+        // create outputstream and wrap it with gzip or bzip, if necessary
+        OutputStream out = getOutputStream(file);
+        if (useStreamingWriter()) {
+            StreamingOsmWriter w = new StreamingOsmWriter(Channels.newChannel(out), false, layer.data.getVersion());
+            layer.data.getReadLock().lock();
+            try {
+                w.writeLayer(layer);
+                w.close();
+            } finally {
+                layer.data.getReadLock().unlock();
+            }
+            return;
+        }
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+
+        OsmWriter w = OsmWriterFactory.createOsmWriter(new PrintWriter(writer), false, layer.data.getVersion());
+        layer.data.getReadLock().lock();
+        try {
+            w.writeLayer(layer);
+            w.close();
+        } finally {
+            layer.data.getReadLock().unlock();
+        }
+    }
+
+    /**
+     * The streaming writer produces the same output as {@link OsmWriter}. It is not used
+     * when a plugin has replaced the OsmWriter by means of the {@link OsmWriterFactory}.
+     */
+    private static boolean useStreamingWriter() {
+        if (!Main.pref.getBoolean("osm.writer.streaming", true))
+            return false;
+        return OsmWriterFactory.theFactory == null || OsmWriterFactory.theFactory.getClass() == OsmWriterFactory.class;
+    }
+
     private void copy(File src, File dst) throws IOException {
         FileInputStream srcStream;
         FileOutputStream dstStream;
@@ -94,6 +94,8 @@ public class OsmImporter extends FileImporter {
     }
 
     protected DataSet parseDataSet(InputStream in, ProgressMonitor progressMonitor) throws IllegalDataException {
+        if (Main.pref.getBoolean("osm.reader.parallel", true))
+            return ParallelOsmReader.parseDataSet(in, progressMonitor);
         return OsmReader.parseDataSet(in, progressMonitor);
     }
 
@@ -11,26 +11,19 @@ import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.xml.stream.Location;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
-import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
-import org.openstreetmap.josm.data.osm.Changeset;
 import org.openstreetmap.josm.data.osm.DataSet;
-import org.openstreetmap.josm.data.osm.DataSource;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.NodeData;
-import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
 import org.openstreetmap.josm.data.osm.PrimitiveData;
 import org.openstreetmap.josm.data.osm.Relation;
 import org.openstreetmap.josm.data.osm.RelationData;
 import org.openstreetmap.josm.data.osm.RelationMemberData;
-import org.openstreetmap.josm.data.osm.Tagged;
-import org.openstreetmap.josm.data.osm.User;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.data.osm.WayData;
 import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
@@ -47,8 +40,6 @@ import org.openstreetmap.josm.tools.DateUtils;
  */
 public class OsmReader extends AbstractReader {
 
-    protected XMLStreamReader parser;
-
     /** Used by plugins to register themselves as data postprocessors. */
     public static ArrayList<OsmServerReadPostprocessor> postprocessors;
 
@@ -79,10 +70,6 @@ public class OsmReader extends AbstractReader {
         this.parser = parser;
     }
 
-    protected void throwException(String msg) throws XMLStreamException {
-        throw new OsmParsingException(msg, parser.getLocation());
-    }
-
     protected void parse() throws XMLStreamException {
         int event = parser.getEventType();
         while (true) {
@@ -146,43 +133,11 @@ public class OsmReader extends AbstractReader {
         }
     }
 
-    private void parseBounds(String generator) throws XMLStreamException {
-        String minlon = parser.getAttributeValue(null, "minlon");
-        String minlat = parser.getAttributeValue(null, "minlat");
-        String maxlon = parser.getAttributeValue(null, "maxlon");
-        String maxlat = parser.getAttributeValue(null, "maxlat");
-        String origin = parser.getAttributeValue(null, "origin");
-        if (minlon != null && maxlon != null && minlat != null && maxlat != null) {
-            if (origin == null) {
-                origin = generator;
-            }
-            Bounds bounds = new Bounds(
-                    Double.parseDouble(minlat), Double.parseDouble(minlon),
-                    Double.parseDouble(maxlat), Double.parseDouble(maxlon));
-            if (bounds.isOutOfTheWorld()) {
-                Bounds copy = new Bounds(bounds);
-                bounds.normalize();
-                System.out.println("Bbox " + copy + " is out of the world, normalized to " + bounds);
-            }
-            DataSource src = new DataSource(bounds, origin);
-            ds.dataSources.add(src);
-        } else {
-            throwException(tr(
-                    "Missing mandatory attributes on element ''bounds''. Got minlon=''{0}'',minlat=''{1}'',maxlon=''{3}'',maxlat=''{4}'', origin=''{5}''.",
-                    minlon, minlat, maxlon, maxlat, origin
-            ));
-        }
-        jumpToEnd();
-    }
-
     protected Node parseNode() throws XMLStreamException {
         NodeData nd = new NodeData();
         nd.setCoor(new LatLon(Double.parseDouble(parser.getAttributeValue(null, "lat")), Double.parseDouble(parser.getAttributeValue(null, "lon"))));
         readCommon(nd);
-        Node n = new Node(nd.getId(), nd.getVersion());
-        n.setVisible(nd.isVisible());
-        n.load(nd);
-        externalIdMap.put(nd.getPrimitiveId(), n);
+        Node n = (Node) createPrimitive(nd);
         while (true) {
             int event = parser.next();
             if (event == XMLStreamConstants.START_ELEMENT) {
@@ -199,10 +154,7 @@ public class OsmReader extends AbstractReader {
     protected Way parseWay() throws XMLStreamException {
         WayData wd = new WayData();
         readCommon(wd);
-        Way w = new Way(wd.getId(), wd.getVersion());
-        w.setVisible(wd.isVisible());
-        w.load(wd);
-        externalIdMap.put(wd.getPrimitiveId(), w);
+        Way w = (Way) createPrimitive(wd);
 
         Collection<Long> nodeIds = new ArrayList<Long>();
         while (true) {
@@ -246,17 +198,14 @@ public class OsmReader extends AbstractReader {
     protected Relation parseRelation() throws XMLStreamException {
         RelationData rd = new RelationData();
         readCommon(rd);
-        Relation r = new Relation(rd.getId(), rd.getVersion());
-        r.setVisible(rd.isVisible());
-        r.load(rd);
-        externalIdMap.put(rd.getPrimitiveId(), r);
+        Relation r = (Relation) createPrimitive(rd);
 
         Collection<RelationMemberData> members = new ArrayList<RelationMemberData>();
         while (true) {
             int event = parser.next();
             if (event == XMLStreamConstants.START_ELEMENT) {
                 if (parser.getLocalName().equals("member")) {
-                    members.add(parseRelationMember(r));
+                    members.add(parseRelationMember(rd));
                 } else if (parser.getLocalName().equals("tag")) {
                     parseTag(r);
                 } else {
@@ -274,120 +223,18 @@ public class OsmReader extends AbstractReader {
         return r;
     }
 
-    private RelationMemberData parseRelationMember(Relation r) throws XMLStreamException {
-        String role = null;
-        OsmPrimitiveType type = null;
-        long id = 0;
-        String value = parser.getAttributeValue(null, "ref");
-        if (value == null) {
-            throwException(tr("Missing attribute ''ref'' on member in relation {0}.",r.getUniqueId()));
-        }
+    private RelationMemberData parseRelationMember(RelationData rd) throws XMLStreamException {
+        RelationMemberData member = null;
         try {
-            id = Long.parseLong(value);
-        } catch(NumberFormatException e) {
-            throwException(tr("Illegal value for attribute ''ref'' on member in relation {0}. Got {1}", Long.toString(r.getUniqueId()),value));
-        }
-        value = parser.getAttributeValue(null, "type");
-        if (value == null) {
-            throwException(tr("Missing attribute ''type'' on member {0} in relation {1}.", Long.toString(id), Long.toString(r.getUniqueId())));
-        }
-        try {
-            type = OsmPrimitiveType.fromApiTypeName(value);
-        } catch(IllegalArgumentException e) {
-            throwException(tr("Illegal value for attribute ''type'' on member {0} in relation {1}. Got {2}.", Long.toString(id), Long.toString(r.getUniqueId()), value));
-        }
-        value = parser.getAttributeValue(null, "role");
-        role = value;
-
-        if (id == 0) {
-            throwException(tr("Incomplete <member> specification with ref=0"));
-        }
-        jumpToEnd();
-        return new RelationMemberData(role, type, id);
-    }
-
-    private void parseChangeset(Long uploadChangesetId) throws XMLStreamException {
-        long id = getLong("id");
-
-        if (id == uploadChangesetId) {
-            uploadChangeset = new Changeset((int) getLong("id"));
-            while (true) {
-                int event = parser.next();
-                if (event == XMLStreamConstants.START_ELEMENT) {
-                    if (parser.getLocalName().equals("tag")) {
-                        parseTag(uploadChangeset);
-                    } else {
-                        parseUnknown();
-                    }
-                } else if (event == XMLStreamConstants.END_ELEMENT)
-                    return;
-            }
-        } else {
-            jumpToEnd(false);
-        }
-    }
-
-    private void parseTag(Tagged t) throws XMLStreamException {
-        String key = parser.getAttributeValue(null, "k");
-        String value = parser.getAttributeValue(null, "v");
-        if (key == null || value == null) {
-            throwException(tr("Missing key or value attribute in tag."));
+            member = parseRelationMember(rd,
+                    parser.getAttributeValue(null, "type"),
+                    parser.getAttributeValue(null, "ref"),
+                    parser.getAttributeValue(null, "role"));
+        } catch (IllegalDataException e) {
+            throwException(e.getMessage());
         }
-        t.put(key.intern(), value.intern());
         jumpToEnd();
-    }
-
-    protected void parseUnknown(boolean printWarning) throws XMLStreamException {
-        if (printWarning) {
-            System.out.println(tr("Undefined element ''{0}'' found in input stream. Skipping.", parser.getLocalName()));
-        }
-        while (true) {
-            int event = parser.next();
-            if (event == XMLStreamConstants.START_ELEMENT) {
-                parseUnknown(false); /* no more warning for inner elements */
-            } else if (event == XMLStreamConstants.END_ELEMENT)
-                return;
-        }
-    }
-
-    protected void parseUnknown() throws XMLStreamException {
-        parseUnknown(true);
-    }
-
-    /**
-     * When cursor is at the start of an element, moves it to the end tag of that element.
-     * Nested content is skipped.
-     *
-     * This is basically the same code as parseUnknown(), except for the warnings, which
-     * are displayed for inner elements and not at top level.
-     */
-    private void jumpToEnd(boolean printWarning) throws XMLStreamException {
-        while (true) {
-            int event = parser.next();
-            if (event == XMLStreamConstants.START_ELEMENT) {
-                parseUnknown(printWarning);
-            } else if (event == XMLStreamConstants.END_ELEMENT)
-                return;
-        }
-    }
-
-    private void jumpToEnd() throws XMLStreamException {
-        jumpToEnd(true);
-    }
-
-    private User createUser(String uid, String name) throws XMLStreamException {
-        if (uid == null) {
-            if (name == null)
-                return null;
-            return User.createLocalUser(name);
-        }
-        try {
-            long id = Long.parseLong(uid);
-            return User.createOsmUser(id, name);
-        } catch(NumberFormatException e) {
-            throwException(MessageFormat.format("Illegal value for attribute ''uid''. Got ''{0}''.", uid));
-        }
-        return null;
+        return member;
     }
 
     /**
@@ -399,156 +246,21 @@ public class OsmReader extends AbstractReader {
             throwException(tr("Illegal object with ID=0."));
         }
 
-        String time = parser.getAttributeValue(null, "timestamp");
-        if (time != null && time.length() != 0) {
-            current.setTimestamp(DateUtils.fromString(time));
-        }
-
-        // user attribute added in 0.4 API
-        String user = parser.getAttributeValue(null, "user");
-        // uid attribute added in 0.6 API
-        String uid = parser.getAttributeValue(null, "uid");
-        current.setUser(createUser(uid, user));
-
-        // visible attribute added in 0.4 API
-        String visible = parser.getAttributeValue(null, "visible");
-        if (visible != null) {
-            current.setVisible(Boolean.parseBoolean(visible));
-        }
-
-        String versionString = parser.getAttributeValue(null, "version");
-        int version = 0;
-        if (versionString != null) {
-            try {
-                version = Integer.parseInt(versionString);
-            } catch(NumberFormatException e) {
-                throwException(tr("Illegal value for attribute ''version'' on OSM primitive with ID {0}. Got {1}.", Long.toString(current.getUniqueId()), versionString));
-            }
-            if (ds.getVersion().equals("0.6")){
-                if (version <= 0 && current.getUniqueId() > 0) {
-                    throwException(tr("Illegal value for attribute ''version'' on OSM primitive with ID {0}. Got {1}.", Long.toString(current.getUniqueId()), versionString));
-                } else if (version < 0 && current.getUniqueId() <= 0) {
-                    System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 0, "0.6"));
-                    version = 0;
-                }
-            } else if (ds.getVersion().equals("0.5")) {
-                if (version <= 0 && current.getUniqueId() > 0) {
-                    System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 1, "0.5"));
-                    version = 1;
-                } else if (version < 0 && current.getUniqueId() <= 0) {
-                    System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 0, "0.5"));
-                    version = 0;
-                }
-            } else {
-                // should not happen. API version has been checked before
-                throwException(tr("Unknown or unsupported API version. Got {0}.", ds.getVersion()));
-            }
-        } else {
-            // version expected for OSM primitives with an id assigned by the server (id > 0), since API 0.6
-            //
-            if (current.getUniqueId() > 0 && ds.getVersion() != null && ds.getVersion().equals("0.6")) {
-                throwException(tr("Missing attribute ''version'' on OSM primitive with ID {0}.", Long.toString(current.getUniqueId())));
-            } else if (current.getUniqueId() > 0 && ds.getVersion() != null && ds.getVersion().equals("0.5")) {
-                // default version in 0.5 files for existing primitives
-                System.out.println(tr("WARNING: Normalizing value of attribute ''version'' of element {0} to {2}, API version is ''{3}''. Got {1}.", current.getUniqueId(), version, 1, "0.5"));
-                version= 1;
-            } else if (current.getUniqueId() <= 0 && ds.getVersion() != null && ds.getVersion().equals("0.5")) {
-                // default version in 0.5 files for new primitives, no warning necessary. This is
-                // (was) legal in API 0.5
-                version= 0;
-            }
-        }
-        current.setVersion(version);
-
-        String action = parser.getAttributeValue(null, "action");
-        if (action == null) {
-            // do nothing
-        } else if (action.equals("delete")) {
-            current.setDeleted(true);
-            current.setModified(current.isVisible());
-        } else if (action.equals("modify")) {
-            current.setModified(true);
-        }
-
-        String v = parser.getAttributeValue(null, "changeset");
-        if (v == null) {
-            current.setChangesetId(0);
-        } else {
-            try {
-                current.setChangesetId(Integer.parseInt(v));
-            } catch(NumberFormatException e) {
-                if (current.getUniqueId() <= 0) {
-                    // for a new primitive we just log a warning
-                    System.out.println(tr("Illegal value for attribute ''changeset'' on new object {1}. Got {0}. Resetting to 0.", v, current.getUniqueId()));
-                    current.setChangesetId(0);
-                } else {
-                    // for an existing primitive this is a problem
-                    throwException(tr("Illegal value for attribute ''changeset''. Got {0}.", v));
-                }
-            }
-            if (current.getChangesetId() <=0) {
-                if (current.getUniqueId() <= 0) {
-                    // for a new primitive we just log a warning
-                    System.out.println(tr("Illegal value for attribute ''changeset'' on new object {1}. Got {0}. Resetting to 0.", v, current.getUniqueId()));
-                    current.setChangesetId(0);
-                } else {
-                    // for an existing primitive this is a problem
-                    throwException(tr("Illegal value for attribute ''changeset''. Got {0}.", v));
-                }
-            }
-        }
-    }
-
-    private long getLong(String name) throws XMLStreamException {
-        String value = parser.getAttributeValue(null, name);
-        if (value == null) {
-            throwException(tr("Missing required attribute ''{0}''.",name));
-        }
         try {
-            return Long.parseLong(value);
-        } catch(NumberFormatException e) {
-            throwException(tr("Illegal long value for attribute ''{0}''. Got ''{1}''.",name, value));
-        }
-        return 0; // should not happen
-    }
-
-    private static class OsmParsingException extends XMLStreamException {
-        public OsmParsingException() {
-            super();
-        }
-
-        public OsmParsingException(String msg) {
-            super(msg);
-        }
-
-        public OsmParsingException(String msg, Location location) {
-            super(msg); /* cannot use super(msg, location) because it messes with the message preventing localization */
-            this.location = location;
-        }
-
-        public OsmParsingException(String msg, Location location, Throwable th) {
-            super(msg, th);
-            this.location = location;
-        }
-
-        public OsmParsingException(String msg, Throwable th) {
-            super(msg, th);
-        }
-
-        public OsmParsingException(Throwable th) {
-            super(th);
-        }
-
-        @Override
-        public String getMessage() {
-            String msg = super.getMessage();
-            if (msg == null) {
-                msg = getClass().getName();
-            }
-            if (getLocation() == null)
-                return msg;
-            msg = msg + " " + tr("(at line {0}, column {1})", getLocation().getLineNumber(), getLocation().getColumnNumber());
-            return msg;
+            // user attribute added in 0.4 API
+            String user = parser.getAttributeValue(null, "user");
+            // uid attribute added in 0.6 API
+            Long uid = parseUid(parser.getAttributeValue(null, "uid"));
+            current.setUser(createUser(uid, user));
+
+            readCommonAttributes(current, ds.getVersion(),
+                    parser.getAttributeValue(null, "timestamp"),
+                    parser.getAttributeValue(null, "visible"),
+                    parser.getAttributeValue(null, "version"),
+                    parser.getAttributeValue(null, "action"),
+                    parser.getAttributeValue(null, "changeset"));
+        } catch (IllegalDataException e) {
+            throwException(e.getMessage());
         }
     }
 
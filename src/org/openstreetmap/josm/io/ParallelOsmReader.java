@@ -0,0 +1,495 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.NodeData;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.PrimitiveData;
+import org.openstreetmap.josm.data.osm.RelationData;
+import org.openstreetmap.josm.data.osm.RelationMemberData;
+import org.openstreetmap.josm.data.osm.WayData;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.tools.CheckParameterUtil;
+
+/**
+ * Multi-threaded reader for OSM files, producing the same dataset as {@link OsmReader}.
+ *
+ * Reading is split into three stages which run concurrently:
+ * <ol>
+ * <li>The calling thread tokenizes the XML stream and collects the raw attribute values
+ * of nodes, ways and relations in chunks.</li>
+ * <li>A pool of worker threads converts the chunks into {@link NodeData}, {@link WayData}
+ * and {@link RelationData}: numbers and dates are parsed and the attributes are validated.</li>
+ * <li>A single resolver thread takes the converted chunks in document order, creates the
+ * primitives and registers them for {@link AbstractReader#prepareDataSet()}, which finally
+ * resolves the references and builds the dataset.</li>
+ * </ol>
+ *
+ * Only plain OSM files are supported, osmChange files are read by {@link OsmChangeReader}.
+ */
+public class ParallelOsmReader extends AbstractReader {
+
+    /** Number of elements passed to a worker at once */
+    private static final int CHUNK_SIZE = 2000;
+
+    /** Indexes of the common attributes in {@link RawPrimitive#attributes} */
+    private static final String[] COMMON_ATTRIBUTES = {
+        "id", "timestamp", "user", "uid", "visible", "version", "action", "changeset", "lat", "lon"
+    };
+    private static final int ID = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int USER = 2;
+    private static final int UID = 3;
+    private static final int VISIBLE = 4;
+    private static final int VERSION = 5;
+    private static final int ACTION = 6;
+    private static final int CHANGESET = 7;
+    private static final int LAT = 8;
+    private static final int LON = 9;
+
+    /**
+     * Raw content of a node, way or relation element as found by the tokenizer.
+     */
+    private static class RawPrimitive {
+        final OsmPrimitiveType type;
+        final String[] attributes = new String[COMMON_ATTRIBUTES.length];
+        final int line;
+        final int column;
+        /** keys and values, alternating */
+        final List<String> tags = new ArrayList<String>();
+        /** node refs of a way or type, ref and role of each relation member */
+        final List<String> refs = new ArrayList<String>();
+
+        RawPrimitive(OsmPrimitiveType type, XMLStreamReader parser) {
+            this.type = type;
+            this.line = parser.getLocation().getLineNumber();
+            this.column = parser.getLocation().getColumnNumber();
+            for (int i=0; i<attributes.length; i++) {
+                attributes[i] = parser.getAttributeValue(null, COMMON_ATTRIBUTES[i]);
+            }
+        }
+    }
+
+    /**
+     * A converted element, ready to be turned into a primitive.
+     */
+    private static class ParsedPrimitive {
+        PrimitiveData data;
+        Long uid;
+        String userName;
+        Collection<Long> nodeIds;
+        Collection<RelationMemberData> members;
+    }
+
+    /**
+     * Signals the resolver that the tokenizer is done.
+     */
+    private static final Future<List<ParsedPrimitive>> END_OF_DATA = new FutureTask<List<ParsedPrimitive>>(
+            new Callable<List<ParsedPrimitive>>() {
+                public List<ParsedPrimitive> call() {
+                    return null;
+                }
+            });
+
+    private final int nThreads;
+    private BlockingQueue<Future<List<ParsedPrimitive>>> pending;
+    private volatile Throwable failure;
+
+    /**
+     * constructor (for private use only)
+     *
+     * @see #parseDataSet(InputStream, ProgressMonitor)
+     */
+    protected ParallelOsmReader() {
+        nThreads = Math.max(1, Main.pref.getInteger("osm.reader.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * Stage 1: tokenizer, runs in the calling thread
+     * ------------------------------------------------------------------------
+     */
+
+    private void parse(ExecutorService workers) throws XMLStreamException {
+        int event = parser.getEventType();
+        while (true) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (parser.getLocalName().equals("osm")) {
+                    parseOsm(workers);
+                } else {
+                    parseUnknown();
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT)
+                return;
+            if (parser.hasNext()) {
+                event = parser.next();
+            } else {
+                break;
+            }
+        }
+        parser.close();
+    }
+
+    private void parseOsm(ExecutorService workers) throws XMLStreamException {
+        String v = parser.getAttributeValue(null, "version");
+        if (v == null) {
+            throwException(tr("Missing mandatory attribute ''{0}''.", "version"));
+        }
+        if (!(v.equals("0.5") || v.equals("0.6"))) {
+            throwException(tr("Unsupported version: {0}", v));
+        }
+        final String version = v;
+        ds.setVersion(v);
+        String upload = parser.getAttributeValue(null, "upload");
+        if (upload != null) {
+            ds.setUploadDiscouraged(!Boolean.parseBoolean(upload));
+        }
+        String generator = parser.getAttributeValue(null, "generator");
+        Long uploadChangesetId = null;
+        if (parser.getAttributeValue(null, "upload-changeset") != null) {
+            uploadChangesetId = getLong("upload-changeset");
+        }
+        List<RawPrimitive> chunk = new ArrayList<RawPrimitive>(CHUNK_SIZE);
+        while (true) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = parser.getLocalName();
+                if (name.equals("node")) {
+                    chunk.add(readPrimitive(OsmPrimitiveType.NODE));
+                } else if (name.equals("way")) {
+                    chunk.add(readPrimitive(OsmPrimitiveType.WAY));
+                } else if (name.equals("relation")) {
+                    chunk.add(readPrimitive(OsmPrimitiveType.RELATION));
+                } else if (name.equals("bounds")) {
+                    parseBounds(generator);
+                } else if (name.equals("changeset")) {
+                    parseChangeset(uploadChangesetId);
+                } else {
+                    parseUnknown();
+                }
+                if (chunk.size() == CHUNK_SIZE) {
+                    submit(workers, chunk, version);
+                    chunk = new ArrayList<RawPrimitive>(CHUNK_SIZE);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        if (!chunk.isEmpty()) {
+            submit(workers, chunk, version);
+        }
+    }
+
+    private void submit(ExecutorService workers, final List<RawPrimitive> chunk, final String version) throws XMLStreamException {
+        if (failure != null)
+            // a later stage failed, no need to read any further
+            throw new XMLStreamException(tr("Parsing aborted"));
+        Future<List<ParsedPrimitive>> converted = workers.submit(new Callable<List<ParsedPrimitive>>() {
+            public List<ParsedPrimitive> call() throws IllegalDataException {
+                List<ParsedPrimitive> result = new ArrayList<ParsedPrimitive>(chunk.size());
+                for (RawPrimitive raw : chunk) {
+                    result.add(convert(raw, version));
+                }
+                return result;
+            }
+        });
+        try {
+            pending.put(converted);
+        } catch (InterruptedException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    private RawPrimitive readPrimitive(OsmPrimitiveType type) throws XMLStreamException {
+        RawPrimitive raw = new RawPrimitive(type, parser);
+        while (true) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = parser.getLocalName();
+                if (name.equals("tag")) {
+                    String key = parser.getAttributeValue(null, "k");
+                    String value = parser.getAttributeValue(null, "v");
+                    if (key == null || value == null) {
+                        throwException(tr("Missing key or value attribute in tag."));
+                    }
+                    raw.tags.add(key);
+                    raw.tags.add(value);
+                    jumpToEnd();
+                } else if (type == OsmPrimitiveType.WAY && name.equals("nd")) {
+                    String ref = parser.getAttributeValue(null, "ref");
+                    if (ref == null) {
+                        throwException(tr("Missing mandatory attribute ''{0}'' on <nd> of way {1}.", "ref", raw.attributes[ID]));
+                    }
+                    raw.refs.add(ref);
+                    jumpToEnd();
+                } else if (type == OsmPrimitiveType.RELATION && name.equals("member")) {
+                    raw.refs.add(parser.getAttributeValue(null, "type"));
+                    raw.refs.add(parser.getAttributeValue(null, "ref"));
+                    raw.refs.add(parser.getAttributeValue(null, "role"));
+                    jumpToEnd();
+                } else {
+                    parseUnknown();
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT)
+                return raw;
+        }
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * Stage 2: conversion, runs in the worker threads
+     * ------------------------------------------------------------------------
+     */
+
+    private static IllegalDataException error(RawPrimitive raw, String msg) {
+        return new IllegalDataException(msg + " " + tr("(at line {0}, column {1})", raw.line, raw.column));
+    }
+
+    private static ParsedPrimitive convert(RawPrimitive raw, String apiVersion) throws IllegalDataException {
+        ParsedPrimitive result = new ParsedPrimitive();
+        PrimitiveData data;
+        switch (raw.type) {
+        case NODE:
+            NodeData nd = new NodeData();
+            try {
+                nd.setCoor(new LatLon(Double.parseDouble(raw.attributes[LAT]), Double.parseDouble(raw.attributes[LON])));
+            } catch (NullPointerException e) {
+                throw error(raw, e.toString());
+            } catch (NumberFormatException e) {
+                throw error(raw, e.getMessage());
+            }
+            data = nd;
+            break;
+        case WAY:
+            data = new WayData();
+            break;
+        default:
+            data = new RelationData();
+        }
+        result.data = data;
+        readCommon(raw, data, result, apiVersion);
+        for (int i=0; i<raw.tags.size(); i+=2) {
+            data.put(raw.tags.get(i), raw.tags.get(i + 1));
+        }
+        if (raw.type == OsmPrimitiveType.WAY) {
+            Collection<Long> nodeIds = new ArrayList<Long>(raw.refs.size());
+            for (String ref : raw.refs) {
+                long id = parseLong(raw, "ref", ref);
+                if (id == 0)
+                    throw error(raw, tr("Illegal value of attribute ''ref'' of element <nd>. Got {0}.", id));
+                nodeIds.add(id);
+            }
+            if (data.isDeleted() && nodeIds.size() > 0) {
+                System.out.println(tr("Deleted way {0} contains nodes", data.getUniqueId()));
+                nodeIds = new ArrayList<Long>();
+            }
+            result.nodeIds = nodeIds;
+        } else if (raw.type == OsmPrimitiveType.RELATION) {
+            Collection<RelationMemberData> members = new ArrayList<RelationMemberData>(raw.refs.size() / 3);
+            for (int i=0; i<raw.refs.size(); i+=3) {
+                members.add(convertMember(raw, data, raw.refs.get(i), raw.refs.get(i + 1), raw.refs.get(i + 2)));
+            }
+            if (data.isDeleted() && members.size() > 0) {
+                System.out.println(tr("Deleted relation {0} contains members", data.getUniqueId()));
+                members = new ArrayList<RelationMemberData>();
+            }
+            result.members = members;
+        }
+        return result;
+    }
+
+    private static RelationMemberData convertMember(RawPrimitive raw, PrimitiveData r, String typeValue, String refValue, String role) throws IllegalDataException {
+        try {
+            return parseRelationMember(r, typeValue, refValue, role);
+        } catch (IllegalDataException e) {
+            throw error(raw, e.getMessage());
+        }
+    }
+
+    private static long parseLong(RawPrimitive raw, String name, String value) throws IllegalDataException {
+        try {
+            return parseLong(name, value);
+        } catch (IllegalDataException e) {
+            throw error(raw, e.getMessage());
+        }
+    }
+
+    /**
+     * Same as OsmReader.readCommon(), except that the user is only created by the resolver
+     * because the user map is not thread safe.
+     */
+    private static void readCommon(RawPrimitive raw, PrimitiveData current, ParsedPrimitive result, String apiVersion) throws IllegalDataException {
+        String[] attributes = raw.attributes;
+        current.setId(parseLong(raw, "id", attributes[ID]));
+        if (current.getUniqueId() == 0)
+            throw error(raw, tr("Illegal object with ID=0."));
+
+        try {
+            result.userName = attributes[USER];
+            result.uid = parseUid(attributes[UID]);
+            readCommonAttributes(current, apiVersion, attributes[TIMESTAMP], attributes[VISIBLE],
+                    attributes[VERSION], attributes[ACTION], attributes[CHANGESET]);
+        } catch (IllegalDataException e) {
+            throw error(raw, e.getMessage());
+        }
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * Stage 3: resolver, creates the primitives in document order
+     * ------------------------------------------------------------------------
+     */
+
+    private class Resolver implements Runnable {
+        public void run() {
+            while (true) {
+                Future<List<ParsedPrimitive>> next;
+                try {
+                    next = pending.take();
+                } catch (InterruptedException e) {
+                    failure = e;
+                    return;
+                }
+                if (next == END_OF_DATA)
+                    return;
+                if (failure != null) {
+                    // keep draining the queue so the tokenizer isn't blocked
+                    next.cancel(false);
+                    continue;
+                }
+                try {
+                    for (ParsedPrimitive parsed : next.get()) {
+                        register(parsed);
+                    }
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+        }
+    }
+
+    private void register(ParsedPrimitive parsed) {
+        PrimitiveData data = parsed.data;
+        data.setUser(createUser(parsed.uid, parsed.userName));
+        register(data, parsed.nodeIds, parsed.members);
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     */
+
+    protected DataSet doParseDataSet(InputStream source, ProgressMonitor progressMonitor) throws IllegalDataException {
+        if (progressMonitor == null) {
+            progressMonitor = NullProgressMonitor.INSTANCE;
+        }
+        CheckParameterUtil.ensureParameterNotNull(source, "source");
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OSM reader worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pending = new ArrayBlockingQueue<Future<List<ParsedPrimitive>>>(2 * nThreads + 1);
+        Thread resolver = new Thread(new Resolver(), "OSM reader resolver");
+        resolver.setDaemon(true);
+        try {
+            progressMonitor.beginTask(tr("Prepare OSM data...", 2));
+            progressMonitor.indeterminateSubTask(tr("Parsing OSM data..."));
+
+            resolver.start();
+            try {
+                InputStreamReader ir = UTFInputStreamReader.create(source, "UTF-8");
+                parser = XMLInputFactory.newInstance().createXMLStreamReader(ir);
+                parse(workers);
+            } finally {
+                pending.put(END_OF_DATA);
+                resolver.join();
+            }
+            if (failure instanceof IllegalDataException)
+                throw (IllegalDataException) failure;
+            else if (failure != null)
+                throw new IllegalDataException(failure);
+            progressMonitor.worked(1);
+
+            progressMonitor.indeterminateSubTask(tr("Preparing data set..."));
+            prepareDataSet();
+            progressMonitor.worked(1);
+
+            // iterate over registered postprocessors and give them each a chance
+            // to modify the dataset we have just loaded.
+            if (OsmReader.postprocessors != null) {
+                for (OsmServerReadPostprocessor pp : OsmReader.postprocessors) {
+                    pp.postprocessDataSet(getDataSet(), progressMonitor);
+                }
+            }
+            return getDataSet();
+        } catch(IllegalDataException e) {
+            throw e;
+        } catch(OsmParsingException e) {
+            throw new IllegalDataException(e.getMessage(), e);
+        } catch(XMLStreamException e) {
+            if (failure instanceof IllegalDataException)
+                // the tokenizer was aborted because of the failure
+                throw (IllegalDataException) failure;
+            String msg = e.getMessage();
+            Pattern p = Pattern.compile("Message: (.+)");
+            Matcher m = p.matcher(msg);
+            if (m.find()) {
+                msg = m.group(1);
+            }
+            if (e.getLocation() != null)
+                throw new IllegalDataException(tr("Line {0} column {1}: ", e.getLocation().getLineNumber(), e.getLocation().getColumnNumber()) + msg, e);
+            else
+                throw new IllegalDataException(msg, e);
+        } catch(Exception e) {
+            throw new IllegalDataException(e);
+        } finally {
+            workers.shutdownNow();
+            progressMonitor.finishTask();
+        }
+    }
+
+    /**
+     * Parse the given input source and return the dataset.
+     *
+     * @param source the source input stream. Must not be null.
+     * @param progressMonitor  the progress monitor. If null, {@link NullProgressMonitor#INSTANCE} is assumed
+     *
+     * @return the dataset with the parsed data
+     * @throws IllegalDataException thrown if the an error was found while parsing the data from the source
+     * @throws IllegalArgumentException thrown if source is null
+     */
+    public static DataSet parseDataSet(InputStream source, ProgressMonitor progressMonitor) throws IllegalDataException {
+        return new ParallelOsmReader().doParseDataSet(source, progressMonitor);
+    }
+}
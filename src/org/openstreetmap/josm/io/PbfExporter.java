@@ -0,0 +1,48 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.openstreetmap.josm.actions.ExtensionFileFilter;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+public class PbfExporter extends OsmExporter {
+
+    public PbfExporter() {
+        super(new ExtensionFileFilter("osm.pbf,pbf", "osm.pbf", tr("OSM Server Files pbf compressed")
+                + " (*.osm.pbf *.pbf)"));
+    }
+
+    /**
+     * PBF files have no action attribute, so deleted objects are left out and
+     * modified objects are read back as unmodified.
+     */
+    @Override
+    public boolean isLossless(Layer layer) {
+        if (!(layer instanceof OsmDataLayer))
+            return true;
+        for (OsmPrimitive osm : ((OsmDataLayer) layer).data.allPrimitives()) {
+            if (osm.isDeleted() || (osm.isModified() && !osm.isNew()))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void doSave(File file, OsmDataLayer layer) throws IOException {
+        PbfWriter w = new PbfWriter(new BufferedOutputStream(getOutputStream(file)));
+        layer.data.getReadLock().lock();
+        try {
+            w.writeLayer(layer);
+            w.close();
+        } finally {
+            layer.data.getReadLock().unlock();
+        }
+    }
+}
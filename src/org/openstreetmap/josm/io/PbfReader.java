@@ -0,0 +1,924 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.DataSource;
+import org.openstreetmap.josm.data.osm.NodeData;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.PrimitiveData;
+import org.openstreetmap.josm.data.osm.RelationData;
+import org.openstreetmap.josm.data.osm.RelationMemberData;
+import org.openstreetmap.josm.data.osm.WayData;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.tools.CheckParameterUtil;
+
+/**
+ * Reader for OSM files in the Protocol Buffer Binary format (<code>.osm.pbf</code>).
+ *
+ * The file is a sequence of blobs. The header blob is read first, the data blobs are
+ * decompressed and decoded into {@link NodeData}, {@link WayData} and {@link RelationData}
+ * by a pool of worker threads. The calling thread creates the primitives in file order.
+ *
+ * Dense nodes and plain nodes are supported, blobs must be stored raw or zlib compressed.
+ *
+ * @see <a href="http://wiki.openstreetmap.org/wiki/PBF_Format">PBF Format</a>
+ */
+public class PbfReader extends AbstractReader {
+
+    /** Maximum size of a blob header, as defined by the format */
+    static final int MAX_HEADER_SIZE = 64 * 1024;
+    /** Maximum size of a blob, as defined by the format */
+    static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    /** Features this reader understands */
+    private static final String[] SUPPORTED_FEATURES = {"OsmSchema-V0.6", "DenseNodes", "HistoricalInformation"};
+
+    /** true if primitives without version have been read */
+    private boolean versionMissing;
+
+    /**
+     * The values of a repeated varint field, kept in a growing <code>long[]</code> instead of
+     * a list of boxed values.
+     */
+    static class LongArray {
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Decoder for a protocol buffer message.
+     */
+    static class Message {
+        static final int VARINT = 0;
+        static final int FIXED64 = 1;
+        static final int LENGTH_DELIMITED = 2;
+        static final int FIXED32 = 5;
+
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+        private int wireType;
+
+        Message(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = offset + length;
+        }
+
+        Message(byte[] buf) {
+            this(buf, 0, buf.length);
+        }
+
+        /**
+         * Reads the next field key.
+         * @return the field number or -1 at the end of the message
+         */
+        int nextField() throws IllegalDataException {
+            if (pos >= limit)
+                return -1;
+            int key = (int) readVarint();
+            wireType = key & 7;
+            return key >>> 3;
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        long readVarint() throws IllegalDataException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit)
+                    throw new IllegalDataException(tr("Unexpected end of PBF message."));
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                    return result;
+            }
+            throw new IllegalDataException(tr("Malformed varint in PBF message."));
+        }
+
+        long readSignedVarint() throws IllegalDataException {
+            long n = readVarint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        boolean readBool() throws IllegalDataException {
+            return readVarint() != 0;
+        }
+
+        private int readLength() throws IllegalDataException {
+            long length = readVarint();
+            if (length < 0 || length > limit - pos)
+                throw new IllegalDataException(tr("Unexpected end of PBF message."));
+            return (int) length;
+        }
+
+        /**
+         * Reads an embedded message or a packed repeated field.
+         */
+        Message readMessage() throws IllegalDataException {
+            int length = readLength();
+            Message result = new Message(buf, pos, length);
+            pos += length;
+            return result;
+        }
+
+        byte[] readBytes() throws IllegalDataException {
+            int length = readLength();
+            byte[] result = new byte[length];
+            System.arraycopy(buf, pos, result, 0, length);
+            pos += length;
+            return result;
+        }
+
+        String readString() throws IllegalDataException {
+            int length = readLength();
+            try {
+                String result = new String(buf, pos, length, "UTF-8");
+                pos += length;
+                return result;
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalDataException(e);
+            }
+        }
+
+        /**
+         * Reads the values of a repeated varint field, which may be packed or not.
+         */
+        void readVarints(LongArray values, boolean signed) throws IllegalDataException {
+            if (wireType == LENGTH_DELIMITED) {
+                Message packed = readMessage();
+                while (packed.hasMore()) {
+                    values.add(signed ? packed.readSignedVarint() : packed.readVarint());
+                }
+            } else {
+                values.add(signed ? readSignedVarint() : readVarint());
+            }
+        }
+
+        void skip() throws IllegalDataException {
+            switch (wireType) {
+            case VARINT:
+                readVarint();
+                break;
+            case FIXED64:
+                pos += 8;
+                break;
+            case LENGTH_DELIMITED:
+                pos += readLength();
+                break;
+            case FIXED32:
+                pos += 4;
+                break;
+            default:
+                throw new IllegalDataException(tr("Unsupported wire type {0} in PBF message.", wireType));
+            }
+            if (pos > limit)
+                throw new IllegalDataException(tr("Unexpected end of PBF message."));
+        }
+    }
+
+    /**
+     * A decoded node, way or relation. The user is created later by the reading thread,
+     * since the user map is not thread safe.
+     */
+    private static class DecodedPrimitive {
+        final PrimitiveData data;
+        /** the user id, null if the primitive has none */
+        Long uid;
+        /** the user name, null if the primitive has none */
+        String userName;
+        /** true if the version was normalized because the file has no metadata */
+        boolean versionMissing;
+        List<Long> nodeIds;
+        List<RelationMemberData> members;
+
+        DecodedPrimitive(PrimitiveData data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Decodes one PrimitiveBlock.
+     */
+    private static class BlockDecoder {
+        private final String[] strings;
+        private final int granularity;
+        private final long latOffset;
+        private final long lonOffset;
+        private final int dateGranularity;
+        private final List<DecodedPrimitive> result = new ArrayList<DecodedPrimitive>();
+
+        BlockDecoder(Message block) throws IllegalDataException {
+            List<String> strings = new ArrayList<String>();
+            List<Message> groups = new ArrayList<Message>();
+            int granularity = 100;
+            long latOffset = 0;
+            long lonOffset = 0;
+            int dateGranularity = 1000;
+            int field;
+            while ((field = block.nextField()) != -1) {
+                switch (field) {
+                case 1:
+                    Message table = block.readMessage();
+                    while (table.nextField() != -1) {
+                        strings.add(table.readString());
+                    }
+                    break;
+                case 2:
+                    groups.add(block.readMessage());
+                    break;
+                case 17:
+                    granularity = (int) block.readVarint();
+                    break;
+                case 18:
+                    dateGranularity = (int) block.readVarint();
+                    break;
+                case 19:
+                    latOffset = block.readVarint();
+                    break;
+                case 20:
+                    lonOffset = block.readVarint();
+                    break;
+                default:
+                    block.skip();
+                }
+            }
+            this.strings = strings.toArray(new String[strings.size()]);
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+            this.dateGranularity = dateGranularity;
+            for (Message group : groups) {
+                decodeGroup(group);
+            }
+        }
+
+        private String string(long index) throws IllegalDataException {
+            if (index < 0 || index >= strings.length)
+                throw new IllegalDataException(tr("Illegal string table index {0} in PBF block.", index));
+            return strings[(int) index];
+        }
+
+        private LatLon latLon(long lat, long lon) {
+            return new LatLon(.000000001 * (latOffset + granularity * lat), .000000001 * (lonOffset + granularity * lon));
+        }
+
+        private void decodeGroup(Message group) throws IllegalDataException {
+            int field;
+            while ((field = group.nextField()) != -1) {
+                switch (field) {
+                case 1:
+                    decodeNode(group.readMessage());
+                    break;
+                case 2:
+                    decodeDenseNodes(group.readMessage());
+                    break;
+                case 3:
+                    decodeWay(group.readMessage());
+                    break;
+                case 4:
+                    decodeRelation(group.readMessage());
+                    break;
+                default:
+                    group.skip();
+                }
+            }
+        }
+
+        private void setTags(PrimitiveData data, LongArray keys, LongArray values) throws IllegalDataException {
+            if (keys.size() != values.size())
+                throw new IllegalDataException(tr("Number of keys and values differ in PBF block."));
+            if (keys.size() == 0)
+                return;
+            Map<String, String> tags = new HashMap<String, String>();
+            for (int i=0; i<keys.size(); i++) {
+                tags.put(string(keys.get(i)), string(values.get(i)));
+            }
+            data.setKeys(tags);
+        }
+
+        /**
+         * Sets the common attributes, like OsmReader.readCommon() does.
+         */
+        private void setInfo(DecodedPrimitive decoded, long id, int version, long timestamp, long changeset, long uid, String user, boolean visible) throws IllegalDataException {
+            PrimitiveData data = decoded.data;
+            if (id == 0)
+                throw new IllegalDataException(tr("Illegal object with ID=0."));
+            data.setId(id);
+            if (version <= 0) {
+                // files without Info and DenseInfo are common, treat them like API 0.5 files without versions
+                if (id > 0) {
+                    version = 1;
+                    decoded.versionMissing = true;
+                } else {
+                    version = 0;
+                }
+            }
+            data.setVersion(version);
+            if (timestamp != 0) {
+                data.setTimestamp(new Date(timestamp * dateGranularity));
+            }
+            if (id > 0 && changeset > 0 && changeset <= Integer.MAX_VALUE) {
+                data.setChangesetId((int) changeset);
+            }
+            data.setVisible(visible);
+            decoded.uid = uid > 0 ? Long.valueOf(uid) : null;
+            decoded.userName = user == null || user.length() == 0 ? null : user;
+        }
+
+        private void decodeInfo(DecodedPrimitive decoded, long id, Message info) throws IllegalDataException {
+            int version = -1;
+            long timestamp = 0;
+            long changeset = 0;
+            long uid = 0;
+            String user = null;
+            boolean visible = true;
+            if (info != null) {
+                int field;
+                while ((field = info.nextField()) != -1) {
+                    switch (field) {
+                    case 1:
+                        version = (int) info.readVarint();
+                        break;
+                    case 2:
+                        timestamp = info.readVarint();
+                        break;
+                    case 3:
+                        changeset = info.readVarint();
+                        break;
+                    case 4:
+                        uid = (int) info.readVarint();
+                        break;
+                    case 5:
+                        user = string(info.readVarint());
+                        break;
+                    case 6:
+                        visible = info.readBool();
+                        break;
+                    default:
+                        info.skip();
+                    }
+                }
+            }
+            setInfo(decoded, id, version, timestamp, changeset, uid, user, visible);
+        }
+
+        private void decodeNode(Message node) throws IllegalDataException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            Message info = null;
+            LongArray keys = new LongArray();
+            LongArray values = new LongArray();
+            int field;
+            while ((field = node.nextField()) != -1) {
+                switch (field) {
+                case 1:
+                    id = node.readSignedVarint();
+                    break;
+                case 2:
+                    node.readVarints(keys, false);
+                    break;
+                case 3:
+                    node.readVarints(values, false);
+                    break;
+                case 4:
+                    info = node.readMessage();
+                    break;
+                case 8:
+                    lat = node.readSignedVarint();
+                    break;
+                case 9:
+                    lon = node.readSignedVarint();
+                    break;
+                default:
+                    node.skip();
+                }
+            }
+            NodeData nd = new NodeData();
+            DecodedPrimitive decoded = new DecodedPrimitive(nd);
+            decodeInfo(decoded, id, info);
+            nd.setCoor(latLon(lat, lon));
+            setTags(nd, keys, values);
+            result.add(decoded);
+        }
+
+        private void decodeDenseNodes(Message dense) throws IllegalDataException {
+            LongArray ids = new LongArray();
+            LongArray lats = new LongArray();
+            LongArray lons = new LongArray();
+            LongArray keysVals = new LongArray();
+            LongArray versions = new LongArray();
+            LongArray timestamps = new LongArray();
+            LongArray changesets = new LongArray();
+            LongArray uids = new LongArray();
+            LongArray userSids = new LongArray();
+            LongArray visibles = new LongArray();
+            int field;
+            while ((field = dense.nextField()) != -1) {
+                switch (field) {
+                case 1:
+                    dense.readVarints(ids, true);
+                    break;
+                case 5:
+                    Message info = dense.readMessage();
+                    int infoField;
+                    while ((infoField = info.nextField()) != -1) {
+                        switch (infoField) {
+                        case 1:
+                            info.readVarints(versions, false);
+                            break;
+                        case 2:
+                            info.readVarints(timestamps, true);
+                            break;
+                        case 3:
+                            info.readVarints(changesets, true);
+                            break;
+                        case 4:
+                            info.readVarints(uids, true);
+                            break;
+                        case 5:
+                            info.readVarints(userSids, true);
+                            break;
+                        case 6:
+                            info.readVarints(visibles, false);
+                            break;
+                        default:
+                            info.skip();
+                        }
+                    }
+                    break;
+                case 8:
+                    dense.readVarints(lats, true);
+                    break;
+                case 9:
+                    dense.readVarints(lons, true);
+                    break;
+                case 10:
+                    dense.readVarints(keysVals, false);
+                    break;
+                default:
+                    dense.skip();
+                }
+            }
+            int count = ids.size();
+            if (lats.size() != count || lons.size() != count)
+                throw new IllegalDataException(tr("Number of ids and coordinates differ in PBF dense nodes."));
+            boolean hasInfo = versions.size() == count && timestamps.size() == count && changesets.size() == count
+                    && uids.size() == count && userSids.size() == count;
+            boolean hasVisible = visibles.size() == count;
+            long id = 0, lat = 0, lon = 0, timestamp = 0, changeset = 0, uid = 0, userSid = 0;
+            int kv = 0;
+            for (int i=0; i<count; i++) {
+                id += ids.get(i);
+                lat += lats.get(i);
+                lon += lons.get(i);
+                NodeData nd = new NodeData();
+                DecodedPrimitive decoded = new DecodedPrimitive(nd);
+                if (hasInfo) {
+                    timestamp += timestamps.get(i);
+                    changeset += changesets.get(i);
+                    uid += uids.get(i);
+                    userSid += userSids.get(i);
+                    setInfo(decoded, id, (int) versions.get(i), timestamp, changeset, uid,
+                            string(userSid), !hasVisible || visibles.get(i) != 0);
+                } else {
+                    setInfo(decoded, id, -1, 0, 0, 0, null, !hasVisible || visibles.get(i) != 0);
+                }
+                nd.setCoor(latLon(lat, lon));
+                if (kv < keysVals.size()) {
+                    Map<String, String> tags = null;
+                    while (kv < keysVals.size() && keysVals.get(kv) != 0) {
+                        if (kv + 1 >= keysVals.size())
+                            throw new IllegalDataException(tr("Number of keys and values differ in PBF block."));
+                        if (tags == null) {
+                            tags = new HashMap<String, String>();
+                        }
+                        tags.put(string(keysVals.get(kv)), string(keysVals.get(kv + 1)));
+                        kv += 2;
+                    }
+                    kv++; // skip the delimiter
+                    if (tags != null) {
+                        nd.setKeys(tags);
+                    }
+                }
+                result.add(decoded);
+            }
+        }
+
+        private void decodeWay(Message way) throws IllegalDataException {
+            long id = 0;
+            Message info = null;
+            LongArray keys = new LongArray();
+            LongArray values = new LongArray();
+            LongArray refs = new LongArray();
+            int field;
+            while ((field = way.nextField()) != -1) {
+                switch (field) {
+                case 1:
+                    id = way.readVarint();
+                    break;
+                case 2:
+                    way.readVarints(keys, false);
+                    break;
+                case 3:
+                    way.readVarints(values, false);
+                    break;
+                case 4:
+                    info = way.readMessage();
+                    break;
+                case 8:
+                    way.readVarints(refs, true);
+                    break;
+                default:
+                    way.skip();
+                }
+            }
+            WayData wd = new WayData();
+            DecodedPrimitive decoded = new DecodedPrimitive(wd);
+            decodeInfo(decoded, id, info);
+            setTags(wd, keys, values);
+            List<Long> nodeIds = new ArrayList<Long>(refs.size());
+            long ref = 0;
+            for (int i=0; i<refs.size(); i++) {
+                ref += refs.get(i);
+                if (ref == 0)
+                    throw new IllegalDataException(tr("Illegal value of attribute ''ref'' of element <nd>. Got {0}.", ref));
+                nodeIds.add(ref);
+            }
+            decoded.nodeIds = nodeIds;
+            result.add(decoded);
+        }
+
+        private void decodeRelation(Message relation) throws IllegalDataException {
+            long id = 0;
+            Message info = null;
+            LongArray keys = new LongArray();
+            LongArray values = new LongArray();
+            LongArray roles = new LongArray();
+            LongArray memberIds = new LongArray();
+            LongArray types = new LongArray();
+            int field;
+            while ((field = relation.nextField()) != -1) {
+                switch (field) {
+                case 1:
+                    id = relation.readVarint();
+                    break;
+                case 2:
+                    relation.readVarints(keys, false);
+                    break;
+                case 3:
+                    relation.readVarints(values, false);
+                    break;
+                case 4:
+                    info = relation.readMessage();
+                    break;
+                case 8:
+                    relation.readVarints(roles, false);
+                    break;
+                case 9:
+                    relation.readVarints(memberIds, true);
+                    break;
+                case 10:
+                    relation.readVarints(types, false);
+                    break;
+                default:
+                    relation.skip();
+                }
+            }
+            RelationData rd = new RelationData();
+            DecodedPrimitive decoded = new DecodedPrimitive(rd);
+            decodeInfo(decoded, id, info);
+            setTags(rd, keys, values);
+            if (roles.size() != memberIds.size() || types.size() != memberIds.size())
+                throw new IllegalDataException(tr("Number of member ids, roles and types differ in PBF relation {0}.", Long.toString(id)));
+            List<RelationMemberData> members = new ArrayList<RelationMemberData>(memberIds.size());
+            long memberId = 0;
+            for (int i=0; i<memberIds.size(); i++) {
+                memberId += memberIds.get(i);
+                if (memberId == 0)
+                    throw new IllegalDataException(tr("Incomplete <member> specification with ref=0"));
+                OsmPrimitiveType type;
+                switch ((int) types.get(i)) {
+                case 0:
+                    type = OsmPrimitiveType.NODE;
+                    break;
+                case 1:
+                    type = OsmPrimitiveType.WAY;
+                    break;
+                case 2:
+                    type = OsmPrimitiveType.RELATION;
+                    break;
+                default:
+                    throw new IllegalDataException(tr("Illegal value for attribute ''type'' on member {0} in relation {1}. Got {2}.",
+                            Long.toString(memberId), Long.toString(id), types.get(i)));
+                }
+                members.add(new RelationMemberData(string(roles.get(i)), type, memberId));
+            }
+            decoded.members = members;
+            result.add(decoded);
+        }
+    }
+
+    private final int nThreads;
+    private DataInputStream in;
+    private String blobType;
+
+    /**
+     * constructor (for private use only)
+     *
+     * @see #parseDataSet(InputStream, ProgressMonitor)
+     */
+    protected PbfReader() {
+        nThreads = Math.max(1, Main.pref.getInteger("pbf.reader.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Reads the next blob header and blob.
+     * @return the raw blob or null at the end of the file. The type is stored in {@link #blobType}.
+     */
+    private byte[] readBlob() throws IOException, IllegalDataException {
+        int headerSize;
+        try {
+            headerSize = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+            throw new IllegalDataException(tr("Illegal PBF blob header size {0}.", headerSize));
+        byte[] header = new byte[headerSize];
+        in.readFully(header);
+        Message msg = new Message(header);
+        blobType = null;
+        int dataSize = -1;
+        int field;
+        while ((field = msg.nextField()) != -1) {
+            switch (field) {
+            case 1:
+                blobType = msg.readString();
+                break;
+            case 3:
+                dataSize = (int) msg.readVarint();
+                break;
+            default:
+                msg.skip();
+            }
+        }
+        if (blobType == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE)
+            throw new IllegalDataException(tr("Invalid PBF blob header."));
+        byte[] blob = new byte[dataSize];
+        in.readFully(blob);
+        return blob;
+    }
+
+    /**
+     * Replies the uncompressed content of a blob.
+     */
+    private static Message uncompress(byte[] blob) throws IllegalDataException {
+        Message msg = new Message(blob);
+        byte[] raw = null;
+        byte[] zlib = null;
+        int rawSize = -1;
+        int field;
+        while ((field = msg.nextField()) != -1) {
+            switch (field) {
+            case 1:
+                raw = msg.readBytes();
+                break;
+            case 2:
+                rawSize = (int) msg.readVarint();
+                break;
+            case 3:
+                zlib = msg.readBytes();
+                break;
+            case 4:
+                throw new IllegalDataException(tr("LZMA compressed PBF blobs are not supported."));
+            default:
+                msg.skip();
+            }
+        }
+        if (raw != null)
+            return new Message(raw);
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_SIZE)
+            throw new IllegalDataException(tr("Invalid PBF blob."));
+        byte[] result = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            int length = inflater.inflate(result);
+            if (length != rawSize || !inflater.finished())
+                throw new IllegalDataException(tr("Invalid PBF blob."));
+        } catch (DataFormatException e) {
+            throw new IllegalDataException(e);
+        } finally {
+            inflater.end();
+        }
+        return new Message(result);
+    }
+
+    private void parseHeader(Message header) throws IllegalDataException {
+        Bounds bounds = null;
+        String source = null;
+        String program = null;
+        int field;
+        while ((field = header.nextField()) != -1) {
+            switch (field) {
+            case 1:
+                Message bbox = header.readMessage();
+                double left = 0, right = 0, top = 0, bottom = 0;
+                int bboxField;
+                while ((bboxField = bbox.nextField()) != -1) {
+                    double value = .000000001 * bbox.readSignedVarint();
+                    switch (bboxField) {
+                    case 1:
+                        left = value;
+                        break;
+                    case 2:
+                        right = value;
+                        break;
+                    case 3:
+                        top = value;
+                        break;
+                    case 4:
+                        bottom = value;
+                        break;
+                    }
+                }
+                bounds = new Bounds(bottom, left, top, right);
+                break;
+            case 4:
+                String feature = header.readString();
+                boolean supported = false;
+                for (String s : SUPPORTED_FEATURES) {
+                    supported |= s.equals(feature);
+                }
+                if (!supported)
+                    throw new IllegalDataException(tr("PBF file requires unsupported feature ''{0}''.", feature));
+                break;
+            case 16:
+                program = header.readString();
+                break;
+            case 17:
+                source = header.readString();
+                break;
+            default:
+                header.skip();
+            }
+        }
+        ds.setVersion("0.6");
+        if (bounds != null) {
+            ds.dataSources.add(new DataSource(bounds, source != null ? source : program));
+        }
+    }
+
+    private void register(List<DecodedPrimitive> block) {
+        for (DecodedPrimitive decoded : block) {
+            PrimitiveData data = decoded.data;
+            if (decoded.versionMissing && !versionMissing) {
+                System.out.println(tr("WARNING: Normalizing missing versions of OSM primitives to {0}, first one is {1}.", 1, data.getUniqueId()));
+                versionMissing = true;
+            }
+            data.setUser(createUser(decoded.uid, decoded.userName));
+            register(data, decoded.nodeIds, decoded.members);
+        }
+    }
+
+    private static List<DecodedPrimitive> get(Future<List<DecodedPrimitive>> future) throws IllegalDataException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalDataException)
+                throw (IllegalDataException) e.getCause();
+            throw new IllegalDataException(e.getCause());
+        }
+    }
+
+    protected DataSet doParseDataSet(InputStream source, ProgressMonitor progressMonitor) throws IllegalDataException {
+        if (progressMonitor == null) {
+            progressMonitor = NullProgressMonitor.INSTANCE;
+        }
+        CheckParameterUtil.ensureParameterNotNull(source, "source");
+        in = new DataInputStream(source);
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PBF reader worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            progressMonitor.beginTask(tr("Prepare OSM data...", 2));
+            progressMonitor.indeterminateSubTask(tr("Parsing OSM data..."));
+
+            boolean headerRead = false;
+            LinkedList<Future<List<DecodedPrimitive>>> pending = new LinkedList<Future<List<DecodedPrimitive>>>();
+            byte[] blob;
+            while ((blob = readBlob()) != null) {
+                if (blobType.equals("OSMHeader")) {
+                    parseHeader(uncompress(blob));
+                    headerRead = true;
+                } else if (blobType.equals("OSMData")) {
+                    if (!headerRead)
+                        throw new IllegalDataException(tr("PBF data block found before header block."));
+                    final byte[] data = blob;
+                    pending.add(workers.submit(new Callable<List<DecodedPrimitive>>() {
+                        public List<DecodedPrimitive> call() throws IllegalDataException {
+                            return new BlockDecoder(uncompress(data)).result;
+                        }
+                    }));
+                    // keep memory bounded, only a few blocks are decoded ahead
+                    if (pending.size() > 2 * nThreads) {
+                        register(get(pending.removeFirst()));
+                    }
+                }
+                // other blob types are skipped, as required by the format
+            }
+            if (!headerRead)
+                throw new IllegalDataException(tr("PBF header block is missing."));
+            while (!pending.isEmpty()) {
+                register(get(pending.removeFirst()));
+            }
+            progressMonitor.worked(1);
+
+            progressMonitor.indeterminateSubTask(tr("Preparing data set..."));
+            prepareDataSet();
+            progressMonitor.worked(1);
+
+            // iterate over registered postprocessors and give them each a chance
+            // to modify the dataset we have just loaded.
+            if (OsmReader.postprocessors != null) {
+                for (OsmServerReadPostprocessor pp : OsmReader.postprocessors) {
+                    pp.postprocessDataSet(getDataSet(), progressMonitor);
+                }
+            }
+            return getDataSet();
+        } catch(IllegalDataException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new IllegalDataException(e);
+        } finally {
+            workers.shutdownNow();
+            progressMonitor.finishTask();
+        }
+    }
+
+    /**
+     * Parse the given input source and return the dataset.
+     *
+     * @param source the source input stream. Must not be null.
+     * @param progressMonitor  the progress monitor. If null, {@link NullProgressMonitor#INSTANCE} is assumed
+     *
+     * @return the dataset with the parsed data
+     * @throws IllegalDataException thrown if the an error was found while parsing the data from the source
+     * @throws IllegalArgumentException thrown if source is null
+     */
+    public static DataSet parseDataSet(InputStream source, ProgressMonitor progressMonitor) throws IllegalDataException {
+        return new PbfReader().doParseDataSet(source, progressMonitor);
+    }
+}
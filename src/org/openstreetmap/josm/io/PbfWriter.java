@@ -0,0 +1,410 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.DataSource;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.User;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Save the dataset into a stream in the Protocol Buffer Binary format (<code>.osm.pbf</code>).
+ *
+ * Nodes are written as dense nodes, all blobs are zlib compressed. The format has no
+ * notion of JOSM's edit state, so deleted primitives are left out and modified primitives
+ * are written like unmodified ones.
+ *
+ * @see PbfReader
+ */
+public class PbfWriter {
+
+    /** Number of entities per PrimitiveBlock, as recommended by the format */
+    private static final int BLOCK_SIZE = 8000;
+
+    /** Granularity of coordinates in nanodegrees */
+    private static final int GRANULARITY = 100;
+
+    /**
+     * Encoder for a protocol buffer message.
+     */
+    static class MessageBuilder {
+        private byte[] buf = new byte[256];
+        private int size;
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buf.length) {
+                byte[] grown = new byte[Math.max(buf.length * 2, size + extra)];
+                System.arraycopy(buf, 0, grown, 0, size);
+                buf = grown;
+            }
+        }
+
+        void writeRawVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                buf[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private void writeKey(int field, int wireType) {
+            writeRawVarint((field << 3) | wireType);
+        }
+
+        void writeVarint(int field, long value) {
+            writeKey(field, PbfReader.Message.VARINT);
+            writeRawVarint(value);
+        }
+
+        void writeSignedVarint(int field, long value) {
+            writeKey(field, PbfReader.Message.VARINT);
+            writeRawVarint(zigZag(value));
+        }
+
+        void writeBytes(int field, byte[] value, int length) {
+            writeKey(field, PbfReader.Message.LENGTH_DELIMITED);
+            writeRawVarint(length);
+            ensureCapacity(length);
+            System.arraycopy(value, 0, buf, size, length);
+            size += length;
+        }
+
+        void writeString(int field, String value) {
+            try {
+                byte[] bytes = value.getBytes("UTF-8");
+                writeBytes(field, bytes, bytes.length);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void writeMessage(int field, MessageBuilder message) {
+            writeBytes(field, message.buf, message.size);
+        }
+
+        /**
+         * Writes a packed repeated field, optionally delta coded.
+         */
+        void writePacked(int field, long[] values, int count, boolean signed, boolean delta) {
+            if (count == 0)
+                return;
+            MessageBuilder packed = new MessageBuilder();
+            long last = 0;
+            for (int i=0; i<count; i++) {
+                long value = delta ? values[i] - last : values[i];
+                last = values[i];
+                packed.writeRawVarint(signed ? zigZag(value) : value);
+            }
+            writeMessage(field, packed);
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(buf, 0, result, 0, size);
+            return result;
+        }
+    }
+
+    /**
+     * String table of a PrimitiveBlock. Index 0 is reserved for the delimiter of dense node tags.
+     */
+    private static class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<String> strings = new ArrayList<String>();
+
+        StringTable() {
+            strings.add("");
+        }
+
+        int get(String s) {
+            Integer index = indexes.get(s);
+            if (index == null) {
+                index = strings.size();
+                strings.add(s);
+                indexes.put(s, index);
+            }
+            return index;
+        }
+
+        MessageBuilder build() {
+            MessageBuilder result = new MessageBuilder();
+            for (String s : strings) {
+                result.writeString(1, s);
+            }
+            return result;
+        }
+    }
+
+    private final DataOutputStream out;
+
+    public PbfWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    /**
+     * Writes the data of a layer.
+     */
+    public void writeLayer(OsmDataLayer layer) throws IOException {
+        writeData(layer.data);
+    }
+
+    /**
+     * Writes the header, the nodes, the ways and the relations of a dataset.
+     */
+    public void writeData(DataSet ds) throws IOException {
+        writeHeader(ds);
+        writePrimitives(sortAndFilter(ds.getNodes()));
+        writePrimitives(sortAndFilter(ds.getWays()));
+        writePrimitives(sortAndFilter(ds.getRelations()));
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private static List<OsmPrimitive> sortAndFilter(Iterable<? extends OsmPrimitive> primitives) {
+        List<OsmPrimitive> result = new ArrayList<OsmPrimitive>();
+        for (OsmPrimitive osm : primitives) {
+            if (!osm.isDeleted() && !osm.isIncomplete()) {
+                result.add(osm);
+            }
+        }
+        Collections.sort(result, OsmWriter.byIdComparator);
+        return result;
+    }
+
+    private void writeBlob(String type, MessageBuilder content) throws IOException {
+        byte[] raw = content.toByteArray();
+        Deflater deflater = new Deflater();
+        byte[] compressed = new byte[raw.length + raw.length / 100 + 64];
+        int compressedSize;
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            compressedSize = deflater.deflate(compressed);
+            if (!deflater.finished())
+                throw new IOException("Unexpected deflater state");
+        } finally {
+            deflater.end();
+        }
+        MessageBuilder blob = new MessageBuilder();
+        blob.writeVarint(2, raw.length);
+        blob.writeBytes(3, compressed, compressedSize);
+        byte[] blobBytes = blob.toByteArray();
+        if (blobBytes.length > PbfReader.MAX_BLOB_SIZE)
+            throw new IOException("PBF blob too large: " + blobBytes.length);
+
+        MessageBuilder header = new MessageBuilder();
+        header.writeString(1, type);
+        header.writeVarint(3, blobBytes.length);
+        byte[] headerBytes = header.toByteArray();
+        out.writeInt(headerBytes.length);
+        out.write(headerBytes);
+        out.write(blobBytes);
+    }
+
+    private void writeHeader(DataSet ds) throws IOException {
+        MessageBuilder header = new MessageBuilder();
+        Bounds bounds = null;
+        for (DataSource source : ds.dataSources) {
+            if (bounds == null) {
+                bounds = new Bounds(source.bounds);
+            } else {
+                bounds.extend(source.bounds);
+            }
+        }
+        if (bounds != null) {
+            MessageBuilder bbox = new MessageBuilder();
+            bbox.writeSignedVarint(1, Math.round(bounds.getMin().lon() * 1e9));
+            bbox.writeSignedVarint(2, Math.round(bounds.getMax().lon() * 1e9));
+            bbox.writeSignedVarint(3, Math.round(bounds.getMax().lat() * 1e9));
+            bbox.writeSignedVarint(4, Math.round(bounds.getMin().lat() * 1e9));
+            header.writeMessage(1, bbox);
+        }
+        header.writeString(4, "OsmSchema-V0.6");
+        header.writeString(4, "DenseNodes");
+        header.writeString(16, "JOSM");
+        writeBlob("OSMHeader", header);
+    }
+
+    private void writePrimitives(List<OsmPrimitive> primitives) throws IOException {
+        for (int start = 0; start < primitives.size(); start += BLOCK_SIZE) {
+            List<OsmPrimitive> block = primitives.subList(start, Math.min(start + BLOCK_SIZE, primitives.size()));
+            StringTable strings = new StringTable();
+            MessageBuilder group = new MessageBuilder();
+            if (block.get(0) instanceof Node) {
+                group.writeMessage(2, buildDenseNodes(block, strings));
+            } else {
+                for (OsmPrimitive osm : block) {
+                    if (osm instanceof Way) {
+                        group.writeMessage(3, buildWay((Way) osm, strings));
+                    } else {
+                        group.writeMessage(4, buildRelation((Relation) osm, strings));
+                    }
+                }
+            }
+            MessageBuilder primitiveBlock = new MessageBuilder();
+            primitiveBlock.writeMessage(1, strings.build());
+            primitiveBlock.writeMessage(2, group);
+            primitiveBlock.writeVarint(17, GRANULARITY);
+            writeBlob("OSMData", primitiveBlock);
+        }
+    }
+
+    private static long timestamp(OsmPrimitive osm) {
+        // date granularity is the default of 1000 milliseconds
+        return osm.getTimestamp().getTime() / 1000;
+    }
+
+    private static long uid(OsmPrimitive osm) {
+        User user = osm.getUser();
+        return user == null || !user.isOsmUser() ? 0 : user.getId();
+    }
+
+    private static int userSid(OsmPrimitive osm, StringTable strings) {
+        User user = osm.getUser();
+        return user == null ? 0 : strings.get(user.getName());
+    }
+
+    private static MessageBuilder buildDenseNodes(List<OsmPrimitive> nodes, StringTable strings) {
+        int count = nodes.size();
+        long[] ids = new long[count];
+        long[] lats = new long[count];
+        long[] lons = new long[count];
+        long[] versions = new long[count];
+        long[] timestamps = new long[count];
+        long[] changesets = new long[count];
+        long[] uids = new long[count];
+        long[] userSids = new long[count];
+        long[] keysVals = new long[count];
+        int kv = 0;
+        for (int i=0; i<count; i++) {
+            Node n = (Node) nodes.get(i);
+            LatLon coor = n.getCoor();
+            ids[i] = n.getUniqueId();
+            if (coor != null) {
+                lats[i] = Math.round(coor.lat() * 1e9 / GRANULARITY);
+                lons[i] = Math.round(coor.lon() * 1e9 / GRANULARITY);
+            }
+            versions[i] = n.getVersion();
+            timestamps[i] = timestamp(n);
+            changesets[i] = n.getChangesetId();
+            uids[i] = uid(n);
+            userSids[i] = userSid(n, strings);
+            for (String key : n.keySet()) {
+                if (kv + 3 > keysVals.length) {
+                    long[] grown = new long[keysVals.length * 2 + 3];
+                    System.arraycopy(keysVals, 0, grown, 0, kv);
+                    keysVals = grown;
+                }
+                keysVals[kv++] = strings.get(key);
+                keysVals[kv++] = strings.get(n.get(key));
+            }
+            if (kv == keysVals.length) {
+                long[] grown = new long[keysVals.length * 2 + 1];
+                System.arraycopy(keysVals, 0, grown, 0, kv);
+                keysVals = grown;
+            }
+            keysVals[kv++] = 0;
+        }
+        MessageBuilder info = new MessageBuilder();
+        info.writePacked(1, versions, count, false, false);
+        info.writePacked(2, timestamps, count, true, true);
+        info.writePacked(3, changesets, count, true, true);
+        info.writePacked(4, uids, count, true, true);
+        info.writePacked(5, userSids, count, true, true);
+
+        MessageBuilder dense = new MessageBuilder();
+        dense.writePacked(1, ids, count, true, true);
+        dense.writeMessage(5, info);
+        dense.writePacked(8, lats, count, true, true);
+        dense.writePacked(9, lons, count, true, true);
+        dense.writePacked(10, keysVals, kv, false, false);
+        return dense;
+    }
+
+    private static void writeCommon(MessageBuilder msg, OsmPrimitive osm, StringTable strings) {
+        msg.writeVarint(1, osm.getUniqueId());
+        int count = osm.getKeys().size();
+        long[] keys = new long[count];
+        long[] values = new long[count];
+        int i = 0;
+        for (String key : osm.keySet()) {
+            keys[i] = strings.get(key);
+            values[i] = strings.get(osm.get(key));
+            i++;
+        }
+        msg.writePacked(2, keys, count, false, false);
+        msg.writePacked(3, values, count, false, false);
+
+        MessageBuilder info = new MessageBuilder();
+        info.writeVarint(1, osm.getVersion());
+        info.writeVarint(2, timestamp(osm));
+        info.writeVarint(3, osm.getChangesetId());
+        info.writeVarint(4, uid(osm));
+        info.writeVarint(5, userSid(osm, strings));
+        msg.writeMessage(4, info);
+    }
+
+    private static MessageBuilder buildWay(Way w, StringTable strings) {
+        MessageBuilder way = new MessageBuilder();
+        writeCommon(way, w, strings);
+        long[] refs = new long[w.getNodesCount()];
+        for (int i=0; i<refs.length; i++) {
+            refs[i] = w.getNodeId(i);
+        }
+        way.writePacked(8, refs, refs.length, true, true);
+        return way;
+    }
+
+    private static MessageBuilder buildRelation(Relation r, StringTable strings) {
+        MessageBuilder relation = new MessageBuilder();
+        writeCommon(relation, r, strings);
+        int count = r.getMembersCount();
+        long[] roles = new long[count];
+        long[] ids = new long[count];
+        long[] types = new long[count];
+        for (int i=0; i<count; i++) {
+            RelationMember member = r.getMember(i);
+            roles[i] = strings.get(member.getRole());
+            ids[i] = member.getUniqueId();
+            switch (member.getType()) {
+            case NODE:
+                types[i] = 0;
+                break;
+            case WAY:
+                types[i] = 1;
+                break;
+            default:
+                types[i] = 2;
+            }
+        }
+        relation.writePacked(8, roles, count, false, false);
+        relation.writePacked(9, ids, count, true, true);
+        relation.writePacked(10, types, count, false, false);
+        return relation;
+    }
+}
@@ -0,0 +1,464 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.AbstractPrimitive;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.DataSource;
+import org.openstreetmap.josm.data.osm.KeyValueVisitor;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.User;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.tools.DateUtils;
+
+/**
+ * Saves a dataset in the OSM XML format, producing the same output as {@link OsmWriter}.
+ *
+ * Intended for large layers: the primitives are written in id order without copying them
+ * into sorted collections, only the ids are sorted. Text is escaped into a reusable char
+ * buffer and encoded into a large byte buffer, which is written to a channel.
+ *
+ * The caller must hold the read lock of the dataset while writing.
+ */
+public class StreamingOsmWriter {
+
+    private static final String NL = System.getProperty("line.separator");
+
+    private final WritableByteChannel channel;
+    private final boolean osmConform;
+    private final String version;
+
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final CharBuffer chars = CharBuffer.allocate(1 << 16);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(1 << 20);
+    private final char[] digits = new char[20];
+    private final GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+
+    /* keys and values of the current primitive, sorted by key before writing */
+    private String[] tags = new String[32];
+    private int tagCount;
+    private final KeyValueVisitor tagCollector = new KeyValueVisitor() {
+        public void visitKeyValue(AbstractPrimitive primitive, String key, String value) {
+            if (tagCount + 2 > tags.length) {
+                tags = Arrays.copyOf(tags, tags.length * 2);
+            }
+            tags[tagCount++] = key;
+            tags[tagCount++] = value;
+        }
+    };
+
+    /**
+     * Creates a new writer.
+     *
+     * @param channel the channel to write to
+     * @param osmConform if true, the <code>action</code> attribute is omitted
+     * @param version the API version, {@link OsmWriter#DEFAULT_API_VERSION} if null
+     */
+    public StreamingOsmWriter(WritableByteChannel channel, boolean osmConform, String version) {
+        this.channel = channel;
+        this.osmConform = osmConform;
+        this.version = (version == null ? OsmWriter.DEFAULT_API_VERSION : version);
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * low level output
+     * ------------------------------------------------------------------------
+     */
+
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                break;
+            }
+        }
+        chars.compact();
+    }
+
+    private void writeBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    private void write(char c) throws IOException {
+        if (!chars.hasRemaining()) {
+            encode(false);
+        }
+        chars.put(c);
+    }
+
+    private void write(String s) throws IOException {
+        int start = 0;
+        int length = s.length();
+        while (start < length) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int end = Math.min(length, start + chars.remaining());
+            chars.put(s, start, end);
+            start = end;
+        }
+    }
+
+    private void write(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (; pos < digits.length; pos++) {
+            write(digits[pos]);
+        }
+    }
+
+    /**
+     * Writes a number with leading zeros.
+     */
+    private void write(int value, int width) throws IOException {
+        for (int limit = 10, i = 1; i < width; limit *= 10, i++) {
+            if (value < limit) {
+                write('0');
+            }
+        }
+        write(value);
+    }
+
+    /**
+     * Writes a string escaped like {@link XmlWriter#encode(String)} does.
+     */
+    private void writeEncoded(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '<': write("&lt;"); break;
+            case '>': write("&gt;"); break;
+            case '"': write("&quot;"); break;
+            case '\'': write("&apos;"); break;
+            case '&': write("&amp;"); break;
+            case '\n': write("&#xA;"); break;
+            case '\r': write("&#xD;"); break;
+            case '\t': write("&#x9;"); break;
+            default: write(c);
+            }
+        }
+    }
+
+    /**
+     * Writes a timestamp like {@link DateUtils#fromDate(Date)} does.
+     */
+    private void writeTimestamp(Date date) throws IOException {
+        calendar.setTime(date);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1000 || year > 9999 || calendar.get(Calendar.ERA) != GregorianCalendar.AD
+                || calendar.get(Calendar.MILLISECOND) != 0) {
+            write(DateUtils.fromDate(date));
+            return;
+        }
+        write(year, 4);
+        write('-');
+        write(calendar.get(Calendar.MONTH) + 1, 2);
+        write('-');
+        write(calendar.get(Calendar.DAY_OF_MONTH), 2);
+        write('T');
+        write(calendar.get(Calendar.HOUR_OF_DAY), 2);
+        write(':');
+        write(calendar.get(Calendar.MINUTE), 2);
+        write(':');
+        write(calendar.get(Calendar.SECOND), 2);
+        write('Z');
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * OSM content
+     * ------------------------------------------------------------------------
+     */
+
+    /**
+     * Writes the data of a layer, like {@link OsmWriter#writeLayer(OsmDataLayer)}.
+     */
+    public void writeLayer(OsmDataLayer layer) throws IOException {
+        header(!layer.isUploadDiscouraged());
+        writeDataSources(layer.data);
+        writeContent(layer.data);
+        footer();
+    }
+
+    public void header(Boolean upload) throws IOException {
+        write("<?xml version='1.0' encoding='UTF-8'?>");
+        write(NL);
+        write("<osm version='");
+        write(version);
+        if (upload != null) {
+            write("' upload='");
+            write(upload.toString());
+        }
+        write("' generator='JOSM'>");
+        write(NL);
+    }
+
+    public void footer() throws IOException {
+        write("</osm>");
+        write(NL);
+    }
+
+    public void writeDataSources(DataSet ds) throws IOException {
+        for (DataSource s : ds.dataSources) {
+            write("  <bounds minlat='");
+            write(Double.toString(s.bounds.getMin().lat()));
+            write("' minlon='");
+            write(Double.toString(s.bounds.getMin().lon()));
+            write("' maxlat='");
+            write(Double.toString(s.bounds.getMax().lat()));
+            write("' maxlon='");
+            write(Double.toString(s.bounds.getMax().lon()));
+            write("' origin='");
+            writeEncoded(String.valueOf(s.origin));
+            write("' />");
+            write(NL);
+        }
+    }
+
+    /**
+     * Replies the sorted ids of the primitives which are written.
+     */
+    private static long[] sortedIds(Iterable<? extends OsmPrimitive> primitives, int size) {
+        long[] ids = new long[size];
+        int count = 0;
+        for (OsmPrimitive osm : primitives) {
+            if (shouldWrite(osm)) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2 + 1);
+                }
+                ids[count++] = osm.getUniqueId();
+            }
+        }
+        if (count < ids.length) {
+            ids = Arrays.copyOf(ids, count);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private static boolean shouldWrite(OsmPrimitive osm) {
+        return !osm.isIncomplete() && (!osm.isNewOrUndeleted() || !osm.isDeleted());
+    }
+
+    /**
+     * Writes the nodes, ways and relations of a dataset in id order.
+     */
+    public void writeContent(DataSet ds) throws IOException {
+        for (long id : sortedIds(ds.getNodes(), ds.getNodes().size())) {
+            writeNode((Node) ds.getPrimitiveById(id, OsmPrimitiveType.NODE));
+        }
+        for (long id : sortedIds(ds.getWays(), ds.getWays().size())) {
+            writeWay((Way) ds.getPrimitiveById(id, OsmPrimitiveType.WAY));
+        }
+        for (long id : sortedIds(ds.getRelations(), ds.getRelations().size())) {
+            writeRelation((Relation) ds.getPrimitiveById(id, OsmPrimitiveType.RELATION));
+        }
+    }
+
+    private void writeNode(Node n) throws IOException {
+        addCommon(n, "node");
+        LatLon coor = n.getCoor();
+        write(" lat='");
+        write(Double.toString(coor.lat()));
+        write("' lon='");
+        write(Double.toString(coor.lon()));
+        write('\'');
+        addTags(n, "node", true);
+    }
+
+    private void writeWay(Way w) throws IOException {
+        addCommon(w, "way");
+        write('>');
+        write(NL);
+        for (int i=0; i<w.getNodesCount(); ++i) {
+            write("    <nd ref='");
+            write(w.getNodeId(i));
+            write("' />");
+            write(NL);
+        }
+        addTags(w, "way", false);
+    }
+
+    private void writeRelation(Relation r) throws IOException {
+        addCommon(r, "relation");
+        write('>');
+        write(NL);
+        for (int i=0; i<r.getMembersCount(); ++i) {
+            write("    <member type='");
+            write(r.getMemberType(i).getAPIName());
+            write("' ref='");
+            write(r.getMemberId(i));
+            write("' role='");
+            writeEncoded(r.getRole(i));
+            write("' />");
+            write(NL);
+        }
+        addTags(r, "relation", false);
+    }
+
+    private void addTags(OsmPrimitive osm, String tagname, boolean tagOpen) throws IOException {
+        if (osm.hasKeys()) {
+            if (tagOpen) {
+                write('>');
+                write(NL);
+            }
+            tagCount = 0;
+            osm.visitKeys(tagCollector);
+            // insertion sort by key, primitives have few tags
+            for (int i = 2; i < tagCount; i += 2) {
+                String key = tags[i];
+                String value = tags[i + 1];
+                int j = i;
+                while (j > 0 && tags[j - 2].compareTo(key) > 0) {
+                    tags[j] = tags[j - 2];
+                    tags[j + 1] = tags[j - 1];
+                    j -= 2;
+                }
+                tags[j] = key;
+                tags[j + 1] = value;
+            }
+            for (int i = 0; i < tagCount; i += 2) {
+                if (!"created_by".equals(tags[i])) {
+                    write("    <tag k='");
+                    writeEncoded(tags[i]);
+                    write("' v='");
+                    writeEncoded(tags[i + 1]);
+                    write("' />");
+                    write(NL);
+                }
+            }
+            Arrays.fill(tags, 0, tagCount, null);
+            write("  </");
+            write(tagname);
+            write('>');
+            write(NL);
+        } else if (tagOpen) {
+            write(" />");
+            write(NL);
+        } else {
+            write("  </");
+            write(tagname);
+            write('>');
+            write(NL);
+        }
+    }
+
+    /**
+     * Add the common part as the form of the tag as well as the XML attributes
+     * id, action, user, and visible.
+     */
+    private void addCommon(OsmPrimitive osm, String tagname) throws IOException {
+        write("  <");
+        write(tagname);
+        if (osm.getUniqueId() != 0) {
+            write(" id='");
+            write(osm.getUniqueId());
+            write('\'');
+        } else
+            throw new IllegalStateException(tr("Unexpected id 0 for osm primitive found"));
+        if (!osmConform) {
+            if (osm.isDeleted()) {
+                write(" action='delete'");
+            } else if (osm.isModified()) {
+                write(" action='modify'");
+            }
+        }
+        if (!osm.isTimestampEmpty()) {
+            write(" timestamp='");
+            writeTimestamp(osm.getTimestamp());
+            write('\'');
+        }
+        User user = osm.getUser();
+        if (user != null) {
+            if (user.isLocalUser()) {
+                write(" user='");
+                writeEncoded(user.getName());
+                write('\'');
+            } else if (user.isOsmUser()) {
+                write(" uid='");
+                write(user.getId());
+                write("' user='");
+                writeEncoded(user.getName());
+                write('\'');
+            }
+        }
+        write(osm.isVisible() ? " visible='true'" : " visible='false'");
+        if (osm.getVersion() != 0) {
+            write(" version='");
+            write(osm.getVersion());
+            write('\'');
+        }
+        if (osm.getChangesetId() > 0 && !osm.isNew()) {
+            write(" changeset='");
+            write(osm.getChangesetId());
+            write('\'');
+        }
+    }
+
+    /**
+     * Writes all buffered output to the channel.
+     */
+    public void flush() throws IOException {
+        encode(false);
+        writeBytes();
+    }
+
+    /**
+     * Writes all buffered output and closes the channel.
+     */
+    public void close() throws IOException {
+        try {
+            encode(true);
+            CoderResult result;
+            while ((result = encoder.flush(bytes)).isOverflow()) {
+                writeBytes();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            writeBytes();
+        } finally {
+            channel.close();
+        }
+    }
+}
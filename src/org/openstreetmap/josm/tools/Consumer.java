@@ -0,0 +1,8 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.tools;
+
+// Used to pass objects to a callback one by one, e.g. the results of a search without collecting them first
+public interface Consumer<T> {
+    // Processes the given object
+    public void accept(T object);
+}
@@ -46,6 +46,19 @@ public final class DateUtils {
     private static GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
     private static final DatatypeFactory XML_DATE;
 
+    /**
+     * One calendar per thread for {@link #fromString(String)}, so that dates can be parsed
+     * concurrently, e.g. by the workers of the {@link org.openstreetmap.josm.io.ParallelOsmReader}.
+     */
+    private static final ThreadLocal<GregorianCalendar> PARSE_CALENDAR = new ThreadLocal<GregorianCalendar>() {
+        @Override
+        protected GregorianCalendar initialValue() {
+            GregorianCalendar result = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            result.setTimeInMillis(0);
+            return result;
+        }
+    };
+
     static {
         calendar.setTimeInMillis(0);
 
@@ -58,7 +71,8 @@ public final class DateUtils {
         XML_DATE = fact;
     }
 
-    public static synchronized Date fromString(String str) {
+    public static Date fromString(String str) {
+        GregorianCalendar calendar = PARSE_CALENDAR.get();
         // "2007-07-25T09:26:24{Z|{+|-}01:00}"
         if (checkLayout(str, "xxxx-xx-xxTxx:xx:xxZ") ||
                 checkLayout(str, "xxxx-xx-xxTxx:xx:xx") ||
@@ -114,6 +128,65 @@ public final class DateUtils {
         }
     }
 
+    /**
+     * Parses a UTC time like "2007-07-25T09:26:24Z" or "2007-07-25T09:26:24.123Z", as written by
+     * most GPS loggers, without creating any objects.
+     *
+     * @param str the text
+     * @return the time in milliseconds, or Long.MIN_VALUE if the text has another form
+     */
+    public static long parseUtcMillis(CharSequence str) {
+        int length = str.length();
+        if ((length != 20 && length != 24) || str.charAt(length - 1) != 'Z'
+                || str.charAt(4) != '-' || str.charAt(7) != '-' || str.charAt(10) != 'T'
+                || str.charAt(13) != ':' || str.charAt(16) != ':' || (length == 24 && str.charAt(19) != '.'))
+            return Long.MIN_VALUE;
+        int year = parseDigits(str, 0, 4);
+        int month = parseDigits(str, 5, 2);
+        int day = parseDigits(str, 8, 2);
+        int hour = parseDigits(str, 11, 2);
+        int minute = parseDigits(str, 14, 2);
+        int second = parseDigits(str, 17, 2);
+        int millis = length == 24 ? parseDigits(str, 20, 3) : 0;
+        // the Julian calendar is used by GregorianCalendar before 1582
+        if (year < 1600 || month < 1 || month > 12 || day < 1 || day > daysOfMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0)
+            return Long.MIN_VALUE;
+        // days since 1970-01-01 in the proleptic Gregorian calendar, with years starting in March
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+    }
+
+    /**
+     * Replies the value of some decimal digits, -1 if one of the characters is no digit.
+     */
+    private static int parseDigits(CharSequence str, int off, int len) {
+        int result = 0;
+        for (int i = off; i < off + len; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            result = result * 10 + c - '0';
+        }
+        return result;
+    }
+
+    private static int daysOfMonth(int year, int month) {
+        switch (month) {
+        case 2:
+            return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+        case 4: case 6: case 9: case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
     public static synchronized String fromDate(Date date) {
         calendar.setTime(date);
         XMLGregorianCalendar xgc = XML_DATE.newXMLGregorianCalendar(calendar);
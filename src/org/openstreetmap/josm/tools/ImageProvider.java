@@ -29,8 +29,8 @@ import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
@@ -105,7 +105,7 @@ public class ImageProvider {
     /**
      * The icon cache
      */
-    private static Map<String, ImageResource> cache = new HashMap<String, ImageResource>();
+    private static Map<String, ImageResource> cache = new ConcurrentHashMap<String, ImageResource>();
 
     private final static ExecutorService imageFetcher = Executors.newSingleThreadExecutor();
 
@@ -874,7 +874,7 @@ public class ImageProvider {
         return img;
     }
 
-    private static SVGUniverse getSvgUniverse() {
+    private static synchronized SVGUniverse getSvgUniverse() {
         if (svgUniverse == null) {
             svgUniverse = new SVGUniverse();
         }
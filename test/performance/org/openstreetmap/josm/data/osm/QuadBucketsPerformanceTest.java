@@ -0,0 +1,89 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.osm;
+
+import java.io.FileInputStream;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.tools.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuadBucketsPerformanceTest {
+
+    private static DataSet dsCity;
+
+    @BeforeClass
+    public static void load() throws Exception {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+        dsCity = OsmReader.parseDataSet(new FileInputStream("data_nodist/neubrandenburg.osm"), NullProgressMonitor.INSTANCE);
+    }
+
+    private static class CountingConsumer implements Consumer<OsmPrimitive> {
+        int count;
+        public void accept(OsmPrimitive object) {
+            count++;
+        }
+    }
+
+    private static int searchList(BBox bbox) {
+        List<Node> nodes = dsCity.searchNodes(bbox);
+        List<Way> ways = dsCity.searchWays(bbox);
+        return nodes.size() + ways.size();
+    }
+
+    private static int searchConsumer(BBox bbox) {
+        CountingConsumer consumer = new CountingConsumer();
+        dsCity.searchNodes(bbox, consumer);
+        dsCity.searchWays(bbox, consumer);
+        return consumer.count;
+    }
+
+    private static void test(int iterations, Bounds bounds) {
+        BBox bbox = new BBox(bounds);
+        assertEquals(searchList(bbox), searchConsumer(bbox));
+
+        // Warm up
+        for (int i = 0; i < iterations; i++) {
+            searchList(bbox);
+            searchConsumer(bbox);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            searchList(bbox);
+        }
+        long end = System.nanoTime();
+        System.out.println(bounds + " list search: " + (end - start) / 1000000.0 + " ms");
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            searchConsumer(bbox);
+        }
+        end = System.nanoTime();
+        System.out.println(bounds + " consumer search: " + (end - start) / 1000000.0 + " ms");
+    }
+
+    @Test
+    public void testCity() {
+        test(500, new Bounds(53.51, 13.20, 53.59, 13.34));
+    }
+
+    @Test
+    public void testCityPart1() {
+        test(5000, new Bounds(53.56, 13.25, 53.57, 13.26));
+    }
+
+    @Test
+    public void testCitySmallPart2() {
+        test(5000, new Bounds(53.56, 13.295, 53.57, 13.30));
+    }
+}
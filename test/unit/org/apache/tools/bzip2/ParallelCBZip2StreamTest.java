@@ -0,0 +1,100 @@
+// License: GPL. For details, see LICENSE file.
+package org.apache.tools.bzip2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelCBZip2StreamTest {
+
+    /**
+     * Text with some repetitions, long enough for several blocks of 100k
+     */
+    private static byte[] createData() {
+        Random random = new Random(42);
+        String[] words = {"<node ", "id='", "lat='", "lon='", "version='1' ", "/>\n", "<tag k='", "highway", "' v='", "residential"};
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 450000) {
+            sb.append(words[random.nextInt(words.length)]);
+            sb.append(random.nextInt(100000));
+            if (random.nextInt(50) == 0) {
+                for (int i = random.nextInt(300); i > 0; i--) {
+                    sb.append('x');
+                }
+            }
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            result.write(buf, 0, n);
+        }
+        in.close();
+        return result.toByteArray();
+    }
+
+    private static byte[] compressParallel(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelCBZip2OutputStream bzip = new ParallelCBZip2OutputStream(out, 1, 3);
+        bzip.write(data, 0, 1000);
+        bzip.write(data[1000]);
+        bzip.write(data, 1001, data.length - 1001);
+        bzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] compressSerial(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBZip2OutputStream bzip = new CBZip2OutputStream(out, 1);
+        bzip.write(data);
+        bzip.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void parallelOutputSerialInput() throws IOException {
+        byte[] data = createData();
+        byte[] compressed = compressParallel(data);
+        Assert.assertArrayEquals(data, readAll(new CBZip2InputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void serialOutputParallelInput() throws IOException {
+        byte[] data = createData();
+        byte[] compressed = compressSerial(data);
+        Assert.assertArrayEquals(data, readAll(new ParallelCBZip2InputStream(new ByteArrayInputStream(compressed), 3)));
+    }
+
+    @Test
+    public void parallelOutputParallelInput() throws IOException {
+        byte[] data = createData();
+        byte[] compressed = compressParallel(data);
+        Assert.assertArrayEquals(data, readAll(new ParallelCBZip2InputStream(new ByteArrayInputStream(compressed), 2)));
+    }
+
+    @Test
+    public void emptyStream() throws IOException {
+        byte[] compressed = compressParallel(new byte[1001]);
+        Assert.assertEquals(1001, readAll(new ParallelCBZip2InputStream(new ByteArrayInputStream(compressed), 2)).length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ParallelCBZip2OutputStream(out, 9, 2).close();
+        Assert.assertEquals(0, readAll(new ParallelCBZip2InputStream(new ByteArrayInputStream(out.toByteArray()), 2)).length);
+    }
+
+    @Test(expected=IOException.class)
+    public void truncatedStream() throws IOException {
+        byte[] compressed = compressSerial(createData());
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        readAll(new ParallelCBZip2InputStream(new ByteArrayInputStream(truncated), 2));
+    }
+}
@@ -0,0 +1,92 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OsmTileSource;
+
+public class ConcurrentTileCacheTest {
+
+    private static final TileSource SOURCE = new OsmTileSource.Mapnik();
+
+    /** weight of one loaded tile */
+    private static final int TILE_BYTES = 16 * 16 * 4;
+
+    private static Tile loadedTile(int x) {
+        Tile tile = new Tile(SOURCE, x, 0, 10, new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
+        tile.setLoaded(true);
+        return tile;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedByWeight() {
+        ConcurrentTileCache cache = new ConcurrentTileCache(4 * TILE_BYTES);
+        for (int x = 0; x < 4; x++) {
+            cache.addTile(loadedTile(x));
+        }
+        Assert.assertEquals(4 * TILE_BYTES, cache.getBytes());
+        // tile 0 is used again, so tile 1 is the least recently used one
+        Assert.assertNotNull(cache.getTile(SOURCE, 0, 0, 10));
+        cache.addTile(loadedTile(4));
+        Assert.assertNull(cache.getTile(SOURCE, 1, 0, 10));
+        Assert.assertNotNull(cache.getTile(SOURCE, 0, 0, 10));
+        Assert.assertNotNull(cache.getTile(SOURCE, 4, 0, 10));
+        // evicted down to the low water mark, i.e. tiles 1 and 2
+        Assert.assertEquals(3 * TILE_BYTES, cache.getBytes());
+        Assert.assertEquals(2, cache.getEvictions());
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(0.75, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void weightFollowsImage() {
+        ConcurrentTileCache cache = new ConcurrentTileCache(2 * TILE_BYTES);
+        // placeholder tiles don't count
+        Tile tile = new Tile(SOURCE, 0, 0, 10);
+        cache.addTile(tile);
+        Assert.assertEquals(0, cache.getBytes());
+        tile.setImage(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
+        tile.setLoaded(true);
+        cache.getTile(SOURCE, 0, 0, 10);
+        Assert.assertEquals(TILE_BYTES, cache.getBytes());
+
+        // replacing a tile doesn't count it twice
+        cache.addTile(loadedTile(0));
+        Assert.assertEquals(TILE_BYTES, cache.getBytes());
+        Assert.assertEquals(1, cache.getTileCount());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getBytes());
+        Assert.assertEquals(0, cache.getTileCount());
+    }
+
+    @Test
+    public void concurrentUse() throws InterruptedException {
+        final ConcurrentTileCache cache = new ConcurrentTileCache(50 * TILE_BYTES);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i * 1000;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int x = 0; x < 500; x++) {
+                        cache.addTile(loadedTile(offset + x));
+                        cache.getTile(SOURCE, offset + x / 2, 0, 10);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertTrue(cache.getBytes() <= 50 * TILE_BYTES);
+        Assert.assertEquals(cache.getTileCount() * TILE_BYTES, cache.getBytes());
+        cache.clear();
+        Assert.assertEquals(0, cache.getBytes());
+    }
+}
@@ -0,0 +1,110 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobDispatcherTest {
+
+    private static final String HOST = "tile.example.org";
+
+    private final JobDispatcher dispatcher = JobDispatcher.getInstance();
+    private final List<Integer> done = Collections.synchronizedList(new ArrayList<Integer>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private int maxJobsPerHost;
+
+    @Before
+    public void setUp() {
+        maxJobsPerHost = JobDispatcher.MAX_JOBS_PER_HOST;
+        JobDispatcher.MAX_JOBS_PER_HOST = 1;
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        JobDispatcher.MAX_JOBS_PER_HOST = maxJobsPerHost;
+    }
+
+    private Runnable job(final int id) {
+        return new Runnable() {
+            public void run() {
+                done.add(id);
+            }
+        };
+    }
+
+    /**
+     * Adds a job that occupies the host until {@link #release} is counted down.
+     */
+    private void blockHost(Object owner) throws InterruptedException {
+        dispatcher.addJob(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                done.add(0);
+            }
+        }, owner, HOST, 0);
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    private void waitForDeferredJobs(int count) throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            synchronized (dispatcher) {
+                PriorityQueue<JobDispatcher.Job> jobs = dispatcher.deferredJobs.get(HOST);
+                if (jobs != null && jobs.size() == count)
+                    return;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("jobs not deferred");
+    }
+
+    private void waitForJobs(int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && done.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void jobsPerHostRunByPriority() throws InterruptedException {
+        Object owner = new Object();
+        blockHost(owner);
+        dispatcher.addJob(job(3), owner, HOST, 3);
+        dispatcher.addJob(job(1), owner, HOST, 1);
+        dispatcher.addJob(job(2), owner, HOST, 2);
+        waitForDeferredJobs(3);
+        Assert.assertEquals(Collections.emptyList(), done);
+        release.countDown();
+        waitForJobs(4);
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), done);
+    }
+
+    @Test
+    public void cancelByOwner() throws InterruptedException {
+        Object owner = new Object();
+        Object other = new Object();
+        blockHost(owner);
+        Runnable cancelled = job(1);
+        dispatcher.addJob(cancelled, owner, HOST, 1);
+        dispatcher.addJob(job(2), other, HOST, 2);
+        waitForDeferredJobs(2);
+        Assert.assertEquals(Collections.singletonList(cancelled), dispatcher.cancelOutstandingJobs(owner));
+        release.countDown();
+        waitForJobs(2);
+        Assert.assertEquals(Arrays.asList(0, 2), done);
+    }
+}
@@ -0,0 +1,174 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.TilePackStore.StoredTile;
+
+public class TilePackStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("tilepack", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] data(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] result = new byte[buf.remaining()];
+        buf.duplicate().get(result);
+        return result;
+    }
+
+    @Test
+    public void putAndLoad() throws IOException {
+        TilePackStore store = TilePackStore.open(dir, "test");
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("etag", "\"abc\"");
+        store.put(18, 140000, 85000, metadata, data(1000, 1), 1000L);
+        store.put(3, 1, 2, null, data(10, 2), 2000L);
+
+        StoredTile tile = store.load(18, 140000, 85000);
+        Assert.assertEquals(1000L, tile.time);
+        Assert.assertEquals(metadata, tile.metadata);
+        Assert.assertArrayEquals(data(1000, 1), toArray(tile.data));
+        Assert.assertArrayEquals(data(10, 2), toArray(store.load(3, 1, 2).data));
+        Assert.assertNull(store.load(3, 2, 1));
+
+        // replace and touch
+        store.put(3, 1, 2, null, data(20, 3), 3000L);
+        store.touch(18, 140000, 85000, 4000L);
+        Assert.assertArrayEquals(data(20, 3), toArray(store.load(3, 1, 2).data));
+        Assert.assertEquals(4000L, store.load(18, 140000, 85000).time);
+
+        // tile without image
+        metadata.put("tile-info", "no-tile");
+        store.put(20, 5, 5, metadata, null, 5000L);
+        Assert.assertNull(store.load(20, 5, 5).data);
+
+        // reopen
+        store.close();
+        store = TilePackStore.open(dir, "test");
+        Assert.assertEquals(3, store.size());
+        Assert.assertArrayEquals(data(20, 3), toArray(store.load(3, 1, 2).data));
+        Assert.assertEquals(4000L, store.load(18, 140000, 85000).time);
+        Assert.assertEquals("no-tile", store.load(20, 5, 5).metadata.get("tile-info"));
+        store.close();
+    }
+
+    @Test
+    public void incompleteRecordsAreIgnored() throws IOException {
+        TilePackStore store = TilePackStore.open(dir, "test");
+        store.put(1, 0, 0, null, data(100, 1), 1000L);
+        store.put(1, 0, 1, null, data(100, 2), 1000L);
+
+        // pack file truncated in the middle of the second record
+        RandomAccessFile f = new RandomAccessFile(store.getPackFile(), "rw");
+        f.setLength(f.length() - 10);
+        f.close();
+        store.close();
+        store = TilePackStore.open(dir, "test");
+        Assert.assertEquals(1, store.size());
+        Assert.assertArrayEquals(data(100, 1), toArray(store.load(1, 0, 0).data));
+        Assert.assertNull(store.load(1, 0, 1));
+
+        // half written index record
+        f = new RandomAccessFile(store.getIndexFile(), "rw");
+        f.setLength(f.length() + 7);
+        f.close();
+        store.close();
+        store = TilePackStore.open(dir, "test");
+        store.put(1, 0, 1, null, data(100, 3), 1000L);
+        store.close();
+        store = TilePackStore.open(dir, "test");
+        Assert.assertEquals(2, store.size());
+        Assert.assertArrayEquals(data(100, 3), toArray(store.load(1, 0, 1).data));
+        store.close();
+    }
+
+    @Test
+    public void compact() throws IOException {
+        TilePackStore store = TilePackStore.open(dir, "test");
+        for (int i = 0; i < 10; i++) {
+            store.put(10, i, i, null, data(1000, i), 1000L);
+        }
+        for (int i = 0; i < 5; i++) {
+            store.put(10, i, i, null, data(2000, i + 100), 2000L);
+        }
+        long size = store.getPackFile().length();
+        store.compact();
+        Assert.assertTrue(store.getPackFile().length() < size);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertArrayEquals(i < 5 ? data(2000, i + 100) : data(1000, i), toArray(store.load(10, i, i).data));
+        }
+        store.close();
+        store = TilePackStore.open(dir, "test");
+        Assert.assertEquals(10, store.size());
+        Assert.assertArrayEquals(data(2000, 100), toArray(store.load(10, 0, 0).data));
+        store.close();
+    }
+
+    @Test
+    public void clear() throws IOException {
+        TilePackStore store = TilePackStore.open(dir, "test");
+        store.put(10, 1, 1, null, data(1000, 1), 1000L);
+        store.clear();
+        Assert.assertEquals(0, store.size());
+        Assert.assertNull(store.load(10, 1, 1));
+        store.put(10, 2, 2, null, data(100, 2), 1000L);
+        store.close();
+        store = TilePackStore.open(dir, "test");
+        Assert.assertEquals(1, store.size());
+        Assert.assertArrayEquals(data(100, 2), toArray(store.load(10, 2, 2).data));
+        store.close();
+    }
+
+    @Test
+    public void shared() throws IOException {
+        TilePackStore store = TilePackStore.open(dir, "test");
+        TilePackStore other = TilePackStore.open(new File(dir, "."), "test");
+        Assert.assertSame(store, other);
+        store.put(10, 1, 1, null, data(100, 1), 1000L);
+        other.put(10, 2, 2, null, data(100, 2), 1000L);
+        store.close();
+        Assert.assertArrayEquals(data(100, 1), toArray(other.load(10, 1, 1).data));
+        other.close();
+        try {
+            other.load(10, 1, 1);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected, the files are closed
+        }
+        store = TilePackStore.open(dir, "test");
+        Assert.assertNotSame(other, store);
+        Assert.assertEquals(2, store.size());
+        store.close();
+    }
+}
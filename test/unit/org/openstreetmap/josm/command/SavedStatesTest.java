@@ -0,0 +1,152 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.UndoJournal;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.PrimitiveData;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.WayData;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+public class SavedStatesTest {
+
+    private DataSet ds;
+    private Node n1, n2, n3;
+    private Way way;
+    private Relation relation;
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+    }
+
+    private void createData() {
+        ds = new DataSet();
+        n1 = new Node(new LatLon(1, 1));
+        n2 = new Node(new LatLon(2, 2));
+        n3 = new Node(new LatLon(3, 3));
+        n1.setOsmId(1, 1);
+        n1.put("name", "a");
+        n1.put("amenity", "bench");
+        ds.addPrimitive(n1);
+        ds.addPrimitive(n2);
+        ds.addPrimitive(n3);
+        way = new Way();
+        way.setNodes(Arrays.asList(n1, n2));
+        ds.addPrimitive(way);
+        relation = new Relation();
+        relation.addMember(new RelationMember("outer", way));
+        ds.addPrimitive(relation);
+    }
+
+    private Map<OsmPrimitive, PrimitiveData> save(OsmPrimitive... primitives) {
+        Map<OsmPrimitive, PrimitiveData> result = new LinkedHashMap<OsmPrimitive, PrimitiveData>();
+        for (OsmPrimitive p : primitives) {
+            result.put(p, p.save());
+        }
+        return result;
+    }
+
+    private void edit() {
+        n1.setCoor(new LatLon(1.5, 1.5));
+        n1.put("name", "b");
+        n1.remove("amenity");
+        n1.put("highway", "crossing");
+        n1.setModified(true);
+        way.setNodes(Arrays.asList(n1, n2, n3));
+        relation.setMembers(Arrays.asList(new RelationMember("inner", way)));
+    }
+
+    private void checkRestored() {
+        Assert.assertEquals(new LatLon(1, 1), n1.getCoor());
+        Assert.assertEquals("a", n1.get("name"));
+        Assert.assertEquals("bench", n1.get("amenity"));
+        Assert.assertNull(n1.get("highway"));
+        Assert.assertFalse(n1.isModified());
+        Assert.assertEquals(new LatLon(2, 2), n2.getCoor());
+        Assert.assertEquals(Arrays.asList(n1, n2), way.getNodes());
+        Assert.assertEquals("outer", relation.getMember(0).getRole());
+    }
+
+    @Test
+    public void restoreChangedFields() throws Exception {
+        createData();
+        Map<OsmPrimitive, PrimitiveData> saved = save(n1, n2, way, relation);
+        edit();
+        SavedStates states = new SavedStates(saved);
+        Assert.assertEquals(Arrays.asList(n1, n2, way, relation), states.getPrimitives());
+        Assert.assertEquals(Arrays.asList(n1.getUniqueId(), n2.getUniqueId()), ((WayData) states.getState(way)).getNodes());
+        states.restore();
+        checkRestored();
+    }
+
+    @Test
+    public void restoreFromJournal() throws Exception {
+        createData();
+        Map<OsmPrimitive, PrimitiveData> saved = save(n1, n2, way, relation);
+        edit();
+        SavedStates states = new SavedStates(saved);
+        long size = states.getSize();
+        UndoJournal journal = new UndoJournal();
+        try {
+            states.spill(journal);
+            Assert.assertTrue(states.getSize() < size);
+            states.restore();
+            checkRestored();
+        } finally {
+            journal.clear();
+        }
+    }
+
+    @Test
+    public void restoreSequenceChangingBack() throws Exception {
+        createData();
+        OsmDataLayer layer = new OsmDataLayer(ds, "test", null);
+        List<Command> commands = new ArrayList<Command>();
+        Node changed = new Node(n1);
+        changed.put("name", "x");
+        commands.add(new ChangeCommand(layer, n1, changed));
+        changed = new Node(n1);
+        changed.remove("name");
+        commands.add(new ChangeCommand(layer, n1, changed));
+        Way longer = new Way(way);
+        longer.setNodes(Arrays.asList(n1, n2, n3));
+        commands.add(new ChangeCommand(layer, way, longer));
+        commands.add(new ChangeCommand(layer, way, new Way(way)));
+        Relation other = new Relation(relation);
+        other.setMembers(Arrays.asList(new RelationMember("inner", way)));
+        commands.add(new ChangeCommand(layer, relation, other));
+        commands.add(new ChangeCommand(layer, relation, new Relation(relation)));
+
+        SequenceCommand sequence = new SequenceCommand(layer, "test", commands);
+        Assert.assertTrue(sequence.executeCommand());
+        sequence.compactUndoState();
+        Assert.assertNull(n1.get("name"));
+        UndoJournal journal = new UndoJournal();
+        try {
+            sequence.spillUndoState(journal);
+            sequence.undoCommand();
+            checkRestored();
+        } finally {
+            journal.clear();
+        }
+    }
+}
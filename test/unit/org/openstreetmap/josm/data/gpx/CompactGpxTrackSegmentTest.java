@@ -0,0 +1,86 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.gpx;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+
+public class CompactGpxTrackSegmentTest {
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+    }
+
+    private static WayPoint createWayPoint(double lat, double lon, String time, String ele, Float hdop) {
+        WayPoint wpt = new WayPoint(new LatLon(lat, lon));
+        if (time != null) {
+            wpt.attr.put("time", time);
+            wpt.setTime();
+        }
+        if (ele != null) {
+            wpt.attr.put("ele", ele);
+        }
+        if (hdop != null) {
+            wpt.attr.put("hdop", hdop);
+        }
+        return wpt;
+    }
+
+    @Test
+    public void attributes() {
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        points.add(createWayPoint(47.1, 8.1, "2012-05-01T10:00:00Z", "412.5", 1.5f));
+        points.add(createWayPoint(47.2, 8.2, "2012-05-01T10:00:01.250Z", "413", null));
+        // neither can be restored from the arrays
+        points.add(createWayPoint(47.3, 8.3, "2012-05-01T12:00:02+02:00", "413.50", null));
+        points.add(createWayPoint(47.4, 8.4, null, null, null));
+        points.get(3).attr.put("name", "end");
+
+        ImmutableGpxTrackSegment expected = new ImmutableGpxTrackSegment(points);
+        CompactGpxTrackSegment segment = new CompactGpxTrackSegment(points);
+        Assert.assertEquals(4, segment.size());
+        Assert.assertEquals(expected.getBounds(), segment.getBounds());
+        Assert.assertEquals(expected.length(), segment.length(), 1e-6);
+
+        Iterator<WayPoint> it = segment.getWayPoints().iterator();
+        for (WayPoint wpt : points) {
+            WayPoint copy = it.next();
+            Assert.assertNotSame(wpt, copy);
+            Assert.assertEquals(wpt.getCoor(), copy.getCoor());
+            Assert.assertEquals(wpt.time, copy.time, 0);
+            Assert.assertEquals(wpt.attr, copy.attr);
+        }
+        Assert.assertEquals(points.get(1).attr, segment.getWayPoint(1).attr);
+
+        Assert.assertEquals(points.get(1).time * 1000, segment.getTimeMillis(1), 0);
+        Assert.assertEquals(points.get(2).time * 1000, segment.getTimeMillis(2), 0);
+        Assert.assertEquals(Long.MIN_VALUE, segment.getTimeMillis(3));
+        Assert.assertEquals(413.5, segment.getElevation(2), 0);
+        Assert.assertTrue(Double.isNaN(segment.getElevation(3)));
+        Assert.assertEquals(1.5f, segment.getHdop(0), 0);
+        Assert.assertTrue(Float.isNaN(segment.getHdop(1)));
+    }
+
+    @Test
+    public void wayPointsNotKept() {
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < 10; i++) {
+            points.add(createWayPoint(0, i * 0.001, null, null, null));
+        }
+        CompactGpxTrackSegment segment = new CompactGpxTrackSegment(points);
+        Collection<WayPoint> wayPoints = segment.getWayPoints();
+        Collection<WayPoint> again = segment.getWayPoints();
+        Assert.assertNotSame(wayPoints.iterator().next(), again.iterator().next());
+        Assert.assertEquals(wayPoints.iterator().next().getCoor(), again.iterator().next().getCoor());
+        Assert.assertEquals(0, segment.getUpdateCount());
+    }
+}
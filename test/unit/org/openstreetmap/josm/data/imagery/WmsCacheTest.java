@@ -0,0 +1,125 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.imagery;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.tools.Utils;
+
+public class WmsCacheTest {
+
+    private static final String URL = "http://wms.example.org/wms?";
+    private static final int TILE_SIZE = 100;
+    private static final double PPD = 0.01;
+    private static final double TILE = TILE_SIZE / PPD;
+
+    private final Projection projection = new Mercator();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        Main.pref = new Preferences();
+        Main.setProjection(projection);
+        dir = File.createTempFile("wmscache", "");
+        dir.delete();
+        dir.mkdirs();
+        Main.pref.put("imagery.wms-cache.path", dir.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        Utils.deleteDirectory(dir);
+    }
+
+    private static byte[] png() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+
+    private WmsCache open() {
+        WmsCache cache = new WmsCache(URL, TILE_SIZE);
+        cache.loadIndex();
+        return cache;
+    }
+
+    private void save(WmsCache cache, int x, int y) throws IOException {
+        cache.saveToCache(null, new ByteArrayInputStream(png()), projection, PPD, x * TILE, y * TILE);
+    }
+
+    private File getIndexFile() {
+        return new File(new File(dir, "1"), "index.dat");
+    }
+
+    @Test
+    public void entriesAreKeptWithoutSavingIndex() throws IOException {
+        WmsCache cache = open();
+        for (int x = 0; x < 3; x++) {
+            save(cache, x, 0);
+        }
+        // no saveIndex(), as after a crash
+        cache = open();
+        for (int x = 0; x < 3; x++) {
+            Assert.assertTrue(cache.hasExactMatch(projection, PPD, x * TILE, 0));
+        }
+        Assert.assertFalse(cache.hasExactMatch(projection, PPD, 0, TILE));
+        Assert.assertFalse(cache.hasExactMatch(projection, PPD * 2, 0, 0));
+        Assert.assertNotNull(cache.getExactMatch(projection, PPD, TILE, 0));
+
+        // half of the tile is covered by a cached tile of a lower resolution
+        Assert.assertNotNull(cache.getPartialMatch(projection, PPD * 2, TILE / 2, 0));
+        Assert.assertNull(cache.getPartialMatch(projection, PPD * 2, 10 * TILE, 0));
+    }
+
+    @Test
+    public void incompleteRecordIsIgnored() throws IOException {
+        WmsCache cache = open();
+        save(cache, 0, 0);
+        save(cache, 1, 0);
+        RandomAccessFile f = new RandomAccessFile(getIndexFile(), "rw");
+        f.setLength(f.length() - 5);
+        f.close();
+
+        cache = open();
+        Assert.assertTrue(cache.hasExactMatch(projection, PPD, 0, 0));
+        Assert.assertFalse(cache.hasExactMatch(projection, PPD, TILE, 0));
+        save(cache, 2, 0);
+        cache = open();
+        Assert.assertTrue(cache.hasExactMatch(projection, PPD, 2 * TILE, 0));
+    }
+
+    @Test
+    public void removedEntriesAndCompaction() throws IOException {
+        WmsCache cache = open();
+        save(cache, 0, 0);
+        save(cache, 1, 0);
+        save(cache, 1, 0);
+        long length = getIndexFile().length();
+        // all files are small
+        cache.cleanSmallFiles(1000000);
+        Assert.assertFalse(cache.hasExactMatch(projection, PPD, 0, 0));
+        save(cache, 3, 0);
+        cache.saveIndex();
+        Assert.assertTrue(getIndexFile().length() < length);
+
+        cache = open();
+        Assert.assertFalse(cache.hasExactMatch(projection, PPD, 0, 0));
+        Assert.assertFalse(cache.hasExactMatch(projection, PPD, TILE, 0));
+        Assert.assertTrue(cache.hasExactMatch(projection, PPD, 3 * TILE, 0));
+        Assert.assertEquals(1, new File(new File(dir, "1"), projection.getCacheDirectoryName()).list().length);
+    }
+}
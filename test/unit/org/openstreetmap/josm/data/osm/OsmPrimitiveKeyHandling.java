@@ -148,4 +148,27 @@ public class OsmPrimitiveKeyHandling {
         assertTrue(!n1.hasEqualSemanticAttributes(n2));
     }
 
+    /**
+     * Nodes with the same tags share the same keys array, changing the tags
+     * of one node must not change the tags of the other node.
+     */
+    @Test
+    public void sharedKeys() {
+        Node n1 = new Node();
+        n1.put("highway", "residential");
+        Node n2 = new Node();
+        n2.put(new String("highway"), new String("residential"));
+        assertTrue(n1.keys == n2.keys);
+        assertTrue(n1.hasSameTags(n2));
+
+        n2.put("highway", "service");
+        assertTrue(n1.get("highway").equals("residential"));
+        assertTrue(n2.get("highway").equals("service"));
+        assertTrue(n1.keys != n2.keys);
+
+        n2.remove("highway");
+        assertTrue(n1.get("highway").equals("residential"));
+        assertTrue(!n2.hasKeys());
+    }
+
 }
@@ -4,8 +4,10 @@ package org.openstreetmap.josm.data.osm;
 import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import org.fest.reflect.core.Reflection;
 import org.fest.reflect.reference.TypeRef;
@@ -82,4 +84,38 @@ public class QuadBucketsTest {
         removeAllTest(ds);
     }
 
+    @Test
+    public void testBulkLoad() throws Exception {
+        Main.setProjection(new Mercator());
+        Random random = new Random(31);
+        List<Node> allNodes = new ArrayList<Node>();
+        for (int i=0; i<5000; i++) {
+            // cluster the nodes so that buckets are split several levels deep
+            Node n = new Node(new LatLon(50 + random.nextDouble() / 100, 10 + random.nextDouble() / 100));
+            allNodes.add(n);
+        }
+        QuadBuckets<Node> incremental = new QuadBuckets<Node>();
+        incremental.addAll(allNodes);
+        QuadBuckets<Node> bulk = new QuadBuckets<Node>();
+        bulk.addAll(allNodes.subList(0, 100));
+        bulk.beginBulkLoad();
+        bulk.addAll(allNodes.subList(100, allNodes.size()));
+        bulk.endBulkLoad();
+
+        Assert.assertEquals(allNodes.size(), bulk.size());
+        checkIterator(bulk, allNodes.size());
+        for (int i=0; i<100; i++) {
+            LatLon a = new LatLon(50 + random.nextDouble() / 100, 10 + random.nextDouble() / 100);
+            LatLon b = new LatLon(50 + random.nextDouble() / 100, 10 + random.nextDouble() / 100);
+            BBox bbox = new BBox(a, b);
+            Assert.assertEquals(new HashSet<Node>(incremental.search(bbox)), new HashSet<Node>(bulk.search(bbox)));
+        }
+        for (Node n: allNodes) {
+            Assert.assertTrue(bulk.contains(n));
+            Assert.assertTrue(bulk.remove(n));
+        }
+        Assert.assertTrue(bulk.isEmpty());
+        checkIterator(bulk, 0);
+    }
+
 }
@@ -0,0 +1,100 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.osm.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
+import org.openstreetmap.josm.data.projection.Mercator;
+
+public class DatasetEventManagerTest {
+
+    private static class BatchRecorder extends DataSetListenerAdapter implements DataSetBatchListener {
+        final List<String> received = new ArrayList<String>();
+
+        BatchRecorder() {
+            super(null);
+        }
+
+        public void datasetChanged(DatasetEventBatch batch) {
+            received.add(batch.getType() + " " + batch.getEventCount() + " " + batch.getPrimitives().size());
+        }
+
+        @Override
+        public void dataChanged(DataChangedEvent event) {
+            received.add("DATA_CHANGED");
+        }
+    }
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+    }
+
+    private static void waitForEdt() throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    @Test
+    public void batchedDelivery() throws Exception {
+        DataSet ds = new DataSet();
+        Node n1 = new Node(new LatLon(0, 0));
+        Node n2 = new Node(new LatLon(1, 1));
+        ds.addPrimitive(n1);
+        ds.addPrimitive(n2);
+
+        final DatasetEventManager manager = new DatasetEventManager();
+        BatchRecorder recorder = new BatchRecorder();
+        manager.addDatasetListener(recorder, FireMode.IN_EDT_BATCHED);
+
+        final List<AbstractDatasetChangedEvent> events = Arrays.asList(
+                new NodeMovedEvent(ds, n1),
+                new NodeMovedEvent(ds, n2),
+                new NodeMovedEvent(ds, n1),
+                new TagsChangedEvent(ds, n1, Collections.<String, String>emptyMap()),
+                new DataChangedEvent(ds, new ArrayList<AbstractDatasetChangedEvent>(Arrays.asList(
+                        new TagsChangedEvent(ds, n2, Collections.<String, String>emptyMap()),
+                        new NodeMovedEvent(ds, n2)))),
+                new DataChangedEvent(ds));
+        // post the events from the EDT, so that they are all fired in the same run
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                for (AbstractDatasetChangedEvent event : events) {
+                    manager.processDatasetEvent(event);
+                }
+            }
+        });
+        waitForEdt();
+
+        Assert.assertEquals(Arrays.asList("NODE_MOVED 3 2", "TAGS_CHANGED 2 2", "NODE_MOVED 1 1", "DATA_CHANGED"),
+                recorder.received);
+
+        List<DatasetEventManager.ListenerStatistics> statistics = manager.getListenerStatistics();
+        Assert.assertEquals(1, statistics.size());
+        Assert.assertEquals(4, statistics.get(0).getCalls());
+        Assert.assertEquals(7, statistics.get(0).getEvents());
+        manager.resetListenerStatistics();
+        Assert.assertEquals(0, manager.getListenerStatistics().get(0).getCalls());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchModeRequiresBatchListener() {
+        new DatasetEventManager().addDatasetListener(new DataSetListenerAdapter(null), FireMode.IN_EDT_BATCHED);
+    }
+}
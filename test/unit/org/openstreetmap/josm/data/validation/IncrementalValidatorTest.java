@@ -0,0 +1,139 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.validation;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.data.validation.tests.CrossingWays;
+import org.openstreetmap.josm.data.validation.tests.DuplicateNode;
+import org.openstreetmap.josm.data.validation.tests.UntaggedNode;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+
+public class IncrementalValidatorTest {
+
+    private DataSet ds;
+    private Way road;
+    private IncrementalValidator validator;
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+        OsmValidator.griddetail = 0.01;
+    }
+
+    @Before
+    public void setUp() {
+        ds = new DataSet();
+        road = createWay(1, 0, 0, 0, 0.01);
+        // an unmodified error, which is not reported as no changed primitive is involved
+        Node untagged = new Node(new LatLon(0.005, 0.005));
+        untagged.setOsmId(10, 1);
+        ds.addPrimitive(untagged);
+        validator = new IncrementalValidator(ds, Arrays.<org.openstreetmap.josm.data.validation.Test>asList(
+                new UntaggedNode(), new CrossingWays(), new DuplicateNode()), false);
+    }
+
+    @After
+    public void tearDown() {
+        validator.dispose();
+    }
+
+    private Node createNode(long id, double lat, double lon) {
+        Node n = new Node(new LatLon(lat, lon));
+        if (id > 0) {
+            n.setOsmId(id, 1);
+        }
+        ds.addPrimitive(n);
+        return n;
+    }
+
+    private Way createWay(long id, double lat1, double lon1, double lat2, double lon2) {
+        Way w = new Way();
+        if (id > 0) {
+            w.setOsmId(id, 1);
+        }
+        w.setNodes(Arrays.asList(createNode(id * 2, lat1, lon1), createNode(id * 2 + 1, lat2, lon2)));
+        w.put("highway", "residential");
+        ds.addPrimitive(w);
+        return w;
+    }
+
+    private static int count(List<TestError> errors, int code) {
+        int result = 0;
+        for (TestError error : errors) {
+            if (error.getCode() == code) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void changedPrimitivesAndNeighbours() {
+        Assert.assertTrue(validator.validate(null).isEmpty());
+
+        // a new way crossing the unmodified road
+        Way way = createWay(0, -0.001, 0.005, 0.001, 0.005);
+        List<TestError> errors = validator.validate(null);
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals(601, errors.get(0).getCode());
+        Assert.assertTrue(errors.get(0).getPrimitives().contains(road));
+
+        // moved away, the crossing is gone
+        way.firstNode().setCoor(new LatLon(0.0001, 0.005));
+        Assert.assertTrue(validator.validate(null).isEmpty());
+
+        // a new node on top of a node of the road
+        Node duplicate = createNode(0, 0, 0);
+        errors = validator.validate(null);
+        Assert.assertEquals(2, errors.size());
+        Assert.assertEquals(1, count(errors, 4));
+        Assert.assertEquals(1, count(errors, 201));
+
+        duplicate.setDeleted(true);
+        Assert.assertTrue(validator.validate(null).isEmpty());
+    }
+
+    @Test
+    public void nodeRemovedFromWay() {
+        Way way = createWay(0, 0.002, 0.002, 0.003, 0.003);
+        Node n = way.lastNode();
+        Assert.assertTrue(validator.validate(null).isEmpty());
+
+        way.setNodes(Arrays.asList(way.firstNode(), createNode(0, 0.003, 0.004)));
+        List<TestError> errors = validator.validate(null);
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals(Arrays.asList(n), errors.get(0).getPrimitives());
+    }
+
+    @Test
+    public void canceledValidationKeepsChanges() {
+        Assert.assertTrue(validator.validate(null).isEmpty());
+
+        createWay(0, -0.001, 0.005, 0.001, 0.005);
+        NullProgressMonitor canceled = new NullProgressMonitor() {
+            @Override
+            public boolean isCanceled() {
+                return true;
+            }
+        };
+        Assert.assertTrue(validator.validate(canceled).isEmpty());
+        // the new way is checked again by the next validation
+        List<TestError> errors = validator.validate(null);
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals(601, errors.get(0).getCode());
+    }
+}
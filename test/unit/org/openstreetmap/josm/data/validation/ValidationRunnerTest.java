@@ -0,0 +1,119 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.validation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.data.validation.tests.DuplicateNode;
+import org.openstreetmap.josm.data.validation.tests.DuplicatedWayNodes;
+import org.openstreetmap.josm.data.validation.tests.UnclosedWays;
+import org.openstreetmap.josm.data.validation.tests.UntaggedNode;
+
+public class ValidationRunnerTest {
+
+    private static List<OsmPrimitive> primitives = new ArrayList<OsmPrimitive>();
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+        DataSet ds = new DataSet();
+        List<Node> nodes = new ArrayList<Node>();
+        for (int i = 0; i < 5000; i++) {
+            // every 10th node duplicates the previous one
+            Node n = new Node(new LatLon(i / 100 - i % 10 / 9 * 0.001, i % 100 * 0.001));
+            if (i % 7 == 0) {
+                n.put("fixme", "yes");
+            } else if (i % 3 == 0) {
+                n.put("amenity", "bench");
+            }
+            n.setOsmId(i + 1, 1);
+            ds.addPrimitive(n);
+            nodes.add(n);
+            primitives.add(n);
+        }
+        for (int i = 0; i + 3 < nodes.size(); i += 4) {
+            Way w = new Way();
+            w.setOsmId(i + 1, 1);
+            w.setNodes(Arrays.asList(nodes.get(i), nodes.get(i + 1), nodes.get(i + 1), nodes.get(i + 2)));
+            w.put(i % 8 == 0 ? "natural" : "highway", i % 8 == 0 ? "water" : "residential");
+            ds.addPrimitive(w);
+            primitives.add(w);
+        }
+    }
+
+    private static Collection<org.openstreetmap.josm.data.validation.Test> createTests() {
+        return Arrays.<org.openstreetmap.josm.data.validation.Test>asList(
+                new UntaggedNode(), new DuplicateNode(), new UnclosedWays(), new DuplicatedWayNodes());
+    }
+
+    private static List<String> run(int threads) {
+        Main.pref.putInteger("validator.threads", threads);
+        List<String> result = new ArrayList<String>();
+        for (TestError e : new ValidationRunner(createTests(), false, false).run(primitives, null)) {
+            result.add(e.getTester().getClass().getSimpleName() + " " + e.getMessage() + " " + e.getPrimitives());
+        }
+        return result;
+    }
+
+    @Test
+    public void parallelRunFindsSameErrorsInSameOrder() {
+        List<String> serial = run(1);
+        Assert.assertFalse(serial.isEmpty());
+        Assert.assertEquals(serial, run(4));
+        Assert.assertEquals(serial, run(3));
+    }
+
+    /**
+     * Cancels the run on the first primitive and records whether it sees the cancellation.
+     */
+    private static class CancelingTest extends org.openstreetmap.josm.data.validation.Test {
+        ValidationRunner runner;
+        boolean canceledSeen;
+
+        CancelingTest() {
+            super("canceling");
+        }
+
+        @Override
+        public void visit(Node n) {
+            if (runner != null) {
+                runner.cancel();
+                runner = null;
+                canceledSeen = isCanceled();
+            }
+        }
+    }
+
+    @Test
+    public void cancelReachesRunningTests() {
+        for (int threads : new int[] {1, 4}) {
+            Main.pref.putInteger("validator.threads", threads);
+            CancelingTest test = new CancelingTest();
+            ValidationRunner runner = new ValidationRunner(
+                    Arrays.<org.openstreetmap.josm.data.validation.Test>asList(test), false, false);
+            test.runner = runner;
+            runner.run(primitives, null);
+            Assert.assertTrue("threads=" + threads, test.canceledSeen);
+        }
+    }
+
+    @Test
+    public void partitionableTests() {
+        Assert.assertTrue(new UntaggedNode().isPartitionable());
+        Assert.assertFalse(new DuplicateNode().isPartitionable());
+    }
+}
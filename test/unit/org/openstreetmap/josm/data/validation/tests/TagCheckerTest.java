@@ -0,0 +1,78 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.data.validation.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.data.validation.TestError;
+
+public class TagCheckerTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+        new TagChecker().initialize();
+    }
+
+    private static List<Integer> check(OsmPrimitive p, String... tags) {
+        for (int i = 0; i < tags.length; i += 2) {
+            p.put(tags[i], tags[i + 1]);
+        }
+        TagChecker checker = new TagChecker();
+        checker.startTest(null);
+        checker.visit(Collections.singleton(p));
+        checker.endTest();
+        List<Integer> codes = new ArrayList<Integer>();
+        for (TestError error : checker.getErrors()) {
+            codes.add(error.getCode());
+        }
+        return codes;
+    }
+
+    private static Node node() {
+        return new Node(new LatLon(0, 0));
+    }
+
+    @Test
+    public void complexRules() {
+        // rules looked up by key=value, by key, and without key
+        Assert.assertTrue(check(node(), "amenity", "restaurant").contains(1271));
+        Assert.assertFalse(check(node(), "amenity", "restaurant", "name", "x").contains(1271));
+        Assert.assertTrue(check(node(), "amenity", "cafe").contains(1271));
+        Assert.assertFalse(check(new Way(), "amenity", "cafe").contains(1271));
+        Assert.assertTrue(check(new Way(), "highway", "residential", "waterway", "river").contains(1260));
+        Assert.assertTrue(check(new Way(), "name", "Hauptstrasse").contains(1270));
+        Assert.assertTrue(check(new Relation()).contains(1253));
+        Assert.assertFalse(check(new Relation(), "type", "route").contains(1253));
+    }
+
+    @Test
+    public void tagPairs() {
+        Assert.assertTrue(check(node(), "religion", "christian").contains(1272));
+        Assert.assertFalse(check(node(), "religion", "christian", "denomination", "anglican").contains(1272));
+        Assert.assertTrue(check(node(), "religion", "christian", "denomination", "foo").contains(1272));
+        // only the first pair is checked, against the second tags of all pairs
+        Assert.assertFalse(check(node(), "religion", "christian", "denomination", "ashkenazi").contains(1272));
+        Assert.assertFalse(check(node(), "religion", "muslim").contains(1272));
+    }
+
+    @Test
+    public void keys() {
+        Assert.assertTrue(check(node(), "amenity", "bench", "highwaay", "x").contains(1201));
+        Assert.assertTrue(check(node(), "amenity", "a&amp;b").contains(1206));
+        Assert.assertFalse(check(node(), "amenity", "a&b").contains(1206));
+    }
+}
@@ -0,0 +1,81 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.gui.layer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.gpx.CompactGpxTrackSegment;
+import org.openstreetmap.josm.data.gpx.ImmutableGpxTrackSegment;
+import org.openstreetmap.josm.data.gpx.WayPoint;
+import org.openstreetmap.josm.data.projection.Mercator;
+
+public class GpxSegmentPyramidTest {
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+    }
+
+    @Test
+    public void levels() {
+        // a zig-zag track of 10000 points about 1 m apart, with a gap of 1 km in the middle
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < 10000; i++) {
+            double lon = i * 0.00001 + (i >= 5000 ? 0.01 : 0);
+            points.add(new WayPoint(new LatLon(i % 2 * 0.000005, lon)));
+        }
+        ImmutableGpxTrackSegment segment = new ImmutableGpxTrackSegment(points);
+        GpxSegmentPyramid pyramid = new GpxSegmentPyramid(new GpxSegmentPoints(segment), 200);
+        Assert.assertTrue(pyramid.isValid(segment, 200));
+        Assert.assertFalse(pyramid.isValid(segment, -1));
+        Assert.assertTrue(pyramid.getLevelCount() > 3);
+
+        // one pixel is about 1 cm: all points
+        Assert.assertNull(pyramid.getIndexes(0.01));
+
+        // one pixel is about 1 km: the ends of the segment and of the gap remain
+        int[] coarse = pyramid.getIndexes(1000);
+        Assert.assertTrue(coarse.length < 50);
+        Assert.assertEquals(0, coarse[0]);
+        Assert.assertEquals(9999, coarse[coarse.length - 1]);
+        Assert.assertTrue(Arrays.binarySearch(coarse, 4999) >= 0);
+        Assert.assertTrue(Arrays.binarySearch(coarse, 5000) >= 0);
+        for (int i = 1; i < coarse.length; i++) {
+            Assert.assertTrue(coarse[i] > coarse[i - 1]);
+        }
+    }
+
+    @Test
+    public void smallSegment() {
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < 100; i++) {
+            points.add(new WayPoint(new LatLon(0, i * 0.001)));
+        }
+        GpxSegmentPyramid pyramid = new GpxSegmentPyramid(new GpxSegmentPoints(new ImmutableGpxTrackSegment(points)), -1);
+        Assert.assertEquals(0, pyramid.getLevelCount());
+        Assert.assertNull(pyramid.getIndexes(1000));
+    }
+
+    @Test
+    public void compactSegment() {
+        List<WayPoint> points = new ArrayList<WayPoint>();
+        for (int i = 0; i < CompactGpxTrackSegment.MIN_POINTS; i++) {
+            points.add(new WayPoint(new LatLon(i % 2 * 0.000005, i * 0.00001)));
+        }
+        GpxSegmentPoints compact = new GpxSegmentPoints(new CompactGpxTrackSegment(points));
+        GpxSegmentPoints immutable = new GpxSegmentPoints(new ImmutableGpxTrackSegment(points));
+        Assert.assertEquals(points.size(), compact.size());
+        Assert.assertEquals(points.get(7).getEastNorth(), compact.getEastNorth(7));
+        int[] expected = new GpxSegmentPyramid(immutable, -1).getIndexes(100);
+        Assert.assertNotNull(expected);
+        Assert.assertTrue(Arrays.equals(expected, new GpxSegmentPyramid(compact, -1).getIndexes(100)));
+    }
+}
@@ -0,0 +1,88 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.gui.layer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.gui.NavigatableComponent;
+
+public class TiledPaintCacheTest {
+
+    private NavigatableComponent nc;
+    private TiledPaintCache cache;
+    private Graphics2D g;
+    private int renderCount;
+    private Rectangle lastRendered;
+
+    private final TiledPaintCache.Painter painter = new TiledPaintCache.Painter() {
+        public void paint(Graphics2D g, Bounds box) {
+            renderCount++;
+            lastRendered = g.getClipBounds();
+            g.setColor(Color.RED);
+            g.fillRect(0, 0, 800, 600);
+        }
+    };
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+    }
+
+    @Before
+    public void setUp() {
+        nc = new NavigatableComponent();
+        nc.setSize(800, 600);
+        nc.zoomTo(new EastNorth(1000.3, 2000.7), 0.5);
+        cache = new TiledPaintCache(256, 50);
+        g = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        cache.paint(g, nc, painter);
+        Assert.assertEquals(1, renderCount);
+        Assert.assertEquals(new Rectangle(0, 0, 800, 600), lastRendered);
+    }
+
+    @Test
+    public void unchangedViewIsNotRenderedAgain() {
+        cache.paint(g, nc, painter);
+        Assert.assertEquals(1, renderCount);
+    }
+
+    @Test
+    public void onlyInvalidatedTilesAreRendered() {
+        LatLon ll = nc.getLatLon(400, 300);
+        cache.invalidate(new BBox(ll, ll));
+        cache.paint(g, nc, painter);
+        Assert.assertEquals(2, renderCount);
+        Assert.assertEquals(new Rectangle(256, 0, 256, 512), lastRendered);
+    }
+
+    @Test
+    public void movedViewRendersOnlyNewArea() {
+        // 10 pixels to the right
+        nc.zoomTo(new EastNorth(1005.3, 2000.7));
+        cache.paint(g, nc, painter);
+        Assert.assertEquals(2, renderCount);
+        Assert.assertEquals(new Rectangle(758, 0, 42, 600), lastRendered);
+    }
+
+    @Test
+    public void zoomRendersEverything() {
+        nc.zoomTo(new EastNorth(1000.3, 2000.7), 0.25);
+        cache.paint(g, nc, painter);
+        Assert.assertEquals(2, renderCount);
+        Assert.assertEquals(new Rectangle(0, 0, 800, 600), lastRendered);
+    }
+}
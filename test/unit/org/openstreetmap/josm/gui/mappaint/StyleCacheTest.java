@@ -0,0 +1,45 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.gui.mappaint;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openstreetmap.josm.gui.mappaint.StyleCache.StyleList;
+
+public class StyleCacheTest {
+
+    private static StyleCache create(double lower, double upper) {
+        return StyleCache.EMPTY_STYLECACHE.put(new StyleList(), lower, upper);
+    }
+
+    @Test
+    public void internReturnsPooledInstance() {
+        StyleCache.clearInternPool();
+        long hits = StyleCache.getInternPoolHits();
+        long misses = StyleCache.getInternPoolMisses();
+
+        StyleCache sc1 = create(10, 20);
+        StyleCache sc2 = create(10, 20);
+        StyleCache sc3 = create(10, 30);
+        Assert.assertSame(sc1, sc2);
+        Assert.assertNotSame(sc1, sc3);
+        Assert.assertEquals(hits + 1, StyleCache.getInternPoolHits());
+        Assert.assertEquals(misses + 2, StyleCache.getInternPoolMisses());
+        Assert.assertEquals(2, StyleCache.getInternPoolSize());
+    }
+
+    @Test
+    public void clearInternPool() {
+        StyleCache sc1 = create(1, 2);
+        Assert.assertTrue(StyleCache.getInternPoolSize() > 0);
+        long evictions = StyleCache.getInternPoolEvictions();
+        int size = StyleCache.getInternPoolSize();
+        StyleCache.clearInternPool();
+        Assert.assertEquals(0, StyleCache.getInternPoolSize());
+        Assert.assertEquals(evictions + size, StyleCache.getInternPoolEvictions());
+
+        // a new generation gets new instances
+        StyleCache sc2 = create(1, 2);
+        Assert.assertEquals(sc1, sc2);
+        Assert.assertNotSame(sc1, sc2);
+    }
+}
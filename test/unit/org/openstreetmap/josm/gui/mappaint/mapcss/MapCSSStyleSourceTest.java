@@ -0,0 +1,106 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.gui.mappaint.mapcss;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.gui.mappaint.MultiCascade;
+
+public class MapCSSStyleSourceTest {
+
+    private static final String CSS =
+        "node { label: \"any\"; }\n" +
+        "node[amenity] { label: \"amenity\"; }\n" +
+        "*[amenity=cafe] { label: \"cafe\"; }\n" +
+        "node[amenity!=cafe] { width: 3; }\n" +
+        "node[!name] { color: #ff0000; }\n" +
+        "way[highway], area[building] { label: \"way\"; }\n" +
+        "area[landuse] { label: \"area\"; }\n" +
+        "relation[type=route] > way[highway] { label: \"route member\"; }\n" +
+        "node[name][amenity=cafe] { label: \"named cafe\"; }\n" +
+        "node[ref=~/^A[0-9]+$/] { width: plus(1, times(2, 3)); label: concat(tag(\"ref\"), \"!\"); }\n";
+
+    private static MapCSSStyleSource source;
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+        source = new MapCSSStyleSource(CSS);
+        source.loadStyleSource();
+        Assert.assertTrue(source.getErrors().isEmpty());
+    }
+
+    private static Object get(OsmPrimitive osm, String key) {
+        MultiCascade mc = new MultiCascade();
+        source.apply(mc, osm, 1.0, null, false);
+        return mc.getCascade("default").get(key);
+    }
+
+    @Test
+    public void nodes() {
+        Node n = new Node(new LatLon(0, 0));
+        Assert.assertEquals("any", get(n, "label"));
+        Assert.assertEquals(3f, get(n, "width"));
+        Assert.assertNotNull(get(n, "color"));
+        n.put("amenity", "cafe");
+        Assert.assertEquals("cafe", get(n, "label"));
+        Assert.assertNull(get(n, "width"));
+        n.put("name", "x");
+        Assert.assertEquals("named cafe", get(n, "label"));
+        Assert.assertNull(get(n, "color"));
+        n.put("amenity", "bar");
+        Assert.assertEquals("amenity", get(n, "label"));
+    }
+
+    @Test
+    public void functionsAndRegularExpressions() {
+        Node n = new Node(new LatLon(0, 0));
+        n.put("ref", "A42");
+        Assert.assertEquals(7f, get(n, "width"));
+        Assert.assertEquals("A42!", get(n, "label"));
+        n.put("ref", "B42");
+        Assert.assertEquals(3f, get(n, "width"));
+        Assert.assertEquals("any", get(n, "label"));
+    }
+
+    @Test
+    public void waysAndRelations() {
+        Way w = new Way();
+        Assert.assertNull(get(w, "label"));
+        w.put("amenity", "cafe");
+        Assert.assertEquals("cafe", get(w, "label"));
+        w.put("landuse", "forest");
+        Assert.assertEquals("area", get(w, "label"));
+
+        Relation mp = new Relation();
+        mp.put("type", "multipolygon");
+        mp.put("building", "yes");
+        Assert.assertEquals("way", get(mp, "label"));
+        mp.put("type", "route");
+        Assert.assertNull(get(mp, "label"));
+    }
+
+    @Test
+    public void childSelector() {
+        Way w = new Way();
+        w.put("highway", "primary");
+        Relation r = new Relation();
+        r.put("type", "route");
+        DataSet ds = new DataSet();
+        ds.addPrimitive(w);
+        r.addMember(new RelationMember("", w));
+        ds.addPrimitive(r);
+        Assert.assertEquals("route member", get(w, "label"));
+    }
+}
@@ -0,0 +1,129 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.gpx.CompactGpxTrackSegment;
+import org.openstreetmap.josm.data.gpx.GpxTrack;
+import org.openstreetmap.josm.data.gpx.GpxTrackSegment;
+import org.openstreetmap.josm.data.gpx.WayPoint;
+import org.openstreetmap.josm.tools.DateUtils;
+import org.openstreetmap.josm.tools.PrimaryDateParser;
+import org.xml.sax.SAXException;
+
+public class GpxReaderTest {
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+    }
+
+    private static GpxReader read(String gpx, final List<GpxTrack> tracksRead) throws Exception {
+        GpxReader reader = new GpxReader(new ByteArrayInputStream(gpx.getBytes("UTF-8")));
+        reader.setTrackListener(new GpxReader.TrackListener() {
+            public void trackRead(GpxTrack track) {
+                tracksRead.add(track);
+            }
+        });
+        return reader;
+    }
+
+    private static String track(String name, int points) {
+        StringBuilder sb = new StringBuilder("<trk><name>").append(name).append("</name><trkseg>");
+        for (int i = 0; i < points; i++) {
+            sb.append("<trkpt lat=\"47.").append(i).append("\" lon=\"8.1\"><ele>412.5</ele>");
+            sb.append("<time>2012-05-01T10:").append(i / 600 % 60 < 10 ? "0" : "").append(i / 600 % 60)
+            .append(':').append(i / 10 % 60 < 10 ? "0" : "").append(i / 10 % 60)
+            .append('.').append(i % 10).append("00Z</time></trkpt>");
+        }
+        return sb.append("</trkseg><trkseg></trkseg></trk>").toString();
+    }
+
+    @Test
+    public void tracksInOrder() throws Exception {
+        StringBuilder gpx = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<gpx version=\"1.1\">");
+        gpx.append("<wpt lat=\"47.0\" lon=\"8.0\"><name>start</name><time>2012-05-01T12:00:00+02:00</time></wpt>");
+        for (int i = 0; i < 10; i++) {
+            gpx.append(track("t" + i, i % 2 == 0 ? 5 : CompactGpxTrackSegment.MIN_POINTS));
+        }
+        gpx.append("</gpx>");
+
+        List<GpxTrack> tracksRead = new ArrayList<GpxTrack>();
+        GpxReader reader = read(gpx.toString(), tracksRead);
+        Assert.assertTrue(reader.parse(false));
+        Assert.assertEquals(10, reader.data.tracks.size());
+        Assert.assertEquals(reader.data.tracks, tracksRead);
+        for (int i = 0; i < 10; i++) {
+            GpxTrack track = tracksRead.get(i);
+            Assert.assertEquals("t" + i, track.getAttributes().get("name"));
+            // the empty segment is left out
+            Assert.assertEquals(1, track.getSegments().size());
+            GpxTrackSegment segment = track.getSegments().iterator().next();
+            Assert.assertEquals(i % 2 != 0, segment instanceof CompactGpxTrackSegment);
+            WayPoint wpt = segment.getWayPoints().iterator().next();
+            Assert.assertEquals("412.5", wpt.attr.get("ele"));
+            Assert.assertEquals("2012-05-01T10:00:00.000Z", wpt.attr.get("time"));
+        }
+
+        // times in other forms are still parsed
+        WayPoint wpt = reader.data.waypoints.iterator().next();
+        Assert.assertEquals("start", wpt.attr.get("name"));
+        Assert.assertEquals(new PrimaryDateParser().parse("2012-05-01T10:00:00Z").getTime() / 1000., wpt.time, 0);
+    }
+
+    @Test
+    public void incompleteFile() throws Exception {
+        String gpx = "<gpx>" + track("a", 3) + track("b", 3).substring(0, 100);
+        List<GpxTrack> tracksRead = new ArrayList<GpxTrack>();
+        try {
+            read(gpx, tracksRead).parse(false);
+            Assert.fail();
+        } catch (SAXException e) {
+            // expected
+        }
+
+        tracksRead.clear();
+        GpxReader reader = read(gpx, tracksRead);
+        Assert.assertFalse(reader.parse(true));
+        Assert.assertEquals(2, reader.data.tracks.size());
+        Assert.assertEquals(reader.data.tracks, tracksRead);
+    }
+
+    @Test
+    public void prefixedElements() throws Exception {
+        InputStream in = new FileInputStream("data_nodist/munich.gpx");
+        GpxReader reader = new GpxReader(in);
+        Assert.assertTrue(reader.parse(false));
+        in.close();
+        Assert.assertEquals(2762, reader.data.tracks.size());
+        Assert.assertEquals(903, reader.data.waypoints.size());
+    }
+
+    @Test
+    public void parseUtcMillis() throws Exception {
+        PrimaryDateParser parser = new PrimaryDateParser();
+        String[] times = {
+                "2007-07-25T09:26:24Z", "2012-02-29T23:59:59.999Z", "1970-01-01T00:00:00Z",
+                "1969-12-31T23:59:59.001Z", "2000-03-01T00:00:00Z", "1600-01-01T00:00:00Z", "2100-12-31T12:00:00.500Z"
+        };
+        for (String time : times) {
+            Assert.assertEquals(time, parser.parse(time).getTime(), DateUtils.parseUtcMillis(time));
+        }
+        String[] others = {
+                "2007-07-25T09:26:24", "2007-07-25T11:26:24+02:00", "2007-07-25T09:26:24.1Z",
+                "2007-02-29T09:26:24Z", "2007-07-25T24:00:00Z", "2007-07-25T09:2a:24Z", "1500-01-01T00:00:00Z"
+        };
+        for (String time : others) {
+            Assert.assertEquals(time, Long.MIN_VALUE, DateUtils.parseUtcMillis(time));
+        }
+    }
+}
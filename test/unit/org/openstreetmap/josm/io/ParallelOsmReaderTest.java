@@ -0,0 +1,111 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+
+public class ParallelOsmReaderTest {
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+    }
+
+    private DataSet read(boolean parallel, String fileName) throws Exception {
+        InputStream in = new FileInputStream(fileName);
+        try {
+            if (parallel)
+                return ParallelOsmReader.parseDataSet(in, NullProgressMonitor.INSTANCE);
+            return OsmReader.parseDataSet(in, NullProgressMonitor.INSTANCE);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void assertSamePrimitive(OsmPrimitive expected, OsmPrimitive actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.getVersion(), actual.getVersion());
+        Assert.assertEquals(expected.getUser(), actual.getUser());
+        Assert.assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        Assert.assertEquals(expected.getKeys(), actual.getKeys());
+        Assert.assertEquals(expected.isModified(), actual.isModified());
+        Assert.assertEquals(expected.isDeleted(), actual.isDeleted());
+        Assert.assertEquals(expected.isIncomplete(), actual.isIncomplete());
+    }
+
+    private void assertSameData(String fileName) throws Exception {
+        DataSet expected = read(false, fileName);
+        DataSet actual = read(true, fileName);
+        Assert.assertEquals(expected.getNodes().size(), actual.getNodes().size());
+        Assert.assertEquals(expected.getWays().size(), actual.getWays().size());
+        Assert.assertEquals(expected.getRelations().size(), actual.getRelations().size());
+        Assert.assertEquals(expected.dataSources.size(), actual.dataSources.size());
+        for (Node n : expected.getNodes()) {
+            Node other = (Node) actual.getPrimitiveById(n);
+            assertSamePrimitive(n, other);
+            Assert.assertEquals(n.getCoor(), other.getCoor());
+        }
+        for (Way w : expected.getWays()) {
+            Way other = (Way) actual.getPrimitiveById(w);
+            assertSamePrimitive(w, other);
+            Assert.assertEquals(w.getNodesCount(), other.getNodesCount());
+            for (int i=0; i<w.getNodesCount(); i++) {
+                Assert.assertEquals(w.getNode(i).getPrimitiveId(), other.getNode(i).getPrimitiveId());
+            }
+        }
+        for (Relation r : expected.getRelations()) {
+            Relation other = (Relation) actual.getPrimitiveById(r);
+            assertSamePrimitive(r, other);
+            Assert.assertEquals(r.getMembersCount(), other.getMembersCount());
+            for (int i=0; i<r.getMembersCount(); i++) {
+                Assert.assertEquals(r.getMember(i).getRole(), other.getMember(i).getRole());
+                Assert.assertEquals(r.getMember(i).getMember().getPrimitiveId(), other.getMember(i).getMember().getPrimitiveId());
+            }
+        }
+    }
+
+    @Test
+    public void sameDataAsOsmReader() throws Exception {
+        assertSameData("data_nodist/neubrandenburg.osm");
+        assertSameData("data_nodist/filterTests.osm");
+    }
+
+    @Test
+    public void newPrimitives() throws Exception {
+        // new primitives get new ids on each read, so only compare the counts
+        DataSet expected = read(false, "data_nodist/multipolygon.osm");
+        DataSet actual = read(true, "data_nodist/multipolygon.osm");
+        Assert.assertEquals(expected.getNodes().size(), actual.getNodes().size());
+        Assert.assertEquals(expected.getWays().size(), actual.getWays().size());
+        Assert.assertEquals(expected.getRelations().size(), actual.getRelations().size());
+    }
+
+    @Test(expected=IllegalDataException.class)
+    public void illegalId() throws Exception {
+        StringBuilder sb = new StringBuilder("<osm version='0.6'>");
+        for (int i=1; i<5000; i++) {
+            sb.append("<node id='").append(i).append("' version='1' lat='1' lon='1'/>");
+        }
+        sb.append("<node id='0' version='1' lat='1' lon='1'/>");
+        for (int i=5000; i<10000; i++) {
+            sb.append("<node id='").append(i).append("' version='1' lat='1' lon='1'/>");
+        }
+        sb.append("</osm>");
+        ParallelOsmReader.parseDataSet(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")), NullProgressMonitor.INSTANCE);
+    }
+}
@@ -0,0 +1,154 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+
+public class PbfReaderTest {
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+    }
+
+    private DataSet roundTrip(DataSet ds) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PbfWriter writer = new PbfWriter(out);
+        writer.writeData(ds);
+        writer.close();
+        return PbfReader.parseDataSet(new ByteArrayInputStream(out.toByteArray()), NullProgressMonitor.INSTANCE);
+    }
+
+    private void assertSamePrimitive(OsmPrimitive expected, OsmPrimitive actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.getVersion(), actual.getVersion());
+        Assert.assertEquals(expected.getUser(), actual.getUser());
+        Assert.assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        Assert.assertEquals(expected.getChangesetId(), actual.getChangesetId());
+        Assert.assertEquals(expected.getKeys(), actual.getKeys());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        InputStream in = new FileInputStream("data_nodist/neubrandenburg.osm");
+        DataSet expected;
+        try {
+            expected = OsmReader.parseDataSet(in, NullProgressMonitor.INSTANCE);
+        } finally {
+            in.close();
+        }
+        DataSet actual = roundTrip(expected);
+
+        Assert.assertEquals(expected.getNodes().size(), actual.getNodes().size());
+        Assert.assertEquals(expected.getWays().size(), actual.getWays().size());
+        Assert.assertEquals(expected.getRelations().size(), actual.getRelations().size());
+        Assert.assertEquals(expected.dataSources.isEmpty(), actual.dataSources.isEmpty());
+        for (Node n : expected.getNodes()) {
+            Node other = (Node) actual.getPrimitiveById(n);
+            assertSamePrimitive(n, other);
+            Assert.assertEquals(n.isIncomplete(), other.isIncomplete());
+            if (!n.isIncomplete()) {
+                Assert.assertTrue(n.getCoor().equalsEpsilon(other.getCoor()));
+            }
+        }
+        for (Way w : expected.getWays()) {
+            Way other = (Way) actual.getPrimitiveById(w);
+            assertSamePrimitive(w, other);
+            Assert.assertEquals(w.getNodesCount(), other.getNodesCount());
+            for (int i=0; i<w.getNodesCount(); i++) {
+                Assert.assertEquals(w.getNodeId(i), other.getNodeId(i));
+            }
+        }
+        for (Relation r : expected.getRelations()) {
+            Relation other = (Relation) actual.getPrimitiveById(r);
+            assertSamePrimitive(r, other);
+            Assert.assertEquals(r.getMembersCount(), other.getMembersCount());
+            for (int i=0; i<r.getMembersCount(); i++) {
+                Assert.assertEquals(r.getMember(i).getRole(), other.getMember(i).getRole());
+                Assert.assertEquals(r.getMember(i).getMember().getPrimitiveId(), other.getMember(i).getMember().getPrimitiveId());
+            }
+        }
+    }
+
+    @Test
+    public void deletedPrimitivesAreSkipped() throws Exception {
+        DataSet ds = new DataSet();
+        Node n1 = new Node(new LatLon(1, 2));
+        Node n2 = new Node(new LatLon(3, 4));
+        n1.put("name", "n1");
+        ds.addPrimitive(n1);
+        ds.addPrimitive(n2);
+        n2.setDeleted(true);
+        DataSet actual = roundTrip(ds);
+        Assert.assertEquals(1, actual.getNodes().size());
+        Assert.assertEquals("n1", actual.getNodes().iterator().next().get("name"));
+    }
+
+    private static void writeRawBlob(DataOutputStream out, String type, PbfWriter.MessageBuilder content) throws Exception {
+        PbfWriter.MessageBuilder blob = new PbfWriter.MessageBuilder();
+        blob.writeMessage(1, content);
+        byte[] blobBytes = blob.toByteArray();
+        PbfWriter.MessageBuilder header = new PbfWriter.MessageBuilder();
+        header.writeString(1, type);
+        header.writeVarint(3, blobBytes.length);
+        byte[] headerBytes = header.toByteArray();
+        out.writeInt(headerBytes.length);
+        out.write(headerBytes);
+        out.write(blobBytes);
+    }
+
+    @Test
+    public void withoutMetadata() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PbfWriter.MessageBuilder header = new PbfWriter.MessageBuilder();
+        header.writeString(4, "OsmSchema-V0.6");
+        writeRawBlob(out, "OSMHeader", header);
+
+        // a node without Info, as written by tools which omit the metadata
+        PbfWriter.MessageBuilder node = new PbfWriter.MessageBuilder();
+        node.writeSignedVarint(1, 7);
+        node.writeSignedVarint(8, 100000000);
+        node.writeSignedVarint(9, 200000000);
+        PbfWriter.MessageBuilder group = new PbfWriter.MessageBuilder();
+        group.writeMessage(1, node);
+        PbfWriter.MessageBuilder strings = new PbfWriter.MessageBuilder();
+        strings.writeString(1, "");
+        PbfWriter.MessageBuilder block = new PbfWriter.MessageBuilder();
+        block.writeMessage(1, strings);
+        block.writeMessage(2, group);
+        writeRawBlob(out, "OSMData", block);
+        out.close();
+
+        DataSet ds = PbfReader.parseDataSet(new ByteArrayInputStream(bytes.toByteArray()), NullProgressMonitor.INSTANCE);
+        Assert.assertEquals(1, ds.getNodes().size());
+        Node n = ds.getNodes().iterator().next();
+        Assert.assertEquals(7, n.getUniqueId());
+        Assert.assertEquals(1, n.getVersion());
+        Assert.assertFalse(n.isIncomplete());
+        Assert.assertTrue(new LatLon(10, 20).equalsEpsilon(n.getCoor()));
+    }
+
+    @Test(expected=IllegalDataException.class)
+    public void truncatedFile() throws Exception {
+        PbfReader.parseDataSet(new ByteArrayInputStream(new byte[] {0, 0, 0, 10, 1, 2}), NullProgressMonitor.INSTANCE);
+    }
+}
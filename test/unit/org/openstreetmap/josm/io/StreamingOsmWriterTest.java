@@ -0,0 +1,105 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.User;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+
+public class StreamingOsmWriterTest {
+
+    @BeforeClass
+    public static void init() {
+        Main.pref = new Preferences();
+        Main.setProjection(new Mercator());
+    }
+
+    private static String writeWithOsmWriter(DataSet ds) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OsmWriter writer = OsmWriterFactory.createOsmWriter(new PrintWriter(new OutputStreamWriter(out, "UTF-8")), false, ds.getVersion());
+        writer.header(Boolean.TRUE);
+        writer.writeDataSources(ds);
+        writer.writeContent(ds);
+        writer.footer();
+        writer.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static String writeStreaming(DataSet ds) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingOsmWriter writer = new StreamingOsmWriter(Channels.newChannel(out), false, ds.getVersion());
+        writer.header(Boolean.TRUE);
+        writer.writeDataSources(ds);
+        writer.writeContent(ds);
+        writer.footer();
+        writer.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void sameOutputAsOsmWriter() throws Exception {
+        InputStream in = new FileInputStream("data_nodist/neubrandenburg.osm");
+        DataSet ds;
+        try {
+            ds = OsmReader.parseDataSet(in, NullProgressMonitor.INSTANCE);
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(writeWithOsmWriter(ds), writeStreaming(ds));
+    }
+
+    @Test
+    public void modifiedAndNewPrimitives() throws Exception {
+        DataSet ds = new DataSet();
+        Node n1 = new Node(new LatLon(53.5, 13.25));
+        n1.put("name", "<Ä & \"ö\" 'ü'>\n\tline");
+        n1.put("amenity", "cafe");
+        n1.put("created_by", "JOSM");
+        ds.addPrimitive(n1);
+        Node n2 = new Node(12345, 3);
+        n2.setCoor(new LatLon(-0.000001, 179.999999));
+        n2.setUser(User.createOsmUser(42, "mapper's name"));
+        n2.setTimestamp(new Date(1234567890000L));
+        n2.setChangesetId(77);
+        ds.addPrimitive(n2);
+        Node n3 = new Node(12346, 1);
+        n3.setCoor(new LatLon(1, 2));
+        ds.addPrimitive(n3);
+        n3.setDeleted(true);
+        Node n4 = new Node(new LatLon(3, 4));
+        ds.addPrimitive(n4);
+        n4.setDeleted(true);
+        Way w = new Way();
+        w.addNode(n1);
+        w.addNode(n2);
+        w.put("highway", "residential");
+        w.put("zzz", "last");
+        w.put("aaa", "first");
+        ds.addPrimitive(w);
+        Relation r = new Relation(99, 2);
+        r.addMember(new RelationMember("outer", w));
+        r.addMember(new RelationMember("", n2));
+        r.setModified(true);
+        ds.addPrimitive(r);
+
+        Assert.assertEquals(writeWithOsmWriter(ds), writeStreaming(ds));
+    }
+}